@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+/**
+ * A Bloom filter over strings or byte arrays: a compact set that may report
+ * that it contains a key that was never added (with a chosen probability), but
+ * never reports that it lacks one that was. Strings and byte arrays are hashed
+ * differently, so a filter should only be used with one kind of key.
+ *
+ * Keys are hashed together with a salt, so two filters built from the same
+ * keys with different salts have different false positives. Each key is
+ * hashed once, and each of its bit indexes is derived by remixing that hash
+ * with the index number. (Plain double hashing, h1 + i * h2, repeats bits
+ * when the number of bits shares factors with h2, which matters for the small
+ * filters used for small stores.)
+ */
+/* package */ class BloomFilter {
+  /** The most hashes a filter may use. Bounds the work of a lookup. */
+  public static final int MAX_HASHES = 16;
+
+  /** The bits of the filter. */
+  private final byte[] mBits;
+
+  /** The number of bits set for each string. */
+  private final int mHashes;
+
+  /** Mixed into every hash. */
+  private final int mSalt;
+
+  /**
+   * Create an empty filter sized to hold the given number of strings with the
+   * given false positive rate.
+   *
+   * @param expectedItems The number of strings that will be added.
+   * @param falsePositiveRate The chance that a string not added is reported
+   * present once expectedItems strings have been added, between 0 and 1.
+   * @param salt A value mixed into every hash.
+   */
+  public BloomFilter(int expectedItems, double falsePositiveRate, int salt) {
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+    }
+    int items = Math.max(1, expectedItems);
+    double ln2 = Math.log(2);
+    long bits = (long) Math.ceil(-items * Math.log(falsePositiveRate) / (ln2 * ln2));
+    int bytes = (int) Math.min(Integer.MAX_VALUE / Byte.SIZE, (bits + Byte.SIZE - 1) / Byte.SIZE);
+    int hashes = (int) Math.round((double) bytes * Byte.SIZE / items * ln2);
+    this.mBits = new byte[bytes];
+    this.mHashes = Math.max(1, Math.min(MAX_HASHES, hashes));
+    this.mSalt = salt;
+  }
+
+  /**
+   * Recreate a filter from its parts, as returned by toByteArray(),
+   * getHashCount() and getSalt().
+   *
+   * @throws IllegalArgumentException If bits is empty or hashes isn't between
+   * 1 and MAX_HASHES.
+   */
+  public BloomFilter(byte[] bits, int hashes, int salt) {
+    if (bits == null || bits.length == 0) {
+      throw new IllegalArgumentException("Bloom filter has no bits.");
+    }
+    if (hashes < 1 || hashes > MAX_HASHES) {
+      throw new IllegalArgumentException("Bloom filter uses " + hashes + " hashes.");
+    }
+    this.mBits = bits.clone();
+    this.mHashes = hashes;
+    this.mSalt = salt;
+  }
+
+  /**
+   * Add a string to the filter.
+   */
+  public void add(String key) {
+    add(hash(key));
+  }
+
+  /**
+   * Add a byte array to the filter.
+   */
+  public void add(byte[] key) {
+    add(hash(key));
+  }
+
+  /** Set the bits for a key with the given hash. */
+  private void add(long hash) {
+    for (int i = 0; i < mHashes; i++) {
+      int bit = bitIndex(hash, i);
+      mBits[bit >>> 3] |= 1 << (bit & 7);
+    }
+  }
+
+  /**
+   * @return False if the string was definitely never added, true if it
+   * probably was.
+   */
+  public boolean mightContain(String key) {
+    return mightContain(hash(key));
+  }
+
+  /**
+   * @return False if the byte array was definitely never added, true if it
+   * probably was.
+   */
+  public boolean mightContain(byte[] key) {
+    return mightContain(hash(key));
+  }
+
+  /** @return Whether all the bits for a key with the given hash are set. */
+  private boolean mightContain(long hash) {
+    for (int i = 0; i < mHashes; i++) {
+      int bit = bitIndex(hash, i);
+      if ((mBits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return A copy of the bits of the filter. */
+  public byte[] toByteArray() {
+    return mBits.clone();
+  }
+
+  /** @return The number of bits set for each string. */
+  public int getHashCount() {
+    return mHashes;
+  }
+
+  /** @return The salt mixed into every hash. */
+  public int getSalt() {
+    return mSalt;
+  }
+
+  /** @return The index of the i-th bit for a string with the given hash. */
+  private int bitIndex(long hash, int i) {
+    long h = mix(hash + i * 0x9e3779b97f4a7c15L);
+    return (int) ((h >>> 1) % ((long) mBits.length * Byte.SIZE));
+  }
+
+  /** 64 bit FNV-1a hash of the salt and the characters of the key, mixed. */
+  private long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    h = (h ^ mSalt) * 0x100000001b3L;
+    for (int i = 0; i < key.length(); i++) {
+      h = (h ^ key.charAt(i)) * 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  /** 64 bit FNV-1a hash of the salt and the bytes of the key, mixed. */
+  private long hash(byte[] key) {
+    long h = 0xcbf29ce484222325L;
+    h = (h ^ mSalt) * 0x100000001b3L;
+    for (int i = 0; i < key.length; i++) {
+      h = (h ^ (key[i] & 0xff)) * 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  /** A bijective mix of all the bits of h into all the bits of the result. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -284,12 +284,20 @@ public class BluetoothSpeaker {
 
     Log.i(TAG, "Accepted socket from " + mSocket.getRemoteDevice());
     Log.i(TAG, "Accepted socket connected? " + mSocket.isConnected());
-    mExchange = new CryptographicExchange(mSocket.getInputStream(),
+    CryptographicExchange exchange = new CryptographicExchange(mSocket.getInputStream(),
                              mSocket.getOutputStream(),
                              false,
                              new FriendStore(mContext, StorageBase.ENCRYPTION_DEFAULT),
                              new MessageStore(mContext, StorageBase.ENCRYPTION_DEFAULT),
                              mContext.mExchangeCallback);
+    exchange.setPeerReconciles(pm.peerReconciles(mContext.currentPeer));
+    exchange.setPeerLegacy(pm.peerIsLegacy(mContext.currentPeer));
+    exchange.setPeerAnswersHello(pm.peerAnswersHello(mContext.currentPeer));
+    exchange.setWatermark(pm.getWatermark(mContext.currentPeer));
+    exchange.setResumableSession(pm.getSession(mContext.currentPeer));
+    exchange.setByteBudget(pm.getByteBudget(mContext.currentPeer));
+    mContext.startTrace(exchange);
+    mExchange = exchange;
     //mExchange.execute((Boolean) null);
     // Start the exchange.
     (new Thread(mExchange)).start();
@@ -54,10 +54,12 @@ import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.interfaces.DHPrivateKey;
 import javax.crypto.spec.DHParameterSpec;
 
+import org.spongycastle.asn1.x9.X9ECParameters;
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
 import org.spongycastle.crypto.AsymmetricCipherKeyPairGenerator;
 import org.spongycastle.crypto.KeyGenerationParameters;
 import org.spongycastle.crypto.agreement.DHStandardGroups;
+import org.spongycastle.crypto.ec.CustomNamedCurves;
 import org.spongycastle.crypto.generators.DHKeyPairGenerator;
 import org.spongycastle.crypto.params.DHKeyGenerationParameters;
 import org.spongycastle.crypto.params.DHParameters;
@@ -65,6 +67,9 @@ import org.spongycastle.crypto.params.DHPublicKeyParameters;
 import org.spongycastle.crypto.params.DHPrivateKeyParameters;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.jcajce.provider.asymmetric.dh.KeyPairGeneratorSpi;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECFieldElement;
+import org.spongycastle.math.ec.ECPoint;
 
 import okio.ByteString;
 
@@ -96,12 +101,46 @@ public class Crypto {
   /** Diffie-Hellman standard group parameters. */
   public static final DHParameters DH_GROUP_PARAMETERS = DHStandardGroups.rfc5114_1024_160;
 
+  /** Elliptic curve parameters for PSI. */
+  public static final X9ECParameters EC_PARAMETERS = CustomNamedCurves.getByName("secp256r1");
+
   /** The default hash algorithm to use. */
   public static final String HASH_ALGORITHM = "SHA-1";
 
   /** Source of secure random bits. */
   public static final SecureRandom random = new SecureRandom();
 
+  /** A source of secure random bits for each thread, so they don't contend. */
+  private static final ThreadLocal<SecureRandom> sRandoms = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
+      return new SecureRandom();
+    }
+  };
+
+  /** A digest of HASH_ALGORITHM for each thread. */
+  private static final ThreadLocal<MessageDigest> sDigests = new ThreadLocal<MessageDigest>();
+
+  /**
+   * @return A source of secure random bits for use on the calling thread only.
+   */
+  public static SecureRandom getRandom() {
+    return sRandoms.get();
+  }
+
+  /**
+   * @return A reset digest of HASH_ALGORITHM for use on the calling thread only.
+   */
+  public static MessageDigest getDigest() throws NoSuchAlgorithmException {
+    MessageDigest md = sDigests.get();
+    if (md == null) {
+      md = MessageDigest.getInstance(HASH_ALGORITHM);
+      sDigests.set(md);
+    }
+    md.reset();
+    return md;
+  }
+
   /**
    * Generates a Diffie-Hellman keypair of the default size.
    *
@@ -202,34 +241,327 @@ public class Crypto {
 
 
 
+  /**
+   * A group in which to do private set intersection: values are hashed into
+   * it, and its elements are blinded by multiplying them by a secret scalar
+   * (exponentiating, in multiplicative notation).
+   *
+   * @param <E> The type of the group's elements.
+   */
+  public interface PSIGroup<E> {
+    /**
+     * Maps a value into the group. This doesn't depend on any private value,
+     * so the result can be kept and blinded afresh for each exchange.
+     *
+     * @param value The value to map.
+     * @return The value as an element of the group.
+     */
+    public E hashToGroup(byte[] value) throws NoSuchAlgorithmException;
+
+    /**
+     * @param random A source of secure random bits.
+     * @return A new private value to blind elements with.
+     */
+    public BigInteger randomScalar(SecureRandom random);
+
+    /**
+     * @param scalar A private value.
+     * @return The private value that undoes blinding with the given one.
+     */
+    public BigInteger invert(BigInteger scalar);
+
+    /**
+     * @param element An element of the group.
+     * @param scalar A private value.
+     * @return The element blinded with the private value.
+     */
+    public E multiply(E element, BigInteger scalar);
+
+    /**
+     * @param element An element of the group.
+     * @return The element's canonical encoding, as sent to the remote side.
+     */
+    public byte[] encode(E element);
+
+    /**
+     * @param encoded An encoded element, as received from the remote side.
+     * @return The element.
+     * @throws IllegalArgumentException If the encoding isn't of an element.
+     */
+    public E decode(byte[] encoded) throws IllegalArgumentException;
+  }
+
+  /**
+   * Powers of a fixed base modulo a fixed modulus, precomputed so that
+   * raising the base to an exponent takes one modular multiplication per
+   * window of the exponent's bits, and no squarings.
+   */
+  /* package */ static class FixedBaseTable {
+    /** The base. */
+    private final BigInteger base;
+
+    /** The modulus. */
+    private final BigInteger modulus;
+
+    /** Bits of the exponent per window. */
+    private final int window;
+
+    /** powers[i][j] is base^(j * 2^(i * window)). */
+    private final BigInteger[][] powers;
+
+    /**
+     * Precompute the powers of a base needed for exponents of up to maxBits.
+     *
+     * @param base The base.
+     * @param modulus The modulus.
+     * @param maxBits The most bits an exponent can have to use the table.
+     * @param window Bits of the exponent per window; each window costs a
+     * row of 2^window - 1 powers.
+     */
+    public FixedBaseTable(BigInteger base, BigInteger modulus, int maxBits, int window) {
+      this.base = base;
+      this.modulus = modulus;
+      this.window = window;
+      this.powers = new BigInteger[(maxBits + window - 1) / window][1 << window];
+      BigInteger rowBase = base;
+      for (BigInteger[] row : powers) {
+        row[0] = BigInteger.ONE;
+        for (int j = 1; j < row.length; j++) {
+          row[j] = row[j - 1].multiply(rowBase).mod(modulus);
+        }
+        rowBase = row[row.length - 1].multiply(rowBase).mod(modulus);
+      }
+    }
+
+    /**
+     * @param exponent The exponent.
+     * @return The base raised to the exponent, modulo the modulus.
+     */
+    public BigInteger pow(BigInteger exponent) {
+      if (exponent.signum() < 0 || exponent.bitLength() > powers.length * window) {
+        return base.modPow(exponent, modulus);
+      }
+      int mask = (1 << window) - 1;
+      BigInteger result = BigInteger.ONE;
+      for (int i = 0; i < powers.length; i++) {
+        int digit = exponent.shiftRight(i * window).intValue() & mask;
+        if (digit != 0) {
+          result = result.multiply(powers[i][digit]).mod(modulus);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Bits per window of the generator's table: 27 rows of 63 powers, about
+   * 200KB, for a sixth less time than modPow. Wider windows go faster but
+   * the table doubles in size with each extra bit.
+   */
+  private static final int GENERATOR_WINDOW = 6;
+
+  /** Holds the generator's table, so that it's built the first time it's used. */
+  private static class GeneratorTable {
+    static final FixedBaseTable TABLE = new FixedBaseTable(DH_GROUP_PARAMETERS.getG(),
+                                                           DH_GROUP_PARAMETERS.getP(),
+                                                           DH_SUBGROUP_SIZE,
+                                                           GENERATOR_WINDOW);
+  }
+
+  /**
+   * Raise the Diffie-Hellman group's generator to an exponent, using a table
+   * of its powers if the exponent is no longer than the subgroup's order.
+   *
+   * @param exponent The exponent.
+   * @return g^exponent mod p.
+   */
+  public static BigInteger generatorPow(BigInteger exponent) {
+    return GeneratorTable.TABLE.pow(exponent);
+  }
+
+  /**
+   * The 1024-bit Diffie-Hellman group every version of the protocol supports.
+   */
+  private static class DHPSIGroup implements PSIGroup<BigInteger> {
+    @Override
+    public BigInteger hashToGroup(byte[] value) throws NoSuchAlgorithmException {
+      byte[] itemHash = getDigest().digest(value);
+
+      // Generate a positive BigInteger (signum == 1) from the bytes.
+      BigInteger val = new BigInteger(1, itemHash);
+
+      // Raise the group's generator to the hash value, to land on a value in the subgroup.
+      return generatorPow(val);
+    }
+
+    @Override
+    public BigInteger randomScalar(SecureRandom random) {
+      BigInteger scalar;
+      do {
+        // Pick a random value in the subgroup.
+        BigInteger rand;
+        do {
+          rand = new BigInteger(DH_SUBGROUP_SIZE, random);
+        } while (rand.equals(BigInteger.ZERO) || rand.equals(BigInteger.ONE));
+
+        // Items are all in the subgroup of order q, so only the value mod q
+        // matters when blinding them. Reducing it once here makes every
+        // blinding a 160-bit exponentiation rather than a 1024-bit one, and
+        // blinds exactly as the unreduced value would, so peers can't tell.
+        scalar = generatorPow(rand).mod(DH_GROUP_PARAMETERS.getQ());
+      } while (scalar.equals(BigInteger.ZERO) || scalar.equals(BigInteger.ONE));
+
+      return scalar;
+    }
+
+    @Override
+    public BigInteger invert(BigInteger scalar) {
+      return scalar.modInverse(DH_GROUP_PARAMETERS.getQ());
+    }
+
+    @Override
+    public BigInteger multiply(BigInteger element, BigInteger scalar) {
+      return element.modPow(scalar, DH_GROUP_PARAMETERS.getP());
+    }
+
+    @Override
+    public byte[] encode(BigInteger element) {
+      return element.toByteArray();
+    }
+
+    @Override
+    public BigInteger decode(byte[] encoded) {
+      return new BigInteger(encoded);
+    }
+  }
+
+  /**
+   * The NIST P-256 curve. Its elements are a quarter of the size of the
+   * Diffie-Hellman group's and much quicker to blind.
+   *
+   * Values are hashed onto the curve by trying successive x coordinates
+   * derived from the value until one is on the curve, so no one knows the
+   * discrete log of a friend's point.
+   */
+  private static class ECPSIGroup implements PSIGroup<ECPoint> {
+    /** Hash used to derive x coordinates; matches the size of the field. */
+    private static final String HASH_TO_CURVE_ALGORITHM = "SHA-256";
+
+    @Override
+    public ECPoint hashToGroup(byte[] value) throws NoSuchAlgorithmException {
+      ECCurve curve = EC_PARAMETERS.getCurve();
+      BigInteger p = curve.getField().getCharacteristic();
+      MessageDigest md = MessageDigest.getInstance(HASH_TO_CURVE_ALGORITHM);
+      for (int counter = 0; ; counter++) {
+        md.reset();
+        md.update((byte) (counter >>> 24));
+        md.update((byte) (counter >>> 16));
+        md.update((byte) (counter >>> 8));
+        md.update((byte) counter);
+        BigInteger x = new BigInteger(1, md.digest(value));
+        if (x.compareTo(p) >= 0) {
+          continue;
+        }
+        // y^2 = x^3 + ax + b has a solution for about half of all x.
+        ECFieldElement fx = curve.fromBigInteger(x);
+        ECFieldElement y = fx.square().add(curve.getA()).multiply(fx).add(curve.getB()).sqrt();
+        if (y != null) {
+          return curve.createPoint(x, y.toBigInteger());
+        }
+      }
+    }
+
+    @Override
+    public BigInteger randomScalar(SecureRandom random) {
+      BigInteger n = EC_PARAMETERS.getN();
+      BigInteger scalar;
+      do {
+        scalar = new BigInteger(n.bitLength(), random);
+      } while (scalar.signum() == 0 || scalar.compareTo(n) >= 0);
+      return scalar;
+    }
+
+    @Override
+    public BigInteger invert(BigInteger scalar) {
+      return scalar.modInverse(EC_PARAMETERS.getN());
+    }
+
+    @Override
+    public ECPoint multiply(ECPoint element, BigInteger scalar) {
+      return element.multiply(scalar);
+    }
+
+    @Override
+    public byte[] encode(ECPoint element) {
+      return element.getEncoded(true);
+    }
+
+    @Override
+    public ECPoint decode(byte[] encoded) throws IllegalArgumentException {
+      ECPoint point = EC_PARAMETERS.getCurve().decodePoint(encoded);
+      if (point.isInfinity()) {
+        throw new IllegalArgumentException("Point at infinity given as a PSI item");
+      }
+      return point;
+    }
+  }
+
+  /** PSI over the 1024-bit Diffie-Hellman group. */
+  public static final PSIGroup<BigInteger> DH_PSI_GROUP = new DHPSIGroup();
+
+  /** PSI over the P-256 elliptic curve. */
+  public static final PSIGroup<ECPoint> EC_PSI_GROUP = new ECPSIGroup();
+
   /**
    * A data structure class for holding the private values needed on each side
    * of a private set intersection exchange.
    */
   public static class PrivateSetIntersection {
+    /** The group the intersection is done in. */
+    private final PSIGroup<?> group;
+
     /** Our underlying private value. */
     private BigInteger x;
 
-    /** The items that are to be intersected, shuffled and blinded by the key. */
-    private ArrayList<BigInteger> blindedItems; 
+    /** The inverse of our private value, to unblind the "server"'s reply. */
+    private BigInteger xInverse;
+
+    /** The items that are to be intersected, shuffled, blinded by the key and encoded. */
+    private ArrayList<byte[]> blindedItems; 
+
+    /** Hashes of our blinded items, in the same order. */
+    private ArrayList<byte[]> hashedBlindedItems;
 
     /** The reply values from the "server" side, a tuple of byte arrays. */
     public class ServerReplyTuple {
       /** Items shuffled/double blinded by the server. */
       public ArrayList<byte[]> doubleBlindedItems;
 
-      /** The server's single-blinded items, shuffled and hashed. */
+      /**
+       * The server's single-blinded items, shuffled and hashed. Null if the
+       * server sent a filter over them instead.
+       */
       public ArrayList<byte[]> hashedBlindedItems;
 
+      /** A filter over the hashes of the server's single-blinded items, or null. */
+      /* package */ BloomFilter hashedBlindedFilter;
+
       public ServerReplyTuple(ArrayList<byte[]> doubleBlindedItems,
                               ArrayList<byte[]> hashedBlindedItems) {
         this.doubleBlindedItems = doubleBlindedItems;
         this.hashedBlindedItems = hashedBlindedItems;
       }
+
+      /* package */ ServerReplyTuple(ArrayList<byte[]> doubleBlindedItems,
+                                     BloomFilter hashedBlindedFilter) {
+        this.doubleBlindedItems = doubleBlindedItems;
+        this.hashedBlindedFilter = hashedBlindedFilter;
+      }
     }
 
     /**
-     * Generates an instance of one side of a PSI exchange given items to intersect.
+     * Generates an instance of one side of a PSI exchange given items to
+     * intersect, in the Diffie-Hellman group.
      * Only stores hashes of the values given in a shuffled order.
      *
      * TODO(barath): Add support for padding the set with fake values.
@@ -237,35 +569,104 @@ public class Crypto {
      * @param values A collection of items to intersect with the remote side.
      */
     public PrivateSetIntersection(ArrayList<byte[]> values) throws NoSuchAlgorithmException {
-      this.blindedItems = new ArrayList<BigInteger>();
+      this(DH_PSI_GROUP, values);
+    }
 
-      // Pick a random value in the subgroup.
-      BigInteger rand;
-      do {
-        rand = new BigInteger(DH_SUBGROUP_SIZE, random);
-      } while (rand.equals(BigInteger.ZERO) || rand.equals(BigInteger.ONE));
+    /**
+     * Generates an instance of one side of a PSI exchange given items to
+     * intersect, in the given group.
+     *
+     * @param group The group to intersect in; the remote side must use the same.
+     * @param values A collection of items to intersect with the remote side.
+     */
+    public <E> PrivateSetIntersection(PSIGroup<E> group, ArrayList<byte[]> values)
+        throws NoSuchAlgorithmException {
+      this(group, hashToGroup(group, values));
+    }
 
-      this.x = DH_GROUP_PARAMETERS.getG().modPow(rand, DH_GROUP_PARAMETERS.getP());
+    /**
+     * Generates an instance of one side of a PSI exchange given items that
+     * have already been mapped into the group by its hashToGroup(), so that
+     * only blinding them with a fresh private value is left to do.
+     *
+     * @param group The group to intersect in; the remote side must use the same.
+     * @param items The items to intersect with the remote side, as group elements.
+     */
+    public <E> PrivateSetIntersection(final PSIGroup<E> group, List<E> items)
+        throws NoSuchAlgorithmException {
+      SecureRandom random = getRandom();
+      this.group = group;
+      this.x = group.randomScalar(random);
+      this.xInverse = group.invert(x);
+
+      // Blind the items using the key.
+      final BigInteger key = x;
+      this.blindedItems = new ArrayList<byte[]>(ParallelExponentiation.map(items,
+          new ParallelExponentiation.Operation<E, byte[]>() {
+            @Override
+            public byte[] apply(E item) {
+              return group.encode(group.multiply(item, key));
+            }
+          }));
 
-      MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
-      for (byte[] v : values) {
-        md.reset();
-        byte[] itemHash = md.digest(v);
+      // Securely shuffle the items.
+      Collections.shuffle(this.blindedItems, random);
 
-        // Generate a positive BigInteger (signum == 1) from the bytes.
-        BigInteger val = new BigInteger(1, itemHash);
+      // Hash our blinded values now, since they're sent as they are if we
+      // turn out to be the "server".
+      this.hashedBlindedItems = new ArrayList<byte[]>(ParallelExponentiation.map(blindedItems,
+          new ParallelExponentiation.Operation<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] i) throws NoSuchAlgorithmException {
+              return getDigest().digest(i);
+            }
+          }));
+    }
 
-        // Raise the group's generator to the hash value, to land on a value in the subgroup.
-        BigInteger item = DH_GROUP_PARAMETERS.getG().modPow(val, DH_GROUP_PARAMETERS.getP());
+    /**
+     * Maps each of a collection of values into a group.
+     *
+     * @param group The group.
+     * @param values The values to map.
+     * @return The values as elements of the group, in the same order.
+     */
+    private static <E> List<E> hashToGroup(final PSIGroup<E> group, ArrayList<byte[]> values)
+        throws NoSuchAlgorithmException {
+      return ParallelExponentiation.map(values,
+          new ParallelExponentiation.Operation<byte[], E>() {
+            @Override
+            public E apply(byte[] v) throws NoSuchAlgorithmException {
+              return group.hashToGroup(v);
+            }
+          });
+    }
 
-        // Blind the item using the key.
-        BigInteger blindedItem = item.modPow(x, DH_GROUP_PARAMETERS.getP());
-        
-        this.blindedItems.add(blindedItem);
-      }
+    /**
+     * Blinds each of a collection of encoded elements with a private value.
+     *
+     * @param group The group the elements are in.
+     * @param encoded The encoded elements.
+     * @param scalar The private value.
+     * @return The blinded elements, encoded, in the same order.
+     * @throws IllegalArgumentException If any encoding isn't of an element.
+     */
+    private static <E> List<byte[]> multiplyEncoded(final PSIGroup<E> group, List<byte[]> encoded,
+                                                    final BigInteger scalar)
+        throws NoSuchAlgorithmException {
+      return ParallelExponentiation.map(encoded,
+          new ParallelExponentiation.Operation<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] b) {
+              return group.encode(group.multiply(group.decode(b), scalar));
+            }
+          });
+    }
 
-      // Securely shuffle the items.
-      Collections.shuffle(this.blindedItems, random);
+    /**
+     * @return The group the intersection is done in.
+     */
+    public PSIGroup<?> getGroup() {
+      return group;
     }
 
     /**
@@ -274,12 +675,7 @@ public class Crypto {
      * @return An ArrayList of byte[] values that represent the "client"'s blinded/encoded set.
      */
     public ArrayList<byte[]> encodeBlindedItems() {
-      ArrayList<byte[]> r = new ArrayList<byte[]>(blindedItems.size());
-      for (BigInteger i : blindedItems) {
-        r.add(i.toByteArray());
-      }
-
-      return r;
+      return new ArrayList<byte[]>(blindedItems);
     }
 
     /**
@@ -294,29 +690,52 @@ public class Crypto {
     public ServerReplyTuple replyToBlindedItems(
         ArrayList<byte[]> remoteBlindedItems) throws NoSuchAlgorithmException,
                                                      IllegalArgumentException {
+      // Also send the hashes of our blinded values to the other side.
+      return new ServerReplyTuple(doubleBlind(remoteBlindedItems),
+                                  new ArrayList<byte[]>(hashedBlindedItems));
+    }
 
-      if (remoteBlindedItems == null) {
-        throw new IllegalArgumentException("Null remote blinded items to replyToBlindedItems!");
-      }
-      // Double blind all the values the other side sent by blinding them with our private value.
-      ArrayList<byte[]> doubleBlindedItems = new ArrayList<byte[]>(remoteBlindedItems.size());
-      for (byte[] b : remoteBlindedItems) {
-        BigInteger i = new BigInteger(b);
-        BigInteger iDoubleBlind = i.modPow(x, DH_GROUP_PARAMETERS.getP());
-        doubleBlindedItems.add(iDoubleBlind.toByteArray());
+    /**
+     * Like replyToBlindedItems(remoteBlindedItems), but replies with a Bloom
+     * filter over the hashes of our blinded values rather than the hashes
+     * themselves. At 1% false positives the filter takes about 10 bits per
+     * item instead of the 160 of a hash, but each of the client's items that
+     * isn't in the intersection is counted as in it with the given
+     * probability, so the cardinality may come out slightly high.
+     *
+     * @param remoteBlindedItems The values blinded by the remote side (the "client").
+     * @param falsePositiveRate The chance that an item outside the
+     * intersection is counted, between 0 and 1.
+     *
+     * @return A tuple of the the double blinded values and a filter over
+     * hashes of our blinded values.
+     */
+    /* package */ ServerReplyTuple replyToBlindedItems(
+        ArrayList<byte[]> remoteBlindedItems, double falsePositiveRate)
+        throws NoSuchAlgorithmException, IllegalArgumentException {
+      ArrayList<byte[]> doubleBlindedItems = doubleBlind(remoteBlindedItems);
+      BloomFilter filter = new BloomFilter(hashedBlindedItems.size(), falsePositiveRate,
+                                           getRandom().nextInt());
+      for (byte[] hash : hashedBlindedItems) {
+        filter.add(hash);
       }
+      return new ServerReplyTuple(doubleBlindedItems, filter);
+    }
 
-      java.util.Collections.shuffle(doubleBlindedItems, random);
-
-      // Also generate hashes of our blinded values to send to the other side.
-      MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
-      ArrayList<byte[]> hashedBlindedItems = new ArrayList<byte[]>(blindedItems.size());
-      for (BigInteger i : blindedItems) {
-        md.reset();
-        hashedBlindedItems.add(md.digest(i.toByteArray()));
+    /**
+     * Double blinds the values the other side sent by blinding them with our
+     * private value, and shuffles them.
+     */
+    private ArrayList<byte[]> doubleBlind(ArrayList<byte[]> remoteBlindedItems)
+        throws NoSuchAlgorithmException, IllegalArgumentException {
+      if (remoteBlindedItems == null) {
+        throw new IllegalArgumentException("Null remote blinded items to replyToBlindedItems!");
       }
+      ArrayList<byte[]> doubleBlindedItems =
+          new ArrayList<byte[]>(multiplyEncoded(group, remoteBlindedItems, x));
 
-      return new ServerReplyTuple(doubleBlindedItems, hashedBlindedItems);
+      java.util.Collections.shuffle(doubleBlindedItems, getRandom());
+      return doubleBlindedItems;
     }
 
     /**
@@ -329,30 +748,28 @@ public class Crypto {
      */
     public int getCardinality(ServerReplyTuple reply) throws NoSuchAlgorithmException {
       // Store the "server"'s values in a HashSet so we can easily test whether
-      // we have intersections.
-      HashSet<ByteBuffer> serverHashedBlindedItems = new HashSet<ByteBuffer>();
-      for (byte[] b : reply.hashedBlindedItems) {
-        serverHashedBlindedItems.add(ByteBuffer.wrap(b));
+      // we have intersections, unless they came as a filter that can be
+      // tested directly.
+      BloomFilter filter = reply.hashedBlindedFilter;
+      HashSet<ByteBuffer> serverHashedBlindedItems = null;
+      if (filter == null) {
+        serverHashedBlindedItems = new HashSet<ByteBuffer>();
+        for (byte[] b : reply.hashedBlindedItems) {
+          serverHashedBlindedItems.add(ByteBuffer.wrap(b));
+        }
       }
 
-      // For each double blinded value, unblind one step and check for intersection.
+      // Unblind each double blinded value one step.
+      List<byte[]> unblindedItems = multiplyEncoded(group, reply.doubleBlindedItems, xInverse);
+
+      // Hash each and check it for intersection.
       int cardinality = 0;
-      MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
-      for (byte[] b : reply.doubleBlindedItems) {
+      MessageDigest md = getDigest();
+      for (byte[] i : unblindedItems) {
         md.reset();
-
-        // Unblind the value.
-        BigInteger iDoubleBlind = new BigInteger(b);
-
-        BigInteger xInverse = x.modInverse(DH_GROUP_PARAMETERS.getQ());
-        BigInteger i = iDoubleBlind.modPow(xInverse, DH_GROUP_PARAMETERS.getP());
-
-        // Hash it.
-        byte[] d = md.digest(i.toByteArray()); 
-        ByteBuffer buf = ByteBuffer.wrap(d);
-
-        // Check if it's in the set.
-        if (serverHashedBlindedItems.contains(buf)) {
+        byte[] hash = md.digest(i);
+        if (filter != null ? filter.mightContain(hash)
+                           : serverHashedBlindedItems.contains(ByteBuffer.wrap(hash))) {
           cardinality++;
         }
       }
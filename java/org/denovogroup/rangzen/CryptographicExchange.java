@@ -30,6 +30,7 @@
  */
 package org.denovogroup.rangzen;
 
+import org.denovogroup.rangzen.Crypto.PSIGroup;
 import org.denovogroup.rangzen.Crypto.PrivateSetIntersection;
 import org.denovogroup.rangzen.Crypto.PrivateSetIntersection.ServerReplyTuple;
 
@@ -37,7 +38,13 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import android.util.Log;
 
@@ -49,11 +56,48 @@ import okio.ByteString;
  *
  * This class is given input and output streams and communicates over them,
  * oblivious to the underlying network communications used.
+ *
+ * The exchange is full-duplex: a reader thread receives the remote peer's
+ * messages while the thread running the exchange computes and sends ours, so
+ * neither side waits on the other's PSI computation before its own bytes are
+ * in flight, and both sides writing large messages at once can't deadlock on
+ * full socket buffers.
+ *
+ * Each ClientMessage carries a Bloom filter summary of the messages its sender
+ * already holds. When the remote peer is known to read these summaries (see
+ * setPeerReconciles()), the ClientMessage carries no messages, and the messages
+ * the remote peer's summary lacks are sent in the ServerMessage instead.
+ * Otherwise messages are sent in the ClientMessage as before, which is all
+ * that peers predating summaries understand.
+ *
+ * Likewise a peer that sends no hello says in its ClientMessage which preset
+ * dictionary it can inflate frames with, and frames after it are deflated if
+ * the remote peer's dictionary matches ours.
+ *
+ * Each side starts by sending a hello, a ClientMessage giving its protocol
+ * version and a bitmap of the optional features it supports, and both sides
+ * use the features they share from the next frame on. A peer speaking version
+ * 1 sends its ClientMessage proper instead, and takes our hello for ours. So
+ * unless the remote peer is known to answer hellos (see
+ * setPeerAnswersHello()), our hello also carries what a version 1
+ * ClientMessage would: our messages and our friends, blinded in the
+ * Diffie-Hellman group. A version 1 peer then gets a complete version 1
+ * exchange, and a peer that answers the hello ignores those fields. Peers
+ * known to speak version 1 (see setPeerLegacy()) are sent no hello, and then
+ * the features are offered in the ClientMessage as described above.
+ *
+ * When the remote peer announces a session ID in its ClientMessage, messages
+ * that would go in the ServerMessage are sent after it in MessageChunks
+ * instead, and the exchange can be resumed from the last chunk received if
+ * the connection drops (see ExchangeSession).
  */
 public class CryptographicExchange extends Exchange {
 
-  /** PSI computation for the half of the exchange where we're the "client". */
-  private PrivateSetIntersection mClientPSI;
+  /**
+   * PSI computation for the half of the exchange where we're the "client".
+   * Set by the exchange thread and used by the reader thread.
+   */
+  private volatile PrivateSetIntersection mClientPSI;
   
   /** PSI computation for the half of the exchange where we're the "server". */
   private PrivateSetIntersection mServerPSI;
@@ -66,6 +110,134 @@ public class CryptographicExchange extends Exchange {
 
   /** Tag appears in Android log messages. */
   private static final String TAG = "CryptographicExchange";
+
+  /** Summarize up to this many of our messages (top priority) for the remote peer. */
+  private static final int NUM_MESSAGES_TO_SUMMARIZE = 1000;
+
+  /** False positive rate of message summaries. */
+  private static final double SUMMARY_FALSE_POSITIVE_RATE = 0.01;
+
+  /**
+   * Expected number of the remote peer's friends who aren't ours that the
+   * filter over hashed blinded friends counts as common anyway. The filter's
+   * false positive rate is this over the number of the remote peer's friends,
+   * so the error doesn't grow with them: about 20 bits per friend instead of
+   * 160 at 100 friends, 24 at 1000.
+   */
+  public static final double FRIEND_FILTER_FALSE_POSITIVES = 0.01;
+
+  /**
+   * False positive rate of the filter over hashed blinded friends we send, or
+   * 0 to derive it from the number of the remote peer's friends.
+   */
+  private double mFriendFilterFalsePositiveRate = 0;
+
+  /** Source of summary salts. */
+  private static final SecureRandom sRandom = new SecureRandom();
+
+  /** Whether the remote peer is expected to send a message summary. */
+  private boolean mPeerReconciles = false;
+
+  /** The remote peer's message summary, or null if it didn't send one. */
+  private BloomFilter mRemoteSummary;
+
+  /** Counted down once the remote ClientMessage is received or can't be. */
+  private final CountDownLatch mClientMessageReceived = new CountDownLatch(1);
+
+  /** State of this exchange that's kept if it's cut off. */
+  private ExchangeSession mSession;
+
+  /** Version of the exchange protocol we speak. Version 1 has no hellos. */
+  public static final int PROTOCOL_VERSION = 2;
+
+  /** Capability: frames may be deflated with the same preset dictionary. */
+  public static final long CAPABILITY_DEFLATE = 1 << 0;
+
+  /** Capability: messages are reconciled against message summaries. */
+  public static final long CAPABILITY_RECONCILE = 1 << 1;
+
+  /** Capability: messages are sent in chunks and exchanges can be resumed. */
+  public static final long CAPABILITY_CHUNKS = 1 << 2;
+
+  /** Capability: PSI is done on the P-256 curve rather than in the DH group. */
+  public static final long CAPABILITY_EC_PSI = 1 << 3;
+
+  /** Capability: the server's hashed blinded friends are sent as a Bloom filter. */
+  public static final long CAPABILITY_FRIEND_FILTER = 1 << 4;
+
+  /** Capability: messages carried by a hello are kept, not sent again. */
+  public static final long CAPABILITY_HELLO_MESSAGES = 1 << 5;
+
+  /** The capabilities we advertise in our hello. */
+  public static final long CAPABILITIES = CAPABILITY_DEFLATE |
+                                          CAPABILITY_RECONCILE |
+                                          CAPABILITY_CHUNKS |
+                                          CAPABILITY_EC_PSI |
+                                          CAPABILITY_FRIEND_FILTER |
+                                          CAPABILITY_HELLO_MESSAGES;
+
+  /** The capabilities this exchange advertises; CAPABILITIES unless set. */
+  private long mAdvertisedCapabilities = CAPABILITIES;
+
+  /** Whether to start with a hello, rather than speak version 1. */
+  private boolean mSendHello = true;
+
+  /** Whether hellos were exchanged, so that mCapabilities applies. */
+  private boolean mNegotiated = false;
+
+  /** The capabilities both we and the remote peer support. */
+  private long mCapabilities = 0;
+
+  /** Whether the remote peer is known to answer hellos. */
+  private boolean mPeerAnswersHello = false;
+
+  /**
+   * Whether our hello doubles as a version 1 ClientMessage, for remote peers
+   * that take it for one. Settled before the reader thread starts.
+   */
+  private boolean mHelloIsClientMessage = false;
+
+  /** The messages sent in our hello, if it doubles as a ClientMessage. */
+  private List<RangzenMessage> mHelloMessages;
+
+  /** The messages kept from the remote hello; see CAPABILITY_HELLO_MESSAGES. */
+  private List<RangzenMessage> mRemoteHelloMessages = new ArrayList<RangzenMessage>();
+
+  /** Whether the remote peer sent its ClientMessage proper instead of a hello. */
+  private boolean mRemoteSkippedHello = false;
+
+  /** Whether the remote peer's first message gave no protocol version. */
+  private boolean mRemoteLegacy = false;
+
+  /**
+   * Counted down once the remote hello, or the ClientMessage sent in its
+   * place, is received or can't be.
+   */
+  private final CountDownLatch mHelloReceived = new CountDownLatch(1);
+
+  /** Session of an earlier exchange, to resume if the remote peer can. */
+  private ExchangeSession mResumableSession;
+
+  /** Whether we ask the remote peer to resume mSession. */
+  private boolean mOfferResume = false;
+
+  /** Whether the remote peer asked to resume the same session as us. */
+  private boolean mResumed = false;
+
+  /** Number of our chunks the remote peer holds, if resuming. */
+  private int mRemoteChunksReceived = 0;
+
+  /**
+   * Counted down once the first remote ClientMessage shows whether the
+   * exchange resumes, or once it can't be received.
+   */
+  private final CountDownLatch mResumeDecided = new CountDownLatch(1);
+
+  /** The exception that stopped the reader thread, if any. */
+  private volatile Exception mReaderException;
+
+  /** System.nanoTime() when our ClientMessage was sent, or 0. */
+  private volatile long mClientMessageSentNanoTime = 0;
   
   /**
    * Perform the exchange asynchronously, calling back success or failure on
@@ -84,23 +256,92 @@ public class CryptographicExchange extends Exchange {
     // When these subroutines called in the following try block fail, they set
     // the error message and error state of the exchange to reasonable values
     // before throwing their exceptions.
+    //
+    // The reader thread receives the remote client and server messages, and
+    // this thread sends ours. The only ordering between them is that our
+    // server message answers the remote client message, and that our
+    // client message depends on the remote hello.
+    startTrace();
+    mSession = new ExchangeSession(sRandom.nextLong());
+    // Only peers that answered an earlier hello leave sessions to resume.
+    mHelloIsClientMessage = mSendHello && !mPeerAnswersHello && mResumableSession == null;
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receiveRemoteMessages();
+      }
+    }, TAG + " reader");
+    reader.start();
     try {
-      // TODO(lerner): This (initializing PSIs) is costly, so we may want to
-      // do this offline if it's making exchanges slow.
-      initializePSIObjects();
+      if (mSendHello) {
+        sendHello();
+        // Wait for the remote hello to settle which features to use.
+        mHelloReceived.await();
+        if (mReaderException != null) {
+          throw mReaderException;
+        }
+      }
+      if (helloMessagesKept()) {
+        mStats.addMessagesSent(mHelloMessages.size());
+      }
+      if (mRemoteSkippedHello) {
+        // The remote peer took our hello for our client message.
+        Log.i(TAG, "Remote peer sent no hello; speaking version 1.");
+        if (mHelloMessages != null) {
+          mStats.addMessagesSent(mHelloMessages.size());
+        }
+      } else if (mOfferResume) {
+        sendResumeMessage();
+      } else {
+        // Usually precomputed by the FriendStore, so this is quick.
+        initializeClientPSI();
 
-      // Send client message.
-      sendClientMessage();
-      // Receive client message.
-      receiveClientMessage();
-      // Send server message in response to remote client message.
-      sendServerMessage();
-      // Receive server message.
-      receiveServerMessage();
+        // Send client message.
+        sendClientMessage();
+      }
+      // Wait for the reader to see whether the remote peer resumes too.
+      mResumeDecided.await();
+      if (mReaderException != null) {
+        throw mReaderException;
+      }
+      if (mResumed) {
+        Log.i(TAG, "Resuming exchange after " + mSession.getChunksReceived() +
+                   " chunks received, " + mRemoteChunksReceived + " sent.");
+        sendChunks(mRemoteChunksReceived);
+      } else {
+        if (mOfferResume) {
+          // The remote peer didn't resume our session, so start over.
+          initializeClientPSI();
+          sendClientMessage();
+        }
+        // The server half of PSI isn't needed until the remote client message
+        // arrives, so set it up while that's in flight.
+        initializeServerPSI();
+        // Wait for the reader to receive the remote client message.
+        mClientMessageReceived.await();
+        if (mRemoteClientMessage == null) {
+          throw mReaderException;
+        }
+        // Send server message in response to remote client message.
+        sendServerMessage();
+        if (mSession.getRemoteId() != null) {
+          sendChunks(0);
+        }
+      }
+      // Wait for the reader to receive the remote server message.
+      reader.join();
+      if (mReaderException != null) {
+        throw mReaderException;
+      }
 
-      computeSharedFriends();
+      commonFriends = mSession.getCommonFriends();
+      mMessagesReceived = mSession.getReceived();
+      if (mResumed) {
+        setSentVersion(mSession.getSentVersion());
+      }
       
       setExchangeStatus(Status.SUCCESS);
+      logFrameStats();
       callback.success(this);
     } catch (Exception e) {  // Treat ALL exceptions as fatal.
       // This status setting should be redundant (whoever threw the exception
@@ -109,22 +350,190 @@ public class CryptographicExchange extends Exchange {
       // the error code is ERROR.
       Log.e(TAG, "Exception while run()ing CryptographicExchange: " + e);
       setExchangeStatus(Status.ERROR);
+      mStats.setFailureReason(getErrorMessage());
 
       callback.failure(this, getErrorMessage());
     }
   }
   
   /**
-   * Initializes the client and server PSI objects with the node's friends.
+   * Receive the remote client message and then the remote server message and
+   * chunks, or only the chunks if the exchange resumes. Run by the reader
+   * thread; failures are left in mReaderException for the exchange thread to
+   * handle.
    */
-  private void initializePSIObjects() throws NoSuchAlgorithmException, 
-                                             IllegalArgumentException {
-    ArrayList<byte[]> friends = friendStore.getAllFriendsBytes();
+  private void receiveRemoteMessages() {
     try {
-      // The clientPSI object manages the interaction in which we're the "client".
-      // The serverPSI object manages the interaction in which we're the "server".
-      mClientPSI = new PrivateSetIntersection(friends);
-      mServerPSI = new PrivateSetIntersection(friends);
+      receiveClientMessage();
+      mRemoteLegacy = mRemoteClientMessage.protocolVersion == null;
+      if (mSendHello) {
+        if (mRemoteClientMessage.capabilities != null) {
+          negotiate(mRemoteClientMessage);
+          if (negotiated(CAPABILITY_HELLO_MESSAGES)) {
+            mRemoteHelloMessages = keepHelloMessages(mRemoteClientMessage.messages);
+          }
+          mHelloReceived.countDown();
+          receiveClientMessage();
+        } else {
+          // The remote peer took our hello for our client message. If that
+          // carried our messages, the remote peer has them; otherwise send
+          // them with our server message, which only peers that understand
+          // summaries read.
+          mRemoteSkippedHello = true;
+          mPeerReconciles = !mHelloIsClientMessage;
+          mHelloReceived.countDown();
+        }
+      }
+      decideResume();
+      mResumeDecided.countDown();
+      if (!mResumed) {
+        if (mRemoteClientMessage.resume != null) {
+          // The remote peer's session wasn't resumed, so it starts over.
+          receiveClientMessage();
+        }
+        mSession.addReceived(mRemoteHelloMessages);
+        mSession.addReceived(mRemoteClientMessage.messages);
+        mStats.addMessagesReceived(mRemoteHelloMessages.size() +
+                                   mRemoteClientMessage.messages.size());
+        // A peer that skipped our hello saw no session from us, so it neither
+        // sends nor expects chunks.
+        Long remoteSession = mRemoteSkippedHello ? null : mRemoteClientMessage.session;
+        mSession.setRemote(remoteSession, mRemoteSummary != null);
+      }
+    } catch (Exception e) {
+      mReaderException = e;
+      return;
+    } finally {
+      mHelloReceived.countDown();
+      mResumeDecided.countDown();
+      mClientMessageReceived.countDown();
+    }
+    try {
+      if (!mResumed) {
+        receiveServerMessage();
+        if (mRemoteSkippedHello && !mHelloIsClientMessage) {
+          // We sent no blinded friends, so PSI found none in common.
+          mSession.setCommonFriends(0);
+        } else {
+          long start = System.nanoTime();
+          computeSharedFriends();
+          mStats.addPhaseSince(ExchangeStats.Phase.CARDINALITY, start);
+        }
+      }
+      if (mSession.getRemoteId() != null) {
+        long start = System.nanoTime();
+        receiveChunks();
+        mStats.addPhaseSince(ExchangeStats.Phase.RECEIVE_SERVER_MESSAGE, start);
+      }
+    } catch (Exception e) {
+      mReaderException = e;
+    }
+  }
+
+  /**
+   * Settle on the features both we and the remote peer support, given its
+   * hello, and apply them to the rest of the exchange.
+   */
+  private void negotiate(ClientMessage hello) {
+    mNegotiated = true;
+    mCapabilities = mAdvertisedCapabilities & hello.capabilities;
+    if (hello.deflateDictionary == null ||
+        hello.deflateDictionary != DeflateDictionary.VERSION) {
+      mCapabilities &= ~CAPABILITY_DEFLATE;
+    }
+    channel.setDeflate(supports(CAPABILITY_DEFLATE));
+    mPeerReconciles = supports(CAPABILITY_RECONCILE);
+    if (supports(CAPABILITY_CHUNKS) && mResumableSession != null &&
+        mResumableSession.isResumable()) {
+      mOfferResume = true;
+      mSession = mResumableSession;
+    }
+    int version = hello.protocolVersion == null ? 1 : hello.protocolVersion;
+    Log.i(TAG, "Speaking version " + Math.min(version, PROTOCOL_VERSION) +
+               " with capabilities " + Long.toBinaryString(mCapabilities));
+  }
+
+  /**
+   * The group to do PSI in. Peers that didn't exchange hellos may not know
+   * any group but the Diffie-Hellman one.
+   *
+   * The curve is chosen for bytes, not CPU. With short DH exponents, replying
+   * and finding the cardinality take about 0.3ms per friend in the DH group
+   * and 0.85ms on the curve (PSIBenchmark, 1000 friends, on a desktop JVM),
+   * but each friend costs 66 bytes each way on the curve rather than 256. So
+   * the curve is faster on links slower than about 700KB/s, which covers
+   * Bluetooth. Exchanges over faster links can leave CAPABILITY_EC_PSI out
+   * (see setCapabilities()) to use DH.
+   */
+  private PSIGroup<?> getPSIGroup() {
+    if (negotiated(CAPABILITY_EC_PSI)) {
+      return Crypto.EC_PSI_GROUP;
+    }
+    return Crypto.DH_PSI_GROUP;
+  }
+
+  /**
+   * Whether a feature that version 1 lacks is to be used in this exchange:
+   * whether hellos were exchanged and both peers support it.
+   */
+  private boolean negotiated(long capability) {
+    return mNegotiated && (mCapabilities & capability) != 0;
+  }
+
+  /**
+   * Whether a feature is to be used in this exchange: if hellos were
+   * exchanged, whether both peers support it, and otherwise always, since
+   * version 1 offers every feature in the ClientMessage.
+   */
+  private boolean supports(long capability) {
+    return !mNegotiated || (mCapabilities & capability) != 0;
+  }
+
+  /**
+   * Resume the exchange if both we and the remote peer, in its first
+   * ClientMessage, asked to resume the same session. If we asked and it
+   * didn't, start a new session.
+   */
+  private void decideResume() {
+    ResumeSession resume = mRemoteClientMessage.resume;
+    mResumed = mOfferResume && resume != null &&
+               resume.session != null && resume.session.equals(mSession.getRemoteId()) &&
+               resume.peerSession != null && resume.peerSession == mSession.getLocalId();
+    if (mResumed) {
+      mRemoteChunksReceived = resume.chunksReceived == null ? 0 :
+                              Math.max(0, resume.chunksReceived);
+    } else if (mOfferResume) {
+      mSession = new ExchangeSession(sRandom.nextLong());
+    }
+  }
+
+  /**
+   * Initializes the client PSI object with the node's friends. The clientPSI
+   * object manages the interaction in which we're the "client".
+   */
+  private void initializeClientPSI() throws NoSuchAlgorithmException, 
+                                            IllegalArgumentException {
+    long start = System.nanoTime();
+    try {
+      mClientPSI = friendStore.takePrivateSetIntersection(getPSIGroup());
+      mStats.addPhaseSince(ExchangeStats.Phase.PSI_INIT, start);
+    } catch (NoSuchAlgorithmException e) {
+      setExchangeStatus(Status.ERROR); 
+      setErrorMessage("No such algorithm when creating PrivateSetIntersection." + e);
+      throw e;
+    }
+  }
+
+  /**
+   * Initializes the server PSI object with the node's friends. The serverPSI
+   * object manages the interaction in which we're the "server".
+   */
+  private void initializeServerPSI() throws NoSuchAlgorithmException, 
+                                            IllegalArgumentException {
+    long start = System.nanoTime();
+    try {
+      mServerPSI = friendStore.takePrivateSetIntersection(getPSIGroup());
+      mStats.addPhaseSince(ExchangeStats.Phase.PSI_INIT, start);
     } catch (NoSuchAlgorithmException e) {
       setExchangeStatus(Status.ERROR); 
       setErrorMessage("No such algorithm when creating PrivateSetIntersection." + e);
@@ -137,17 +546,108 @@ public class CryptographicExchange extends Exchange {
    * from the message store and blinded friends from the friend store.
    */
   private void sendClientMessage() throws IOException {
+    long start = System.nanoTime();
     ArrayList<ByteString> blindedFriends = Crypto.byteArraysToStrings(mClientPSI.encodeBlindedItems());
-    ClientMessage cm = new ClientMessage.Builder()
-                                        .messages(getMessages())
-                                        .blindedFriends(blindedFriends)
-                                        .build();
-    boolean success = lengthValueWrite(out, cm);
+    List<RangzenMessage> messages;
+    if (mPeerReconciles) {
+      // Wait for the remote summary and send only what it lacks.
+      messages = new ArrayList<RangzenMessage>();
+    } else {
+      messages = limitToBudget(withoutHelloMessages(getMessages()));
+    }
+    ClientMessage.Builder builder = new ClientMessage.Builder()
+                                                     .messages(messages)
+                                                     .blindedFriends(blindedFriends)
+                                                     .deflateDictionary(getDeflateDictionary())
+                                                     .protocolVersion(PROTOCOL_VERSION);
+    if (supports(CAPABILITY_RECONCILE)) {
+      builder.summary(summarizeMessages());
+    }
+    if (supports(CAPABILITY_CHUNKS)) {
+      builder.session(mSession.getLocalId());
+    }
+    ClientMessage cm = builder.build();
+    boolean success = writeFrame(cm);
     if (!success) {
       setExchangeStatus(Status.ERROR);
       setErrorMessage("Length/value write of client message failed.");
       throw new IOException("Length/value write of client message failed, but exception is hidden (see Exchange.java)");
     }
+    mClientMessageSentNanoTime = System.nanoTime();
+    mStats.addMessagesSent(messages.size());
+    mStats.addPhaseSince(ExchangeStats.Phase.SEND_CLIENT_MESSAGE, start);
+  }
+
+  /**
+   * Send our hello, advertising our protocol version and capabilities, and if
+   * the remote peer may take it for a version 1 ClientMessage, carrying our
+   * messages and blinded friends as one would. Peers that support
+   * CAPABILITY_HELLO_MESSAGES keep those messages, so they aren't sent again.
+   */
+  private void sendHello() throws IOException, NoSuchAlgorithmException {
+    long start = System.nanoTime();
+    ClientMessage.Builder builder = new ClientMessage.Builder()
+                                                     .protocolVersion(PROTOCOL_VERSION)
+                                                     .capabilities(mAdvertisedCapabilities)
+                                                     .deflateDictionary(getDeflateDictionary());
+    if (mHelloIsClientMessage) {
+      // Nothing is negotiated yet, so this is in the Diffie-Hellman group.
+      initializeClientPSI();
+      mHelloMessages = limitToBudget(getMessages());
+      builder.messages(mHelloMessages)
+             .blindedFriends(Crypto.byteArraysToStrings(mClientPSI.encodeBlindedItems()));
+      if ((mAdvertisedCapabilities & CAPABILITY_RECONCILE) != 0) {
+        builder.summary(summarizeMessages());
+      }
+    }
+    ClientMessage hello = builder.build();
+    boolean success = writeFrame(hello);
+    if (!success) {
+      setExchangeStatus(Status.ERROR);
+      setErrorMessage("Length/value write of hello failed.");
+      throw new IOException("Length/value write of hello failed, but exception is hidden (see Exchange.java)");
+    }
+    if (mHelloIsClientMessage) {
+      mClientMessageSentNanoTime = System.nanoTime();
+    }
+    mStats.addPhaseSince(ExchangeStats.Phase.SEND_CLIENT_MESSAGE, start);
+  }
+
+  /**
+   * The preset dictionary to offer in messages that tell a peer without
+   * hellos whether we accept deflated frames.
+   *
+   * @return DeflateDictionary.VERSION, or null if we don't advertise deflate.
+   */
+  private Integer getDeflateDictionary() {
+    if ((mAdvertisedCapabilities & CAPABILITY_DEFLATE) == 0) {
+      return null;
+    }
+    return DeflateDictionary.VERSION;
+  }
+
+  /**
+   * Ask the remote party to resume mSession, in place of a full ClientMessage.
+   */
+  private void sendResumeMessage() throws IOException {
+    long start = System.nanoTime();
+    ResumeSession resume = new ResumeSession.Builder()
+                                            .session(mSession.getLocalId())
+                                            .peerSession(mSession.getRemoteId())
+                                            .chunksReceived(mSession.getChunksReceived())
+                                            .build();
+    ClientMessage cm = new ClientMessage.Builder()
+                                        .resume(resume)
+                                        .deflateDictionary(getDeflateDictionary())
+                                        .protocolVersion(PROTOCOL_VERSION)
+                                        .build();
+    boolean success = writeFrame(cm);
+    if (!success) {
+      setExchangeStatus(Status.ERROR);
+      setErrorMessage("Length/value write of resume message failed.");
+      throw new IOException("Length/value write of resume message failed, but exception is hidden (see Exchange.java)");
+    }
+    mStats.addPhaseSince(ExchangeStats.Phase.SEND_CLIENT_MESSAGE, start);
   }
 
   /**
@@ -156,7 +656,9 @@ public class CryptographicExchange extends Exchange {
    * @return A ClientMessage sent by the remote party, or null in the case of an error.
    */
   private void receiveClientMessage() throws IOException {
-    mRemoteClientMessage = lengthValueRead(in, ClientMessage.class);
+    long start = System.nanoTime();
+    mRemoteClientMessage = readFrame(ClientMessage.class);
+    mStats.addPhaseSince(ExchangeStats.Phase.RECEIVE_CLIENT_MESSAGE, start);
     
     if (mRemoteClientMessage == null) {
       setExchangeStatus(Status.ERROR);
@@ -170,7 +672,138 @@ public class CryptographicExchange extends Exchange {
       throw new IOException("Remote client messages field was null");
     }
 
-    mMessagesReceived = mRemoteClientMessage.messages;
+    // Hellos settle whether to deflate in negotiate(); peers without them
+    // offer it in each ClientMessage instead.
+    if (!mNegotiated && mRemoteClientMessage.capabilities == null &&
+        getDeflateDictionary() != null &&
+        mRemoteClientMessage.deflateDictionary != null &&
+        mRemoteClientMessage.deflateDictionary == DeflateDictionary.VERSION) {
+      channel.setDeflate(true);
+    }
+    mRemoteSummary = null;
+    MessageSummary summary = mRemoteClientMessage.summary;
+    if (summary != null && summary.filter != null &&
+        summary.hashes != null && summary.salt != null) {
+      try {
+        mRemoteSummary = new BloomFilter(summary.filter.toByteArray(),
+                                         summary.hashes, summary.salt);
+      } catch (IllegalArgumentException e) {
+        Log.w(TAG, "Ignoring malformed message summary: " + e);
+      }
+    }
+  }
+
+  /**
+   * Whether the remote peer kept the messages our hello carried, so that they
+   * needn't be sent again.
+   */
+  private boolean helloMessagesKept() {
+    return mHelloMessages != null && negotiated(CAPABILITY_HELLO_MESSAGES);
+  }
+
+  /**
+   * Leave out of the given messages those the remote peer kept from our hello.
+   *
+   * @param messages Messages to send.
+   * @return The messages not carried by our hello.
+   */
+  private List<RangzenMessage> withoutHelloMessages(List<RangzenMessage> messages) {
+    if (!helloMessagesKept() || mHelloMessages.isEmpty()) {
+      return messages;
+    }
+    Set<String> sent = new HashSet<String>();
+    for (RangzenMessage message : mHelloMessages) {
+      sent.add(message.text);
+    }
+    List<RangzenMessage> rest = new ArrayList<RangzenMessage>();
+    for (RangzenMessage message : messages) {
+      if (!sent.contains(message.text)) {
+        rest.add(message);
+      }
+    }
+    return rest;
+  }
+
+  /**
+   * Choose which of the messages carried by the remote hello to keep: those
+   * the remote peer would have sent after reading our summary, which are the
+   * ones we don't summarize.
+   *
+   * @param messages The messages in the remote hello.
+   * @return The messages to take as received.
+   */
+  private List<RangzenMessage> keepHelloMessages(List<RangzenMessage> messages) {
+    List<RangzenMessage> kept = new ArrayList<RangzenMessage>();
+    if (messages.isEmpty()) {
+      return kept;
+    }
+    Set<String> ours = new HashSet<String>();
+    Iterator<MessageStore.Message> it = messageStore.iterateByPriority(NUM_MESSAGES_TO_SUMMARIZE);
+    while (it.hasNext()) {
+      ours.add(it.next().getId());
+    }
+    for (RangzenMessage message : messages) {
+      if (message.text != null && !ours.contains(MessageStore.getMessageId(message.text))) {
+        kept.add(message);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Build a summary of the messages we hold, for the remote peer to check its
+   * messages against.
+   */
+  private MessageSummary summarizeMessages() {
+    List<String> ids = new ArrayList<String>();
+    Iterator<MessageStore.Message> it = messageStore.iterateByPriority(NUM_MESSAGES_TO_SUMMARIZE);
+    while (it.hasNext()) {
+      ids.add(it.next().getId());
+    }
+    BloomFilter filter = new BloomFilter(ids.size(), SUMMARY_FALSE_POSITIVE_RATE,
+                                         sRandom.nextInt());
+    for (String id : ids) {
+      filter.add(id);
+    }
+    return new MessageSummary.Builder()
+                             .filter(ByteString.of(filter.toByteArray()))
+                             .hashes(filter.getHashCount())
+                             .salt(filter.getSalt())
+                             .build();
+  }
+
+  /**
+   * Choose the messages to send in our ServerMessage: none if they were sent in
+   * the ClientMessage, otherwise those missing from the remote summary.
+   *
+   * The summary, not the watermark, decides what the peer has: a message the
+   * summary hides by a false positive must not also be skipped by later
+   * watermarked exchanges, so the watermark isn't advanced past it.
+   */
+  private List<RangzenMessage> getMessagesForServerMessage() {
+    List<RangzenMessage> messages = new ArrayList<RangzenMessage>();
+    if (!mPeerReconciles) {
+      return messages;
+    }
+    if (mRemoteSummary == null) {
+      // The peer stopped sending summaries; send everything, as we would have
+      // in the ClientMessage.
+      Log.w(TAG, "Expected a message summary from the remote peer but got none.");
+      return limitToBudget(withoutHelloMessages(getMessages()));
+    }
+    boolean hidden = false;
+    for (RangzenMessage message : withoutHelloMessages(getMessages(false))) {
+      if (!mRemoteSummary.mightContain(MessageStore.getMessageId(message.text))) {
+        messages.add(message);
+      } else {
+        hidden = true;
+      }
+    }
+    if (hidden) {
+      // Some of these may be false positives the peer lacks.
+      setSentVersion(getWatermark());
+    }
+    return limitToBudget(messages);
   }
 
   /**
@@ -179,6 +812,7 @@ public class CryptographicExchange extends Exchange {
    */
   private void sendServerMessage() throws NoSuchAlgorithmException, 
                                           IOException {
+    long start = System.nanoTime();
     if (mRemoteClientMessage == null) {
       throw new IOException("Remote client message was null in sendServerMessage.");
     } else if (mRemoteClientMessage.blindedFriends == null) {
@@ -194,7 +828,15 @@ public class CryptographicExchange extends Exchange {
     // Calculate responses that appear in the ServerMessage.
     ServerReplyTuple srt;
     try { 
-      srt = mServerPSI.replyToBlindedItems(remoteBlindedItems);
+      if (negotiated(CAPABILITY_FRIEND_FILTER)) {
+        double rate = mFriendFilterFalsePositiveRate;
+        if (rate == 0) {
+          rate = getFriendFilterFalsePositiveRate(remoteBlindedItems.size());
+        }
+        srt = mServerPSI.replyToBlindedItems(remoteBlindedItems, rate);
+      } else {
+        srt = mServerPSI.replyToBlindedItems(remoteBlindedItems);
+      }
     } catch (NoSuchAlgorithmException e) {
       Log.wtf(TAG, "No such algorithm in replyToBlindedItems: " + e);
       setExchangeStatus(Status.ERROR);
@@ -209,19 +851,81 @@ public class CryptographicExchange extends Exchange {
 
     // Format and create ServerMessage.
     ArrayList<ByteString> doubleBlindedStrings = Crypto.byteArraysToStrings(srt.doubleBlindedItems);
-    ArrayList<ByteString> hashedBlindedStrings = Crypto.byteArraysToStrings(srt.hashedBlindedItems);
+    ArrayList<ByteString> hashedBlindedStrings = new ArrayList<ByteString>();
+    FriendFilter friendFilter = null;
+    if (srt.hashedBlindedFilter != null) {
+      friendFilter = new FriendFilter.Builder()
+                                     .filter(ByteString.of(srt.hashedBlindedFilter.toByteArray()))
+                                     .hashes(srt.hashedBlindedFilter.getHashCount())
+                                     .salt(srt.hashedBlindedFilter.getSalt())
+                                     .build();
+    } else {
+      hashedBlindedStrings = Crypto.byteArraysToStrings(srt.hashedBlindedItems);
+    }
+    List<RangzenMessage> messages = getMessagesForServerMessage();
+    List<RangzenMessage> unchunked = messages;
+    if (mSession.getRemoteId() != null) {
+      // The remote peer takes these in chunks after the ServerMessage.
+      unchunked = new ArrayList<RangzenMessage>();
+    }
     ServerMessage sm = new ServerMessage.Builder()    
                                         .doubleBlindedFriends(doubleBlindedStrings)
                                         .hashedBlindedFriends(hashedBlindedStrings)
+                                        .hashedBlindedFriendsFilter(friendFilter)
+                                        .messages(unchunked)
                                         .build(); 
 
     // Write out the ServerMessage.
-    boolean success = lengthValueWrite(out, sm);
+    boolean success = writeFrame(sm);
     if (!success) {
       setExchangeStatus(Status.ERROR);
       setErrorMessage("Length/value write of server message failed.");
       throw new IOException("Length/value write of server message failed, but exception is hidden (see Exchange.java)");
     }
+    mSession.setOutgoing(messages, getSentVersion());
+    mStats.addMessagesSent(unchunked.size());
+    mStats.addPhaseSince(ExchangeStats.Phase.SEND_SERVER_MESSAGE, start);
+  }
+
+  /**
+   * Send our chunks to the remote party, starting from the given one.
+   *
+   * @param from The index of the first chunk to send.
+   */
+  private void sendChunks(int from) throws IOException {
+    long start = System.nanoTime();
+    for (int i = from; i < mSession.getChunkCount(); i++) {
+      MessageChunk chunk = mSession.getChunk(i);
+      boolean success = writeFrame(chunk);
+      if (!success) {
+        setExchangeStatus(Status.ERROR);
+        setErrorMessage("Length/value write of message chunk failed.");
+        throw new IOException("Length/value write of message chunk failed, but exception is hidden (see Exchange.java)");
+      }
+      mStats.addMessagesSent(chunk.messages.size());
+    }
+    mStats.addPhaseSince(ExchangeStats.Phase.SEND_SERVER_MESSAGE, start);
+  }
+
+  /**
+   * Receive the remote party's chunks until its last, checkpointing each in
+   * mSession.
+   */
+  private void receiveChunks() throws IOException {
+    while (!mSession.isRemoteDone()) {
+      MessageChunk chunk = readFrame(MessageChunk.class);
+      if (chunk == null) {
+        setExchangeStatus(Status.ERROR);
+        setErrorMessage("Remote message chunk was not received.");
+        throw new IOException("Remote message chunk was not received.");
+      }
+      if (!mSession.addChunk(chunk)) {
+        setExchangeStatus(Status.ERROR);
+        setErrorMessage("Remote message chunk was out of order.");
+        throw new IOException("Remote message chunk " + chunk.index + " was out of order.");
+      }
+      mStats.addMessagesReceived(chunk.messages.size());
+    }
   }
 
   /**
@@ -230,20 +934,152 @@ public class CryptographicExchange extends Exchange {
    * @return A ServerMessage representing the remote party's server message.
    */
   private void receiveServerMessage() throws IOException {
-    mRemoteServerMessage = lengthValueRead(in, ServerMessage.class);
+    long start = System.nanoTime();
+    mRemoteServerMessage = readFrame(ServerMessage.class);
+    mStats.addPhaseSince(ExchangeStats.Phase.RECEIVE_SERVER_MESSAGE, start);
     if (mRemoteServerMessage == null) {
       setExchangeStatus(Status.ERROR);
       setErrorMessage("Remote server message was not received.");
       throw new IOException("Remote server message was not received.");
     }
+    mSession.addReceived(mRemoteServerMessage.messages);
+    mStats.addMessagesReceived(mRemoteServerMessage.messages.size());
+    // The server message answers our client message, so this is a round trip.
+    long roundTrip = channel.getLastArrivalNanoTime() - mClientMessageSentNanoTime;
+    if (mClientMessageSentNanoTime != 0 && roundTrip > 0) {
+      setRoundTripNanos(roundTrip);
+    }
+  }
+
+  /**
+   * Tell the exchange whether the remote peer is known, from an earlier
+   * exchange, to send message summaries. If so, our messages are held back
+   * until the remote summary arrives and only those it lacks are sent. Must be
+   * called before the exchange starts. Overridden by the remote hello, if one
+   * arrives.
+   *
+   * @param peerReconciles True if the remote peer sends message summaries.
+   */
+  public void setPeerReconciles(boolean peerReconciles) {
+    mPeerReconciles = peerReconciles;
+  }
+
+  /**
+   * Whether the remote peer sent a message summary in this exchange, and so
+   * can be passed to setPeerReconciles() in the next one.
+   *
+   * @return True if the remote peer's ClientMessage included a summary.
+   */
+  public boolean remoteReconciles() {
+    return mSession != null && mSession.remoteReconciles();
+  }
+
+  /**
+   * Offer to resume the given session, kept from an earlier exchange with
+   * the same peer that was cut off. If the remote peer doesn't resume it too,
+   * the exchange starts over. Must be called before the exchange starts.
+   *
+   * @param session A session from getSession(), or null to start afresh.
+   */
+  /* package */ void setResumableSession(ExchangeSession session) {
+    mResumableSession = session;
+  }
+
+  /**
+   * Tell the exchange whether the remote peer is known, from an earlier
+   * exchange, to speak version 1 of the protocol. If so, no hello is sent.
+   * Must be called before the exchange starts.
+   *
+   * @param legacy True if the remote peer sent no protocol version.
+   */
+  public void setPeerLegacy(boolean legacy) {
+    mSendHello = !legacy;
+  }
+
+  /**
+   * Tell the exchange whether the remote peer is known, from an earlier
+   * exchange, to answer hellos. If not, our hello also carries our messages
+   * and blinded friends, in case the remote peer takes it for a version 1
+   * ClientMessage. Must be called before the exchange starts.
+   *
+   * @param answersHello True if the remote peer gave a protocol version.
+   */
+  public void setPeerAnswersHello(boolean answersHello) {
+    mPeerAnswersHello = answersHello;
+  }
+
+  /**
+   * Advertise only some capabilities in our hello, e.g. to act as an older
+   * peer would. Must be called before the exchange starts.
+   *
+   * @param capabilities The CAPABILITY_ flags to advertise.
+   */
+  /* package */ void setCapabilities(long capabilities) {
+    mAdvertisedCapabilities = capabilities;
+  }
+
+  /**
+   * The false positive rate of a filter over our hashed blinded friends that
+   * counts FRIEND_FILTER_FALSE_POSITIVES of the remote peer's friends as
+   * common by mistake, at most, on average.
+   *
+   * @param remoteFriends The number of blinded friends the remote peer sent.
+   */
+  /* package */ static double getFriendFilterFalsePositiveRate(int remoteFriends) {
+    return FRIEND_FILTER_FALSE_POSITIVES / Math.max(1, remoteFriends);
+  }
+
+  /**
+   * Set the false positive rate of the Bloom filter over our hashed blinded
+   * friends, sent in place of the hashes to peers that support it, instead of
+   * deriving it from the number of the remote peer's friends. Lower rates
+   * count fewer of the remote peer's friends as common by mistake, but make
+   * the filter larger. Must be called before the exchange starts.
+   *
+   * @param rate The rate, between 0 and 1.
+   * @throws IllegalArgumentException If the rate isn't between 0 and 1.
+   */
+  public void setFriendFilterFalsePositiveRate(double rate) {
+    if (rate <= 0 || rate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+    }
+    mFriendFilterFalsePositiveRate = rate;
+  }
+
+  /**
+   * Whether the remote peer's first message in this exchange gave no protocol
+   * version, and so can be passed to setPeerLegacy() in the next one.
+   *
+   * @return True if the remote peer speaks version 1.
+   */
+  public boolean remoteIsLegacy() {
+    return mRemoteLegacy;
+  }
+
+  @Override
+  /* package */ TraceHeader.Builder getTraceHeader() {
+    return super.getTraceHeader()
+                .peerReconciles(mPeerReconciles)
+                .peerLegacy(!mSendHello)
+                .peerAnswersHello(mPeerAnswersHello)
+                .capabilities(mAdvertisedCapabilities);
+  }
+
+  /**
+   * Get the state of this exchange to keep for resuming it if it fails.
+   *
+   * @return The session, or null if the exchange hasn't started.
+   */
+  /* package */ ExchangeSession getSession() {
+    return mSession;
   }
 
   /**
    * Compute the number of shared friends from the PSI operation and store
-   * that number in an instance variable.
+   * that number in the session.
    */
   private void computeSharedFriends() throws NoSuchAlgorithmException {
-    commonFriends = mClientPSI.getCardinality(getSRTFromServerTuple());
+    mSession.setCommonFriends(mClientPSI.getCardinality(getSRTFromServerTuple()));
   }
 
   /**
@@ -258,6 +1094,18 @@ public class CryptographicExchange extends Exchange {
     // Since ServerReplyTuple is an inner non-static class, it can't be instantiated
     // without an instance of PrivateSetIntersection, which is it its outer class.
     // Thus we have to use mClientPSI.new.
+    FriendFilter friendFilter = mRemoteServerMessage.hashedBlindedFriendsFilter;
+    if (friendFilter != null && friendFilter.filter != null &&
+        friendFilter.hashes != null && friendFilter.salt != null) {
+      try {
+        BloomFilter filter = new BloomFilter(friendFilter.filter.toByteArray(),
+                                             friendFilter.hashes, friendFilter.salt);
+        return mClientPSI.new ServerReplyTuple(doubleBlindedItems, filter);
+      } catch (IllegalArgumentException e) {
+        // Count no common friends, as if the hashes were missing.
+        Log.w(TAG, "Ignoring malformed friend filter: " + e);
+      }
+    }
     return mClientPSI.new ServerReplyTuple(doubleBlindedItems, hashedBlindedItems);
   }
 
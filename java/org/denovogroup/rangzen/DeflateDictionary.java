@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The preset dictionary used to deflate exchange frames (see FrameChannel).
+ *
+ * Deflate finds repeats within a 32KB window; a preset dictionary fills that
+ * window before the data starts, so short texts compress well even the first
+ * time a word appears in them. This one is a list of words and tags common in
+ * Rangzen messages, with the most common last, since deflate encodes nearby
+ * matches more cheaply.
+ *
+ * Both sides of an exchange must use the same dictionary. Any change to the
+ * text must come with a new VERSION, which peers compare before compressing.
+ */
+/* package */ class DeflateDictionary {
+  /** Identifies the text of the dictionary. Never reuse a version. */
+  public static final int VERSION = 1;
+
+  /** The dictionary text. */
+  private static final String TEXT =
+      "http:// https://www. .com .org .net @gmail.com " +
+      "january february march april may june july august september october " +
+      "november december monday tuesday wednesday thursday friday saturday sunday " +
+      "morning afternoon evening tonight tomorrow yesterday today o'clock " +
+      "government minister ministry president parliament election vote votes " +
+      "police army soldiers security forces military checkpoint arrested " +
+      "arrest detained released prison court judge trial lawyer rights " +
+      "protest protesters protests demonstration march rally strike sit-in " +
+      "crowd gathering gather meet meeting point square street road bridge " +
+      "station university hospital mosque church market center downtown " +
+      "north south east west near outside inside between behind across " +
+      "internet network phone phones bluetooth offline blocked shutdown " +
+      "news report reports reported breaking update confirmed unconfirmed " +
+      "video photo photos share please spread retweet " +
+      "injured killed dead wounded doctors medical help needed urgent " +
+      "water food supplies blood donate volunteers safe unsafe danger " +
+      "avoid closed open tear gas rubber bullets live fire " +
+      "#breaking #news #protest #urgent #help #update #police #election " +
+      "#freedom #rangzen " +
+      "we are they were there their people everyone everybody nobody " +
+      "about after again against all also and any are as at be because " +
+      "been before being but by can come could did do does don't down " +
+      "for from get go going good has have he her here him his how " +
+      "if in into is it it's just know like make many more most much " +
+      "my new no not now of on one only or other our out over said " +
+      "say see she should so some still than that the them then these " +
+      "they this those through time to too two up us very want was " +
+      "way we well were what when where which while who why will with " +
+      "would you your the and to of a in is that for on ";
+
+  /** The dictionary, encoded as UTF-8. Must not be modified. */
+  /* package */ static final byte[] BYTES;
+  static {
+    try {
+      BYTES = TEXT.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // UTF-8 is always supported.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Static methods only. */
+  private DeflateDictionary() {
+  }
+}
@@ -30,7 +30,6 @@
  */
 package org.denovogroup.rangzen;
 
-import com.squareup.wire.Wire;
 import com.squareup.wire.Message;
 
 import android.util.Log;
@@ -43,6 +42,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -60,6 +60,8 @@ public class Exchange implements Runnable {
   /* package */ InputStream in;
   /** Output stream connected to the remote communication partner. */
   /* package */ OutputStream out;
+  /** Frames messages over in and out. */
+  /* package */ FrameChannel channel;
   /** A callback to report the result of an exchange. */
   /* package */ ExchangeCallback callback;
   /** 
@@ -80,6 +82,45 @@ public class Exchange implements Runnable {
   /** Send up to this many messages (top priority) from the message store. */
   private static final int NUM_MESSAGES_TO_SEND = 100;
 
+  /**
+   * Always send this many of the top messages, even if the remote peer
+   * should already have them, in case it has since lost them.
+   */
+  private static final int NUM_TOP_MESSAGES_TO_RESEND = 10;
+
+  /** Watermark value meaning nothing is known to have been sent to the peer. */
+  public static final long NO_WATERMARK = -1;
+
+  /** The message store version last sent to the remote peer, if known. */
+  private long mWatermark = NO_WATERMARK;
+
+  /** The message store version the messages we're sending reflect. */
+  private long mSentVersion = NO_WATERMARK;
+
+  /** Byte budget value meaning messages aren't limited by size. */
+  public static final long NO_BUDGET = -1;
+
+  /** Roughly the most bytes of messages to send, or NO_BUDGET. */
+  private long mByteBudget = NO_BUDGET;
+
+  /**
+   * Time from sending our first message to the arrival of the remote peer's
+   * reply to it, in nanoseconds, or -1 if not measured.
+   */
+  private volatile long mRoundTripNanos = -1;
+
+  /** Measurements of this exchange. */
+  /* package */ final ExchangeStats mStats = new ExchangeStats();
+
+  /** Trace to record this exchange to, or null. */
+  private ExchangeTrace mTrace;
+
+  /**
+   * Record up to this many local messages in a trace, enough to cover those
+   * sent and those summarized.
+   */
+  private static final int NUM_MESSAGES_TO_TRACE = 1000;
+
   /** Minimum trust multiplier in the case of 0 shared friends. */
   public static final double EPSILON_TRUST = .001;
 
@@ -105,16 +146,6 @@ public class Exchange implements Runnable {
   /** Included with Android log messages. */
   private static final String TAG = "Exchange";
 
-  /** Number of bytes in a megabyte. */
-  private static final int MEGABYTES = 1024 * 1024;
-
-  /**
-   * Size, in bytes, of the maximum size message we'll try to read with lengthValueRead.
-   * This is necessary since otherwise a malicious remote party can just provide a huge
-   * size and cause an OutOfMemory error when we allocate a buffer.
-   */
-  private static final int MAX_MESSAGE_SIZE = 10 * MEGABYTES;
-
   /** Synchronized getter for status. */
   /* package */ synchronized Status getExchangeStatus() {
     return mStatus;
@@ -162,6 +193,7 @@ public class Exchange implements Runnable {
     if (out == null) {
       throw new IllegalArgumentException("Output stream for exchange is null.");
     }
+    this.channel = new FrameChannel(in, out);
     if (friendStore == null) {
       throw new IllegalArgumentException("Friend store for exchange is null.");
     }
@@ -190,58 +222,130 @@ public class Exchange implements Runnable {
     CleartextFriends friendsMessage = new CleartextFriends.Builder()
                                                           .friends(friends)
                                                           .build();
-    lengthValueWrite(out, friendsMessage); 
+    writeFrame(friendsMessage);
   }
 
   /**
    * Retrieve at most NUM_MESSAGES_TO_SEND messages from the message store and
-   * return them. If no messages, returns a empty list.
+   * return them, with their priorities decayed by age. If no messages, returns
+   * a empty list.
+   *
+   * If a watermark was given (see setWatermark()), messages the remote peer
+   * already got at that version are left out, other than the top
+   * NUM_TOP_MESSAGES_TO_RESEND. What's left is the messages added or changed
+   * since, plus enough of the bottom of the list to cover messages promoted
+   * into it by messages removed or demoted since.
    *
-   * @return The top NUM_MESSAGES_TO_SEND in the MessageStore.
+   * @return The top NUM_MESSAGES_TO_SEND in the MessageStore, or those of them
+   * the remote peer lacks.
    * @see NUM_MESSAGES_TO_SEND;
    */
   /* package */ List<RangzenMessage> getMessages() { 
+    return getMessages(true);
+  }
+
+  /**
+   * Retrieve at most NUM_MESSAGES_TO_SEND messages from the message store, as
+   * getMessages() does.
+   *
+   * @param skipSent Whether to leave out messages the remote peer already got
+   * at the watermark. Pass false when something else, such as the remote
+   * peer's message summary, already tells us what it has.
+   * @return The top NUM_MESSAGES_TO_SEND in the MessageStore, or those of them
+   * the remote peer lacks.
+   */
+  /* package */ List<RangzenMessage> getMessages(boolean skipSent) {
+    long version = messageStore.getVersion();
+    MessageStore.Changes changes = null;
+    if (skipSent && mWatermark != NO_WATERMARK) {
+      changes = messageStore.getChangesSince(mWatermark);
+    }
+    List<MessageStore.Message> top = new ArrayList<MessageStore.Message>();
+    Iterator<MessageStore.Message> it = messageStore.iterateByPriority(NUM_MESSAGES_TO_SEND);
+    while (it.hasNext()) {
+      top.add(it.next());
+    }
+    Set<String> changed = new HashSet<String>();
+    int opened = 0;
+    if (changes != null) {
+      Set<String> topIds = new HashSet<String>();
+      for (MessageStore.Message m : top) {
+        topIds.add(m.getId());
+      }
+      for (MessageStore.Message m : changes.getChanged()) {
+        changed.add(m.getId());
+        if (!topIds.contains(m.getId())) {
+          opened++;
+        }
+      }
+      opened += changes.getRemoved().size();
+    }
+    mSentVersion = version;
+
     List<RangzenMessage> messages = new ArrayList<RangzenMessage>();
-    for (int k=0; k<NUM_MESSAGES_TO_SEND; k++) {
-      MessageStore.Message messageFromStore = messageStore.getKthMessage(k, 0, null);
-      if (messageFromStore == null) {
-        break;
+    for (int i = 0; i < top.size(); i++) {
+      MessageStore.Message messageFromStore = top.get(i);
+      if (changes != null && i >= NUM_TOP_MESSAGES_TO_RESEND &&
+          i < top.size() - opened && !changed.contains(messageFromStore.getId())) {
+        // Unchanged since the watermark, so the remote peer has it.
+        continue;
       }
       messages.add(new RangzenMessage.Builder()
                                      .text(messageFromStore.getMessage())
-                                     .priority(messageFromStore.getPriority())
+                                     .priority(messageStore.getEffectivePriority(messageFromStore))
                                      .build());
     }
     return messages;
   }
 
   /**
-   * Get messages from the MessageStore, encode them as a CleartextMessages protobuf
-   * object, and write that Message out to the output stream.
+   * Cut the given messages, in priority order, down to the byte budget set
+   * with setByteBudget(). At least one message is always kept. If any are
+   * cut, the watermark isn't advanced, since the remote peer won't have them.
+   *
+   * @param messages Messages to send, highest priority first.
+   * @return The messages that fit the budget.
    */
-  private void sendMessages() {
-    List<RangzenMessage> messages = new ArrayList<RangzenMessage>();
-    for (int k=0; k<NUM_MESSAGES_TO_SEND; k++) {
-      MessageStore.Message messageFromStore = messageStore.getKthMessage(k, 0, null);
-      if (messageFromStore == null) {
+  /* package */ List<RangzenMessage> limitToBudget(List<RangzenMessage> messages) {
+    if (mByteBudget == NO_BUDGET) {
+      return messages;
+    }
+    long bytes = 0;
+    int count = 0;
+    while (count < messages.size()) {
+      bytes += messages.get(count).getSerializedSize();
+      if (count > 0 && bytes > mByteBudget) {
         break;
       }
-      messages.add(new RangzenMessage.Builder()
-                                     .text(messageFromStore.getMessage())
-                                     .priority(messageFromStore.getPriority())
-                                     .build());
+      count++;
     }
+    if (count == messages.size()) {
+      return messages;
+    }
+    Log.i(TAG, "Sending " + count + " of " + messages.size() + " messages to fit " +
+               mByteBudget + " byte budget.");
+    mSentVersion = mWatermark;
+    return new ArrayList<RangzenMessage>(messages.subList(0, count));
+  }
+
+  /**
+   * Get messages from the MessageStore, encode them as a CleartextMessages protobuf
+   * object, and write that Message out to the output stream.
+   */
+  private void sendMessages() {
     CleartextMessages messagesMessage = new CleartextMessages.Builder()
-                                                             .messages(messages)
+                                                             .messages(limitToBudget(getMessages()))
                                                              .build();
-    lengthValueWrite(out, messagesMessage); 
+    if (writeFrame(messagesMessage)) {
+      mStats.addMessagesSent(messagesMessage.messages.size());
+    }
   }
 
   /**
    * Receive friends from the remote device.
    */
   private void receiveFriends() {
-    CleartextFriends friendsReceived = lengthValueRead(in, CleartextFriends.class);
+    CleartextFriends friendsReceived = readFrame(CleartextFriends.class);
     this.mFriendsReceived = friendsReceived;
 
     if (mFriendsReceived != null && mFriendsReceived.friends != null) {
@@ -267,8 +371,9 @@ public class Exchange implements Runnable {
    * Receive messages from the remote device.
    */
   private void receiveMessages() {
-    CleartextMessages mMessagesReceived = lengthValueRead(in, CleartextMessages.class);
+    CleartextMessages mMessagesReceived = readFrame(CleartextMessages.class);
     this.mMessagesReceived = mMessagesReceived.messages;
+    mStats.addMessagesReceived(this.mMessagesReceived.size());
   }
 
   /**
@@ -276,6 +381,7 @@ public class Exchange implements Runnable {
    */
   @Override
   public void run() {
+    startTrace();
     // In this version of the exchange there's no crypto, so the messages don't
     // depend on each other at all.
     if (asInitiator) {
@@ -295,6 +401,7 @@ public class Exchange implements Runnable {
     }
     if (getExchangeStatus() == Status.IN_PROGRESS) {
       setExchangeStatus(Status.SUCCESS);
+      logFrameStats();
     }
 
     // We're done with the mechanics of the exchange - if there's a callback
@@ -308,6 +415,7 @@ public class Exchange implements Runnable {
       return;
 
     } else {
+      mStats.setFailureReason(mErrorMessage);
       callback.failure(this, mErrorMessage);
       return;
     }
@@ -352,6 +460,122 @@ public class Exchange implements Runnable {
     }
   }
 
+  /**
+   * Tell the exchange which version of the message store was last sent to the
+   * remote peer, as returned by getSentVersion() after an earlier exchange with
+   * it, so that messages it already has needn't be sent again. Must be called
+   * before the exchange starts.
+   *
+   * @param watermark A version from getSentVersion(), or NO_WATERMARK.
+   */
+  public void setWatermark(long watermark) {
+    mWatermark = watermark;
+  }
+
+  /**
+   * Get the version of the message store that the messages we sent reflect,
+   * to be passed to setWatermark() in the next exchange with the same peer.
+   *
+   * @return The version, or NO_WATERMARK if no messages have been sent.
+   */
+  public long getSentVersion() {
+    return mSentVersion;
+  }
+
+  /**
+   * Limit the messages sent in this exchange to about the given number of
+   * bytes, dropping the lowest priority ones, so that the exchange finishes
+   * in time on a slow link. Must be called before the exchange starts.
+   *
+   * @param byteBudget The budget, or NO_BUDGET to send NUM_MESSAGES_TO_SEND.
+   */
+  public void setByteBudget(long byteBudget) {
+    mByteBudget = byteBudget;
+  }
+
+  /**
+   * Get the round trip time measured in this exchange, which includes the
+   * time the remote peer took to compute its reply.
+   *
+   * @return The time in nanoseconds, or -1 if it wasn't measured.
+   */
+  public long getRoundTripNanos() {
+    return mRoundTripNanos;
+  }
+
+  /**
+   * Record this exchange to the given trace. Must be called before the
+   * exchange starts. The trace isn't closed by the exchange.
+   *
+   * @param trace The trace to record to, or null not to record.
+   */
+  public void setTrace(ExchangeTrace trace) {
+    mTrace = trace;
+  }
+
+  /**
+   * Write the trace header, if the exchange is traced, and start recording
+   * frames. Called as the exchange starts.
+   */
+  /* package */ void startTrace() {
+    if (mTrace == null) {
+      return;
+    }
+    mTrace.writeHeader(getTraceHeader().build());
+    channel.setTrace(mTrace);
+  }
+
+  /**
+   * Describe the local side of this exchange for its trace, so that it can be
+   * set up again to replay the trace.
+   */
+  /* package */ TraceHeader.Builder getTraceHeader() {
+    List<RangzenMessage> messages = new ArrayList<RangzenMessage>();
+    Iterator<MessageStore.Message> it = messageStore.iterateByPriority(NUM_MESSAGES_TO_TRACE);
+    while (it.hasNext()) {
+      MessageStore.Message m = it.next();
+      messages.add(new RangzenMessage.Builder()
+                                     .text(m.getMessage())
+                                     .priority(m.getPriority())
+                                     .build());
+    }
+    return new TraceHeader.Builder()
+                          .asInitiator(asInitiator)
+                          .friendCount(friendStore.getAllFriends().size())
+                          .messages(messages)
+                          .byteBudget(mByteBudget);
+  }
+
+  /**
+   * Get the measurements of this exchange: phase timings, bytes and messages
+   * each way and, if it failed, why. Filled in as the exchange runs, so
+   * complete once the callback is called, except for the phases timed by
+   * whoever connected the exchange and applies its results.
+   *
+   * @return The exchange's measurements.
+   */
+  public ExchangeStats getStats() {
+    return mStats;
+  }
+
+  /** Record the round trip time measured in this exchange. */
+  /* package */ void setRoundTripNanos(long roundTripNanos) {
+    mRoundTripNanos = roundTripNanos;
+  }
+
+  /**
+   * Set the version returned by getSentVersion(), for subclasses that send
+   * messages chosen in an earlier exchange.
+   */
+  /* package */ void setSentVersion(long sentVersion) {
+    mSentVersion = sentVersion;
+  }
+
+  /** Get the watermark given to setWatermark(). */
+  /* package */ long getWatermark() {
+    return mWatermark;
+  }
+
   /**
    * Get the friends we received from the remote peer. 
    *
@@ -372,8 +596,67 @@ public class Exchange implements Runnable {
     }
   }
 
-  /** Instance of Wire to encode/decode messages. */
-  private static Wire wire = new Wire();
+  /**
+   * Write the given message to the remote party as a single frame.
+   *
+   * @param m A message to write.
+   * @return True if the write succeeds, false otherwise.
+   */
+  /* package */ boolean writeFrame(Message m) {
+    try {
+      channel.writeFrame(m);
+      mStats.addBytesOut(channel.getLastWriteBytes());
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Frame write failed with exception: " + e);
+      return false;
+    }
+  }
+
+  /**
+   * Read a single frame from the remote party as a message of the given type.
+   *
+   * @param messageClass The type of Message to read.
+   * @return The message read, or null if an error occurs.
+   */
+  /* package */ <T extends Message> T readFrame(Class<T> messageClass) {
+    try {
+      T message = channel.readFrame(messageClass);
+      if (message != null) {
+        mStats.addBytesIn(channel.getLastReadBytes());
+      }
+      return message;
+    } catch (IOException e) {
+      Log.e(TAG, "Frame read failed with exception: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Log the bytes sent and received in the exchange, and how much deflating
+   * saved and what it cost.
+   */
+  /* package */ void logFrameStats() {
+    Log.i(TAG, "Sent " + channel.getBytesWritten() + " bytes in " +
+               channel.getFramesWritten() + " frames, received " +
+               channel.getBytesRead() + " bytes in " + channel.getFramesRead() + " frames.");
+    if (channel.getDeflateInputBytes() > 0) {
+      Log.i(TAG, String.format("Deflated %d bytes to %d (ratio %.2f) in %.2fms.",
+                               channel.getDeflateInputBytes(),
+                               channel.getDeflateOutputBytes(),
+                               (double) channel.getDeflateInputBytes() /
+                               channel.getDeflateOutputBytes(),
+                               channel.getDeflateNanos() / 1e6));
+    }
+    if (channel.getInflateInputBytes() > 0) {
+      Log.i(TAG, String.format("Inflated %d bytes to %d (ratio %.2f) in %.2fms.",
+                               channel.getInflateInputBytes(),
+                               channel.getInflateOutputBytes(),
+                               (double) channel.getInflateOutputBytes() /
+                               channel.getInflateInputBytes(),
+                               channel.getInflateNanos() / 1e6));
+    }
+  }
 
   /**
    * Take a Wire protobuf Message and encode it in a byte[] as:
@@ -387,12 +670,12 @@ public class Exchange implements Runnable {
    * @return A ByteBuffer containing the encoded bytes of the message and its length.
    */
   /* package */ static ByteBuffer lengthValueEncode(Message m) {
-    byte[] value = m.toByteArray();
-
-    ByteBuffer encoded = ByteBuffer.allocate(Integer.SIZE/Byte.SIZE + value.length);
+    int length = m.getSerializedSize();
+    ByteBuffer encoded = ByteBuffer.allocate(FrameChannel.HEADER_SIZE + length);
     encoded.order(ByteOrder.BIG_ENDIAN);   // Network byte order.
-    encoded.putInt(value.length);
-    encoded.put(value);
+    encoded.putInt(length);
+    m.writeTo(encoded.array(), FrameChannel.HEADER_SIZE, length);
+    encoded.position(encoded.limit());
 
     return encoded;
   }
@@ -413,8 +696,7 @@ public class Exchange implements Runnable {
       return false;
     }
     try {
-      byte[] encodedMessage = Exchange.lengthValueEncode(m).array();
-      outputStream.write(encodedMessage);
+      new FrameChannel(null, outputStream).writeFrame(m);
       return true;
     } catch (IOException e) {
       Log.e(TAG, "Length/value write failed with exception: " + e);
@@ -432,43 +714,27 @@ public class Exchange implements Runnable {
    */
   public static <T extends Message> T lengthValueRead(InputStream inputStream, 
                                                       Class<T> messageClass) {
-    int length = popLength(inputStream);
-    if (length < 0) {
-      return null;
-    } else if (length > MAX_MESSAGE_SIZE) {
-      Log.e(TAG, "Remote party asked us to read " + length + " bytes in a length/value read");
-      return null;
-    }
-    byte[] messageBytes = new byte[length];
-    T recoveredMessage;
-    int readByteCount = 0;
     try {
-      while (readByteCount != length) {
-        readByteCount += inputStream.read(messageBytes, readByteCount, length - readByteCount);
-      }
-      recoveredMessage = wire.parseFrom(messageBytes, messageClass);
+      return new FrameChannel(inputStream, null).readFrame(messageClass);
     } catch (IOException e) {
-      Log.e(TAG, "IOException parsing message bytes: " + e);
+      Log.e(TAG, "Length/value read failed with exception: " + e);
       return null;
     }
-    return recoveredMessage;
   }
 
   /**
-   * Take the output of lengthValueEncode() and decode it to a Message of the
-   * given type.
+   * Read the 4 byte length that begins the output of lengthValueEncode().
+   *
+   * @return The length, or -1 if the stream ends or fails before all 4 bytes
+   * have been read.
    */
   /* package */ static int popLength(InputStream stream) {
-    byte[] lengthBytes = new byte[Integer.SIZE/Byte.SIZE];
     try {
-      stream.read(lengthBytes);
+      return FrameChannel.readLength(stream);
     } catch (IOException e) {
       Log.e(TAG, "IOException popping length from input stream: " + e);
       return -1;
     }
-    ByteBuffer buffer = ByteBuffer.wrap(lengthBytes);
-    buffer.order(ByteOrder.BIG_ENDIAN);   // Network byte order.
-    return buffer.getInt();
   }
 
   /**
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Histograms of the measurements of the most recent exchanges, for seeing
+ * where exchange time goes. Phase times are counted in microseconds.
+ */
+public class ExchangeHistograms {
+  /** Number of recent exchanges covered. */
+  public static final int WINDOW = 100;
+
+  /** The exchanges covered, oldest first. */
+  private final ArrayDeque<ExchangeStats> mWindow = new ArrayDeque<ExchangeStats>();
+
+  /** Time spent in each phase, in microseconds, by exchanges that entered it. */
+  private final Map<ExchangeStats.Phase, Histogram> mPhaseMicros =
+      new EnumMap<ExchangeStats.Phase, Histogram>(ExchangeStats.Phase.class);
+
+  /** Bytes read per exchange. */
+  private final Histogram mBytesIn = new Histogram();
+
+  /** Bytes written per exchange. */
+  private final Histogram mBytesOut = new Histogram();
+
+  /** Messages received per exchange. */
+  private final Histogram mMessagesReceived = new Histogram();
+
+  /** Duplicate messages received per exchange. */
+  private final Histogram mDuplicatesReceived = new Histogram();
+
+  /** Number of exchanges covered that failed, by reason. */
+  private final Map<String, Integer> mFailureReasons = new HashMap<String, Integer>();
+
+  /** Number of exchanges covered that failed. */
+  private int mFailures = 0;
+
+  /** Create histograms covering no exchanges. */
+  public ExchangeHistograms() {
+    for (ExchangeStats.Phase phase : ExchangeStats.Phase.values()) {
+      mPhaseMicros.put(phase, new Histogram());
+    }
+  }
+
+  /**
+   * Add an exchange, dropping the oldest one covered if there are more than
+   * WINDOW.
+   *
+   * @param stats The exchange's measurements, which are copied.
+   */
+  public synchronized void add(ExchangeStats stats) {
+    ExchangeStats copy = stats.copy();
+    mWindow.addLast(copy);
+    count(copy, true);
+    if (mWindow.size() > WINDOW) {
+      count(mWindow.removeFirst(), false);
+    }
+  }
+
+  /** Add an exchange's measurements to the histograms or take them out. */
+  private void count(ExchangeStats stats, boolean add) {
+    for (ExchangeStats.Phase phase : ExchangeStats.Phase.values()) {
+      long nanos = stats.getPhaseNanos(phase);
+      if (nanos != ExchangeStats.NOT_TIMED) {
+        update(mPhaseMicros.get(phase), nanos / 1000, add);
+      }
+    }
+    update(mBytesIn, stats.getBytesIn(), add);
+    update(mBytesOut, stats.getBytesOut(), add);
+    update(mMessagesReceived, stats.getMessagesReceived(), add);
+    update(mDuplicatesReceived, stats.getDuplicatesReceived(), add);
+    String reason = stats.getFailureReason();
+    if (reason != null) {
+      Integer count = mFailureReasons.get(reason);
+      count = (count == null ? 0 : count) + (add ? 1 : -1);
+      if (count > 0) {
+        mFailureReasons.put(reason, count);
+      } else {
+        mFailureReasons.remove(reason);
+      }
+      mFailures += add ? 1 : -1;
+    }
+  }
+
+  /** Add a value to a histogram or take it out. */
+  private static void update(Histogram histogram, long value, boolean add) {
+    if (add) {
+      histogram.add(value);
+    } else {
+      histogram.remove(value);
+    }
+  }
+
+  /** @return The number of exchanges covered. */
+  public synchronized int getCount() {
+    return mWindow.size();
+  }
+
+  /** @return The number of exchanges covered that failed. */
+  public synchronized int getFailures() {
+    return mFailures;
+  }
+
+  /** @return The number of exchanges covered that failed, by reason. */
+  public synchronized Map<String, Integer> getFailureReasons() {
+    return Collections.unmodifiableMap(new HashMap<String, Integer>(mFailureReasons));
+  }
+
+  /**
+   * @return A bound on the time spent in the given phase by the given
+   * fraction of exchanges that entered it, in microseconds, or -1 if none did.
+   */
+  public synchronized long getPhasePercentileMicros(ExchangeStats.Phase phase,
+                                                    double fraction) {
+    return mPhaseMicros.get(phase).getPercentile(fraction);
+  }
+
+  /** @return The number of exchanges covered that entered the given phase. */
+  public synchronized int getPhaseCount(ExchangeStats.Phase phase) {
+    return mPhaseMicros.get(phase).getTotal();
+  }
+
+  /** @return A bound on the bytes read by the given fraction of exchanges. */
+  public synchronized long getBytesInPercentile(double fraction) {
+    return mBytesIn.getPercentile(fraction);
+  }
+
+  /** @return A bound on the bytes written by the given fraction of exchanges. */
+  public synchronized long getBytesOutPercentile(double fraction) {
+    return mBytesOut.getPercentile(fraction);
+  }
+
+  /**
+   * @return A bound on the messages received by the given fraction of
+   * exchanges.
+   */
+  public synchronized long getMessagesReceivedPercentile(double fraction) {
+    return mMessagesReceived.getPercentile(fraction);
+  }
+
+  /**
+   * @return A bound on the duplicate messages received by the given fraction
+   * of exchanges.
+   */
+  public synchronized long getDuplicatesReceivedPercentile(double fraction) {
+    return mDuplicatesReceived.getPercentile(fraction);
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays the remote side of a recorded ExchangeTrace against a new local
+ * CryptographicExchange, over in-memory streams, so that an exchange seen in
+ * the field can be reproduced and profiled off the phone with the same
+ * messages, friend set size and, if paced, frame arrival times.
+ *
+ * The remote frames answer the original exchange's random values, not the
+ * replay's, so the replay takes as long and receives the same messages as
+ * the original but finds no friends in common. Exchanges that resumed an
+ * earlier session can't be replayed.
+ */
+public class ExchangeReplay {
+  /** Included with Android log messages. */
+  private static final String TAG = "ExchangeReplay";
+
+  /** Prefix of the friends made up to fill the friend store. */
+  private static final String FRIEND_PREFIX = "replayed friend ";
+
+  /**
+   * Set up stores like those of the local side of a trace: the same number
+   * of friends, made up, and the same messages. Use empty stores.
+   *
+   * @param trace The trace.
+   * @param friendStore The store to add friends to.
+   * @param messageStore The store to add messages to.
+   */
+  public static void populate(ExchangeTrace trace, FriendStore friendStore,
+                              MessageStore messageStore) {
+    TraceHeader header = trace.getHeader();
+    for (byte[] friend : getFriends(header)) {
+      friendStore.addFriendBytes(friend);
+    }
+    if (header.messages != null) {
+      for (RangzenMessage message : header.messages) {
+        if (message.text != null && message.priority != null) {
+          messageStore.addMessage(message.text, message.priority);
+        }
+      }
+    }
+  }
+
+  /**
+   * Take what populate() added back out of the stores, so that they can be
+   * used for another trace.
+   *
+   * @param trace The trace the stores were populated from.
+   * @param friendStore The store friends were added to.
+   * @param messageStore The store messages were added to.
+   */
+  public static void unpopulate(ExchangeTrace trace, FriendStore friendStore,
+                                MessageStore messageStore) {
+    TraceHeader header = trace.getHeader();
+    for (byte[] friend : getFriends(header)) {
+      friendStore.deleteFriendBytes(friend);
+    }
+    if (header.messages != null) {
+      for (RangzenMessage message : header.messages) {
+        if (message.text != null) {
+          messageStore.deleteMessage(message.text);
+        }
+      }
+    }
+  }
+
+  /** Make up as many friends as the traced side had. */
+  private static List<byte[]> getFriends(TraceHeader header) {
+    int count = header.friendCount == null ? 0 : header.friendCount;
+    List<byte[]> friends = new ArrayList<byte[]>();
+    try {
+      for (int i = 0; i < count; i++) {
+        friends.add((FRIEND_PREFIX + i).getBytes("UTF-8"));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is unsupported: " + e);
+    }
+    return friends;
+  }
+
+  /**
+   * Replay a trace. The exchange is set up as the local side of the traced
+   * exchange was, given stores from populate(), and run on the calling
+   * thread. Each remote frame is held back until the exchange has written as
+   * many frames as the traced one had when the frame was received, since it
+   * may answer them.
+   *
+   * @param trace The trace.
+   * @param friendStore A store of friends for the exchange.
+   * @param messageStore A store of messages for the exchange.
+   * @param callback Called back when the exchange is done.
+   * @param paced Whether to also hold back each remote frame until as long
+   * after the replay starts as it arrived after the traced exchange started.
+   * @return The exchange, which has finished.
+   */
+  public static CryptographicExchange replay(ExchangeTrace trace, FriendStore friendStore,
+                                             MessageStore messageStore,
+                                             ExchangeCallback callback, boolean paced) {
+    TraceHeader header = trace.getHeader();
+    LocalOutputStream out = new LocalOutputStream();
+    CryptographicExchange exchange = new CryptographicExchange(
+        new RemoteInputStream(trace.getFrames(), out, paced),
+        out,
+        Boolean.TRUE.equals(header.asInitiator),
+        friendStore,
+        messageStore,
+        callback);
+    exchange.setPeerReconciles(Boolean.TRUE.equals(header.peerReconciles));
+    exchange.setPeerLegacy(Boolean.TRUE.equals(header.peerLegacy));
+    // Recorded before hellos could carry messages, when none did.
+    exchange.setPeerAnswersHello(header.peerAnswersHello == null ||
+                                 header.peerAnswersHello);
+    if (header.byteBudget != null) {
+      exchange.setByteBudget(header.byteBudget);
+    }
+    if (header.capabilities != null) {
+      exchange.setCapabilities(header.capabilities);
+    } else {
+      // Recorded before traces kept capabilities, when there was no EC PSI.
+      exchange.setCapabilities(CryptographicExchange.CAPABILITIES &
+                               ~CryptographicExchange.CAPABILITY_EC_PSI);
+    }
+    exchange.run();
+    return exchange;
+  }
+
+  /**
+   * Yields the bytes of the remote frames of a trace in turn, each once it's
+   * due.
+   */
+  private static class RemoteInputStream extends InputStream {
+    /** The remote frames. */
+    private final List<TraceFrame> mFrames = new ArrayList<TraceFrame>();
+    /** For each remote frame, the number of local frames written before it. */
+    private final List<Integer> mWrittenBefore = new ArrayList<Integer>();
+    /** Stream the local side writes to. */
+    private final LocalOutputStream mOut;
+    /** Whether to wait until each frame's arrival time. */
+    private final boolean mPaced;
+    /** Index of the next frame to start reading. */
+    private int mFrame = 0;
+    /** Bytes of the frame being read, or null if none has been started. */
+    private byte[] mBytes;
+    /** Position in mBytes. */
+    private int mPosition;
+    /** System.nanoTime() at the first read, or 0. */
+    private long mStartNanoTime = 0;
+
+    public RemoteInputStream(List<TraceFrame> frames, LocalOutputStream out, boolean paced) {
+      int written = 0;
+      for (TraceFrame frame : frames) {
+        if (!Boolean.TRUE.equals(frame.incoming)) {
+          written++;
+        } else if (frame.frame != null) {
+          mFrames.add(frame);
+          mWrittenBefore.add(written);
+        }
+      }
+      this.mOut = out;
+      this.mPaced = paced;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (mStartNanoTime == 0) {
+        mStartNanoTime = System.nanoTime();
+      }
+      while (mBytes == null || mPosition == mBytes.length) {
+        if (mFrame == mFrames.size()) {
+          return -1;
+        }
+        TraceFrame frame = mFrames.get(mFrame);
+        mOut.awaitFrames(mWrittenBefore.get(mFrame));
+        mFrame++;
+        if (mPaced && frame.micros != null) {
+          waitUntil(mStartNanoTime + frame.micros * 1000);
+        }
+        mBytes = frame.frame.toByteArray();
+        mPosition = 0;
+      }
+      int count = Math.min(len, mBytes.length - mPosition);
+      System.arraycopy(mBytes, mPosition, b, off, count);
+      mPosition += count;
+      return count;
+    }
+
+    /** Sleep until System.nanoTime() reaches the given time. */
+    private static void waitUntil(long nanoTime) throws IOException {
+      long millis;
+      while ((millis = (nanoTime - System.nanoTime()) / (1000 * 1000)) > 0) {
+        try {
+          Thread.sleep(millis);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted waiting for a replayed frame.");
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops what the local side writes, counting frames. FrameChannel flushes
+   * once per frame, so flushes are counted.
+   */
+  private static class LocalOutputStream extends OutputStream {
+    /** The most time to wait for the local side to write a frame. */
+    private static final long MAX_WAIT_MILLIS = 30 * 1000;
+
+    /** Number of frames written. */
+    private int mFrames = 0;
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+
+    @Override
+    public synchronized void flush() {
+      mFrames++;
+      notifyAll();
+    }
+
+    /**
+     * Wait until the given number of frames have been written, or until
+     * MAX_WAIT_MILLIS pass without one, in case the replay has strayed from
+     * the trace.
+     */
+    public synchronized void awaitFrames(int frames) throws IOException {
+      while (mFrames < frames) {
+        int before = mFrames;
+        try {
+          wait(MAX_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted waiting for a local frame.");
+        }
+        if (mFrames == before) {
+          Log.w(TAG, "Replay wrote " + mFrames + " frames where the trace wrote " +
+                     frames + ", going on.");
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The part of a CryptographicExchange that outlives its connection, so that
+ * an exchange cut off after PSI can be resumed when the peer reconnects
+ * rather than started over.
+ *
+ * Each side of an exchange picks a random session ID and announces it in its
+ * ClientMessage. Once both ServerMessages have crossed, the number of common
+ * friends is known and each side sends its messages in MessageChunks, which
+ * the receiver checkpoints here one by one. If the connection then drops, the
+ * session is kept (see PeerManager.recordSession()), and on the next
+ * connection within RESUME_WINDOW_MILLIS both sides skip PSI and send only
+ * the chunks the other lacks.
+ *
+ * The reader and writer threads of an exchange both update a session, so
+ * its methods are synchronized.
+ */
+/* package */ class ExchangeSession {
+  /** The number of messages sent in each MessageChunk. */
+  public static final int MESSAGES_PER_CHUNK = 10;
+
+  /** How long after its last checkpoint a session can be resumed, in ms. */
+  public static final long RESUME_WINDOW_MILLIS = 5 * 60 * 1000;
+
+  /** The ID we announced for this session. */
+  private final long mLocalId;
+
+  /** The ID the remote peer announced, if it announced one. */
+  private Long mRemoteId;
+
+  /** The number of friends in common with the remote peer, or -1 if unknown. */
+  private int mCommonFriends = -1;
+
+  /** Whether the remote peer sent a message summary. */
+  private boolean mRemoteReconciles = false;
+
+  /** The messages we send in chunks, or null until our ServerMessage is sent. */
+  private List<RangzenMessage> mOutgoing;
+
+  /** The message store version mOutgoing reflects. */
+  private long mSentVersion = Exchange.NO_WATERMARK;
+
+  /** Every message received from the remote peer so far. */
+  private final List<RangzenMessage> mReceived = new ArrayList<RangzenMessage>();
+
+  /** The number of the remote peer's chunks received so far. */
+  private int mChunksReceived = 0;
+
+  /** Whether the remote peer's last chunk has been received. */
+  private boolean mRemoteDone = false;
+
+  /** When the session was last checkpointed, in ms since the epoch. */
+  private long mCheckpointTime;
+
+  /**
+   * Create a session with the given ID for our side of a new exchange.
+   *
+   * @param localId A random ID to announce to the remote peer.
+   */
+  public ExchangeSession(long localId) {
+    this.mLocalId = localId;
+    this.mCheckpointTime = System.currentTimeMillis();
+  }
+
+  /** @return The ID we announced for this session. */
+  public long getLocalId() {
+    return mLocalId;
+  }
+
+  /** @return The ID the remote peer announced, or null if it didn't announce one. */
+  public synchronized Long getRemoteId() {
+    return mRemoteId;
+  }
+
+  /**
+   * Record the ID the remote peer announced, and whether it sent a message
+   * summary, from its ClientMessage.
+   *
+   * @param remoteId The remote peer's ID, or null if it didn't announce one.
+   * @param remoteReconciles Whether the remote peer sent a message summary.
+   */
+  public synchronized void setRemote(Long remoteId, boolean remoteReconciles) {
+    mRemoteId = remoteId;
+    mRemoteReconciles = remoteReconciles;
+  }
+
+  /** @return Whether the remote peer sent a message summary. */
+  public synchronized boolean remoteReconciles() {
+    return mRemoteReconciles;
+  }
+
+  /**
+   * Record that the remote peer's ServerMessage was received and PSI gave
+   * the number of common friends.
+   */
+  public synchronized void setCommonFriends(int commonFriends) {
+    mCommonFriends = commonFriends;
+    mCheckpointTime = System.currentTimeMillis();
+  }
+
+  /** @return The number of common friends, or -1 if PSI hasn't completed. */
+  public synchronized int getCommonFriends() {
+    return mCommonFriends;
+  }
+
+  /**
+   * Record that our ServerMessage was sent, and fix the messages to send in
+   * chunks after it.
+   *
+   * @param outgoing The messages to send.
+   * @param sentVersion The message store version the messages reflect.
+   */
+  public synchronized void setOutgoing(List<RangzenMessage> outgoing, long sentVersion) {
+    mOutgoing = new ArrayList<RangzenMessage>(outgoing);
+    mSentVersion = sentVersion;
+  }
+
+  /** @return The message store version the messages we send reflect. */
+  public synchronized long getSentVersion() {
+    return mSentVersion;
+  }
+
+  /** @return The number of chunks we send, at least 1 (the last). */
+  public synchronized int getChunkCount() {
+    return Math.max(1, (mOutgoing.size() + MESSAGES_PER_CHUNK - 1) / MESSAGES_PER_CHUNK);
+  }
+
+  /**
+   * Build one of the chunks we send.
+   *
+   * @param index Which chunk, from 0 to getChunkCount() - 1.
+   * @return The chunk.
+   */
+  public synchronized MessageChunk getChunk(int index) {
+    int from = Math.min(mOutgoing.size(), index * MESSAGES_PER_CHUNK);
+    int to = Math.min(mOutgoing.size(), from + MESSAGES_PER_CHUNK);
+    return new MessageChunk.Builder()
+                           .index(index)
+                           .messages(mOutgoing.subList(from, to))
+                           .last(index == getChunkCount() - 1)
+                           .build();
+  }
+
+  /**
+   * Add messages the remote peer sent in its ClientMessage or ServerMessage.
+   */
+  public synchronized void addReceived(List<RangzenMessage> messages) {
+    mReceived.addAll(messages);
+  }
+
+  /**
+   * Checkpoint a chunk received from the remote peer.
+   *
+   * @param chunk The chunk.
+   * @return False if the chunk isn't the next one expected, in which case it
+   * is ignored.
+   */
+  public synchronized boolean addChunk(MessageChunk chunk) {
+    if (mRemoteDone || chunk.index == null || chunk.index != mChunksReceived) {
+      return false;
+    }
+    mReceived.addAll(chunk.messages);
+    mChunksReceived++;
+    mRemoteDone = Boolean.TRUE.equals(chunk.last);
+    mCheckpointTime = System.currentTimeMillis();
+    return true;
+  }
+
+  /** @return The number of the remote peer's chunks received so far. */
+  public synchronized int getChunksReceived() {
+    return mChunksReceived;
+  }
+
+  /** @return Whether the remote peer's last chunk has been received. */
+  public synchronized boolean isRemoteDone() {
+    return mRemoteDone;
+  }
+
+  /** @return A copy of every message received from the remote peer so far. */
+  public synchronized List<RangzenMessage> getReceived() {
+    return new ArrayList<RangzenMessage>(mReceived);
+  }
+
+  /**
+   * Whether the exchange got far enough to be resumed: both peers announced
+   * session IDs and both ServerMessages crossed.
+   */
+  public synchronized boolean isResumable() {
+    return mRemoteId != null && mCommonFriends >= 0 && mOutgoing != null;
+  }
+
+  /**
+   * Whether the session can still be resumed at the given time.
+   *
+   * @param now The time in ms since the epoch.
+   */
+  public synchronized boolean isFresh(long now) {
+    return now - mCheckpointTime < RESUME_WINDOW_MILLIS;
+  }
+}
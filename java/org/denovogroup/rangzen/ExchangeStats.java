@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.util.Arrays;
+
+/**
+ * Measurements of a single exchange: how long each of its phases took, how
+ * many bytes and messages went each way and, if it failed, why. Filled in by
+ * the exchange as it runs and by whoever connected it and applies its
+ * results, and available to the ExchangeCallback through
+ * Exchange.getStats().
+ */
+public class ExchangeStats {
+  /** The phases of an exchange that are timed. */
+  public enum Phase {
+    /** Setting up the connection to the peer, before the exchange runs. */
+    CONNECT,
+    /** Blinding our friends for the client and server halves of PSI. */
+    PSI_INIT,
+    /** Building and sending our hello and client message. */
+    SEND_CLIENT_MESSAGE,
+    /** Waiting for and reading the remote hello and client message. */
+    RECEIVE_CLIENT_MESSAGE,
+    /** Answering the remote blinded friends and sending our messages. */
+    SEND_SERVER_MESSAGE,
+    /** Waiting for and reading the remote server message and messages. */
+    RECEIVE_SERVER_MESSAGE,
+    /** Counting the friends in common from the remote server message. */
+    CARDINALITY,
+    /** Adding the messages received to the message store. */
+    STORE_APPLY
+  }
+
+  /** Phase time value meaning the phase wasn't timed. */
+  public static final long NOT_TIMED = -1;
+
+  /** Time spent in each phase, in nanoseconds, or NOT_TIMED. */
+  private final long[] mPhaseNanos = new long[Phase.values().length];
+
+  /** Bytes read from the peer, including frame headers. */
+  private long mBytesIn = 0;
+
+  /** Bytes written to the peer, including frame headers. */
+  private long mBytesOut = 0;
+
+  /** Messages sent to the peer. */
+  private int mMessagesSent = 0;
+
+  /** Messages received from the peer. */
+  private int mMessagesReceived = 0;
+
+  /** Messages received that were already in the message store. */
+  private int mDuplicatesReceived = 0;
+
+  /** Why the exchange failed, or null if it hasn't. */
+  private String mFailureReason = null;
+
+  /** Create an empty set of measurements. */
+  public ExchangeStats() {
+    Arrays.fill(mPhaseNanos, NOT_TIMED);
+  }
+
+  /**
+   * Add time spent in a phase. Phases entered more than once in an exchange
+   * add up.
+   *
+   * @param phase The phase.
+   * @param nanos The time spent, in nanoseconds.
+   */
+  public synchronized void addPhaseNanos(Phase phase, long nanos) {
+    int i = phase.ordinal();
+    mPhaseNanos[i] = Math.max(0, mPhaseNanos[i]) + Math.max(0, nanos);
+  }
+
+  /**
+   * Add the time since the given System.nanoTime() to a phase.
+   *
+   * @param phase The phase.
+   * @param startNanoTime System.nanoTime() when the phase began.
+   */
+  public void addPhaseSince(Phase phase, long startNanoTime) {
+    addPhaseNanos(phase, System.nanoTime() - startNanoTime);
+  }
+
+  /**
+   * @return The time spent in the given phase, in nanoseconds, or NOT_TIMED
+   * if the exchange never entered it.
+   */
+  public synchronized long getPhaseNanos(Phase phase) {
+    return mPhaseNanos[phase.ordinal()];
+  }
+
+  /** Count bytes read from the peer. */
+  public synchronized void addBytesIn(long bytes) {
+    mBytesIn += bytes;
+  }
+
+  /** @return The bytes read from the peer, including frame headers. */
+  public synchronized long getBytesIn() {
+    return mBytesIn;
+  }
+
+  /** Count bytes written to the peer. */
+  public synchronized void addBytesOut(long bytes) {
+    mBytesOut += bytes;
+  }
+
+  /** @return The bytes written to the peer, including frame headers. */
+  public synchronized long getBytesOut() {
+    return mBytesOut;
+  }
+
+  /** Count messages sent to the peer. */
+  public synchronized void addMessagesSent(int messages) {
+    mMessagesSent += messages;
+  }
+
+  /** @return The number of messages sent to the peer. */
+  public synchronized int getMessagesSent() {
+    return mMessagesSent;
+  }
+
+  /** Count messages received from the peer. */
+  public synchronized void addMessagesReceived(int messages) {
+    mMessagesReceived += messages;
+  }
+
+  /** @return The number of messages received from the peer. */
+  public synchronized int getMessagesReceived() {
+    return mMessagesReceived;
+  }
+
+  /** Count messages received that we already had. */
+  public synchronized void addDuplicatesReceived(int messages) {
+    mDuplicatesReceived += messages;
+  }
+
+  /** @return The number of messages received that we already had. */
+  public synchronized int getDuplicatesReceived() {
+    return mDuplicatesReceived;
+  }
+
+  /**
+   * Record that the exchange failed. Only the first reason given is kept.
+   *
+   * @param reason Why the exchange failed.
+   */
+  public synchronized void setFailureReason(String reason) {
+    if (mFailureReason == null) {
+      mFailureReason = reason != null ? reason : "Unknown";
+    }
+  }
+
+  /** @return Why the exchange failed, or null if it hasn't. */
+  public synchronized String getFailureReason() {
+    return mFailureReason;
+  }
+
+  /**
+   * Copy these measurements, for keeping after the exchange, whose threads
+   * may still be adding to them.
+   *
+   * @return A copy of the measurements taken so far.
+   */
+  public synchronized ExchangeStats copy() {
+    ExchangeStats copy = new ExchangeStats();
+    System.arraycopy(mPhaseNanos, 0, copy.mPhaseNanos, 0, mPhaseNanos.length);
+    copy.mBytesIn = mBytesIn;
+    copy.mBytesOut = mBytesOut;
+    copy.mMessagesSent = mMessagesSent;
+    copy.mMessagesReceived = mMessagesReceived;
+    copy.mDuplicatesReceived = mDuplicatesReceived;
+    copy.mFailureReason = mFailureReason;
+    return copy;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      long nanos = mPhaseNanos[phase.ordinal()];
+      if (nanos != NOT_TIMED) {
+        sb.append(String.format("%s=%.1fms ", phase.name().toLowerCase(), nanos / 1e6));
+      }
+    }
+    sb.append(String.format("in=%dB out=%dB sent=%d received=%d duplicates=%d",
+                            mBytesIn, mBytesOut, mMessagesSent, mMessagesReceived,
+                            mDuplicatesReceived));
+    if (mFailureReason != null) {
+      sb.append(" failed: ").append(mFailureReason);
+    }
+    return sb.toString();
+  }
+}
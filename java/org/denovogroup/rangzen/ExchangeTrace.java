@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import com.squareup.wire.Message;
+
+import okio.ByteString;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A trace of an exchange: a TraceHeader describing the local side of the
+ * exchange, followed by every frame it sent and received as a TraceFrame.
+ * Traces are written through a FrameChannel, deflated, so that they stay
+ * small enough to keep on a phone, and can be replayed with ExchangeReplay.
+ *
+ * To record an exchange, pass a new trace to Exchange.setTrace() before the
+ * exchange starts and close it once the exchange calls back.
+ */
+public class ExchangeTrace {
+  /** Version of the trace format written. */
+  public static final int VERSION = 1;
+
+  /** Channel the trace is written to, or null for a trace read back. */
+  private final FrameChannel mChannel;
+
+  /** Stream under mChannel, closed with the trace. */
+  private final OutputStream mOut;
+
+  /** System.nanoTime() when the trace was started. */
+  private final long mStartNanoTime;
+
+  /** The header, once written or read. */
+  private TraceHeader mHeader;
+
+  /** The frames read back, or null for a trace being written. */
+  private final List<TraceFrame> mFrames;
+
+  /** Whether writing has failed or the trace was closed. */
+  private boolean mClosed = false;
+
+  /** Included with Android log messages. */
+  private static final String TAG = "ExchangeTrace";
+
+  /**
+   * Start a trace to be written to the given stream.
+   *
+   * @param out The stream to write the trace to.
+   */
+  public ExchangeTrace(OutputStream out) {
+    mOut = out;
+    mChannel = new FrameChannel(null, out);
+    mChannel.setDeflate(true);
+    mStartNanoTime = System.nanoTime();
+    mFrames = null;
+  }
+
+  /** Create a trace that was read back. */
+  private ExchangeTrace(TraceHeader header, List<TraceFrame> frames) {
+    mOut = null;
+    mChannel = null;
+    mStartNanoTime = 0;
+    mHeader = header;
+    mFrames = frames;
+  }
+
+  /**
+   * Read a trace written by an ExchangeTrace. A trace cut short, as by a
+   * crash, is read up to its last complete frame.
+   *
+   * @param in The stream to read the trace from.
+   * @return The trace.
+   * @throws IOException If the trace has no header or is corrupt.
+   */
+  public static ExchangeTrace read(InputStream in) throws IOException {
+    FrameChannel channel = new FrameChannel(in, null);
+    TraceHeader header = channel.readFrame(TraceHeader.class);
+    if (header.version == null || header.version > VERSION) {
+      throw new IOException("Unknown trace version " + header.version);
+    }
+    List<TraceFrame> frames = new ArrayList<TraceFrame>();
+    try {
+      while (true) {
+        frames.add(channel.readFrame(TraceFrame.class));
+      }
+    } catch (EOFException e) {
+      // The end of the trace.
+    }
+    return new ExchangeTrace(header, frames);
+  }
+
+  /**
+   * Write the header. Called by the exchange as it starts, before any frames.
+   *
+   * @param header A header without its version or start time.
+   */
+  /* package */ synchronized void writeHeader(TraceHeader header) {
+    mHeader = new TraceHeader.Builder(header)
+                             .version(VERSION)
+                             .startTime(System.currentTimeMillis())
+                             .build();
+    write(mHeader);
+  }
+
+  /**
+   * Record a frame. Called by the exchange's FrameChannel as frames are read
+   * and written.
+   *
+   * @param incoming Whether the frame came from the remote peer.
+   * @param buffer A buffer holding the frame, including its length header.
+   * @param offset The offset of the frame in buffer.
+   * @param length The length of the frame.
+   */
+  /* package */ synchronized void record(boolean incoming, byte[] buffer,
+                                         int offset, int length) {
+    if (mHeader == null) {
+      return;
+    }
+    long micros = (System.nanoTime() - mStartNanoTime) / 1000;
+    write(new TraceFrame.Builder()
+                        .incoming(incoming)
+                        .micros(micros)
+                        .frame(ByteString.of(buffer, offset, length))
+                        .build());
+  }
+
+  /** Write to the trace, giving up on it if that fails. */
+  private void write(Message m) {
+    if (mClosed) {
+      return;
+    }
+    try {
+      mChannel.writeFrame(m);
+    } catch (IOException e) {
+      Log.w(TAG, "Giving up on trace after failed write: " + e);
+      close();
+    }
+  }
+
+  /**
+   * Stop recording and close the stream the trace is written to. Frames
+   * recorded after this, as by a reader thread that outlives its exchange,
+   * are dropped.
+   */
+  public synchronized void close() {
+    if (mClosed || mOut == null) {
+      return;
+    }
+    mClosed = true;
+    try {
+      mOut.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't close trace: " + e);
+    }
+  }
+
+  /** @return The header, or null if none has been written. */
+  public synchronized TraceHeader getHeader() {
+    return mHeader;
+  }
+
+  /** @return The frames of a trace read back, in the order recorded. */
+  public List<TraceFrame> getFrames() {
+    if (mFrames == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(mFrames);
+  }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import com.squareup.wire.Message;
+import com.squareup.wire.Wire;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes length/value framed Wire messages over a pair of streams.
+ *
+ * Each frame is a 4 byte big-endian length followed by that many bytes of
+ * serialized message. Messages are serialized directly into a pooled buffer
+ * just past the space reserved for the length, so a frame is written with a
+ * single call and without copying the body, and frames are read into pooled
+ * buffers sized to the frame rather than freshly allocated ones. Reads always
+ * fill the length and the body completely, so a frame split across several
+ * socket reads is never misparsed.
+ *
+ * Once setDeflate() is called, frames are deflated using the preset
+ * DeflateDictionary, when that makes them smaller. A deflated frame has the top
+ * bit of its length set, and its body is the 4 byte length of the inflated
+ * message followed by the deflated message. Deflated frames are always
+ * accepted when reading, so the remote peer decides whether to send them;
+ * peers that predate compression would reject them, so only enable it for
+ * peers that have said they accept it.
+ *
+ * The channel counts frames, bytes and time spent in each direction, including
+ * time spent deflating and inflating. Reads and writes are locked separately,
+ * so one thread may read while another writes.
+ *
+ * To estimate link throughput, the channel also times the bodies of large
+ * frames from when their header arrives, which leaves out time spent waiting
+ * for the remote peer to start sending.
+ *
+ * Frames can also be recorded, as they are on the wire, to an ExchangeTrace.
+ */
+public class FrameChannel {
+  /** Number of bytes in a megabyte. */
+  private static final int MEGABYTES = 1024 * 1024;
+
+  /** Size, in bytes, of the length header of each frame. */
+  public static final int HEADER_SIZE = Integer.SIZE / Byte.SIZE;
+
+  /**
+   * Size, in bytes, of the largest frame body we'll read. This is necessary
+   * since otherwise a malicious remote party can just provide a huge size and
+   * cause an OutOfMemory error when we allocate a buffer.
+   */
+  public static final int MAX_FRAME_SIZE = 10 * MEGABYTES;
+
+  /** Set in the length header of a frame whose body is deflated. */
+  private static final int DEFLATED = 0x80000000;
+
+  /**
+   * Bodies at least this large are timed for throughput. Smaller ones often
+   * arrive along with their header, so timing them says little.
+   */
+  public static final int MIN_TIMED_FRAME_SIZE = 512;
+
+  /** Bodies smaller than this aren't worth trying to deflate. */
+  private static final int MIN_DEFLATE_SIZE = 128;
+
+  /** Size, in bytes, of the smallest pooled buffer. */
+  private static final int MIN_POOLED_SIZE = 4 * 1024;
+
+  /** Size, in bytes, of the largest pooled buffer. Larger ones are not kept. */
+  private static final int MAX_POOLED_SIZE = MEGABYTES;
+
+  /** Number of free buffers kept for each buffer size. */
+  private static final int MAX_POOLED_PER_SIZE = 4;
+
+  /**
+   * Free buffers, shared by all channels. Entry i holds buffers of
+   * MIN_POOLED_SIZE << i bytes.
+   */
+  private static final List<ArrayDeque<byte[]>> sPool;
+  static {
+    sPool = new ArrayList<ArrayDeque<byte[]>>();
+    for (int size = MIN_POOLED_SIZE; size <= MAX_POOLED_SIZE; size <<= 1) {
+      sPool.add(new ArrayDeque<byte[]>());
+    }
+  }
+
+  /** Instance of Wire to decode messages. */
+  private static final Wire wire = new Wire();
+
+  /** Stream frames are read from. */
+  private final InputStream mIn;
+
+  /** Stream frames are written to. */
+  private final OutputStream mOut;
+
+  /** Held while reading a frame. */
+  private final Object mReadLock = new Object();
+
+  /** Held while writing a frame. */
+  private final Object mWriteLock = new Object();
+
+  /** Whether to deflate frames written. Guarded by mWriteLock. */
+  private boolean mDeflate = false;
+
+  /** Trace that frames read and written are recorded to, or null. */
+  private volatile ExchangeTrace mTrace;
+
+  /** Counters, guarded by mReadLock. */
+  private long mFramesRead;
+  private long mBytesRead;
+  private long mReadNanos;
+  private int mLastReadBytes;
+  private long mLastReadNanos;
+  private long mInflateInputBytes;
+  private long mInflateOutputBytes;
+  private long mInflateNanos;
+
+  /**
+   * Throughput timing, written under mReadLock but volatile so that it can be
+   * read while another thread is blocked reading a frame.
+   */
+  private volatile long mTimedBytesRead;
+  private volatile long mTimedReadNanos;
+  private volatile long mLastArrivalNanoTime;
+
+  /** Counters, guarded by mWriteLock. */
+  private long mFramesWritten;
+  private long mBytesWritten;
+  private long mWriteNanos;
+  private int mLastWriteBytes;
+  private long mLastWriteNanos;
+  private long mDeflateInputBytes;
+  private long mDeflateOutputBytes;
+  private long mDeflateNanos;
+
+  /**
+   * Create a channel over the given streams. Either may be null if the channel
+   * will only be used in one direction.
+   *
+   * @param in The stream to read frames from.
+   * @param out The stream to write frames to.
+   */
+  public FrameChannel(InputStream in, OutputStream out) {
+    this.mIn = in;
+    this.mOut = out;
+  }
+
+  /**
+   * Choose whether to deflate frames written from now on. Only enable this if
+   * the remote peer accepts frames deflated with DeflateDictionary.VERSION.
+   *
+   * @param deflate True to deflate frames when it makes them smaller.
+   */
+  public void setDeflate(boolean deflate) {
+    synchronized (mWriteLock) {
+      mDeflate = deflate;
+    }
+  }
+
+  /**
+   * Record every frame read and written from now on, as it is on the wire, to
+   * the given trace.
+   *
+   * @param trace The trace, or null to stop recording.
+   */
+  /* package */ void setTrace(ExchangeTrace trace) {
+    mTrace = trace;
+  }
+
+  /**
+   * Write the given message as a single frame and flush it.
+   *
+   * @param m The message to write.
+   * @throws IOException If the message is too large or the write fails.
+   */
+  public void writeFrame(Message m) throws IOException {
+    if (mOut == null) {
+      throw new IOException("Frame channel has no output stream.");
+    }
+    int length = m.getSerializedSize();
+    if (length > MAX_FRAME_SIZE) {
+      throw new IOException("Frame of " + length + " bytes is too large to send.");
+    }
+    synchronized (mWriteLock) {
+      long start = System.nanoTime();
+      byte[] buffer = acquire(HEADER_SIZE + length);
+      int written;
+      try {
+        putLength(buffer, length);
+        m.writeTo(buffer, HEADER_SIZE, length);
+        written = 0;
+        if (mDeflate && length >= MIN_DEFLATE_SIZE) {
+          written = writeDeflated(buffer, length);
+        }
+        if (written == 0) {
+          mOut.write(buffer, 0, HEADER_SIZE + length);
+          written = HEADER_SIZE + length;
+          if (mTrace != null) {
+            mTrace.record(false, buffer, 0, written);
+          }
+        }
+        mOut.flush();
+      } finally {
+        release(buffer);
+      }
+      long elapsed = System.nanoTime() - start;
+      mFramesWritten++;
+      mBytesWritten += written;
+      mWriteNanos += elapsed;
+      mLastWriteBytes = written;
+      mLastWriteNanos = elapsed;
+    }
+  }
+
+  /**
+   * Deflate the message in buffer and write it as a deflated frame, unless
+   * deflating doesn't make it smaller. Caller must hold mWriteLock.
+   *
+   * @param buffer The serialized message, after HEADER_SIZE bytes of space.
+   * @param length The length of the serialized message.
+   * @return The number of bytes written, or 0 if nothing was written.
+   */
+  private int writeDeflated(byte[] buffer, int length) throws IOException {
+    long start = System.nanoTime();
+    // Only worth sending if the length, inflated length and deflated message
+    // are together smaller than the length and message.
+    int limit = length - HEADER_SIZE;
+    byte[] deflated = acquire(2 * HEADER_SIZE + limit);
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setDictionary(DeflateDictionary.BYTES);
+      deflater.setInput(buffer, HEADER_SIZE, length);
+      deflater.finish();
+      int size = 0;
+      while (!deflater.finished() && size < limit) {
+        size += deflater.deflate(deflated, 2 * HEADER_SIZE + size, limit - size);
+      }
+      mDeflateNanos += System.nanoTime() - start;
+      mDeflateInputBytes += length;
+      if (!deflater.finished()) {
+        mDeflateOutputBytes += length;
+        return 0;
+      }
+      mDeflateOutputBytes += HEADER_SIZE + size;
+      putLength(deflated, DEFLATED | (HEADER_SIZE + size));
+      System.arraycopy(buffer, 0, deflated, HEADER_SIZE, HEADER_SIZE);
+      mOut.write(deflated, 0, 2 * HEADER_SIZE + size);
+      if (mTrace != null) {
+        mTrace.record(false, deflated, 0, 2 * HEADER_SIZE + size);
+      }
+      return 2 * HEADER_SIZE + size;
+    } finally {
+      deflater.end();
+      release(deflated);
+    }
+  }
+
+  /**
+   * Read a single frame and decode it as a message of the given type.
+   *
+   * @param messageClass The type of message to read.
+   * @return The message read.
+   * @throws EOFException If the stream ends before the frame is complete.
+   * @throws IOException If the frame is malformed, too large, or the read fails.
+   */
+  public <T extends Message> T readFrame(Class<T> messageClass) throws IOException {
+    if (mIn == null) {
+      throw new IOException("Frame channel has no input stream.");
+    }
+    synchronized (mReadLock) {
+      long start = System.nanoTime();
+      int header = readLength(mIn);
+      long arrival = System.nanoTime();
+      int length = header;
+      boolean deflated = (length & DEFLATED) != 0;
+      length &= ~DEFLATED;
+      if (length > MAX_FRAME_SIZE || (deflated && length < HEADER_SIZE)) {
+        throw new IOException("Remote party asked us to read " + length + " bytes in a frame.");
+      }
+      byte[] buffer = acquire(length);
+      T message;
+      try {
+        readFully(mIn, buffer, 0, length);
+        if (mTrace != null) {
+          recordRead(header, buffer, length);
+        }
+        mLastArrivalNanoTime = arrival;
+        if (length >= MIN_TIMED_FRAME_SIZE) {
+          mTimedBytesRead += length;
+          mTimedReadNanos += System.nanoTime() - arrival;
+        }
+        if (deflated) {
+          message = readDeflated(buffer, length, messageClass);
+        } else {
+          message = wire.parseFrom(buffer, 0, length, messageClass);
+        }
+      } finally {
+        release(buffer);
+      }
+      long elapsed = System.nanoTime() - start;
+      mFramesRead++;
+      mBytesRead += HEADER_SIZE + length;
+      mReadNanos += elapsed;
+      mLastReadBytes = HEADER_SIZE + length;
+      mLastReadNanos = elapsed;
+      return message;
+    }
+  }
+
+  /**
+   * Record a frame read to mTrace as it was on the wire. Caller must hold
+   * mReadLock.
+   */
+  private void recordRead(int header, byte[] body, int length) {
+    byte[] frame = new byte[HEADER_SIZE + length];
+    putLength(frame, header);
+    System.arraycopy(body, 0, frame, HEADER_SIZE, length);
+    mTrace.record(true, frame, 0, frame.length);
+  }
+
+  /**
+   * Inflate and decode the body of a deflated frame. Caller must hold mReadLock.
+   */
+  private <T extends Message> T readDeflated(byte[] buffer, int length,
+                                             Class<T> messageClass) throws IOException {
+    long start = System.nanoTime();
+    int inflatedLength = getLength(buffer);
+    if (inflatedLength < 0 || inflatedLength > MAX_FRAME_SIZE) {
+      throw new IOException("Remote party asked us to inflate " + inflatedLength + " bytes.");
+    }
+    byte[] inflated = acquire(inflatedLength);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(buffer, HEADER_SIZE, length - HEADER_SIZE);
+      int size = 0;
+      while (!inflater.finished() && size < inflatedLength) {
+        int count = inflater.inflate(inflated, size, inflatedLength - size);
+        if (count == 0) {
+          if (!inflater.needsDictionary()) {
+            break;
+          }
+          inflater.setDictionary(DeflateDictionary.BYTES);
+        }
+        size += count;
+      }
+      // The body must inflate to exactly the length given, with nothing left.
+      if (size != inflatedLength || !inflater.finished() || inflater.getRemaining() != 0) {
+        throw new IOException("Deflated frame doesn't inflate to " + inflatedLength + " bytes.");
+      }
+      mInflateInputBytes += length;
+      mInflateOutputBytes += inflatedLength;
+      mInflateNanos += System.nanoTime() - start;
+      return wire.parseFrom(inflated, 0, inflatedLength, messageClass);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt deflated frame: " + e);
+    } catch (IllegalArgumentException e) {
+      // Thrown by setDictionary() if the frame was deflated with another one.
+      throw new IOException("Deflated frame uses an unknown dictionary.");
+    } finally {
+      inflater.end();
+      release(inflated);
+    }
+  }
+
+  /** @return The number of frames read so far. */
+  public long getFramesRead() {
+    synchronized (mReadLock) {
+      return mFramesRead;
+    }
+  }
+
+  /** @return The number of bytes read so far, including length headers. */
+  public long getBytesRead() {
+    synchronized (mReadLock) {
+      return mBytesRead;
+    }
+  }
+
+  /** @return The time spent reading frames so far, in nanoseconds. */
+  public long getReadNanos() {
+    synchronized (mReadLock) {
+      return mReadNanos;
+    }
+  }
+
+  /** @return The size of the last frame read, including its header, or 0. */
+  public int getLastReadBytes() {
+    synchronized (mReadLock) {
+      return mLastReadBytes;
+    }
+  }
+
+  /** @return The time spent reading the last frame, in nanoseconds, or 0. */
+  public long getLastReadNanos() {
+    synchronized (mReadLock) {
+      return mLastReadNanos;
+    }
+  }
+
+  /**
+   * @return The number of body bytes read in frames of at least
+   * MIN_TIMED_FRAME_SIZE, for estimating throughput.
+   */
+  public long getTimedBytesRead() {
+    return mTimedBytesRead;
+  }
+
+  /**
+   * @return The time spent reading the bodies counted by getTimedBytesRead(),
+   * in nanoseconds, from the arrival of each frame's header.
+   */
+  public long getTimedReadNanos() {
+    return mTimedReadNanos;
+  }
+
+  /**
+   * @return The System.nanoTime() at which the header of the last frame read
+   * arrived, or 0.
+   */
+  public long getLastArrivalNanoTime() {
+    return mLastArrivalNanoTime;
+  }
+
+  /** @return The size of the bodies of deflated frames read so far. */
+  public long getInflateInputBytes() {
+    synchronized (mReadLock) {
+      return mInflateInputBytes;
+    }
+  }
+
+  /** @return The size of the messages inflated from deflated frames so far. */
+  public long getInflateOutputBytes() {
+    synchronized (mReadLock) {
+      return mInflateOutputBytes;
+    }
+  }
+
+  /** @return The time spent inflating frames so far, in nanoseconds. */
+  public long getInflateNanos() {
+    synchronized (mReadLock) {
+      return mInflateNanos;
+    }
+  }
+
+  /** @return The number of frames written so far. */
+  public long getFramesWritten() {
+    synchronized (mWriteLock) {
+      return mFramesWritten;
+    }
+  }
+
+  /** @return The number of bytes written so far, including length headers. */
+  public long getBytesWritten() {
+    synchronized (mWriteLock) {
+      return mBytesWritten;
+    }
+  }
+
+  /** @return The time spent writing frames so far, in nanoseconds. */
+  public long getWriteNanos() {
+    synchronized (mWriteLock) {
+      return mWriteNanos;
+    }
+  }
+
+  /** @return The size of the last frame written, including its header, or 0. */
+  public int getLastWriteBytes() {
+    synchronized (mWriteLock) {
+      return mLastWriteBytes;
+    }
+  }
+
+  /** @return The time spent writing the last frame, in nanoseconds, or 0. */
+  public long getLastWriteNanos() {
+    synchronized (mWriteLock) {
+      return mLastWriteNanos;
+    }
+  }
+
+  /**
+   * @return The size of the messages we tried to deflate so far, whether or not
+   * deflating them made them smaller.
+   */
+  public long getDeflateInputBytes() {
+    synchronized (mWriteLock) {
+      return mDeflateInputBytes;
+    }
+  }
+
+  /**
+   * @return The size of the bodies sent for messages we tried to deflate so
+   * far. Messages that didn't get smaller count at their original size.
+   */
+  public long getDeflateOutputBytes() {
+    synchronized (mWriteLock) {
+      return mDeflateOutputBytes;
+    }
+  }
+
+  /** @return The time spent deflating frames so far, in nanoseconds. */
+  public long getDeflateNanos() {
+    synchronized (mWriteLock) {
+      return mDeflateNanos;
+    }
+  }
+
+  /**
+   * Read exactly count bytes from the stream into the buffer, blocking until
+   * they have all arrived.
+   *
+   * @throws EOFException If the stream ends first.
+   */
+  public static void readFully(InputStream in, byte[] buffer, int offset, int count)
+      throws IOException {
+    while (count > 0) {
+      int read = in.read(buffer, offset, count);
+      if (read < 0) {
+        throw new EOFException("Stream ended with " + count + " bytes left to read.");
+      }
+      offset += read;
+      count -= read;
+    }
+  }
+
+  /**
+   * Read a 4 byte big-endian length from the stream.
+   *
+   * @throws EOFException If the stream ends before all 4 bytes are read.
+   */
+  public static int readLength(InputStream in) throws IOException {
+    byte[] header = new byte[HEADER_SIZE];
+    readFully(in, header, 0, HEADER_SIZE);
+    return getLength(header);
+  }
+
+  /** Read a big-endian length from the first 4 bytes of buffer. */
+  private static int getLength(byte[] buffer) {
+    return ((buffer[0] & 0xff) << 24) | ((buffer[1] & 0xff) << 16) |
+           ((buffer[2] & 0xff) << 8) | (buffer[3] & 0xff);
+  }
+
+  /** Store length in the first 4 bytes of buffer, big-endian. */
+  private static void putLength(byte[] buffer, int length) {
+    buffer[0] = (byte) (length >>> 24);
+    buffer[1] = (byte) (length >>> 16);
+    buffer[2] = (byte) (length >>> 8);
+    buffer[3] = (byte) length;
+  }
+
+  /**
+   * Take a buffer of at least size bytes from the pool, or allocate one.
+   */
+  /* package */ static byte[] acquire(int size) {
+    if (size > MAX_POOLED_SIZE) {
+      return new byte[size];
+    }
+    int index = poolIndex(size);
+    ArrayDeque<byte[]> free = sPool.get(index);
+    synchronized (free) {
+      byte[] buffer = free.poll();
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    return new byte[MIN_POOLED_SIZE << index];
+  }
+
+  /**
+   * Return a buffer taken with acquire() to the pool. Buffers of sizes the pool
+   * doesn't hold, and buffers beyond the pool's capacity, are dropped.
+   */
+  /* package */ static void release(byte[] buffer) {
+    int size = buffer.length;
+    if (size < MIN_POOLED_SIZE || size > MAX_POOLED_SIZE || Integer.bitCount(size) != 1) {
+      return;
+    }
+    ArrayDeque<byte[]> free = sPool.get(poolIndex(size));
+    synchronized (free) {
+      if (free.size() < MAX_POOLED_PER_SIZE) {
+        free.push(buffer);
+      }
+    }
+  }
+
+  /** @return The index of the smallest pooled buffer size holding size bytes. */
+  private static int poolIndex(int size) {
+    int index = 0;
+    while ((MIN_POOLED_SIZE << index) < size) {
+      index++;
+    }
+    return index;
+  }
+}
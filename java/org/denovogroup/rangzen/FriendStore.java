@@ -34,9 +34,14 @@ import android.content.Context;
 import android.util.Base64;
 import android.util.Log;
 
+import org.denovogroup.rangzen.Crypto.PSIGroup;
+import org.denovogroup.rangzen.Crypto.PrivateSetIntersection;
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
+import org.spongycastle.math.ec.ECPoint;
 
 import java.lang.IllegalArgumentException;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
@@ -63,6 +68,15 @@ public class FriendStore {
   /** Tag for Android log messages. */
   private static final String TAG = "FriendStore";
 
+  /**
+   * Precomputed PSI state for our friends in the Diffie-Hellman group, shared
+   * by every FriendStore in the process since exchanges each open their own.
+   */
+  private static final PSICache<?> sDHPSICache = new PSICache<BigInteger>(Crypto.DH_PSI_GROUP);
+
+  /** Precomputed PSI state for our friends on the elliptic curve. */
+  private static final PSICache<?> sECPSICache = new PSICache<ECPoint>(Crypto.EC_PSI_GROUP);
+
   /**
    * Creates a Rangzen friend store, with a consistent application of encryption of that stored
    * data, as specified.
@@ -93,6 +107,7 @@ public class FriendStore {
     }
     friends.add(friend);
     store.putSet(FRIENDS_STORE_KEY, friends);
+    friendsChanged();
     return true;
   }
 
@@ -127,6 +142,7 @@ public class FriendStore {
     if (friends.contains(friend)) {
       friends.remove(friend);
       store.putSet(FRIENDS_STORE_KEY, friends);
+      friendsChanged();
       return true;
     }
     // Friends not empty but given friend to delete not known.
@@ -159,6 +175,39 @@ public class FriendStore {
     return friends;
   }
 
+  /**
+   * Throw away PSI state precomputed for the old friends and start on the new.
+   */
+  private void friendsChanged() {
+    sDHPSICache.invalidate();
+    sECPSICache.invalidate();
+    precomputePSI();
+  }
+
+  /**
+   * Precompute PSI state for our friends in the background, so that the next
+   * exchange can start without it.
+   */
+  public void precomputePSI() {
+    Set<String> friends = getAllFriends();
+    sECPSICache.prepare(friends);
+    sDHPSICache.prepare(friends);
+  }
+
+  /**
+   * Get a PrivateSetIntersection over all our friends for one side of one
+   * exchange. It's taken from those precomputed if there is one, and made
+   * now otherwise.
+   *
+   * @param group The group to intersect in.
+   * @return A PrivateSetIntersection no one else has been given.
+   */
+  public PrivateSetIntersection takePrivateSetIntersection(PSIGroup<?> group)
+      throws NoSuchAlgorithmException, IllegalArgumentException {
+    PSICache<?> cache = group == Crypto.EC_PSI_GROUP ? sECPSICache : sDHPSICache;
+    return cache.take(getAllFriends());
+  }
+
   /**
    * Encode a byte array as a base64 string.
    * This method should be used to convert from byte[]s accepted by Crypto.java
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+/**
+ * Counts of non-negative values in buckets whose bounds double: bucket 0
+ * holds 0, and bucket i holds values from 2^(i-1) to 2^i - 1, with the last
+ * bucket also holding everything larger. Values can be removed again, so
+ * that the histogram can cover a rolling window. Not thread safe.
+ */
+public class Histogram {
+  /** Number of buckets. */
+  public static final int BUCKETS = 32;
+
+  /** Count of values in each bucket. */
+  private final int[] mCounts = new int[BUCKETS];
+
+  /** Count of values in all buckets. */
+  private int mTotal = 0;
+
+  /**
+   * @param value A value.
+   * @return The bucket the value falls in. Negative values count as 0.
+   */
+  public static int getBucket(long value) {
+    if (value <= 0) {
+      return 0;
+    }
+    return Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(value));
+  }
+
+  /**
+   * @param bucket A bucket.
+   * @return The largest value in the bucket, or Long.MAX_VALUE for the last.
+   */
+  public static long getUpperBound(int bucket) {
+    if (bucket >= BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    return (1L << bucket) - 1;
+  }
+
+  /** Count a value. */
+  public void add(long value) {
+    mCounts[getBucket(value)]++;
+    mTotal++;
+  }
+
+  /** Stop counting a value that was added. */
+  public void remove(long value) {
+    int bucket = getBucket(value);
+    if (mCounts[bucket] > 0) {
+      mCounts[bucket]--;
+      mTotal--;
+    }
+  }
+
+  /** @return The number of values in the given bucket. */
+  public int getCount(int bucket) {
+    return mCounts[bucket];
+  }
+
+  /** @return The number of values counted. */
+  public int getTotal() {
+    return mTotal;
+  }
+
+  /**
+   * Find a bound on the value below which the given fraction of values fall.
+   *
+   * @param fraction A fraction between 0 and 1, e.g. 0.5 for the median.
+   * @return The upper bound of the bucket holding that value, or -1 if the
+   * histogram is empty.
+   */
+  public long getPercentile(double fraction) {
+    if (mTotal == 0) {
+      return -1;
+    }
+    int rank = Math.max(1, (int) Math.ceil(fraction * mTotal));
+    int seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) {
+        return getUpperBound(i);
+      }
+    }
+    return getUpperBound(BUCKETS - 1);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+/**
+ * A running estimate of the throughput and round trip time of a link to a
+ * peer, kept as exponentially weighted moving averages of measurements taken
+ * in exchanges, and used to size exchanges to finish in a target time.
+ */
+/* package */ class LinkEstimate {
+  /** Weight of each new measurement in the averages. */
+  public static final double ALPHA = 0.25;
+
+  /**
+   * Exchanges are never given a budget below this many bytes, so that an
+   * estimate that's too low still lets enough through to be measured again.
+   */
+  public static final long MIN_BYTE_BUDGET = 8 * 1024;
+
+  /** Measurements of fewer bytes than this are too noisy to use. */
+  public static final long MIN_MEASURED_BYTES = 2 * 1024;
+
+  /** Number of nanoseconds in a millisecond. */
+  private static final double NANOS_PER_MILLI = 1000 * 1000;
+
+  /** Estimated throughput in bytes per millisecond, or 0 if unmeasured. */
+  private double mBytesPerMilli = 0;
+
+  /** Estimated round trip time in milliseconds, or 0 if unmeasured. */
+  private double mRoundTripMillis = 0;
+
+  /**
+   * Add a throughput measurement.
+   *
+   * @param bytes The number of bytes transferred.
+   * @param nanos The time taken to transfer them, in nanoseconds.
+   */
+  public synchronized void addTransfer(long bytes, long nanos) {
+    if (bytes < MIN_MEASURED_BYTES || nanos <= 0) {
+      return;
+    }
+    mBytesPerMilli = average(mBytesPerMilli, bytes / (nanos / NANOS_PER_MILLI));
+  }
+
+  /**
+   * Add a round trip time measurement.
+   *
+   * @param nanos The round trip time, in nanoseconds.
+   */
+  public synchronized void addRoundTrip(long nanos) {
+    if (nanos <= 0) {
+      return;
+    }
+    mRoundTripMillis = average(mRoundTripMillis, nanos / NANOS_PER_MILLI);
+  }
+
+  /** Fold a measurement into an average, which is 0 if there's none yet. */
+  private static double average(double average, double measurement) {
+    if (average == 0) {
+      return measurement;
+    }
+    return (1 - ALPHA) * average + ALPHA * measurement;
+  }
+
+  /** @return Whether any throughput has been measured. */
+  public synchronized boolean hasThroughput() {
+    return mBytesPerMilli > 0;
+  }
+
+  /** @return The estimated throughput in bytes per second, or 0. */
+  public synchronized double getBytesPerSecond() {
+    return mBytesPerMilli * 1000;
+  }
+
+  /** @return The estimated round trip time in milliseconds, or 0. */
+  public synchronized double getRoundTripMillis() {
+    return mRoundTripMillis;
+  }
+
+  /**
+   * The number of message bytes an exchange can send and still finish in the
+   * given time, allowing one round trip for PSI.
+   *
+   * @param targetMillis The time in which the exchange should finish.
+   * @return The budget in bytes, or Exchange.NO_BUDGET if throughput hasn't
+   * been measured.
+   */
+  public synchronized long getByteBudget(long targetMillis) {
+    if (!hasThroughput()) {
+      return Exchange.NO_BUDGET;
+    }
+    double millis = Math.max(0, targetMillis - mRoundTripMillis);
+    return Math.max(MIN_BYTE_BUDGET, (long) (mBytesPerMilli * millis));
+  }
+}
@@ -0,0 +1,860 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A SharedPreferences implementation backed by an append-only log file rather
+ * than an XML file. Android's SharedPreferences rewrites its whole file on
+ * every apply(), so the cost of a write grows with the total amount of data
+ * stored. Here a write appends one record for each changed key, and the whole
+ * file is only rewritten (compacted) once most of it is superseded records.
+ *
+ * All data is held in memory in a hash map, which is rebuilt by replaying the
+ * log when the store is opened. apply() writes asynchronously and coalesces
+ * writes made within FLUSH_DELAY_MS of each other into a single write and
+ * fsync; commit() writes and syncs before returning.
+ *
+ * Each record is framed as [length][crc32][payload], so a record torn by a
+ * crash mid-write is detected and discarded, along with anything after it,
+ * when the log is replayed.
+ */
+public class LogStructuredPreferences implements SharedPreferences {
+  /** Included with Android log messages. */
+  private static final String TAG = "LogStructuredPreferences";
+
+  /** Appended to the store name to get the log's file name. */
+  private static final String LOG_SUFFIX = ".log";
+
+  /** Appended to the log's path to get the file compaction writes into. */
+  private static final String COMPACTION_SUFFIX = ".compact";
+
+  /** Record operation: set a key to a value. */
+  private static final byte OP_PUT = 1;
+  /** Record operation: remove a key. */
+  private static final byte OP_REMOVE = 2;
+  /** Record operation: remove all keys. */
+  private static final byte OP_CLEAR = 3;
+
+  /** Value type tags for OP_PUT records. */
+  private static final byte TYPE_STRING = 1;
+  private static final byte TYPE_STRING_SET = 2;
+  private static final byte TYPE_INT = 3;
+  private static final byte TYPE_LONG = 4;
+  private static final byte TYPE_FLOAT = 5;
+  private static final byte TYPE_BOOLEAN = 6;
+
+  /** Size in bytes of the length and checksum preceding each record. */
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  /**
+   * Largest record we'll try to read. Protects against allocating a huge
+   * buffer when the length field of a damaged record is garbage.
+   */
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+  /** Logs smaller than this many bytes are never compacted. */
+  /* package */ static final long MIN_COMPACTION_SIZE = 256 * 1024;
+
+  /** Compact the log once more than this fraction of it is superseded. */
+  private static final double MAX_GARBAGE_FRACTION = 0.5;
+
+  /** How long apply() waits for further writes before flushing to disk. */
+  private static final long FLUSH_DELAY_MS = 50;
+
+  /** Open stores, by log path, so each file has one instance per process. */
+  private static final Map<String, LogStructuredPreferences> sInstances =
+      new HashMap<String, LogStructuredPreferences>();
+
+  /** Background thread that performs flushes requested by apply(). */
+  private static final ScheduledExecutorService sFlusher =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /** Stands in for a value in an editor to mark the key as removed. */
+  private static final Object REMOVED = new Object();
+
+  /** The log file. */
+  private final File mFile;
+
+  /** Current value of every key. Guarded by this. */
+  private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+  /** Size of the record holding each key's current value. Guarded by this. */
+  private final Map<String, Integer> mRecordSizes = new HashMap<String, Integer>();
+
+  /** Total size of the records holding current values. Guarded by this. */
+  private long mLiveBytes = 0;
+
+  /** Size of the log, including records not yet flushed. Guarded by this. */
+  private long mLogBytes = 0;
+
+  /** Records committed to memory but not yet written. Guarded by this. */
+  private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+
+  /** Whether a background flush is already scheduled. Guarded by this. */
+  private boolean mFlushScheduled = false;
+
+  /**
+   * Set when a write fails, after which the next flush rewrites the whole log
+   * from memory. Guarded by mWriteLock.
+   */
+  private boolean mNeedsRewrite = false;
+
+  /** Serializes all writes to the file. */
+  private final Object mWriteLock = new Object();
+
+  /** Appends to the log. Guarded by mWriteLock. */
+  private FileOutputStream mOut;
+
+  /** Number of flushes and compactions performed, for tests and debugging. */
+  private int mFlushCount = 0;
+  private int mCompactionCount = 0;
+
+  /** Registered change listeners, held weakly as Android does. Guarded by this. */
+  private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
+      new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+
+  /** Delivers change notifications on the main thread. */
+  private Handler mMainHandler;
+
+  /**
+   * Get the log-structured store with the given name, opening it if it isn't
+   * already open in this process. The first time a store is opened with no
+   * data in it, the contents of the SharedPreferences file of the same name
+   * are copied in and that file is cleared.
+   *
+   * @param context A context used to find the app's files directory.
+   * @param name The name of the store.
+   * @return The store.
+   */
+  public static LogStructuredPreferences getInstance(Context context, String name) {
+    File file = new File(context.getFilesDir(), name + LOG_SUFFIX);
+    String path = file.getAbsolutePath();
+    synchronized (sInstances) {
+      LogStructuredPreferences prefs = sInstances.get(path);
+      if (prefs == null) {
+        try {
+          prefs = new LogStructuredPreferences(file);
+        } catch (IOException e) {
+          throw new IllegalStateException("Couldn't open " + path, e);
+        }
+        if (prefs.getAll().isEmpty()) {
+          prefs.migrateFrom(context.getSharedPreferences(name, Context.MODE_PRIVATE));
+        }
+        sInstances.put(path, prefs);
+      }
+      return prefs;
+    }
+  }
+
+  /**
+   * Open the log in the given file, creating it if it doesn't exist. Most
+   * callers should use getInstance(), since two instances writing the same
+   * file will corrupt it.
+   *
+   * @param file The log file.
+   */
+  /* package */ LogStructuredPreferences(File file) throws IOException {
+    mFile = file;
+    new File(mFile.getPath() + COMPACTION_SUFFIX).delete();
+    load();
+    mOut = new FileOutputStream(mFile, true);
+  }
+
+  /**
+   * Copy every entry in the given preferences into this store, then clear
+   * them from the preferences.
+   *
+   * @param legacy The preferences to migrate from.
+   * @return The number of entries migrated.
+   */
+  @SuppressWarnings("unchecked")
+  /* package */ int migrateFrom(SharedPreferences legacy) {
+    Map<String, ?> all = legacy.getAll();
+    if (all.isEmpty()) {
+      return 0;
+    }
+    Editor editor = edit();
+    for (Map.Entry<String, ?> entry : all.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof String) {
+        editor.putString(key, (String) value);
+      } else if (value instanceof Set) {
+        editor.putStringSet(key, (Set<String>) value);
+      } else if (value instanceof Integer) {
+        editor.putInt(key, (Integer) value);
+      } else if (value instanceof Long) {
+        editor.putLong(key, (Long) value);
+      } else if (value instanceof Float) {
+        editor.putFloat(key, (Float) value);
+      } else if (value instanceof Boolean) {
+        editor.putBoolean(key, (Boolean) value);
+      }
+    }
+    if (!editor.commit()) {
+      Log.e(TAG, "Migration into " + mFile + " failed, leaving old data in place.");
+      return 0;
+    }
+    legacy.edit().clear().commit();
+    Log.i(TAG, "Migrated " + all.size() + " entries into " + mFile);
+    return all.size();
+  }
+
+  /**
+   * Replay the log into memory. Stops at the first record that is truncated
+   * or fails its checksum, and truncates the file there. Intact records that
+   * can't be parsed (e.g. ones written by a newer build) are skipped, and
+   * left in the file.
+   */
+  private void load() throws IOException {
+    if (!mFile.exists()) {
+      return;
+    }
+    long validBytes = 0;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(mFile)));
+    try {
+      CRC32 crc = new CRC32();
+      while (true) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        try {
+          applyRecord(payload, RECORD_HEADER_SIZE + length);
+        } catch (IOException e) {
+          Log.w(TAG, "Skipping unreadable record in " + mFile + ": " + e);
+        }
+        validBytes += RECORD_HEADER_SIZE + length;
+      }
+    } catch (EOFException e) {
+      // End of the log, possibly in the middle of a torn record.
+    } finally {
+      in.close();
+    }
+
+    if (validBytes < mFile.length()) {
+      Log.w(TAG, "Discarding " + (mFile.length() - validBytes)
+                 + " bytes of incomplete records at the end of " + mFile);
+      RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+      try {
+        raf.setLength(validBytes);
+      } finally {
+        raf.close();
+      }
+    }
+    mLogBytes = validBytes;
+  }
+
+  /**
+   * Apply a record read from the log to the in-memory map.
+   *
+   * @param payload The record's payload.
+   * @param size The record's size in the log, including its header.
+   * @throws IOException If the record can't be parsed. Nothing is applied.
+   */
+  private void applyRecord(byte[] payload, int size) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte op = in.readByte();
+    if (op == OP_CLEAR) {
+      applyClear();
+      return;
+    }
+    if (op != OP_REMOVE && op != OP_PUT) {
+      throw new IOException("Unknown operation " + op + " in " + mFile);
+    }
+    String key = readString(in);
+    if (op == OP_REMOVE) {
+      applyRemove(key);
+      return;
+    }
+    Object value;
+    byte type = in.readByte();
+    switch (type) {
+      case TYPE_STRING:
+        value = readString(in);
+        break;
+      case TYPE_STRING_SET:
+        int count = in.readInt();
+        Set<String> set = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+          set.add(readString(in));
+        }
+        value = set;
+        break;
+      case TYPE_INT:
+        value = in.readInt();
+        break;
+      case TYPE_LONG:
+        value = in.readLong();
+        break;
+      case TYPE_FLOAT:
+        value = in.readFloat();
+        break;
+      case TYPE_BOOLEAN:
+        value = in.readBoolean();
+        break;
+      default:
+        throw new IOException("Unknown value type " + type + " in " + mFile);
+    }
+    applyPut(key, value, size);
+  }
+
+  /** Set a key in memory and account for the record holding it. */
+  private void applyPut(String key, Object value, int size) {
+    Integer oldSize = mRecordSizes.put(key, size);
+    if (oldSize != null) {
+      mLiveBytes -= oldSize;
+    }
+    mLiveBytes += size;
+    mMap.put(key, value);
+  }
+
+  /** Remove a key from memory. */
+  private void applyRemove(String key) {
+    Integer oldSize = mRecordSizes.remove(key);
+    if (oldSize != null) {
+      mLiveBytes -= oldSize;
+    }
+    mMap.remove(key);
+  }
+
+  /** Remove every key from memory. */
+  private void applyClear() {
+    mMap.clear();
+    mRecordSizes.clear();
+    mLiveBytes = 0;
+  }
+
+  /**
+   * Encode a record, including its length and checksum header.
+   *
+   * @param op One of OP_PUT, OP_REMOVE or OP_CLEAR.
+   * @param key The key, ignored for OP_CLEAR.
+   * @param value The value, for OP_PUT only.
+   * @return The encoded record.
+   */
+  @SuppressWarnings("unchecked")
+  private static byte[] encodeRecord(byte op, String key, Object value) {
+    try {
+      ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+      DataOutputStream payload = new DataOutputStream(payloadBytes);
+      payload.writeByte(op);
+      if (op != OP_CLEAR) {
+        writeString(payload, key);
+      }
+      if (op == OP_PUT) {
+        if (value instanceof String) {
+          payload.writeByte(TYPE_STRING);
+          writeString(payload, (String) value);
+        } else if (value instanceof Set) {
+          Set<String> set = (Set<String>) value;
+          payload.writeByte(TYPE_STRING_SET);
+          payload.writeInt(set.size());
+          for (String s : set) {
+            writeString(payload, s);
+          }
+        } else if (value instanceof Integer) {
+          payload.writeByte(TYPE_INT);
+          payload.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+          payload.writeByte(TYPE_LONG);
+          payload.writeLong((Long) value);
+        } else if (value instanceof Float) {
+          payload.writeByte(TYPE_FLOAT);
+          payload.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+          payload.writeByte(TYPE_BOOLEAN);
+          payload.writeBoolean((Boolean) value);
+        } else {
+          throw new IllegalArgumentException("Can't store value of type " + value.getClass());
+        }
+      }
+      payload.flush();
+      byte[] body = payloadBytes.toByteArray();
+
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      ByteArrayOutputStream recordBytes =
+          new ByteArrayOutputStream(RECORD_HEADER_SIZE + body.length);
+      DataOutputStream record = new DataOutputStream(recordBytes);
+      record.writeInt(body.length);
+      record.writeInt((int) crc.getValue());
+      record.write(body);
+      record.flush();
+      return recordBytes.toByteArray();
+    } catch (IOException e) {
+      // ByteArrayOutputStream doesn't throw.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Write a length-prefixed UTF-8 string. */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Read a string written by writeString. */
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_RECORD_SIZE) {
+      throw new IOException("Bad string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Apply an editor's changes to memory and queue the records describing them
+   * for writing.
+   *
+   * @param modified The new value for each changed key, or REMOVED.
+   * @param clear Whether to remove all keys before applying modified.
+   * @return The keys whose values changed.
+   */
+  private synchronized List<String> commitToMemory(Map<String, Object> modified,
+                                                    boolean clear) {
+    List<String> changed = new ArrayList<String>();
+    if (clear && !mMap.isEmpty()) {
+      changed.addAll(mMap.keySet());
+      appendRecord(encodeRecord(OP_CLEAR, null, null));
+      applyClear();
+    }
+    for (Map.Entry<String, Object> entry : modified.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value == REMOVED) {
+        if (!mMap.containsKey(key)) {
+          continue;
+        }
+        appendRecord(encodeRecord(OP_REMOVE, key, null));
+        applyRemove(key);
+      } else {
+        if (value.equals(mMap.get(key))) {
+          continue;
+        }
+        byte[] record = encodeRecord(OP_PUT, key, value);
+        appendRecord(record);
+        applyPut(key, value, record.length);
+      }
+      changed.add(key);
+    }
+    return changed;
+  }
+
+  /** Queue a record for writing. Caller must hold the lock on this. */
+  private void appendRecord(byte[] record) {
+    mPending.write(record, 0, record.length);
+    mLogBytes += record.length;
+  }
+
+  /** Schedule a background flush, unless one is already scheduled. */
+  private void scheduleFlush() {
+    synchronized (this) {
+      if (mFlushScheduled) {
+        return;
+      }
+      mFlushScheduled = true;
+    }
+    sFlusher.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to write " + mFile, e);
+        }
+      }
+    }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Write all queued records to the log and sync it to disk, then compact the
+   * log if enough of it is superseded. Returns once everything committed to
+   * memory before the call is durable.
+   */
+  /* package */ void flush() throws IOException {
+    synchronized (mWriteLock) {
+      if (mNeedsRewrite) {
+        compact();
+        return;
+      }
+      byte[] pending;
+      synchronized (this) {
+        mFlushScheduled = false;
+        if (mPending.size() == 0) {
+          return;
+        }
+        pending = mPending.toByteArray();
+        mPending.reset();
+      }
+      try {
+        mOut.write(pending);
+        mOut.getFD().sync();
+      } catch (IOException e) {
+        // The records are lost from the queue, but the data is still in
+        // memory, so the next flush rewrites the whole log from there.
+        mNeedsRewrite = true;
+        throw e;
+      }
+      mFlushCount++;
+      maybeCompact();
+    }
+  }
+
+  /** Compact the log if it's big enough and mostly garbage. Caller holds mWriteLock. */
+  private void maybeCompact() throws IOException {
+    long logBytes;
+    long liveBytes;
+    synchronized (this) {
+      logBytes = mLogBytes;
+      liveBytes = mLiveBytes;
+    }
+    if (logBytes >= MIN_COMPACTION_SIZE
+        && logBytes - liveBytes > logBytes * MAX_GARBAGE_FRACTION) {
+      compact();
+    }
+  }
+
+  /**
+   * Rewrite the log so that it holds exactly one record per key, then
+   * atomically replace the old log with it. Caller holds mWriteLock.
+   */
+  private void compact() throws IOException {
+    Map<String, Object> snapshot;
+    synchronized (this) {
+      snapshot = new HashMap<String, Object>(mMap);
+      // Everything queued is reflected in the snapshot.
+      mPending.reset();
+      mFlushScheduled = false;
+    }
+
+    File compacted = new File(mFile.getPath() + COMPACTION_SUFFIX);
+    long written = 0;
+    FileOutputStream out = new FileOutputStream(compacted);
+    try {
+      BufferedOutputStream buffered = new BufferedOutputStream(out);
+      for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+        byte[] record = encodeRecord(OP_PUT, entry.getKey(), entry.getValue());
+        buffered.write(record);
+        written += record.length;
+      }
+      buffered.flush();
+      out.getFD().sync();
+    } catch (IOException e) {
+      mNeedsRewrite = true;
+      throw e;
+    } finally {
+      out.close();
+    }
+
+    mOut.close();
+    boolean renamed = compacted.renameTo(mFile);
+    mOut = new FileOutputStream(mFile, true);
+    if (!renamed) {
+      mNeedsRewrite = true;
+      throw new IOException("Couldn't replace " + mFile + " with compacted log");
+    }
+    mNeedsRewrite = false;
+
+    synchronized (this) {
+      // Records re-encode to the same size, so only the log size changes.
+      mLogBytes = written + mPending.size();
+    }
+    mCompactionCount++;
+    Log.d(TAG, "Compacted " + mFile + " to " + written + " bytes");
+  }
+
+  /**
+   * Flush everything and close the log. The instance must not be used
+   * afterwards; getInstance() will open a new one.
+   */
+  /* package */ void close() throws IOException {
+    synchronized (sInstances) {
+      sInstances.remove(mFile.getAbsolutePath());
+    }
+    synchronized (mWriteLock) {
+      flush();
+      mOut.close();
+    }
+  }
+
+  /** @return The number of flushes to disk so far. */
+  /* package */ int getFlushCount() {
+    synchronized (mWriteLock) {
+      return mFlushCount;
+    }
+  }
+
+  /** @return The number of compactions so far. */
+  /* package */ int getCompactionCount() {
+    synchronized (mWriteLock) {
+      return mCompactionCount;
+    }
+  }
+
+  /** @return The size of the log in bytes, including unflushed records. */
+  /* package */ synchronized long getLogSize() {
+    return mLogBytes;
+  }
+
+  /** Tell registered listeners about changed keys, on the main thread. */
+  private void notifyListeners(final List<String> keys) {
+    final List<OnSharedPreferenceChangeListener> listeners;
+    synchronized (this) {
+      if (keys.isEmpty() || mListeners.isEmpty()) {
+        return;
+      }
+      listeners = new ArrayList<OnSharedPreferenceChangeListener>(mListeners.keySet());
+    }
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (String key : keys) {
+          for (OnSharedPreferenceChangeListener listener : listeners) {
+            listener.onSharedPreferenceChanged(LogStructuredPreferences.this, key);
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public synchronized Map<String, ?> getAll() {
+    return new HashMap<String, Object>(mMap);
+  }
+
+  @Override
+  public synchronized String getString(String key, String defValue) {
+    String v = (String) mMap.get(key);
+    return v != null ? v : defValue;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Unlike Android's implementation, returns a copy, so callers may modify
+   * the returned set and put it back.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+    Set<String> v = (Set<String>) mMap.get(key);
+    return v != null ? new HashSet<String>(v) : defValues;
+  }
+
+  @Override
+  public synchronized int getInt(String key, int defValue) {
+    Integer v = (Integer) mMap.get(key);
+    return v != null ? v : defValue;
+  }
+
+  @Override
+  public synchronized long getLong(String key, long defValue) {
+    Long v = (Long) mMap.get(key);
+    return v != null ? v : defValue;
+  }
+
+  @Override
+  public synchronized float getFloat(String key, float defValue) {
+    Float v = (Float) mMap.get(key);
+    return v != null ? v : defValue;
+  }
+
+  @Override
+  public synchronized boolean getBoolean(String key, boolean defValue) {
+    Boolean v = (Boolean) mMap.get(key);
+    return v != null ? v : defValue;
+  }
+
+  @Override
+  public synchronized boolean contains(String key) {
+    return mMap.containsKey(key);
+  }
+
+  @Override
+  public Editor edit() {
+    return new LogEditor();
+  }
+
+  @Override
+  public void registerOnSharedPreferenceChangeListener(
+      OnSharedPreferenceChangeListener listener) {
+    synchronized (this) {
+      if (mMainHandler == null) {
+        mMainHandler = new Handler(Looper.getMainLooper());
+      }
+      mListeners.put(listener, this);
+    }
+  }
+
+  @Override
+  public synchronized void unregisterOnSharedPreferenceChangeListener(
+      OnSharedPreferenceChangeListener listener) {
+    mListeners.remove(listener);
+  }
+
+  /**
+   * Collects changes until commit() or apply(), then hands them to the store.
+   * As with Android's editor, the same editor can be reused afterwards.
+   */
+  private class LogEditor implements Editor {
+    /** New value for each key changed so far, or REMOVED. */
+    private Map<String, Object> mModified = new HashMap<String, Object>();
+
+    /** Whether clear() has been called. */
+    private boolean mClear = false;
+
+    /** Record a change, treating a null value as a removal. */
+    private synchronized Editor put(String key, Object value) {
+      mModified.put(key, value == null ? REMOVED : value);
+      return this;
+    }
+
+    @Override
+    public Editor putString(String key, String value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putStringSet(String key, Set<String> values) {
+      return put(key, values == null ? null : new HashSet<String>(values));
+    }
+
+    @Override
+    public Editor putInt(String key, int value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putLong(String key, long value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putFloat(String key, float value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putBoolean(String key, boolean value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor remove(String key) {
+      return put(key, null);
+    }
+
+    @Override
+    public synchronized Editor clear() {
+      mClear = true;
+      return this;
+    }
+
+    /** Move this editor's changes into the store and reset the editor. */
+    private synchronized List<String> commitToMemory() {
+      List<String> changed = LogStructuredPreferences.this.commitToMemory(mModified, mClear);
+      mModified = new HashMap<String, Object>();
+      mClear = false;
+      return changed;
+    }
+
+    @Override
+    public boolean commit() {
+      List<String> changed = commitToMemory();
+      try {
+        flush();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to write " + mFile, e);
+        return false;
+      }
+      notifyListeners(changed);
+      return true;
+    }
+
+    @Override
+    public void apply() {
+      List<String> changed = commitToMemory();
+      scheduleFlush();
+      notifyListeners(changed);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Delivers MessageStore change notifications within the app process.
+ *
+ * Changes reported within a short window of one another are coalesced into a
+ * single local broadcast per action, whose MessageStore.EXTRA_MESSAGE_IDS extra
+ * lists the IDs of every message changed during the window. So an exchange
+ * that adds a hundred messages one by one produces one broadcast and one feed
+ * reload instead of a hundred.
+ *
+ * Broadcasts are sent through LocalBroadcastManager, so receivers must register
+ * with it rather than with the Context.
+ */
+public class MessageChangeNotifier {
+  /** Included with Android log messages. */
+  private static final String TAG = "MessageChangeNotifier";
+
+  /** Default length of the coalescing window, in milliseconds. */
+  public static final long DEFAULT_WINDOW_MILLIS = 250;
+
+  /** The one instance in this process. */
+  private static MessageChangeNotifier sInstance;
+
+  /** Sends the coalesced broadcasts. */
+  private LocalBroadcastManager mBroadcastManager;
+
+  /** Runs flushes on the main thread. */
+  private Handler mHandler;
+
+  /** Length of the coalescing window, in milliseconds. */
+  private long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+
+  /** IDs changed in the current window, by action. Guarded by this. */
+  private Map<String, Set<String>> mPending = new HashMap<String, Set<String>>();
+
+  /** Whether a flush is scheduled for the end of the current window. */
+  private boolean mFlushScheduled = false;
+
+  /** Sends everything pending at the end of a window. */
+  private Runnable mFlush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * Get the notifier for this process, creating it if necessary.
+   *
+   * @param context Any context in the app.
+   * @return The notifier.
+   */
+  public static synchronized MessageChangeNotifier getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new MessageChangeNotifier(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  /**
+   * Private constructor; use getInstance().
+   *
+   * @param context The application context.
+   */
+  private MessageChangeNotifier(Context context) {
+    mBroadcastManager = LocalBroadcastManager.getInstance(context);
+    mHandler = new Handler(context.getMainLooper());
+  }
+
+  /**
+   * Set how long to wait after the first change of a burst before
+   * broadcasting. Takes effect from the next window. Zero broadcasts each
+   * change on its own, as soon as the main thread gets to it.
+   *
+   * @param windowMillis The window length in milliseconds.
+   */
+  public synchronized void setWindowMillis(long windowMillis) {
+    if (windowMillis < 0) {
+      throw new IllegalArgumentException("Negative coalescing window " + windowMillis);
+    }
+    mWindowMillis = windowMillis;
+  }
+
+  /**
+   * @return The length of the coalescing window, in milliseconds.
+   */
+  public synchronized long getWindowMillis() {
+    return mWindowMillis;
+  }
+
+  /**
+   * Report that messages changed. They will be included in the broadcast for
+   * the given action at the end of the current window, starting a new window
+   * if none is open.
+   *
+   * @param action The broadcast action, e.g. MessageStore.NEW_MESSAGE.
+   * @param ids The IDs of the changed messages.
+   */
+  public synchronized void messagesChanged(String action, Collection<String> ids) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    Set<String> pending = mPending.get(action);
+    if (pending == null) {
+      pending = new LinkedHashSet<String>();
+      mPending.put(action, pending);
+    }
+    pending.addAll(ids);
+    if (!mFlushScheduled) {
+      mFlushScheduled = true;
+      mHandler.postDelayed(mFlush, mWindowMillis);
+    }
+  }
+
+  /**
+   * Broadcast everything pending now, without waiting for the window to end.
+   */
+  public void flush() {
+    Map<String, Set<String>> pending;
+    synchronized (this) {
+      mHandler.removeCallbacks(mFlush);
+      mFlushScheduled = false;
+      if (mPending.isEmpty()) {
+        return;
+      }
+      pending = mPending;
+      mPending = new HashMap<String, Set<String>>();
+    }
+    for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+      Set<String> ids = entry.getValue();
+      Intent intent = new Intent(entry.getKey());
+      intent.putExtra(MessageStore.EXTRA_MESSAGE_IDS, ids.toArray(new String[ids.size()]));
+      mBroadcastManager.sendBroadcast(intent);
+      Log.d(TAG, "Broadcast " + entry.getKey() + " for " + ids.size() + " messages");
+    }
+  }
+}
@@ -0,0 +1,736 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import org.denovogroup.rangzen.MessageStore.Message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * An in-memory index of the messages in a MessageStore, kept in priority order
+ * so that the highest priority messages can be read off the front without
+ * reading or sorting the whole store.
+ *
+ * There is one index per backing store, shared by every MessageStore instance
+ * that uses it, so that changes made through one instance are visible to the
+ * others. The index starts out unloaded; the MessageStore populates it from
+ * the store the first time it is needed and keeps it up to date thereafter.
+ *
+ * It also keeps an inverted index from search terms to messages, so that a
+ * search costs time proportional to the number of matches rather than the
+ * size of the store. See terms() for how text is broken into terms.
+ *
+ * Finally, it holds the capacity, decay and expiry settings of the store, and
+ * counts the messages evicted or expired, since those are shared by every user
+ * of the store too. See MessageStore.setCapacity(), setHalfLife() and
+ * setTimeToLive().
+ *
+ * Every change to the index gets a version number, and the IDs of the most
+ * recently changed messages are kept in a change log, so that a feed can catch
+ * up by applying only what changed since the version it last saw. See
+ * changedSince().
+ *
+ * When priorities decay, messages are ordered by rank (see rank()) rather than
+ * by priority. Since every priority decays at the same rate, the rank of a
+ * message never changes, so decay doesn't require reordering anything.
+ */
+/* package */ class MessageIndex {
+  /**
+   * Orders messages by descending rank, then alphabetically by text. A
+   * message's rank is its priority unless it is in an index with decay
+   * enabled.
+   */
+  /* package */ static final Comparator<Message> PRIORITY_ORDER = new Comparator<Message>() {
+    @Override
+    public int compare(Message left, Message right) {
+      if (left.getRank() > right.getRank()) {
+        return -1;
+      } else if (left.getRank() < right.getRank()) {
+        return 1;
+      } else {
+        return left.getMessage().compareTo(right.getMessage());
+      }
+    }
+  };
+
+  /**
+   * Arrival times are rounded down to a multiple of this many milliseconds
+   * before being used to rank messages, so that messages with equal priority
+   * arriving around the same time are still ordered alphabetically. One hour
+   * changes no decayed priority by more than a small fraction of a percent
+   * for half-lives of a day or more.
+   */
+  /* package */ static final long ARRIVAL_GRANULARITY_MILLIS = 60 * 60 * 1000;
+
+  /** The length of a tick of the expiry timing wheel. */
+  private static final long EXPIRY_TICK_MILLIS = 60 * 1000;
+
+  /** The number of slots in the expiry timing wheel, one day's worth. */
+  private static final int EXPIRY_SLOTS = 24 * 60;
+
+  /** The most message IDs kept in the change log. */
+  /* package */ static final int MAX_CHANGES = 1024;
+
+  /** Indexes by backing store, so each backing store has exactly one index. */
+  private static final Map<Object, MessageIndex> sIndexes =
+      new WeakHashMap<Object, MessageIndex>();
+
+  /** Messages in priority order. Safe to iterate while being modified. */
+  private final ConcurrentSkipListSet<Message> mOrdered =
+      new ConcurrentSkipListSet<Message>(PRIORITY_ORDER);
+
+  /** The entry in mOrdered for each message, keyed by message ID. */
+  private final Map<String, Message> mById = new HashMap<String, Message>();
+
+  /** IDs of the messages containing each search term. Guarded by this. */
+  private final TreeMap<String, Set<String>> mTerms = new TreeMap<String, Set<String>>();
+
+  /** Whether the index has been populated from the backing store. */
+  private boolean mLoaded = false;
+
+  /** The version of the index, incremented on every change. */
+  private long mVersion = 0;
+
+  /**
+   * The oldest version the change log can bring up to date. Changes made
+   * after earlier versions may have been dropped from the log.
+   */
+  private long mOldestVersion = 0;
+
+  /**
+   * The change log: the version of the latest change to each recently changed
+   * message, by ID, in order of increasing version.
+   */
+  private final LinkedHashMap<String, Long> mChanges = new LinkedHashMap<String, Long>();
+
+  /** Total size of the text of the indexed messages, in UTF-8 bytes. */
+  private long mBytes = 0;
+
+  /** The most messages the store may hold before evicting. */
+  private int mMaxMessages = MessageStore.DEFAULT_MAX_MESSAGES;
+
+  /** The most bytes of message text the store may hold before evicting. */
+  private long mMaxBytes = MessageStore.DEFAULT_MAX_BYTES;
+
+  /** The half-life of message priorities, or 0 if they don't decay. */
+  private long mHalfLifeMillis = MessageStore.DEFAULT_HALF_LIFE_MILLIS;
+
+  /** How long messages are kept after arriving, or 0 to keep them forever. */
+  private long mTimeToLiveMillis = MessageStore.NO_EXPIRY;
+
+  /** Schedules the expiry of each message, by ID, when there is a TTL. */
+  private final TimingWheel mExpiry =
+      new TimingWheel(EXPIRY_TICK_MILLIS, EXPIRY_SLOTS, System.currentTimeMillis());
+
+  /** The number of messages expired from the store in this process. */
+  private long mExpiredCount = 0;
+
+  /** The number of messages evicted from the store in this process. */
+  private long mEvictionCount = 0;
+
+  /** The total size of the messages evicted in this process, in bytes. */
+  private long mEvictedBytes = 0;
+
+  /**
+   * Get the index for the given backing store, creating an empty (unloaded)
+   * one if none exists yet.
+   *
+   * @param backingStore The object that holds the messages on disk.
+   * @return The index shared by all users of that backing store.
+   */
+  /* package */ static synchronized MessageIndex forStore(Object backingStore) {
+    MessageIndex index = sIndexes.get(backingStore);
+    if (index == null) {
+      index = new MessageIndex();
+      sIndexes.put(backingStore, index);
+    }
+    return index;
+  }
+
+  /**
+   * @return True if the index has been populated from the backing store.
+   */
+  /* package */ synchronized boolean isLoaded() {
+    return mLoaded;
+  }
+
+  /**
+   * Populate the index with the full contents of the backing store and mark
+   * it as loaded. Any previous contents are discarded.
+   *
+   * @param messages Every message currently in the backing store.
+   */
+  /* package */ synchronized void load(Collection<Message> messages) {
+    mOrdered.clear();
+    mById.clear();
+    mTerms.clear();
+    mExpiry.clear();
+    mBytes = 0;
+    for (Message m : messages) {
+      putLocked(m);
+    }
+    mLoaded = true;
+    resetChangesLocked();
+  }
+
+  /**
+   * Discard the contents of the index, so that it will be repopulated from
+   * the backing store the next time it is needed.
+   */
+  /* package */ synchronized void invalidate() {
+    mOrdered.clear();
+    mById.clear();
+    mTerms.clear();
+    mExpiry.clear();
+    mBytes = 0;
+    mLoaded = false;
+    resetChangesLocked();
+  }
+
+  /**
+   * Add the given message to the index, or move it if its priority changed.
+   * Does nothing if the index hasn't been loaded, since the message will be
+   * picked up from the backing store when it is. If the message is already in
+   * the index, it keeps its flags, and its arrival time unless it has one.
+   *
+   * @param m The message, with its current priority.
+   */
+  /* package */ synchronized void put(Message m) {
+    if (!mLoaded) {
+      return;
+    }
+    putLocked(m);
+    recordChangeLocked(m.getId());
+  }
+
+  /**
+   * Remove the given message from the index, if present.
+   *
+   * @param id The ID of the message to remove.
+   */
+  /* package */ synchronized void remove(String id) {
+    Message old = mById.remove(id);
+    if (old != null) {
+      recordChangeLocked(id);
+      mOrdered.remove(old);
+      mExpiry.cancel(id);
+      mBytes -= byteLength(old.getMessage());
+      for (String term : terms(old.getMessage())) {
+        Set<String> ids = mTerms.get(term);
+        ids.remove(id);
+        if (ids.isEmpty()) {
+          mTerms.remove(term);
+        }
+      }
+    }
+  }
+
+  /**
+   * Change the flags of an indexed message. Does nothing if it isn't indexed.
+   *
+   * @param id The ID of the message.
+   * @param flags Its new flags.
+   */
+  /* package */ synchronized void setFlags(String id, int flags) {
+    Message old = mById.get(id);
+    if (old == null) {
+      return;
+    }
+    Message updated = new Message(id, old.getPriority(), old.getMessage(),
+                                  old.getArrivalTime(), flags);
+    updated.setRank(old.getRank());
+    mById.put(id, updated);
+    // The two compare equal, so the old one has to go first.
+    mOrdered.remove(old);
+    mOrdered.add(updated);
+    recordChangeLocked(id);
+  }
+
+  /**
+   * Raise the version of the index to at least the given version.
+   *
+   * @param version The lowest version the index should have.
+   */
+  /* package */ synchronized void advanceVersion(long version) {
+    mVersion = Math.max(mVersion, version);
+  }
+
+  /**
+   * @return The current version of the index.
+   */
+  /* package */ synchronized long getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * Find the messages that changed after the given version: those added,
+   * removed, or whose priority or flags changed. Costs time proportional to
+   * the size of the change log, at most MAX_CHANGES, regardless of the size
+   * of the index.
+   *
+   * @param version A version returned by getVersion().
+   * @return The IDs of the changed messages, in the order they last changed,
+   * or null if the change log doesn't go back that far and the caller should
+   * read everything again.
+   */
+  /* package */ synchronized List<String> changedSince(long version) {
+    if (version < mOldestVersion || version > mVersion) {
+      return null;
+    }
+    List<String> changed = new ArrayList<String>();
+    for (Map.Entry<String, Long> change : mChanges.entrySet()) {
+      if (change.getValue() > version) {
+        changed.add(change.getKey());
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @param id A message ID.
+   * @return The indexed message with that ID, or null if there is none.
+   */
+  /* package */ synchronized Message get(String id) {
+    return mById.get(id);
+  }
+
+  /**
+   * @return The number of messages in the index.
+   */
+  /* package */ synchronized int size() {
+    return mById.size();
+  }
+
+  /**
+   * @return The total size of the text of the indexed messages, in bytes.
+   */
+  /* package */ synchronized long byteCount() {
+    return mBytes;
+  }
+
+  /**
+   * Set the capacity of the store.
+   *
+   * @param maxMessages The most messages to keep.
+   * @param maxBytes The most bytes of message text to keep.
+   */
+  /* package */ synchronized void setCapacity(int maxMessages, long maxBytes) {
+    mMaxMessages = maxMessages;
+    mMaxBytes = maxBytes;
+  }
+
+  /** @return The most messages the store may hold. */
+  /* package */ synchronized int getMaxMessages() {
+    return mMaxMessages;
+  }
+
+  /** @return The most bytes of message text the store may hold. */
+  /* package */ synchronized long getMaxBytes() {
+    return mMaxBytes;
+  }
+
+  /**
+   * @return True if the index holds more messages or bytes than the capacity
+   * allows.
+   */
+  /* package */ synchronized boolean isOverCapacity() {
+    return mById.size() > mMaxMessages || mBytes > mMaxBytes;
+  }
+
+  /**
+   * Set the half-life of message priorities, re-ranking every message.
+   *
+   * @param halfLifeMillis The half-life, or 0 for no decay.
+   */
+  /* package */ synchronized void setHalfLife(long halfLifeMillis) {
+    if (halfLifeMillis == mHalfLifeMillis) {
+      return;
+    }
+    mHalfLifeMillis = halfLifeMillis;
+    // Everything may have moved.
+    resetChangesLocked();
+    // Replace every entry rather than changing ranks in place, since iterators
+    // may be walking mOrdered.
+    List<Message> messages = new ArrayList<Message>(mById.values());
+    mOrdered.clear();
+    for (Message m : messages) {
+      Message ranked = new Message(m.getId(), m.getPriority(), m.getMessage(),
+                                   m.getArrivalTime(), m.getFlags());
+      ranked.setRank(rank(ranked));
+      mById.put(ranked.getId(), ranked);
+      mOrdered.add(ranked);
+    }
+  }
+
+  /** @return The half-life of message priorities, or 0 if they don't decay. */
+  /* package */ synchronized long getHalfLife() {
+    return mHalfLifeMillis;
+  }
+
+  /**
+   * Set how long messages are kept after they arrive, rescheduling the expiry
+   * of every message.
+   *
+   * @param timeToLiveMillis The time to live, or 0 to keep messages forever.
+   */
+  /* package */ synchronized void setTimeToLive(long timeToLiveMillis) {
+    mTimeToLiveMillis = timeToLiveMillis;
+    mExpiry.clear();
+    for (Message m : mById.values()) {
+      scheduleExpiry(m);
+    }
+  }
+
+  /** @return How long messages are kept, or 0 if they're kept forever. */
+  /* package */ synchronized long getTimeToLive() {
+    return mTimeToLiveMillis;
+  }
+
+  /**
+   * Find the messages whose time to live has run out. They are no longer
+   * scheduled to expire, but stay in the index until removed.
+   *
+   * @param now The current time, in milliseconds since the epoch.
+   * @return The expired messages, possibly none.
+   */
+  /* package */ synchronized List<Message> expire(long now) {
+    List<Message> expired = new ArrayList<Message>();
+    for (String id : mExpiry.advance(now)) {
+      Message m = mById.get(id);
+      if (m != null) {
+        expired.add(m);
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Record that messages expired from the store.
+   *
+   * @param count The number of messages expired.
+   */
+  /* package */ synchronized void recordExpiration(int count) {
+    mExpiredCount += count;
+  }
+
+  /** @return The number of messages expired in this process. */
+  /* package */ synchronized long getExpiredCount() {
+    return mExpiredCount;
+  }
+
+  /**
+   * The priority of a message after decaying since it arrived. Messages
+   * without an arrival time don't decay.
+   *
+   * @param m A message.
+   * @param now The current time, in milliseconds since the epoch.
+   * @return Its decayed priority.
+   */
+  /* package */ synchronized double effectivePriority(Message m, long now) {
+    if (mHalfLifeMillis <= 0 || m.getArrivalTime() <= 0) {
+      return m.getPriority();
+    }
+    long age = Math.max(0, now - roundArrival(m.getArrivalTime()));
+    return m.getPriority() * Math.pow(2, -(double) age / mHalfLifeMillis);
+  }
+
+  /**
+   * Record that messages were evicted from the store.
+   *
+   * @param count The number of messages evicted.
+   * @param bytes Their total size, in bytes.
+   */
+  /* package */ synchronized void recordEviction(int count, long bytes) {
+    mEvictionCount += count;
+    mEvictedBytes += bytes;
+  }
+
+  /** @return The number of messages evicted in this process. */
+  /* package */ synchronized long getEvictionCount() {
+    return mEvictionCount;
+  }
+
+  /** @return The total size of the messages evicted in this process. */
+  /* package */ synchronized long getEvictedBytes() {
+    return mEvictedBytes;
+  }
+
+  /**
+   * Iterate over the messages in the index in priority order, lowest first,
+   * which is the order in which they are evicted. Weakly consistent, like
+   * iterator().
+   *
+   * @return An iterator over every message in the index.
+   */
+  /* package */ Iterator<Message> lowestFirst() {
+    return Collections.unmodifiableSet(mOrdered.descendingSet()).iterator();
+  }
+
+  /**
+   * Iterate over the messages in the index in priority order, highest first.
+   * The iterator is weakly consistent: it never throws
+   * ConcurrentModificationException, and reflects some or all of the changes
+   * made to the index while it is in use.
+   *
+   * @param limit The maximum number of messages to return.
+   * @return An iterator over at most limit messages.
+   */
+  /* package */ Iterator<Message> iterator(final int limit) {
+    final Iterator<Message> it = mOrdered.iterator();
+    return new Iterator<Message>() {
+      private int returned = 0;
+
+      @Override
+      public boolean hasNext() {
+        return returned < limit && it.hasNext();
+      }
+
+      @Override
+      public Message next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        returned++;
+        return it.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("MessageIndex iterators are read-only.");
+      }
+    };
+  }
+
+  /**
+   * Find the messages matching a search, in priority order. A message matches
+   * if, for every term of the search, it contains a term starting with it.
+   *
+   * @param searchTerms The terms of the search, as returned by terms().
+   * @return The matching messages, highest priority first.
+   */
+  /* package */ synchronized List<Message> search(Set<String> searchTerms) {
+    Set<String> matches = null;
+    for (String term : searchTerms) {
+      Set<String> termMatches = new HashSet<String>();
+      for (Set<String> ids
+           : mTerms.subMap(term, true, term + Character.MAX_VALUE, true).values()) {
+        termMatches.addAll(ids);
+      }
+      if (matches == null) {
+        matches = termMatches;
+      } else {
+        matches.retainAll(termMatches);
+      }
+      if (matches.isEmpty()) {
+        break;
+      }
+    }
+
+    List<Message> results = new ArrayList<Message>();
+    if (matches != null) {
+      for (String id : matches) {
+        results.add(mById.get(id));
+      }
+    }
+    Collections.sort(results, PRIORITY_ORDER);
+    return results;
+  }
+
+  /**
+   * Break text into search terms. Text is lowercased and split on whitespace,
+   * and punctuation is trimmed from the ends of each word. Hashtags are indexed
+   * both with and without the #, so "#rangzen" is found by searching for
+   * "#rangzen", "rangzen" or "rang", but "rangzen" is not found by "#rangzen".
+   *
+   * @param text The text to break up, which may be null.
+   * @return The distinct terms in the text.
+   */
+  /* package */ static Set<String> terms(String text) {
+    Set<String> terms = new LinkedHashSet<String>();
+    if (text == null) {
+      return terms;
+    }
+    for (String word : text.toLowerCase(Locale.US).split("\\s+")) {
+      int start = 0;
+      int end = word.length();
+      while (start < end && !isTermChar(word.charAt(start))) {
+        start++;
+      }
+      while (end > start && !isTermChar(word.charAt(end - 1))) {
+        end--;
+      }
+      if (start == end) {
+        continue;
+      }
+      // Keep the # if the word was a hashtag.
+      if (start > 0 && word.charAt(start - 1) == '#') {
+        start--;
+      }
+      String term = word.substring(start, end);
+      terms.add(term);
+      if (term.charAt(0) == '#') {
+        int bare = 1;
+        while (bare < term.length() && term.charAt(bare) == '#') {
+          bare++;
+        }
+        if (bare < term.length()) {
+          terms.add(term.substring(bare));
+        }
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * The rank of a message in this index. Without decay it is the priority.
+   * With decay it is log2(priority) plus the arrival time in half-lives, which
+   * orders messages the same way as their decayed priorities at any moment,
+   * since decay subtracts the same amount from every message's log priority.
+   * Caller must hold the lock.
+   */
+  private double rank(Message m) {
+    if (mHalfLifeMillis <= 0 || m.getArrivalTime() <= 0) {
+      return m.getPriority();
+    }
+    return Math.log(m.getPriority()) / Math.log(2)
+        + (double) roundArrival(m.getArrivalTime()) / mHalfLifeMillis;
+  }
+
+  /** Rounds an arrival time down to ARRIVAL_GRANULARITY_MILLIS. */
+  private static long roundArrival(long arrival) {
+    return arrival - arrival % ARRIVAL_GRANULARITY_MILLIS;
+  }
+
+  /**
+   * Adds a change to a message to the change log, dropping the oldest change
+   * if the log is full. Caller must hold the lock.
+   */
+  private void recordChangeLocked(String id) {
+    mVersion++;
+    // Re-inserting moves the ID to the end, keeping the log in version order.
+    mChanges.remove(id);
+    mChanges.put(id, mVersion);
+    if (mChanges.size() > MAX_CHANGES) {
+      Iterator<Map.Entry<String, Long>> it = mChanges.entrySet().iterator();
+      mOldestVersion = it.next().getValue();
+      it.remove();
+    }
+  }
+
+  /**
+   * Starts a new version that the change log can't bring earlier versions up
+   * to, for when the whole index changed. Caller must hold the lock.
+   */
+  private void resetChangesLocked() {
+    mVersion++;
+    mOldestVersion = mVersion;
+    mChanges.clear();
+  }
+
+  /** Schedules the expiry of a message, if needed. Caller must hold the lock. */
+  private void scheduleExpiry(Message m) {
+    if (mTimeToLiveMillis > 0 && m.getArrivalTime() > 0) {
+      mExpiry.schedule(m.getId(), m.getArrivalTime() + mTimeToLiveMillis);
+    }
+  }
+
+  /**
+   * The length of a string in UTF-8, without encoding it.
+   *
+   * @param text The string to measure.
+   * @return The number of bytes needed to encode it in UTF-8.
+   */
+  /* package */ static int byteLength(String text) {
+    int bytes = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        // The pair encodes to four bytes; count them both here.
+        bytes += 4;
+        i++;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  /** Whether a character can start or end a search term. */
+  private static boolean isTermChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  /** Puts the given message in all structures. Caller must hold the lock. */
+  private void putLocked(Message m) {
+    Message previous = mById.get(m.getId());
+    if (previous != null) {
+      long arrival = m.getArrivalTime() > 0 ? m.getArrivalTime() : previous.getArrivalTime();
+      m = new Message(m.getId(), m.getPriority(), m.getMessage(), arrival, previous.getFlags());
+    }
+    m.setRank(rank(m));
+    scheduleExpiry(m);
+    Message old = mById.put(m.getId(), m);
+    if (old != null) {
+      mOrdered.remove(old);
+    } else {
+      mBytes += byteLength(m.getMessage());
+      for (String term : terms(m.getMessage())) {
+        Set<String> ids = mTerms.get(term);
+        if (ids == null) {
+          ids = new HashSet<String>();
+          mTerms.put(term, ids);
+        }
+        ids.add(m.getId());
+      }
+    }
+    mOrdered.add(m);
+  }
+}
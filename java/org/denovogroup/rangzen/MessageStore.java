@@ -31,18 +31,24 @@
 package org.denovogroup.rangzen;
 
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.Base64;
 import android.util.Log;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -54,6 +60,10 @@ import java.util.TreeMap;
  * Storage for Rangzen messages that uses StorageBase underneath. If
  * instantiated as such, automatically encrypts and decrypts data before storing
  * in Android.
+ * 
+ * Each message is identified by a fixed-size ID derived from a hash of its
+ * text (see getMessageId()). The text itself is stored once, under the ID, and
+ * all other per-message data is keyed by the ID.
  */
 public class MessageStore {
     /** A handle for the underlying store */
@@ -62,8 +72,20 @@ public class MessageStore {
     /** Context for the app. */
     private Context mContext;
 
-    /** The internal key used in the underlying store for Rangzen message data. */
-    private static final String MESSAGES_KEY = "RangzenMessages-";
+    /**
+     * Priority-ordered index of the messages in the store, shared with every
+     * other MessageStore using the same backing store.
+     */
+    private MessageIndex mIndex;
+
+    /**
+     * The internal key used in the underlying store for the bins of Rangzen
+     * message IDs.
+     */
+    private static final String MESSAGES_KEY = "RangzenMessageIds-";
+
+    /** The internal key used in the underlying store for message text. */
+    private static final String MESSAGE_TEXT_KEY = "RangzenMessageText-";
 
     /** Intent action for new message arrival in the store. */
     public static final String NEW_MESSAGE = "org.denovogroup.rangzen.NEW_MESSAGE_ACTION";
@@ -71,11 +93,128 @@ public class MessageStore {
     /** Intent action for new saved message in the store. */
     public static final String SAVE_MESSAGE = "org.denovogroup.rangzen.SAVE_MESSAGE";
 
+    /**
+     * String array extra on NEW_MESSAGE and SAVE_MESSAGE broadcasts, holding
+     * the IDs of the messages concerned. Those broadcasts are local, and may
+     * cover several changes; see MessageChangeNotifier.
+     */
+    public static final String EXTRA_MESSAGE_IDS = "org.denovogroup.rangzen.MESSAGE_IDS";
+
+    /** Flag set on messages the user has saved. */
+    public static final int FLAG_SAVED = 1;
+
+    /** Flag set on messages the user has retweeted. */
+    public static final int FLAG_RETWEETED = 1 << 1;
+
+    /**
+     * Flag set on messages the user has asked to delete, while the deletion is
+     * pending (for instance, while the row animates out of the feed).
+     */
+    public static final int FLAG_DELETED = 1 << 2;
+
     /**
      * The internal key used in the underlying store for Rangzen message
      * priorities.
      */
-    private static final String MESSAGE_PRIORITY_KEY = "RangzenMessagePriority-";
+    private static final String MESSAGE_PRIORITY_KEY = "RangzenPriority-";
+
+    /**
+     * The internal key used in the underlying store for the priorities of
+     * saved messages.
+     */
+    private static final String SAVED_PRIORITY_KEY = "RangzenSavedPriority-";
+
+    /**
+     * The internal key used in the underlying store for the time each message
+     * arrived, in milliseconds since the epoch.
+     */
+    private static final String ARRIVAL_KEY = "RangzenArrival-";
+
+    /**
+     * The internal key used in the underlying store for each message's flags.
+     * See FLAG_SAVED.
+     */
+    private static final String FLAGS_KEY = "RangzenFlags-";
+
+    /**
+     * The internal key under which the version of the store's layout is
+     * kept. Stores written before there was a version are version 1. Version
+     * 2 keyed everything by message ID, version 3 added arrival times and
+     * version 4 folded the UI's SAVE and RETWEET keys into the flags.
+     */
+    private static final String VERSION_KEY = "RangzenMessageStoreVersion";
+
+    /** The version of the layout written by this class. */
+    private static final int STORE_VERSION = 4;
+
+    /**
+     * The internal key under which the number of times the feed has been
+     * loaded from the store is kept. Feed versions (see getVersion()) start
+     * from this number shifted into the upper half of a long, so that a
+     * version saved by an earlier process is always older than any version
+     * of this one.
+     */
+    private static final String GENERATION_KEY = "RangzenFeedGeneration";
+
+    /** Version 1 keys, which held message text instead of IDs. */
+    private static final String V1_MESSAGES_KEY = "RangzenMessages-";
+    private static final String V1_MESSAGE_PRIORITY_KEY = "RangzenMessagePriority-";
+    private static final String V1_SAVED_PRIORITY_KEY = "RangzenSavedMessage-";
+
+    /**
+     * Keys under which the UI kept per-message flags before version 4,
+     * followed by the message text (version 1) or ID (versions 2 and 3), and
+     * the flags they became.
+     */
+    private static final String[] OLD_FLAG_KEYS = { "SAVE", "RETWEET" };
+    private static final int[] OLD_FLAG_BITS = { FLAG_SAVED, FLAG_RETWEETED };
+
+    /** The hash used to derive message IDs from message text. */
+    private static final String ID_HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * The number of bytes of the hash kept in a message ID. 128 bits keeps
+     * accidental collisions out of reach for any number of messages we'll
+     * ever store.
+     */
+    private static final int ID_LENGTH = 16;
+
+    /** A digest per thread for computing IDs, since they aren't thread safe. */
+    private static final ThreadLocal<MessageDigest> sIdDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(ID_HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * The default for the most messages the store holds before it starts
+     * evicting the lowest priority ones. See setCapacity().
+     */
+    public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+    /** The default for the most bytes of message text the store holds. */
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** The default half-life of message priorities. See setHalfLife(). */
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /** Half-life meaning that priorities don't decay. */
+    public static final long NO_DECAY = 0;
+
+    /** Time to live meaning that messages are kept until evicted or deleted. */
+    public static final long NO_EXPIRY = 0;
+
+    /**
+     * The order of the feed: the order of iterateByPriority() and of the
+     * regular and searched messages from getAllMessages(). Lists in this order
+     * can be kept up to date with getChangesSince() by binary search.
+     */
+    public static final Comparator<Message> FEED_ORDER = MessageIndex.PRIORITY_ORDER;
 
     public static final int SAVED_MESSAGES = 1;
     public static final int NOT_SAVED_MESSAGES = -0;
@@ -111,6 +250,31 @@ public class MessageStore {
         }
     }
 
+    /**
+     * Computes the ID of a message: the first ID_LENGTH bytes of the SHA-256
+     * hash of its UTF-8 text, in URL-safe base64 without padding (22
+     * characters).
+     * 
+     * @param msg
+     *            The text of the message.
+     * 
+     * @return The message's ID.
+     */
+    public static String getMessageId(String msg) {
+        MessageDigest digest = sIdDigest.get();
+        byte[] hash;
+        try {
+            hash = digest.digest(msg.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+        byte[] id = new byte[ID_LENGTH];
+        System.arraycopy(hash, 0, id, 0, ID_LENGTH);
+        return Base64.encodeToString(id, Base64.URL_SAFE | Base64.NO_PADDING
+                | Base64.NO_WRAP);
+    }
+
     /**
      * Determines the bin key for a given bin number.
      * 
@@ -126,13 +290,62 @@ public class MessageStore {
     /**
      * Determines the message priority key for a given message.
      * 
-     * @param msg
-     *            The message.
+     * @param id
+     *            The message's ID.
      * 
      * @return The String message priority key for that message.
      */
-    private static String getMessagePriorityKey(String msg) {
-        return MESSAGE_PRIORITY_KEY + msg;
+    private static String getMessagePriorityKey(String id) {
+        return MESSAGE_PRIORITY_KEY + id;
+    }
+
+    /**
+     * Determines the saved priority key for a given message.
+     * 
+     * @param id
+     *            The message's ID.
+     * 
+     * @return The String saved priority key for that message.
+     */
+    private static String getSavedPriorityKey(String id) {
+        return SAVED_PRIORITY_KEY + id;
+    }
+
+    /**
+     * Determines the text key for a given message.
+     * 
+     * @param id
+     *            The message's ID.
+     * 
+     * @return The String key under which the message's text is stored.
+     */
+    private static String getMessageTextKey(String id) {
+        return MESSAGE_TEXT_KEY + id;
+    }
+
+    /**
+     * Determines the arrival time key for a given message.
+     * 
+     * @param id
+     *            The message's ID.
+     * 
+     * @return The String key under which the message's arrival time is
+     *         stored.
+     */
+    private static String getArrivalKey(String id) {
+        return ARRIVAL_KEY + id;
+    }
+
+    /**
+     * Determines the flags key for a given message.
+     * 
+     * @param id
+     *            The message's ID.
+     * 
+     * @return The String key under which the message's flags are stored.
+     */
+    private static String getFlagsKey(String id) {
+        return FLAGS_KEY + id;
     }
 
     /**
@@ -180,14 +393,510 @@ public class MessageStore {
      *            The app instance for which to perform storage.
      * @param encryptionMode
      *            The encryption mode to use for all calls using this instance.
-     * 
-     *            TODO(barath): Add support for a storage limit, which
-     *            automatically triggers garbage collection when hit.
      */
     public MessageStore(Context context, int encryptionMode)
             throws IllegalArgumentException {
         store = new StorageBase(context, encryptionMode);
         mContext = context;
+        mIndex = MessageIndex.forStore(store.getBackingPreferences());
+        synchronized (mIndex) {
+            int version = store.getInt(VERSION_KEY, 1);
+            if (version < 2) {
+                migrateFromVersion1();
+            }
+            if (version < 3) {
+                migrateFromVersion2();
+            }
+            if (version < 4) {
+                migrateFromVersion3();
+            }
+        }
+    }
+
+    /**
+     * Sets the capacity of the store. Whenever messages are added and the
+     * store holds more than maxMessages messages or maxBytes bytes of message
+     * text, the lowest priority messages are deleted until it is back within
+     * both. Saved messages are never evicted, and are only counted against the
+     * capacity while they are also in the feed.
+     * 
+     * The capacity applies to every MessageStore using the same backing store,
+     * and lasts until the process exits.
+     * 
+     * @param maxMessages
+     *            The most messages to keep.
+     * @param maxBytes
+     *            The most bytes of message text, encoded as UTF-8, to keep.
+     */
+    public void setCapacity(int maxMessages, long maxBytes) {
+        if (maxMessages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: "
+                    + maxMessages + " messages, " + maxBytes + " bytes");
+        }
+        mIndex.setCapacity(maxMessages, maxBytes);
+        evictIfNeeded();
+    }
+
+    /** @return The most messages the store holds before evicting. */
+    public int getMaxMessages() {
+        return mIndex.getMaxMessages();
+    }
+
+    /** @return The most bytes of message text the store holds before evicting. */
+    public long getMaxBytes() {
+        return mIndex.getMaxBytes();
+    }
+
+    /**
+     * @return The number of messages in the feed, which is what the message
+     *         count capacity is compared against.
+     */
+    public int getMessageCount() {
+        return getLoadedIndex().size();
+    }
+
+    /**
+     * @return The size of the text of the messages in the feed in bytes, which
+     *         is what the byte capacity is compared against.
+     */
+    public long getByteCount() {
+        return getLoadedIndex().byteCount();
+    }
+
+    /** @return The number of messages evicted since the process started. */
+    public long getEvictionCount() {
+        return mIndex.getEvictionCount();
+    }
+
+    /** @return The size of the messages evicted since the process started. */
+    public long getEvictedBytes() {
+        return mIndex.getEvictedBytes();
+    }
+
+    /**
+     * Sets the half-life of message priorities. A message's effective priority
+     * halves every halfLifeMillis after it arrives, so that fresh messages
+     * overtake stale ones of the same priority; the order of
+     * iterateByPriority(), and so the messages sent in exchanges, follows the
+     * effective priority. Decay is computed when priorities are read, and
+     * never rewrites the store.
+     * 
+     * The half-life applies to every MessageStore using the same backing
+     * store, and lasts until the process exits.
+     * 
+     * @param halfLifeMillis
+     *            The half-life, or NO_DECAY.
+     */
+    public void setHalfLife(long halfLifeMillis) {
+        if (halfLifeMillis < 0) {
+            throw new IllegalArgumentException("Negative half-life: " + halfLifeMillis);
+        }
+        getLoadedIndex().setHalfLife(halfLifeMillis);
+    }
+
+    /** @return The half-life of message priorities, or NO_DECAY. */
+    public long getHalfLife() {
+        return mIndex.getHalfLife();
+    }
+
+    /**
+     * Sets how long messages are kept after they arrive. Expired messages are
+     * deleted the next time the store is read or written, at most about a
+     * minute late; purging costs time proportional to the number of expired
+     * messages, not the size of the store. Saved messages never expire.
+     * 
+     * The time to live applies to every MessageStore using the same backing
+     * store, and lasts until the process exits.
+     * 
+     * @param timeToLiveMillis
+     *            The time to live, or NO_EXPIRY.
+     */
+    public void setTimeToLive(long timeToLiveMillis) {
+        if (timeToLiveMillis < 0) {
+            throw new IllegalArgumentException("Negative time to live: " + timeToLiveMillis);
+        }
+        getLoadedIndex().setTimeToLive(timeToLiveMillis);
+        expireIfNeeded();
+    }
+
+    /** @return How long messages are kept after arriving, or NO_EXPIRY. */
+    public long getTimeToLive() {
+        return mIndex.getTimeToLive();
+    }
+
+    /** @return The number of messages expired since the process started. */
+    public long getExpiredCount() {
+        return mIndex.getExpiredCount();
+    }
+
+    /**
+     * Returns the priority of a message after decaying since it arrived.
+     * 
+     * @param m
+     *            A message, as returned by iterateByPriority() or
+     *            getAllMessages().
+     * @return Its priority now.
+     */
+    public double getEffectivePriority(Message m) {
+        return mIndex.effectivePriority(m, System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the messages whose time to live has run out, other than saved
+     * ones, in a single transaction.
+     * 
+     * @return The number of messages deleted.
+     */
+    private int expireIfNeeded() {
+        MessageIndex index = getLoadedIndex();
+        synchronized (index) {
+            List<Message> expired = new ArrayList<Message>();
+            for (Message m : index.expire(System.currentTimeMillis())) {
+                if (store.getDouble(getSavedPriorityKey(m.getId()), NOT_FOUND) == NOT_FOUND) {
+                    expired.add(m);
+                }
+            }
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            removeUnsaved(expired);
+            index.recordExpiration(expired.size());
+            Log.i(TAG, "Expired " + expired.size() + " messages");
+            return expired.size();
+        }
+    }
+
+    /**
+     * Deletes the given unsaved messages from the store and the index in a
+     * single transaction. Each bin is read and written at most once. Every bin
+     * is checked, since updatePriority() leaves messages in the bin they were
+     * added to.
+     * 
+     * @param messages
+     *            The messages, as found in the index.
+     */
+    private void removeUnsaved(List<Message> messages) {
+        Set<String> ids = new HashSet<String>();
+        for (Message m : messages) {
+            ids.add(m.getId());
+        }
+        store.beginTransaction();
+        try {
+            for (String id : ids) {
+                store.removeDouble(getMessagePriorityKey(id));
+                store.remove(getMessageTextKey(id));
+                store.remove(getArrivalKey(id));
+                store.remove(getFlagsKey(id));
+            }
+            for (int i = 0; i < NUM_BINS; i++) {
+                Set<String> bin = store.getSet(getBinKey(i));
+                if (bin != null && bin.removeAll(ids)) {
+                    store.putSet(getBinKey(i), bin);
+                }
+            }
+        } catch (RuntimeException e) {
+            store.abortTransaction();
+            throw e;
+        }
+        if (!store.commitTransaction()) {
+            Log.e(TAG, "Failed to write deletions to disk.");
+        }
+        for (Message m : messages) {
+            mIndex.remove(m.getId());
+        }
+    }
+
+    /**
+     * Deletes the lowest priority unsaved messages until the store is within
+     * its capacity, in a single transaction. If only saved messages are left,
+     * the store is allowed to stay over capacity.
+     * 
+     * @return The IDs of the messages evicted.
+     */
+    private Set<String> evictIfNeeded() {
+        MessageIndex index = getLoadedIndex();
+        synchronized (index) {
+            if (!index.isOverCapacity()) {
+                return Collections.emptySet();
+            }
+            int count = index.size();
+            long bytes = index.byteCount();
+            int maxMessages = index.getMaxMessages();
+            long maxBytes = index.getMaxBytes();
+
+            List<Message> victims = new ArrayList<Message>();
+            long evictedBytes = 0;
+            Iterator<Message> it = index.lowestFirst();
+            while ((count > maxMessages || bytes > maxBytes) && it.hasNext()) {
+                Message m = it.next();
+                if (store.getDouble(getSavedPriorityKey(m.getId()), NOT_FOUND) != NOT_FOUND) {
+                    continue;
+                }
+                int size = MessageIndex.byteLength(m.getMessage());
+                victims.add(m);
+                count--;
+                bytes -= size;
+                evictedBytes += size;
+            }
+            if (victims.isEmpty()) {
+                Log.w(TAG, "Store is over capacity but only saved messages are left.");
+                return Collections.emptySet();
+            }
+
+            removeUnsaved(victims);
+            index.recordEviction(victims.size(), evictedBytes);
+            Log.i(TAG, "Evicted " + victims.size() + " messages (" + evictedBytes
+                    + " bytes) to stay within " + maxMessages + " messages, "
+                    + maxBytes + " bytes");
+            Set<String> ids = new HashSet<String>();
+            for (Message m : victims) {
+                ids.add(m.getId());
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Rewrites a version 1 store, in which every key contained the full text of
+     * its message, into the current layout, in a single transaction. Also
+     * moves the SAVE and RETWEET flags kept by the UI.
+     */
+    private void migrateFromVersion1() {
+        int migrated = 0;
+        store.beginTransaction();
+        try {
+            for (int bin = 0; bin < NUM_BINS; bin++) {
+                Set<String> texts = store.getSet(V1_MESSAGES_KEY + bin);
+                if (texts == null) {
+                    continue;
+                }
+                Set<String> ids = new HashSet<String>();
+                for (String msg : texts) {
+                    String id = getMessageId(msg);
+                    ids.add(id);
+                    store.put(getMessageTextKey(id), msg);
+
+                    double priority = store.getDouble(V1_MESSAGE_PRIORITY_KEY + msg, NOT_FOUND);
+                    if (priority != NOT_FOUND) {
+                        store.putDouble(getMessagePriorityKey(id), priority);
+                        store.removeDouble(V1_MESSAGE_PRIORITY_KEY + msg);
+                    }
+                    double saved = store.getDouble(V1_SAVED_PRIORITY_KEY + msg, NOT_FOUND);
+                    if (saved != NOT_FOUND) {
+                        store.putDouble(getSavedPriorityKey(id), saved);
+                        store.removeDouble(V1_SAVED_PRIORITY_KEY + msg);
+                    }
+                    for (String flag : OLD_FLAG_KEYS) {
+                        int value = store.getInt(flag + msg, 0);
+                        if (value != 0) {
+                            store.putInt(flag + id, value);
+                            store.removeInt(flag + msg);
+                        }
+                    }
+                    migrated++;
+                }
+                store.putSet(getBinKey(bin), ids);
+                store.remove(V1_MESSAGES_KEY + bin);
+            }
+            store.putInt(VERSION_KEY, 2);
+        } catch (RuntimeException e) {
+            store.abortTransaction();
+            throw e;
+        }
+        if (!store.commitTransaction()) {
+            Log.e(TAG, "Failed to write migrated message store.");
+        }
+        Log.i(TAG, "Migrated " + migrated + " messages to version 2");
+    }
+
+    /**
+     * Gives every message in a version 2 store an arrival time of now, since
+     * the real ones weren't recorded, in a single transaction.
+     */
+    private void migrateFromVersion2() {
+        long now = System.currentTimeMillis();
+        int migrated = 0;
+        store.beginTransaction();
+        try {
+            for (int bin = 0; bin < NUM_BINS; bin++) {
+                Set<String> ids = store.getSet(getBinKey(bin));
+                if (ids == null) {
+                    continue;
+                }
+                for (String id : ids) {
+                    store.putLong(getArrivalKey(id), now);
+                    migrated++;
+                }
+            }
+            store.putInt(VERSION_KEY, 3);
+        } catch (RuntimeException e) {
+            store.abortTransaction();
+            throw e;
+        }
+        if (!store.commitTransaction()) {
+            Log.e(TAG, "Failed to write migrated message store.");
+        }
+        Log.i(TAG, "Migrated " + migrated + " messages to version 3");
+    }
+
+    /**
+     * Moves the SAVE and RETWEET keys the UI kept for each message in a version
+     * 3 store into the message's flags, in a single transaction.
+     */
+    private void migrateFromVersion3() {
+        int migrated = 0;
+        store.beginTransaction();
+        try {
+            for (int bin = 0; bin < NUM_BINS; bin++) {
+                Set<String> ids = store.getSet(getBinKey(bin));
+                if (ids == null) {
+                    continue;
+                }
+                for (String id : ids) {
+                    int flags = 0;
+                    for (int i = 0; i < OLD_FLAG_KEYS.length; i++) {
+                        if (store.getInt(OLD_FLAG_KEYS[i] + id, 0) != 0) {
+                            flags |= OLD_FLAG_BITS[i];
+                            store.removeInt(OLD_FLAG_KEYS[i] + id);
+                        }
+                    }
+                    if (flags != 0) {
+                        store.putInt(getFlagsKey(id), flags);
+                        migrated++;
+                    }
+                }
+            }
+            store.putInt(VERSION_KEY, STORE_VERSION);
+        } catch (RuntimeException e) {
+            store.abortTransaction();
+            throw e;
+        }
+        if (!store.commitTransaction()) {
+            Log.e(TAG, "Failed to write migrated message store.");
+        }
+        Log.i(TAG, "Migrated flags of " + migrated + " messages to version " + STORE_VERSION);
+    }
+
+    /**
+     * Looks up the text of a message by ID.
+     * 
+     * @param id
+     *            The message's ID.
+     * @return The text, or null if there's no such message.
+     */
+    private String getText(String id) {
+        Message m = mIndex.get(id);
+        if (m != null) {
+            return m.getMessage();
+        }
+        return store.get(getMessageTextKey(id));
+    }
+
+    /**
+     * Returns the priority index, populating it from the store if this is the
+     * first time it has been needed in this process. Loading reads every bin
+     * once; afterwards the index is maintained incrementally.
+     * 
+     * @return The loaded index.
+     */
+    private MessageIndex getLoadedIndex() {
+        synchronized (mIndex) {
+            if (!mIndex.isLoaded()) {
+                List<Message> messages = new ArrayList<Message>();
+                for (int bin = NUM_BINS - 1; bin >= 0; bin--) {
+                    Set<String> ids = store.getSet(getBinKey(bin));
+                    if (ids == null) {
+                        continue;
+                    }
+                    for (String id : ids) {
+                        double priority = store.getDouble(getMessagePriorityKey(id), -1);
+                        String text = store.get(getMessageTextKey(id));
+                        if (priority != -1 && text != null) {
+                            long arrival = store.getLong(getArrivalKey(id), 0);
+                            int flags = store.getInt(getFlagsKey(id), 0);
+                            messages.add(new Message(id, priority, text, arrival, flags));
+                        }
+                    }
+                }
+                long generation = store.getLong(GENERATION_KEY, 0) + 1;
+                store.putLong(GENERATION_KEY, generation);
+                mIndex.advanceVersion(generation << 32);
+                mIndex.load(messages);
+            }
+        }
+        return mIndex;
+    }
+
+    /**
+     * Iterates over the messages in the store from highest to lowest priority,
+     * ties broken alphabetically. After the index has been loaded once, reading
+     * the first k messages costs O(k) regardless of the size of the store.
+     * Priorities are compared after decay (see setHalfLife()), and messages
+     * whose time to live has run out are purged first.
+     * 
+     * The iterator never throws ConcurrentModificationException; changes made
+     * to the store while iterating may or may not be reflected.
+     * 
+     * @param limit
+     *            The maximum number of messages to return.
+     * @return An iterator over at most limit messages.
+     */
+    public Iterator<Message> iterateByPriority(int limit) {
+        expireIfNeeded();
+        return getLoadedIndex().iterator(limit);
+    }
+
+    /**
+     * Returns the current version of the feed, which increases whenever a
+     * message is added to or removed from it or changes priority or flags.
+     * Read it before reading the feed, and pass it to getChangesSince() later
+     * to find out what changed after the read.
+     * 
+     * Versions keep increasing when the process restarts, so they may be
+     * saved; getChangesSince() will just report that a version from an
+     * earlier process is too old.
+     * 
+     * @return The version.
+     */
+    public long getVersion() {
+        return getLoadedIndex().getVersion();
+    }
+
+    /**
+     * Finds the changes to the feed made after the given version, so that a
+     * copy of the feed can be brought up to date without reading it all again.
+     * Only the most recent MessageIndex.MAX_CHANGES changed messages are
+     * remembered, so this may fail for old versions; the caller should then
+     * reread the feed.
+     * 
+     * Applying the result to a copy that already reflects some of the changes
+     * does no harm.
+     * 
+     * @param version
+     *            A version returned by getVersion() or by an earlier
+     *            Changes.getVersion().
+     * @return The changes, or null if the feed must be read again.
+     */
+    public Changes getChangesSince(long version) {
+        expireIfNeeded();
+        MessageIndex index = getLoadedIndex();
+        synchronized (index) {
+            List<String> ids = index.changedSince(version);
+            if (ids == null) {
+                return null;
+            }
+            List<Message> changed = new ArrayList<Message>();
+            Set<String> removed = new HashSet<String>();
+            for (String id : ids) {
+                Message m = index.get(id);
+                if (m == null) {
+                    removed.add(id);
+                } else {
+                    changed.add(m);
+                }
+            }
+            return new Changes(index.getVersion(), changed, removed);
+        }
     }
 
     /**
@@ -200,15 +909,16 @@ public class MessageStore {
      *            be [0,1].
      * 
      * @return Returns true if the message was added. If the message already
-     *         exists, does not modify the store and returns false.
+     *         exists, does not modify the store and returns false. If the
+     *         store is full of messages that outrank it, the message is
+     *         evicted right away and false is returned.
      */
     public boolean addMessage(String msg, double priority) {
         checkPriority(priority);
 
         // Check whether we have the message already (perhaps in another bin).
-        // TODO(barath): Consider improving performance by selecting a different
-        // key.
-        String msgPriorityKey = MESSAGE_PRIORITY_KEY + msg;
+        String id = getMessageId(msg);
+        String msgPriorityKey = getMessagePriorityKey(id);
 
         // A value less than all priorities in the store.
         final double MIN_PRIORITY = -1.0f;
@@ -220,23 +930,151 @@ public class MessageStore {
 
         // Get the existing message set for the bin, if it exists.
         String binKey = getBinKeyForPriority(priority);
-        Set<String> msgs = store.getSet(binKey);
-        if (msgs == null) {
-            msgs = new HashSet<String>();
+        Set<String> ids = store.getSet(binKey);
+        if (ids == null) {
+            ids = new HashSet<String>();
         }
 
         // Add the message with the given priority, and to the bin.
+        long arrival = System.currentTimeMillis();
+        store.beginTransaction();
+        store.put(getMessageTextKey(id), msg);
         store.putDouble(msgPriorityKey, priority);
-        msgs.add(msg);
-        store.putSet(binKey, msgs);
+        store.putLong(getArrivalKey(id), arrival);
+        ids.add(id);
+        store.putSet(binKey, ids);
+        store.commitTransaction();
+        mIndex.put(new Message(id, priority, msg, arrival));
+        expireIfNeeded();
+        if (evictIfNeeded().contains(id)) {
+            return false;
+        }
 
         /** Sending the broadcast here when a message is added to the phone. **/
-        Intent intent = new Intent();
-        intent.setAction(NEW_MESSAGE);
-        mContext.sendBroadcast(intent);
+        MessageChangeNotifier.getInstance(mContext).messagesChanged(NEW_MESSAGE,
+                Collections.singleton(id));
         return true;
     }
 
+    /**
+     * Merges the messages received in an exchange into the store. Computes each
+     * message's new priority with Exchange.newPriority, then adds the new
+     * messages and updates the priorities of known ones in a single
+     * transaction, and reports all the changed messages to the
+     * MessageChangeNotifier at once. Messages evicted right away to keep the
+     * store within its capacity are neither reported nor counted.
+     * 
+     * Peers send decayed priorities, so a known message's priority is merged
+     * with its decayed one too. If the peer's wins, the message starts decaying
+     * afresh from it, as though it had just arrived.
+     * 
+     * Messages with out-of-range priorities are logged and skipped. If the same
+     * text appears more than once, the later copy is merged with the priority
+     * computed for the earlier one.
+     * 
+     * @param messages
+     *            The messages received from the peer.
+     * @param commonFriends
+     *            The number of friends in common with the peer.
+     * @param myFriendCount
+     *            The number of friends we have.
+     * @return The number of messages added or whose priority changed.
+     */
+    public int applyExchangeResults(List<RangzenMessage> messages,
+            int commonFriends, int myFriendCount) {
+        // Compute every new priority before writing anything.
+        long now = System.currentTimeMillis();
+        Map<String, Message> updates = new LinkedHashMap<String, Message>();
+        for (RangzenMessage message : messages) {
+            if (message.text == null || message.priority == null) {
+                Log.w(TAG, "Skipping received message with no text or priority.");
+                continue;
+            }
+            String id = getMessageId(message.text);
+            Message current = updates.get(id);
+            if (current == null) {
+                double stored = store.getDouble(getMessagePriorityKey(id), NOT_FOUND);
+                if (stored != NOT_FOUND) {
+                    current = new Message(id, stored, message.text,
+                            store.getLong(getArrivalKey(id), 0));
+                }
+            }
+            double effective = (current != null)
+                    ? mIndex.effectivePriority(current, now) : NOT_FOUND;
+            double newPriority = Exchange.newPriority(message.priority, effective,
+                    commonFriends, myFriendCount);
+            if (current != null && newPriority <= effective) {
+                // Ours is at least as high, so the message is unchanged.
+                updates.put(id, current);
+                continue;
+            }
+            try {
+                checkPriority(newPriority);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, String.format("Attempted to add/update message %s with priority (%f/%f)"
+                        + ", %d friends, %d friends in common", message.text,
+                        newPriority, message.priority, myFriendCount, commonFriends));
+                continue;
+            }
+            updates.put(id, new Message(id, newPriority, message.text, now));
+        }
+
+        // Bins are read once each and written back once at the end, since reads
+        // inside the transaction don't see its own writes.
+        Map<String, Set<String>> bins = new HashMap<String, Set<String>>();
+        List<Message> changed = new ArrayList<Message>();
+        store.beginTransaction();
+        try {
+            for (Message m : updates.values()) {
+                String id = m.getId();
+                double stored = store.getDouble(getMessagePriorityKey(id), NOT_FOUND);
+                if (stored == m.getPriority()
+                        && store.getLong(getArrivalKey(id), 0) == m.getArrivalTime()) {
+                    continue;
+                }
+                if (stored == NOT_FOUND) {
+                    String binKey = getBinKeyForPriority(m.getPriority());
+                    Set<String> bin = bins.get(binKey);
+                    if (bin == null) {
+                        bin = store.getSet(binKey);
+                        if (bin == null) {
+                            bin = new HashSet<String>();
+                        }
+                        bins.put(binKey, bin);
+                    }
+                    bin.add(id);
+                    store.put(getMessageTextKey(id), m.getMessage());
+                }
+                store.putLong(getArrivalKey(id), m.getArrivalTime());
+                store.putDouble(getMessagePriorityKey(id), m.getPriority());
+                changed.add(m);
+            }
+            for (Map.Entry<String, Set<String>> bin : bins.entrySet()) {
+                store.putSet(bin.getKey(), bin.getValue());
+            }
+        } catch (RuntimeException e) {
+            store.abortTransaction();
+            throw e;
+        }
+        if (!store.commitTransaction()) {
+            Log.e(TAG, "Failed to write results of exchange to disk.");
+        }
+
+        for (Message m : changed) {
+            mIndex.put(m);
+        }
+        expireIfNeeded();
+        Set<String> evicted = evictIfNeeded();
+        List<String> changedIds = new ArrayList<String>();
+        for (Message m : changed) {
+            if (!evicted.contains(m.getId())) {
+                changedIds.add(m.getId());
+            }
+        }
+        MessageChangeNotifier.getInstance(mContext).messagesChanged(NEW_MESSAGE, changedIds);
+        return changedIds.size();
+    }
+
     /**
      * Get the priority of a message, if it exists in the store.
      * 
@@ -246,7 +1084,7 @@ public class MessageStore {
      *         MessageStore.NOT_FOUND if the message is not in the store.
      */
     public double getPriority(String msg) {
-        String msgPriorityKey = MESSAGE_PRIORITY_KEY + msg;
+        String msgPriorityKey = getMessagePriorityKey(getMessageId(msg));
         return store.getDouble(msgPriorityKey, NOT_FOUND);
     }
 
@@ -266,12 +1104,14 @@ public class MessageStore {
         // A value less than all priorities in the store.
         final double MIN_PRIORITY = -1.0f;
 
-        String msgPriorityKey = MESSAGE_PRIORITY_KEY + msg;
+        String id = getMessageId(msg);
+        String msgPriorityKey = getMessagePriorityKey(id);
         boolean found = !(store.getDouble(msgPriorityKey, NOT_FOUND) < MIN_PRIORITY);
         if (!found) {
             return false;
         }
         store.putDouble(msgPriorityKey, priority);
+        mIndex.put(new Message(id, priority, msg));
         return true;
     }
 
@@ -286,7 +1126,7 @@ public class MessageStore {
         // A value less than all priorities in the store.
         final double MIN_PRIORITY = -1.0f;
 
-        String msgPriorityKey = MESSAGE_PRIORITY_KEY + msg;
+        String msgPriorityKey = getMessagePriorityKey(getMessageId(msg));
 
         return !(store.getDouble(msgPriorityKey, NOT_FOUND) < MIN_PRIORITY);
     }
@@ -301,32 +1141,76 @@ public class MessageStore {
      *         found, returns false.
      */
     public boolean deleteMessage(String msg) {
-        Log.d(TAG, msg);
-        // TODO(barath): Implement.
-        String msgPriorityKey = MESSAGE_PRIORITY_KEY + msg;
-        String saveKey = "RangzenSavedMessage-" + msg;
-        Double d = store.getDouble(msgPriorityKey, NOT_FOUND);
-        Log.d(TAG, d.toString());
+        String id = getMessageId(msg);
+        String msgPriorityKey = getMessagePriorityKey(id);
+        String saveKey = getSavedPriorityKey(id);
+        double d = store.getDouble(msgPriorityKey, NOT_FOUND);
+        if (d == NOT_FOUND) {
+            // A message can be in a bin only because it was saved.
+            d = store.getDouble(saveKey, NOT_FOUND);
+        }
+        if (d == NOT_FOUND) {
+            return false;
+        }
         // Get the existing message set for the bin, if it exists.
         String binKey = getBinKeyForPriority(d);
-        Set<String> msgs = store.getSet(binKey);
-        Log.d(TAG, Boolean.toString(msgs.contains(msg)));
-        
+        Set<String> ids = store.getSet(binKey);
+
+        store.beginTransaction();
         store.removeDouble(msgPriorityKey);
         store.removeDouble(saveKey); //removing the saved message
-        msgs.remove(msg);
-        Log.d(TAG, Boolean.toString(msgs.contains(msg)));
-        store.putSet(binKey, msgs);
-        d = store.getDouble(msgPriorityKey, NOT_FOUND);
-        Log.d(TAG, d.toString());
-        
-        //Remove the saved and retweet storage base ints if any
-        store.removeInt("SAVE" + msg);
-        store.removeInt("RETWEET" + msg);
+        store.remove(getMessageTextKey(id));
+        store.remove(getArrivalKey(id));
+        if (ids != null) {
+            ids.remove(id);
+            store.putSet(binKey, ids);
+        }
+        store.remove(getFlagsKey(id));
+        store.commitTransaction();
+        mIndex.remove(id);
 
         return true;
     }
 
+    /**
+     * Returns the flags of a message.
+     * 
+     * @param msg
+     *            The text of the message.
+     * @return Some combination of FLAG_SAVED, FLAG_RETWEETED and FLAG_DELETED,
+     *         or 0 if the message has none or isn't in the store.
+     */
+    public int getFlags(String msg) {
+        return store.getInt(getFlagsKey(getMessageId(msg)), 0);
+    }
+
+    /**
+     * Sets or clears one or more flags of a message. The flags are carried by
+     * the Message objects the store returns from then on, so that the feed can
+     * show them without reading the store.
+     * 
+     * @param msg
+     *            The text of the message.
+     * @param flags
+     *            The flags to change, such as FLAG_RETWEETED.
+     * @param set
+     *            True to set the flags, false to clear them.
+     * @return False if the message isn't in the store, true otherwise.
+     */
+    public boolean setFlags(String msg, int flags, boolean set) {
+        String id = getMessageId(msg);
+        if (store.get(getMessageTextKey(id)) == null) {
+            return false;
+        }
+        int current = store.getInt(getFlagsKey(id), 0);
+        int updated = set ? (current | flags) : (current & ~flags);
+        if (updated != current) {
+            store.putInt(getFlagsKey(id), updated);
+            mIndex.setFlags(id, updated);
+        }
+        return true;
+    }
+
     /**
      * Returns the given message's priority, if present.
      * 
@@ -338,75 +1222,105 @@ public class MessageStore {
      * @return Returns msg's priority or defvalue if not found.
      */
     public double getMessagePriority(String msg, double defvalue) {
-        return store.getDouble(getMessagePriorityKey(msg), defvalue);
+        return store.getDouble(getMessagePriorityKey(getMessageId(msg)), defvalue);
     }
 
     /**
-     * This method goes through every message in all of the bins and inserts
-     * them into an array list by trust score and then in the case of a tie,
-     * alphabetically.
-     * 
-     * @param k
-     *            The index of the message to return.
+     * Returns the messages of the given type in an array list ordered by trust
+     * score and then in the case of a tie, alphabetically. Regular messages and
+     * searches are served from the priority and term indexes; saved messages
+     * are found by going through every message in all of the bins.
      * 
      * @param type
-     *            0 - regular messages, 1 - saved messages
-     * @return A message object that is the kth most trusted.
+     *            0 - regular messages, 1 - saved messages, 3 - messages
+     *            matching query
+     * @param query
+     *            The search, for SEARCHED_MESSAGES. Matches messages
+     *            containing, for every word of the query, a word starting with
+     *            it, ignoring case. See MessageIndex.terms().
+     * @return The messages, most trusted first.
      */
     public ArrayList<Message> getAllMessages(int type, String query) {
         //Log.d(TAG, "type " + Integer.toString(type));
         ArrayList<Message> topk = new ArrayList<Message>();
+        expireIfNeeded();
+
+        if (type == NOT_SAVED_MESSAGES) {
+            // Already in order in the index.
+            Iterator<Message> it = iterateByPriority(Integer.MAX_VALUE);
+            while (it.hasNext()) {
+                topk.add(it.next());
+            }
+            return topk;
+        }
+
+        if (type == SEARCHED_MESSAGES) {
+            // Queries made up only of punctuation have no terms to look up, so
+            // those still fall through to a scan.
+            Set<String> terms = MessageIndex.terms(query);
+            if (!terms.isEmpty()) {
+                topk.addAll(getLoadedIndex().search(terms));
+                return topk;
+            }
+        }
 
         for (int bin = NUM_BINS - 1; bin >= 0; bin--) {
             String binKey = getBinKey(bin);
-            Set<String> msgs = store.getSet(binKey);
-            if (msgs == null)
+            Set<String> ids = store.getSet(binKey);
+            if (ids == null)
                 continue;
 
-            for (String m : msgs) {
+            for (String id : ids) {
                 if (type == SAVED_MESSAGES) {
                     // get saved priority
                     // check if message exists as a saved message
                     // add to topk if so
-                    String msgPriorityKey = "RangzenSavedMessage-" + m;
-                    double p = store.getDouble(msgPriorityKey, NOT_FOUND);
-                    if (p != NOT_FOUND) {
-                        topk.add(new Message(p, m));
-                    }
-                } else if (type == NOT_SAVED_MESSAGES) {
-                    double priority = getMessagePriority(m, -1);
-                    if (priority != -1) {
-                        topk.add(new Message(priority, m));
+                    double p = store.getDouble(getSavedPriorityKey(id), NOT_FOUND);
+                    String m = getText(id);
+                    if (p != NOT_FOUND && m != null) {
+                        topk.add(new Message(id, p, m, store.getLong(getArrivalKey(id), 0),
+                                store.getInt(getFlagsKey(id), 0)));
                     }
                 } else {
-                    if (m.contains(query)) {
-                        double priority = getMessagePriority(m, -1);
+                    String m = getText(id);
+                    if (m != null && m.contains(query)) {
+                        double priority = store.getDouble(getMessagePriorityKey(id), -1);
                         if (priority != -1) {
-                            topk.add(new Message(priority, m));
+                            topk.add(new Message(id, priority, m));
                         } 
                     }
                 }
             }
         }
-        Collections.sort(topk, new Comparator<Message>() {
-
-            @Override
-            public int compare(Message lhs, Message rhs) {
-                Message left = (Message) lhs;
-                Message right = (Message) rhs;
-                if (left.getPriority() > right.getPriority()) {
-                    return -1;
-                } else if (left.getPriority() < right.getPriority()) {
-                    return 1;
-                } else {
-                    return left.getMessage().compareTo(right.getMessage());
-                }
-            }
-        });
+        Collections.sort(topk, MessageIndex.PRIORITY_ORDER);
         return topk;
     }
-    
+
+    /**
+     * Returns the kth message in priority order. For unsaved messages this
+     * walks the priority index, so it is O(k); to read several messages in a
+     * row, use iterateByPriority instead.
+     * 
+     * @param k
+     *            The index of the message to return.
+     * @param type
+     *            One of NOT_SAVED_MESSAGES, SAVED_MESSAGES or SEARCHED_MESSAGES.
+     * @param query
+     *            The search string, if type is SEARCHED_MESSAGES.
+     * @return The kth message, or null if there are k or fewer messages.
+     */
     public Message getKthMessage(int k, int type, String query) {
+        if (type == NOT_SAVED_MESSAGES) {
+            Iterator<Message> it = iterateByPriority(k + 1);
+            Message m = null;
+            for (int i = 0; i <= k; i++) {
+                if (!it.hasNext()) {
+                    return null;
+                }
+                m = it.next();
+            }
+            return m;
+        }
         ArrayList<Message> topk = getAllMessages(type, query);
         if (topk.size() - 1 < k) {
             return null;
@@ -415,10 +1329,10 @@ public class MessageStore {
     }
 
     /**
-     * This method stores a message into the storage base with the prefix,
-     * "RangzenSavedMessage-". That will be the way that the saved message will
-     * be distinct from non-saved. It does the same thing as addMessage but with
-     * a different tag.
+     * This method stores a message's saved priority into the storage base with
+     * the prefix, "RangzenSavedPriority-". That will be the way that the saved
+     * message will be distinct from non-saved. It does the same thing as
+     * addMessage but with a different tag.
      * 
      * @param msg
      *            - Message to be saved.
@@ -431,9 +1345,8 @@ public class MessageStore {
         checkPriority(priority);
 
         // Check whether we have the message already (perhaps in another bin).
-        // TODO(barath): Consider improving performance by selecting a different
-        // key.
-        String msgPriorityKey = "RangzenSavedMessage-" + msg;
+        String id = getMessageId(msg);
+        String msgPriorityKey = getSavedPriorityKey(id);
 
         // A value less than all priorities in the store.
         final double MIN_PRIORITY = -1.0f;
@@ -445,49 +1358,186 @@ public class MessageStore {
 
         // Get the existing message set for the bin, if it exists.
         String binKey = getBinKeyForPriority(priority);
-        Set<String> msgs = store.getSet(binKey);
-        if (msgs == null) {
-            msgs = new HashSet<String>();
+        Set<String> ids = store.getSet(binKey);
+        if (ids == null) {
+            ids = new HashSet<String>();
         }
 
         // Add the message with the given priority, and to the bin.
+        int flags = store.getInt(getFlagsKey(id), 0) | FLAG_SAVED;
+        store.beginTransaction();
+        store.put(getMessageTextKey(id), msg);
         store.putDouble(msgPriorityKey, priority);
-        msgs.add(msg);
-        store.putSet(binKey, msgs);
+        store.putInt(getFlagsKey(id), flags);
+        ids.add(id);
+        store.putSet(binKey, ids);
+        store.commitTransaction();
+        mIndex.setFlags(id, flags);
 
         /**
          * Sending the broadcast here when a message is added to the phone.
          **/
-        Intent intent = new Intent();
-        intent.setAction(SAVE_MESSAGE);
-        mContext.sendBroadcast(intent);
+        MessageChangeNotifier.getInstance(mContext).messagesChanged(SAVE_MESSAGE,
+                Collections.singleton(id));
         return true;
     }
 
     /**
-     * Message Object that contains the message's priority and the contents of
-     * the message.
+     * The changes to the feed between two versions, as returned by
+     * getChangesSince().
+     */
+    public static class Changes {
+        /** The version the changes bring the feed up to. */
+        private long mVersion;
+        /** Messages added or changed, as they are now. */
+        private List<Message> mChanged;
+        /** IDs of the messages removed. */
+        private Set<String> mRemoved;
+
+        /* package */ Changes(long version, List<Message> changed, Set<String> removed) {
+            mVersion = version;
+            mChanged = changed;
+            mRemoved = removed;
+        }
+
+        /**
+         * @return The version of the feed once the changes are applied; pass
+         *         it to the next call to getChangesSince().
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * @return The messages added to the feed or whose priority or flags
+         *         changed, as they are now. Any older copy of each should be
+         *         replaced; its position in FEED_ORDER may have changed.
+         */
+        public List<Message> getChanged() {
+            return mChanged;
+        }
+
+        /**
+         * @return The IDs of the messages removed from the feed, which may
+         *         include messages added and removed since the version.
+         */
+        public Set<String> getRemoved() {
+            return mRemoved;
+        }
+
+        /** @return True if nothing changed. */
+        public boolean isEmpty() {
+            return mChanged.isEmpty() && mRemoved.isEmpty();
+        }
+    }
+
+    /**
+     * Message Object that contains the message's ID, priority and the contents
+     * of the message.
      * 
      * @author Jesus Garcia
      * 
      */
-    public class Message {
+    public static class Message {
+        /** The ID of the message, derived from its contents. */
+        private String mId;
         /** The priority of the message. */
         private double mPriority;
         /** The contents of the message. */
         private String mMessage;
+        /** When the message arrived, in ms since the epoch, or 0 if unknown. */
+        private long mArrivalTime;
+        /** The key the message is ordered by; see MessageIndex.rank(). */
+        private double mRank;
+        /** The message's flags, such as FLAG_SAVED. */
+        private int mFlags;
 
         public Message(double priority, String message) {
+            this(getMessageId(message), priority, message);
+        }
+
+        /* package */ Message(String id, double priority, String message) {
+            this(id, priority, message, 0);
+        }
+
+        /* package */ Message(String id, double priority, String message,
+                long arrivalTime) {
+            this(id, priority, message, arrivalTime, 0);
+        }
+
+        /* package */ Message(String id, double priority, String message,
+                long arrivalTime, int flags) {
+            mId = id;
             mPriority = priority;
             mMessage = message;
+            mArrivalTime = arrivalTime;
+            mFlags = flags;
+            mRank = priority;
+        }
+
+        public String getId() {
+            return mId;
         }
 
         public String getMessage() {
             return mMessage;
         }
 
+        /**
+         * @return The priority the message was stored with. See
+         *         MessageStore.getEffectivePriority() for its decayed priority.
+         */
         public double getPriority() {
             return mPriority;
         }
+
+        /**
+         * @return When the message arrived, in milliseconds since the epoch,
+         *         or 0 if that isn't known.
+         */
+        public long getArrivalTime() {
+            return mArrivalTime;
+        }
+
+        /**
+         * @return The message's flags as they were when it was read from the
+         *         store: some combination of FLAG_SAVED, FLAG_RETWEETED and
+         *         FLAG_DELETED.
+         */
+        public int getFlags() {
+            return mFlags;
+        }
+
+        /**
+         * @param flag
+         *            A flag, such as FLAG_SAVED.
+         * @return True if the message has the flag.
+         */
+        public boolean hasFlag(int flag) {
+            return (mFlags & flag) != 0;
+        }
+
+        /**
+         * Returns a copy of this message with different flags. Doesn't change
+         * the store; use MessageStore.setFlags() for that.
+         * 
+         * @param flags
+         *            The copy's flags.
+         * @return The copy.
+         */
+        public Message withFlags(int flags) {
+            Message copy = new Message(mId, mPriority, mMessage, mArrivalTime, flags);
+            copy.mRank = mRank;
+            return copy;
+        }
+
+        /* package */ double getRank() {
+            return mRank;
+        }
+
+        /** Only called by MessageIndex, before the message is indexed. */
+        /* package */ void setRank(double rank) {
+            mRank = rank;
+        }
     }
 }
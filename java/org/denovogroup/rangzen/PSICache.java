@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.util.Log;
+
+import org.denovogroup.rangzen.Crypto.PSIGroup;
+import org.denovogroup.rangzen.Crypto.PrivateSetIntersection;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Precomputed PSI state for a set of friends, so that exchanges don't have
+ * to exponentiate before they can start.
+ *
+ * Each friend is mapped into the group once and kept for as long as they're
+ * a friend. On top of that a small pool of PrivateSetIntersections, each
+ * blinded with its own fresh private value, is kept full in the background.
+ * Every PrivateSetIntersection is handed out once, since reusing a private
+ * value across exchanges would let peers link them.
+ *
+ * The state is for one group, and for the set of friends it was last asked
+ * about; asking about another set, or calling invalidate(), throws away the
+ * pool.
+ *
+ * @param <E> The type of the group's elements.
+ */
+/* package */ class PSICache<E> {
+  /** Tag for Android log messages. */
+  private static final String TAG = "PSICache";
+
+  /** How many PrivateSetIntersections to keep ready; an exchange uses two. */
+  /* package */ static final int POOL_SIZE = 4;
+
+  /** Background thread that fills the pool. */
+  private static final Executor sPrecomputer =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, TAG);
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+
+  /** The group the PSI state is in. */
+  private final PSIGroup<E> mGroup;
+
+  /** The friends (base64) the pool is for, or null if there are none yet. Guarded by this. */
+  private Set<String> mFriends;
+
+  /** Each friend mapped into the group, by friend (base64). Guarded by this. */
+  private final Map<String, E> mItems = new HashMap<String, E>();
+
+  /** PrivateSetIntersections ready to be handed out. Guarded by this. */
+  private final LinkedList<PrivateSetIntersection> mPool =
+      new LinkedList<PrivateSetIntersection>();
+
+  /** Bumped whenever the pool is thrown away, to drop stale precomputation. Guarded by this. */
+  private int mGeneration;
+
+  /** Whether a background fill is scheduled or running. Guarded by this. */
+  private boolean mFilling;
+
+  /**
+   * Create an empty cache.
+   *
+   * @param group The group the PSI state is to be in.
+   */
+  public PSICache(PSIGroup<E> group) {
+    mGroup = group;
+  }
+
+  /**
+   * Take a PrivateSetIntersection for the given friends, which no one else
+   * will be given. If none is ready, one is made on the calling thread. Either
+   * way the pool is refilled in the background.
+   *
+   * @param friends The friends to intersect, as base64.
+   * @return A fresh PrivateSetIntersection over the friends.
+   */
+  public PrivateSetIntersection take(Set<String> friends) throws NoSuchAlgorithmException {
+    List<E> items;
+    synchronized (this) {
+      setFriends(friends);
+      PrivateSetIntersection psi = mPool.poll();
+      fill();
+      if (psi != null) {
+        return psi;
+      }
+      items = getItems();
+    }
+    if (items == null) {
+      items = computeItems(friends);
+    }
+    return new PrivateSetIntersection(mGroup, items);
+  }
+
+  /**
+   * Fill the pool for the given friends in the background, so that the next
+   * exchange doesn't have to wait.
+   *
+   * @param friends The friends to intersect, as base64.
+   */
+  public synchronized void prepare(Set<String> friends) {
+    setFriends(friends);
+    fill();
+  }
+
+  /**
+   * Throw away the pool, since the friends have changed. Friends already
+   * mapped into the group are kept, so only new friends will need it.
+   */
+  public synchronized void invalidate() {
+    mFriends = null;
+    mPool.clear();
+    mGeneration++;
+  }
+
+  /** @return How many PrivateSetIntersections are ready. */
+  public synchronized int getPoolSize() {
+    return mPool.size();
+  }
+
+  /**
+   * Switch to the given friends, throwing away the pool if they've changed.
+   * Must hold the lock.
+   */
+  private void setFriends(Set<String> friends) {
+    if (friends.equals(mFriends)) {
+      return;
+    }
+    invalidate();
+    mFriends = new HashSet<String>(friends);
+    mItems.keySet().retainAll(mFriends);
+  }
+
+  /**
+   * @return The friends mapped into the group, or null if some haven't been
+   * yet. Must hold the lock.
+   */
+  private List<E> getItems() {
+    if (!mItems.keySet().containsAll(mFriends)) {
+      return null;
+    }
+    List<E> items = new ArrayList<E>(mFriends.size());
+    for (String friend : mFriends) {
+      items.add(mItems.get(friend));
+    }
+    return items;
+  }
+
+  /**
+   * Map friends into the group, reusing what's been mapped already, and keep
+   * the results if the friends haven't changed in the meantime.
+   */
+  private List<E> computeItems(Set<String> friends) throws NoSuchAlgorithmException {
+    Map<String, E> known;
+    synchronized (this) {
+      known = new HashMap<String, E>(mItems);
+    }
+    Map<String, E> computed = new HashMap<String, E>();
+    List<E> items = new ArrayList<E>(friends.size());
+    for (String friend : friends) {
+      E item = known.get(friend);
+      if (item == null) {
+        item = mGroup.hashToGroup(FriendStore.base64ToBytes(friend));
+        computed.put(friend, item);
+      }
+      items.add(item);
+    }
+    synchronized (this) {
+      if (friends.equals(mFriends)) {
+        mItems.putAll(computed);
+      }
+    }
+    return items;
+  }
+
+  /** Schedule a background fill of the pool unless one is pending. Must hold the lock. */
+  private void fill() {
+    if (mFilling || mFriends == null || mPool.size() >= POOL_SIZE) {
+      return;
+    }
+    mFilling = true;
+    sPrecomputer.execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean more = true;
+        try {
+          while (more) {
+            more = fillOne();
+          }
+        } catch (NoSuchAlgorithmException e) {
+          Log.e(TAG, "Can't precompute PSI: " + e);
+        } finally {
+          if (more) {
+            synchronized (PSICache.this) {
+              mFilling = false;
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Add one PrivateSetIntersection to the pool.
+   *
+   * @return True if the pool may need more, false if it's full or there are
+   * no friends to precompute for, in which case the fill is over.
+   */
+  private boolean fillOne() throws NoSuchAlgorithmException {
+    Set<String> friends;
+    List<E> items;
+    int generation;
+    synchronized (this) {
+      if (mFriends == null || mPool.size() >= POOL_SIZE) {
+        mFilling = false;
+        return false;
+      }
+      friends = mFriends;
+      items = getItems();
+      generation = mGeneration;
+    }
+    if (items == null) {
+      items = computeItems(friends);
+    }
+    PrivateSetIntersection psi = new PrivateSetIntersection(mGroup, items);
+    synchronized (this) {
+      if (generation == mGeneration && mPool.size() < POOL_SIZE) {
+        mPool.add(psi);
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads per-item PSI work, mostly modPows, across the device's cores.
+ *
+ * The items are cut into one chunk per core; the calling thread works on the
+ * first chunk while the pool's threads work on the rest, and the results come
+ * back in the order of the items. Small inputs aren't worth handing off and
+ * are done on the calling thread.
+ *
+ * Operations must not themselves use ParallelExponentiation, since they'd wait
+ * on the pool from inside it.
+ */
+public final class ParallelExponentiation {
+  /** Tag for Android log messages and thread names. */
+  private static final String TAG = "ParallelExponentiation";
+
+  /** Threads to work with, counting the caller. */
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  /** Fewest items worth handing to another thread. */
+  /* package */ static final int MIN_CHUNK_SIZE = 4;
+
+  /** Threads that work alongside the caller. Created on first use. */
+  private static ExecutorService sPool;
+
+  /** Whether to use the pool at all; turned off to compare in benchmarks. */
+  private static volatile boolean sParallel = true;
+
+  /** Not instantiated. */
+  private ParallelExponentiation() {
+  }
+
+  /**
+   * Something to do to each item.
+   *
+   * @param <T> The type of the items.
+   * @param <R> The type of the results.
+   */
+  public interface Operation<T, R> {
+    /**
+     * Do the operation to one item. Called from several threads at once.
+     *
+     * @param item The item.
+     * @return The result for the item.
+     */
+    public R apply(T item) throws NoSuchAlgorithmException;
+  }
+
+  /**
+   * Do an operation to each of some items, in parallel if there are enough.
+   *
+   * @param items The items.
+   * @param operation The operation to do to each.
+   * @return The results, in the order of the items.
+   */
+  public static <T, R> List<R> map(List<T> items, Operation<T, R> operation)
+      throws NoSuchAlgorithmException {
+    int chunks = Math.min(THREADS, items.size() / MIN_CHUNK_SIZE);
+    if (!sParallel || chunks < 2) {
+      return mapChunk(items, operation);
+    }
+    ExecutorService pool = getPool();
+    List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>(chunks - 1);
+    try {
+      for (int i = 1; i < chunks; i++) {
+        final List<T> chunk = items.subList(items.size() * i / chunks,
+                                            items.size() * (i + 1) / chunks);
+        final Operation<T, R> op = operation;
+        futures.add(pool.submit(new Callable<List<R>>() {
+          @Override
+          public List<R> call() throws NoSuchAlgorithmException {
+            return mapChunk(chunk, op);
+          }
+        }));
+      }
+      List<R> results = mapChunk(items.subList(0, items.size() / chunks), operation);
+      for (Future<List<R>> future : futures) {
+        results.addAll(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while exponentiating: " + e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Exponentiation failed: " + cause);
+    } finally {
+      // Don't leave work behind if we've given up on it.
+      for (Future<List<R>> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /** Do an operation to each item in turn, on the calling thread. */
+  private static <T, R> List<R> mapChunk(List<T> items, Operation<T, R> operation)
+      throws NoSuchAlgorithmException {
+    List<R> results = new ArrayList<R>(items.size());
+    for (T item : items) {
+      results.add(operation.apply(item));
+    }
+    return results;
+  }
+
+  /** @return The pool, creating it if need be. */
+  private static synchronized ExecutorService getPool() {
+    if (sPool == null) {
+      sPool = Executors.newFixedThreadPool(THREADS - 1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, TAG);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return sPool;
+  }
+
+  /**
+   * Turn parallelism on or off, e.g. to compare the two.
+   *
+   * @param parallel Whether to spread work across cores.
+   */
+  /* package */ static void setParallel(boolean parallel) {
+    sParallel = parallel;
+  }
+
+  /** @return The number of threads work is spread across, counting the caller. */
+  public static int getThreads() {
+    return sParallel ? THREADS : 1;
+  }
+}
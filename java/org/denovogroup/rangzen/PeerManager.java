@@ -47,10 +47,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Date;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * This module exposes an API for the application to find out the current 
@@ -83,6 +85,39 @@ public class PeerManager {
   /** Remembers the last time we attempted an exchange with a peer. */
   private Map<String, Date> exchangeAttemptTimes = new HashMap<String, Date>();
 
+  /** Addresses of peers that sent a message summary in their last exchange. */
+  private Set<String> reconcilingPeers = new HashSet<String>();
+
+  /** Addresses of peers that spoke version 1 of the protocol in their last exchange. */
+  private Set<String> legacyPeers = new HashSet<String>();
+
+  /** Sessions of exchanges with peers that were cut off and can be resumed. */
+  private Map<String, ExchangeSession> resumableSessions = new HashMap<String, ExchangeSession>();
+
+  /** Estimates of the links to peers we've exchanged with. */
+  private Map<String, LinkEstimate> linkEstimates = new HashMap<String, LinkEstimate>();
+
+  /** Estimate over the links to all peers, for peers not yet measured. */
+  private LinkEstimate bluetoothLinkEstimate = new LinkEstimate();
+
+  /** Histograms of the measurements of recent exchanges, for debugging. */
+  private ExchangeHistograms exchangeHistograms = new ExchangeHistograms();
+
+  /** 
+   * The time in which we aim to finish an exchange, in ms. Exchanges are sized
+   * to fit it, so that they're likely to finish before the peer moves away.
+   */
+  public static final long TARGET_EXCHANGE_MILLIS = 10 * 1000;
+
+  /** Persistent storage for per-peer sync watermarks and hello answers. */
+  private StorageBase mStore;
+
+  /** Key prefix under which the watermark of each peer is stored. */
+  private static final String WATERMARK_KEY = "RangzenPeerWatermark-";
+
+  /** Key prefix under which whether each peer answers hellos is stored. */
+  private static final String ANSWERS_HELLO_KEY = "RangzenPeerAnswersHello-";
+
   /** 
    * The length of time (in milliseconds) we consider peers valid. 
    * TODO(lerner): Decide on an appropriate value for this.
@@ -116,6 +151,7 @@ public class PeerManager {
   private PeerManager(Context context) {
     mCurrentPeers = new ArrayList<Peer>();
     mBroadcastManager = LocalBroadcastManager.getInstance(context); 
+    mStore = new StorageBase(context, StorageBase.ENCRYPTION_DEFAULT);
 
     Log.d(TAG, "Finished PeerManager constructor.");
   }
@@ -361,6 +397,222 @@ public class PeerManager {
     }
   }
 
+  /**
+   * Remember whether the peer sent a message summary in an exchange, so the
+   * next exchange with it can send only the messages it lacks.
+   *
+   * @param peer The remote peer about whom we are remembering.
+   * @param reconciles Whether the peer sent a message summary.
+   */
+  public synchronized void recordPeerReconciles(Peer peer, boolean reconciles) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      Log.e(TAG, "Recording reconciliation of non-bluetooth peer! Can't do it.");
+    } else if (reconciles) {
+      reconcilingPeers.add(device.getAddress());
+    } else {
+      reconcilingPeers.remove(device.getAddress());
+    }
+  }
+
+  /**
+   * Whether the peer sent a message summary in the last exchange with it. Like
+   * exchange times, this isn't persisted, so it is false for every peer after
+   * Rangzen restarts.
+   *
+   * @param peer The peer about which we are inquiring.
+   * @return True if the peer is known to send message summaries.
+   */
+  public synchronized boolean peerReconciles(Peer peer) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    return device != null && reconcilingPeers.contains(device.getAddress());
+  }
+
+  /**
+   * Remember whether the peer spoke version 1 of the exchange protocol, which
+   * has no hellos, so the next exchange with it can skip the hello, or
+   * answered our hello, so the next hello needn't carry our messages. Unlike
+   * the former, the latter is persisted, so hellos to known peers stay small
+   * after Rangzen restarts.
+   *
+   * @param peer The remote peer about whom we are remembering.
+   * @param legacy Whether the peer sent no protocol version.
+   */
+  public synchronized void recordPeerLegacy(Peer peer, boolean legacy) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      Log.e(TAG, "Recording protocol version of non-bluetooth peer! Can't do it.");
+    } else if (legacy) {
+      legacyPeers.add(device.getAddress());
+      mStore.remove(ANSWERS_HELLO_KEY + device.getAddress());
+    } else {
+      legacyPeers.remove(device.getAddress());
+      mStore.putInt(ANSWERS_HELLO_KEY + device.getAddress(), 1);
+    }
+  }
+
+  /**
+   * Whether the peer spoke version 1 of the exchange protocol in the last
+   * exchange with it. Not persisted, so false for every peer after Rangzen
+   * restarts.
+   *
+   * @param peer The peer about which we are inquiring.
+   * @return True if the peer is known to send no hello.
+   */
+  public synchronized boolean peerIsLegacy(Peer peer) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    return device != null && legacyPeers.contains(device.getAddress());
+  }
+
+  /**
+   * Whether the peer answered our hello in the last exchange with it. Unlike
+   * whether it is legacy, this is persisted.
+   *
+   * @param peer The peer about which we are inquiring.
+   * @return True if the peer is known to answer hellos.
+   */
+  public synchronized boolean peerAnswersHello(Peer peer) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    return device != null && mStore.getInt(ANSWERS_HELLO_KEY + device.getAddress(), 0) != 0;
+  }
+
+  /**
+   * Remember the session of the last exchange with the peer if it was cut off
+   * and can be resumed, or forget any session if it can't.
+   *
+   * @param peer The remote peer about whom we are remembering.
+   * @param session The session from CryptographicExchange.getSession(), or
+   * null if the exchange completed.
+   */
+  /* package */ synchronized void recordSession(Peer peer, ExchangeSession session) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      Log.e(TAG, "Recording session of non-bluetooth peer! Can't do it.");
+    } else if (session != null && session.isResumable()) {
+      resumableSessions.put(device.getAddress(), session);
+    } else {
+      resumableSessions.remove(device.getAddress());
+    }
+  }
+
+  /**
+   * Return the session of a cut off exchange with the peer, to pass to
+   * CryptographicExchange.setResumableSession(). Sessions aren't persisted,
+   * and expire ExchangeSession.RESUME_WINDOW_MILLIS after their last
+   * checkpoint.
+   *
+   * @param peer The peer about which we are inquiring.
+   * @return The session, or null if there's none to resume.
+   */
+  /* package */ synchronized ExchangeSession getSession(Peer peer) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      return null;
+    }
+    ExchangeSession session = resumableSessions.get(device.getAddress());
+    if (session != null && !session.isFresh(System.currentTimeMillis())) {
+      resumableSessions.remove(device.getAddress());
+      return null;
+    }
+    return session;
+  }
+
+  /**
+   * Add the throughput and round trip time measured in an exchange to the
+   * estimates of the link to the peer and of Bluetooth links in general.
+   *
+   * @param peer The remote peer the exchange was with.
+   * @param bytes Bytes received in the exchange's timed frames.
+   * @param nanos Time taken to receive them, in nanoseconds.
+   * @param roundTripNanos The exchange's round trip time, or -1 if unmeasured.
+   */
+  public synchronized void recordTransfer(Peer peer, long bytes, long nanos,
+                                          long roundTripNanos) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      Log.e(TAG, "Recording transfer of non-bluetooth peer! Can't do it.");
+      return;
+    }
+    LinkEstimate estimate = linkEstimates.get(device.getAddress());
+    if (estimate == null) {
+      estimate = new LinkEstimate();
+      linkEstimates.put(device.getAddress(), estimate);
+    }
+    for (LinkEstimate e : new LinkEstimate[] { estimate, bluetoothLinkEstimate }) {
+      e.addTransfer(bytes, nanos);
+      e.addRoundTrip(roundTripNanos);
+    }
+    Log.i(TAG, String.format("Link to %s: %.0f bytes/s, %.0fms round trip.", peer,
+                             estimate.getBytesPerSecond(), estimate.getRoundTripMillis()));
+  }
+
+  /**
+   * Return histograms of the measurements of recent exchanges, to which the
+   * measurements of each exchange are added once it's over. Like exchange
+   * times, these aren't persisted.
+   *
+   * @return The histograms.
+   */
+  public ExchangeHistograms getExchangeHistograms() {
+    return exchangeHistograms;
+  }
+
+  /**
+   * Return how many bytes of messages an exchange with the peer can send and
+   * still finish within TARGET_EXCHANGE_MILLIS, to pass to
+   * Exchange.setByteBudget(). Uses the estimate of the link to the peer if
+   * its throughput has been measured, or else that of Bluetooth links in
+   * general. Like exchange times, estimates aren't persisted.
+   *
+   * @param peer The peer about which we are inquiring.
+   * @return The budget, or Exchange.NO_BUDGET if no throughput is known.
+   */
+  public synchronized long getByteBudget(Peer peer) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    LinkEstimate estimate = null;
+    if (device != null) {
+      estimate = linkEstimates.get(device.getAddress());
+    }
+    if (estimate == null || !estimate.hasThroughput()) {
+      estimate = bluetoothLinkEstimate;
+    }
+    return estimate.getByteBudget(TARGET_EXCHANGE_MILLIS);
+  }
+
+  /**
+   * Remember the version of the message store last sent to the peer, so that
+   * the next exchange with it can leave out messages it already has. Unlike
+   * exchange times, watermarks are persisted.
+   *
+   * @param peer The remote peer about whom we are remembering.
+   * @param watermark The version returned by Exchange.getSentVersion().
+   */
+  public void recordWatermark(Peer peer, long watermark) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      Log.e(TAG, "Recording watermark of non-bluetooth peer! Can't do it.");
+    } else if (watermark == Exchange.NO_WATERMARK) {
+      mStore.remove(WATERMARK_KEY + device.getAddress());
+    } else {
+      mStore.putLong(WATERMARK_KEY + device.getAddress(), watermark);
+    }
+  }
+
+  /**
+   * Return the version of the message store last sent to the peer, to pass
+   * to Exchange.setWatermark().
+   *
+   * @param peer The peer about which we are inquiring.
+   * @return The watermark, or Exchange.NO_WATERMARK if none is known.
+   */
+  public long getWatermark(Peer peer) {
+    BluetoothDevice device = peer.getNetwork().getBluetoothDevice();
+    if (device == null) {
+      return Exchange.NO_WATERMARK;
+    }
+    return mStore.getLong(WATERMARK_KEY + device.getAddress(), Exchange.NO_WATERMARK);
+  }
+
   /**
    * Return a date representing the next time we should attempt an exchange with
    * this peer. If we don't remember ever speaking to the peer, returns the
@@ -41,6 +41,9 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.IBinder;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.System;
@@ -49,6 +52,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
@@ -102,6 +106,9 @@ public class RangzenService extends Service {
     /** The peer being spoken to at the moment. */
     public Peer currentPeer;
 
+    /** System.nanoTime() when we began connecting to currentPeer. */
+    private long mConnectStartNanoTime;
+
     /** Message store. */
     private MessageStore mMessageStore; 
     /** Ongoing exchange. */
@@ -117,6 +124,22 @@ public class RangzenService extends Service {
     private static final String LAST_EXCHANGE_TIME_KEY = 
                             "org.denovogroup.rangzen.LAST_EXCHANGE_TIME_KEY";
 
+    /** Key into storage to store whether to record traces of exchanges. */
+    private static final String TRACE_EXCHANGES_KEY =
+                            "org.denovogroup.rangzen.TRACE_EXCHANGES_KEY";
+
+    /** Directory, under the app's files, that exchange traces are kept in. */
+    public static final String TRACE_DIRECTORY = "exchange-traces";
+
+    /** Suffix of exchange trace files. */
+    public static final String TRACE_SUFFIX = ".trace";
+
+    /** Number of the most recent exchange traces kept. */
+    private static final int MAX_TRACES = 20;
+
+    /** Trace the ongoing exchange is being recorded to, or null. */
+    private ExchangeTrace mTrace;
+
     /** Time to wait between exchanges, in milliseconds. */
     private static final int TIME_BETWEEN_EXCHANGES_MILLIS = 10 * 1000;
 
@@ -166,6 +189,8 @@ public class RangzenService extends Service {
 
         mStore = new StorageBase(this, StorageBase.ENCRYPTION_DEFAULT);
         mFriendStore = new FriendStore(this, StorageBase.ENCRYPTION_DEFAULT);
+        // Get PSI state ready before the first exchange needs it.
+        mFriendStore.precomputePSI();
 
         // Used for a live test.
         // TODO(lerner): Remove this after real tests for cryptographic exchange exist.
@@ -310,6 +335,7 @@ public class RangzenService extends Service {
       Log.i(TAG, "Starting to connect to " + peer.toString());
       // The peer connection callback (defined elsewhere in the class) takes
       // the connect bluetooth socket and uses it to create a new Exchange.
+      mConnectStartNanoTime = System.nanoTime();
       mBluetoothSpeaker.connect(peer, mPeerConnectionCallback);
     }
 
@@ -325,13 +351,23 @@ public class RangzenService extends Service {
           mSocket = socket;
           Log.i(TAG, "Socket connected, attempting exchange");
           try {
-            mExchange = new CryptographicExchange(
+            CryptographicExchange exchange = new CryptographicExchange(
                 socket.getInputStream(),
                 socket.getOutputStream(),
                 true,
                 new FriendStore(RangzenService.this, StorageBase.ENCRYPTION_DEFAULT),
                 new MessageStore(RangzenService.this, StorageBase.ENCRYPTION_DEFAULT),
                 RangzenService.this.mExchangeCallback);
+            exchange.setPeerReconciles(mPeerManager.peerReconciles(currentPeer));
+            exchange.setPeerLegacy(mPeerManager.peerIsLegacy(currentPeer));
+            exchange.setPeerAnswersHello(mPeerManager.peerAnswersHello(currentPeer));
+            exchange.setWatermark(mPeerManager.getWatermark(currentPeer));
+            exchange.setResumableSession(mPeerManager.getSession(currentPeer));
+            exchange.setByteBudget(mPeerManager.getByteBudget(currentPeer));
+            exchange.getStats().addPhaseSince(ExchangeStats.Phase.CONNECT,
+                                              mConnectStartNanoTime);
+            startTrace(exchange);
+            mExchange = exchange;
             (new Thread(mExchange)).start();
           } catch (IOException e) {
             Log.e(TAG, "Getting input/output stream from socket failed: " + e);
@@ -346,6 +382,10 @@ public class RangzenService extends Service {
       @Override
       public void failure(String reason) {
         Log.i(TAG, "Callback says we failed to connect: " + reason);
+        ExchangeStats stats = new ExchangeStats();
+        stats.addPhaseSince(ExchangeStats.Phase.CONNECT, mConnectStartNanoTime);
+        stats.setFailureReason("Connect failed: " + reason);
+        mPeerManager.getExchangeHistograms().add(stats);
         RangzenService.this.cleanupAfterExchange();
       }
     };
@@ -358,6 +398,10 @@ public class RangzenService extends Service {
      * Is also used after a Bluetooth connection failure to cleanup.
      */
     /* package */ void cleanupAfterExchange() {
+      if (mTrace != null) {
+        mTrace.close();
+        mTrace = null;
+      }
       setConnecting(false);
       setLastExchangeTime();
       try {
@@ -378,6 +422,81 @@ public class RangzenService extends Service {
       mBluetoothSpeaker.mSocket = null;
     }
 
+    /**
+     * Set whether exchanges are to be recorded to trace files, which can be
+     * pulled off the phone and replayed with ExchangeReplay. Traces hold the
+     * messages exchanged and the sizes of friend sets, and only the last
+     * MAX_TRACES are kept.
+     *
+     * @param context A context for accessing storage.
+     * @param trace True to record exchanges.
+     */
+    public static void setTraceExchanges(Context context, boolean trace) {
+      StorageBase store = new StorageBase(context, StorageBase.ENCRYPTION_DEFAULT);
+      store.putInt(TRACE_EXCHANGES_KEY, trace ? 1 : 0);
+    }
+
+    /**
+     * @param context A context for accessing storage.
+     * @return Whether exchanges are recorded to trace files.
+     */
+    public static boolean getTraceExchanges(Context context) {
+      StorageBase store = new StorageBase(context, StorageBase.ENCRYPTION_DEFAULT);
+      return store.getInt(TRACE_EXCHANGES_KEY, 0) == 1;
+    }
+
+    /**
+     * Record the given exchange, which is about to start, to a new trace file
+     * if exchanges are being traced. The trace is closed by
+     * cleanupAfterExchange().
+     */
+    /* package */ void startTrace(Exchange exchange) {
+      if (mStore.getInt(TRACE_EXCHANGES_KEY, 0) != 1) {
+        return;
+      }
+      File directory = new File(getFilesDir(), TRACE_DIRECTORY);
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        Log.w(TAG, "Couldn't create trace directory " + directory);
+        return;
+      }
+      // Make room for the new trace. Names are start times, so sort by age.
+      String[] names = directory.list();
+      if (names != null) {
+        Arrays.sort(names);
+        for (int i = 0; i < names.length - (MAX_TRACES - 1); i++) {
+          new File(directory, names[i]).delete();
+        }
+      }
+      File file = new File(directory, System.currentTimeMillis() + TRACE_SUFFIX);
+      try {
+        mTrace = new ExchangeTrace(new BufferedOutputStream(new FileOutputStream(file)));
+        exchange.setTrace(mTrace);
+        Log.i(TAG, "Tracing exchange to " + file);
+      } catch (IOException e) {
+        Log.w(TAG, "Couldn't create trace " + file + ": " + e);
+      }
+    }
+
+    /**
+     * Add the link measurements taken in an exchange with the current peer to
+     * the peer manager's estimates, whether or not the exchange succeeded.
+     */
+    private void recordTransfer(Exchange exchange) {
+      mPeerManager.recordTransfer(currentPeer, exchange.channel.getTimedBytesRead(),
+                                  exchange.channel.getTimedReadNanos(),
+                                  exchange.getRoundTripNanos());
+    }
+
+    /**
+     * Log the measurements of an exchange and add them to the peer manager's
+     * histograms, whether or not the exchange succeeded.
+     */
+    private void recordStats(Exchange exchange) {
+      ExchangeStats stats = exchange.getStats();
+      Log.i(TAG, "Exchange stats: " + stats);
+      mPeerManager.getExchangeHistograms().add(stats);
+    }
+
     /**
      * Passed to an Exchange to be called back to when the exchange completes.
      * Performs the integration of the information received from the exchange -
@@ -391,31 +510,43 @@ public class RangzenService extends Service {
         int friendOverlap = exchange.getCommonFriends();
         Log.i(TAG, "Got " + newMessages.size() + " messages in exchangeCallback");
         Log.i(TAG, "Got " + friendOverlap + " common friends in exchangeCallback");
+        long applyStart = System.nanoTime();
+        int duplicates = 0;
         for (RangzenMessage message : newMessages) {
-          Set<String> myFriends = mFriendStore.getAllFriends();
-          double stored = mMessageStore.getPriority(message.text);
-          double remote = message.priority;
-          double newPriority = Exchange.newPriority(remote, stored, friendOverlap, myFriends.size());
-          try {
-            if (mMessageStore.contains(message.text)) {
-              mMessageStore.updatePriority(message.text, newPriority);
-            } else {
-              mMessageStore.addMessage(message.text, newPriority);
-            }
-          } catch (IllegalArgumentException e) {
-            Log.e(TAG, String.format("Attempted to add/update message %s with priority (%f/%f)" +
-                                    ", %d friends, %d friends in common",
-                                    message.text, newPriority, message.priority, 
-                                    myFriends.size(), friendOverlap));
+          if (message.text != null && mMessageStore.contains(message.text)) {
+            duplicates++;
           }
         }
+        Set<String> myFriends = mFriendStore.getAllFriends();
+        int changed = mMessageStore.applyExchangeResults(newMessages, friendOverlap,
+                                                         myFriends.size());
+        Log.i(TAG, changed + " messages added or updated by exchange");
+        exchange.getStats().addDuplicatesReceived(duplicates);
+        exchange.getStats().addPhaseSince(ExchangeStats.Phase.STORE_APPLY, applyStart);
+        recordTransfer(exchange);
+        recordStats(exchange);
         RangzenService.this.mPeerManager.recordExchangeTime(currentPeer, new Date());
+        RangzenService.this.mPeerManager.recordWatermark(currentPeer, exchange.getSentVersion());
+        if (exchange instanceof CryptographicExchange) {
+          boolean reconciles = ((CryptographicExchange) exchange).remoteReconciles();
+          RangzenService.this.mPeerManager.recordPeerReconciles(currentPeer, reconciles);
+          boolean legacy = ((CryptographicExchange) exchange).remoteIsLegacy();
+          RangzenService.this.mPeerManager.recordPeerLegacy(currentPeer, legacy);
+          RangzenService.this.mPeerManager.recordSession(currentPeer, null);
+        }
         RangzenService.this.cleanupAfterExchange();
       }
 
       @Override
       public void failure(Exchange exchange, String reason) {
         Log.e(TAG, "Exchange failed, reason: " + reason);
+        recordTransfer(exchange);
+        recordStats(exchange);
+        if (exchange instanceof CryptographicExchange) {
+          // Keep what the exchange got done in case the peer reconnects soon.
+          ExchangeSession session = ((CryptographicExchange) exchange).getSession();
+          RangzenService.this.mPeerManager.recordSession(currentPeer, session);
+        }
         RangzenService.this.cleanupAfterExchange();
       }
     };
@@ -67,12 +67,27 @@ public class StorageBase {
    */
   public static final int ENCRYPTION_DEFAULT = ENCRYPTION_NONE;
 
+  /** Specifies to keep data in Android's SharedPreferences XML file. */
+  public static final int BACKEND_SHARED_PREFERENCES = 1;
+
+  /**
+   * Specifies to keep data in an append-only log, which makes the cost of a write
+   * independent of the amount of data stored. See LogStructuredPreferences.
+   */
+  public static final int BACKEND_LOG_STRUCTURED = 2;
+
+  /** Specifies to use the default backing store. */
+  public static final int BACKEND_DEFAULT = BACKEND_LOG_STRUCTURED;
+
   /** A handle for the preferences store that this instance is using to back all storage calls. */
   private SharedPreferences store;
 
   /** A handle for the editor that allows us to modify data in the store. */
   private SharedPreferences.Editor editor;
 
+  /** Number of open transactions. Writes are only applied when this is 0. */
+  private int mTransactionDepth = 0;
+
   /** The default local preferences file name used for storing all data. */
   private static final String STORE_FILE_NAME = "RangzenData";
 
@@ -85,15 +100,95 @@ public class StorageBase {
    * @param encryptionMode The encryption mode to use for all calls using this instance.
    */
   public StorageBase(Context context, int encryptionMode) throws IllegalArgumentException {
+    this(context, encryptionMode, BACKEND_DEFAULT);
+  }
+
+  /**
+   * Creates a store for any Rangzen data in the given backing store. Data written
+   * with one backend is not visible through the other, except that the first time
+   * the log-structured store is opened it migrates everything out of the
+   * SharedPreferences file.
+   *
+   * @param context The app instance for which to perform storage.
+   *
+   * @param encryptionMode The encryption mode to use for all calls using this instance.
+   *
+   * @param backend BACKEND_SHARED_PREFERENCES or BACKEND_LOG_STRUCTURED.
+   */
+  public StorageBase(Context context, int encryptionMode, int backend)
+      throws IllegalArgumentException {
     // TODO(barath): Remove this check once we support more encryption modes.
     if (encryptionMode != ENCRYPTION_NONE) {
       throw new IllegalArgumentException("encryptionMode " + encryptionMode + " not supported.");
     }
 
-    store = context.getSharedPreferences(STORE_FILE_NAME, Context.MODE_PRIVATE);
+    if (backend == BACKEND_SHARED_PREFERENCES) {
+      store = context.getSharedPreferences(STORE_FILE_NAME, Context.MODE_PRIVATE);
+    } else if (backend == BACKEND_LOG_STRUCTURED) {
+      store = LogStructuredPreferences.getInstance(context, STORE_FILE_NAME);
+    } else {
+      throw new IllegalArgumentException("backend " + backend + " not supported.");
+    }
+    editor = store.edit();
+  }
+
+  /**
+   * Returns the preferences object backing this store. Every StorageBase in the
+   * process shares the same one, so it can be used to key per-store caches.
+   */
+  /* package */ SharedPreferences getBackingPreferences() {
+    return store;
+  }
+
+  /**
+   * Starts a transaction. Until the matching commitTransaction(), writes made
+   * through this instance are held back, and are then applied to the backing
+   * store together in a single commit. Transactions may be nested, in which
+   * case only the outermost commit writes anything.
+   *
+   * Writes held back in a transaction are not visible to reads until it commits.
+   */
+  public synchronized void beginTransaction() {
+    mTransactionDepth++;
+  }
+
+  /**
+   * Ends a transaction started with beginTransaction(). If this is the outermost
+   * transaction, writes all of its changes to the backing store.
+   *
+   * @return False if the changes couldn't be written, true otherwise.
+   */
+  public synchronized boolean commitTransaction() {
+    if (mTransactionDepth == 0) {
+      throw new IllegalStateException("commitTransaction() without beginTransaction()");
+    }
+    mTransactionDepth--;
+    if (mTransactionDepth > 0) {
+      return true;
+    }
+    return editor.commit();
+  }
+
+  /**
+   * Discards every write made since the outermost beginTransaction() and ends
+   * all open transactions.
+   */
+  public synchronized void abortTransaction() {
+    mTransactionDepth = 0;
     editor = store.edit();
   }
 
+  /**
+   * Applies the editor's pending changes, unless they're being held back until
+   * the end of a transaction.
+   */
+  private synchronized void applyUnlessInTransaction() {
+    if (mTransactionDepth == 0) {
+      // TODO(barath): Consider whether we should use .commit() instead of apply().
+      editor.apply();
+    }
+  }
+
   /**
    * Stores the given key-value pair in the Rangzen generic store.
    *
@@ -104,8 +199,7 @@ public class StorageBase {
     // TODO(barath): Change this storage approach once we are encrypting.
     editor.putString(key, value);
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
 
   /**
@@ -135,8 +229,7 @@ public class StorageBase {
     // TODO(barath): Change this storage approach once we are encrypting.
     editor.putStringSet(key, values);
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
 
   /**
@@ -149,8 +242,7 @@ public class StorageBase {
     // TODO(barath): Change this storage approach once we are encrypting.
     editor.putFloat(key, value);
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
 
   /**
@@ -165,10 +257,20 @@ public class StorageBase {
     // to longs, since longs have the same number of bits.
     editor.putLong(key, Double.doubleToLongBits(value));
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
   
+  /**
+   * Removes the given key, whatever its type, from the Rangzen generic store.
+   *
+   * @param key The key under which the data is stored.
+   */
+  public void remove(String key) {
+    editor.remove(key);
+
+    applyUnlessInTransaction();
+  }
+
   /**
    * Removes the given float from the Rangzen generic store.
    *
@@ -177,13 +279,12 @@ public class StorageBase {
   public void removeDouble(String key) {
     editor.remove(key);
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
   
   public void removeInt(String key) {
       editor.remove(key);
-      editor.apply();
+      applyUnlessInTransaction();
   }
 
   /**
@@ -196,8 +297,7 @@ public class StorageBase {
     // TODO(barath): Change this storage approach once we are encrypting.
     editor.putInt(key, value);
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
 
   /**
@@ -210,8 +310,7 @@ public class StorageBase {
     // TODO(barath): Change this storage approach once we are encrypting.
     editor.putLong(key, value);
 
-    // TODO(barath): Consider whether we should use .commit() instead of apply().
-    editor.apply();
+    applyUnlessInTransaction();
   }
 
   /**
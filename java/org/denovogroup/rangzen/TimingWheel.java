@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timing wheel: a fixed ring of slots, each holding the keys due to
+ * expire during the ticks that map to it. Scheduling and cancelling are O(1),
+ * and advancing the wheel costs time proportional to the number of ticks
+ * passed (at most one full turn) plus the number of keys in the slots passed
+ * over, so keys that aren't due are never looked at unless they are due at
+ * least one full turn later.
+ *
+ * Keys expire once the tick containing their deadline has completely passed,
+ * so expiry is late by at most one tick.
+ */
+/* package */ class TimingWheel {
+  /** The length of a tick, in milliseconds. */
+  private final long mTickMillis;
+
+  /** The slots of the wheel. Each maps its keys to the tick they are due in. */
+  private final List<Map<String, Long>> mSlots;
+
+  /** The tick each key is due in, so it can be found to cancel it. */
+  private final Map<String, Long> mDue = new HashMap<String, Long>();
+
+  /** The last tick that has been processed. */
+  private long mLastTick;
+
+  /**
+   * Create an empty timing wheel.
+   *
+   * @param tickMillis The length of a tick, in milliseconds.
+   * @param numSlots The number of slots; one turn of the wheel covers
+   * numSlots ticks.
+   * @param now The current time, in milliseconds since the epoch.
+   */
+  /* package */ TimingWheel(long tickMillis, int numSlots, long now) {
+    if (tickMillis <= 0 || numSlots <= 0) {
+      throw new IllegalArgumentException("Tick length and slot count must be positive.");
+    }
+    mTickMillis = tickMillis;
+    mSlots = new ArrayList<Map<String, Long>>(numSlots);
+    for (int i = 0; i < numSlots; i++) {
+      mSlots.add(new HashMap<String, Long>());
+    }
+    mLastTick = now / tickMillis - 1;
+  }
+
+  /**
+   * Schedule a key to expire, replacing any deadline it already had. Keys
+   * whose deadline has already passed expire on the next call to advance()
+   * after the current tick ends.
+   *
+   * @param key The key.
+   * @param deadline When it expires, in milliseconds since the epoch.
+   */
+  /* package */ synchronized void schedule(String key, long deadline) {
+    cancel(key);
+    long tick = Math.max(deadline / mTickMillis, mLastTick + 1);
+    mSlots.get(slotFor(tick)).put(key, tick);
+    mDue.put(key, tick);
+  }
+
+  /**
+   * Stop a key from expiring.
+   *
+   * @param key The key.
+   * @return True if the key was scheduled.
+   */
+  /* package */ synchronized boolean cancel(String key) {
+    Long tick = mDue.remove(key);
+    if (tick == null) {
+      return false;
+    }
+    mSlots.get(slotFor(tick)).remove(key);
+    return true;
+  }
+
+  /**
+   * Remove every scheduled key.
+   */
+  /* package */ synchronized void clear() {
+    for (Map<String, Long> slot : mSlots) {
+      slot.clear();
+    }
+    mDue.clear();
+  }
+
+  /**
+   * @return The number of keys scheduled.
+   */
+  /* package */ synchronized int size() {
+    return mDue.size();
+  }
+
+  /**
+   * Move the wheel forward to the given time, removing and returning every key
+   * whose tick has passed.
+   *
+   * @param now The current time, in milliseconds since the epoch.
+   * @return The keys that expired, possibly none.
+   */
+  /* package */ synchronized List<String> advance(long now) {
+    List<String> expired = new ArrayList<String>();
+    long last = now / mTickMillis - 1;
+    if (last <= mLastTick) {
+      return expired;
+    }
+    // There's no need to visit any slot more than once.
+    long first = Math.max(mLastTick + 1, last - mSlots.size() + 1);
+    for (long tick = first; tick <= last; tick++) {
+      Iterator<Map.Entry<String, Long>> it = mSlots.get(slotFor(tick)).entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Long> entry = it.next();
+        if (entry.getValue() <= last) {
+          expired.add(entry.getKey());
+          mDue.remove(entry.getKey());
+          it.remove();
+        }
+      }
+    }
+    mLastTick = last;
+    return expired;
+  }
+
+  /** The slot holding keys due in the given tick. */
+  private int slotFor(long tick) {
+    return (int) (tick % mSlots.size());
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the Bloom filter used to summarize messages in exchanges.
+ */
+@RunWith(JUnit4.class)
+public class BloomFilterTest {
+  /** Number of strings added to filters under test. */
+  private static final int ITEMS = 1000;
+
+  /** False positive rate of filters under test. */
+  private static final double RATE = 0.01;
+
+  /** Build a filter holding "item0" through "item<ITEMS - 1>". */
+  private BloomFilter filled(int salt) {
+    BloomFilter filter = new BloomFilter(ITEMS, RATE, salt);
+    for (int i = 0; i < ITEMS; i++) {
+      filter.add("item" + i);
+    }
+    return filter;
+  }
+
+  /** Count how many of ITEMS strings never added the filter claims to hold. */
+  private int falsePositives(BloomFilter filter) {
+    int count = 0;
+    for (int i = 0; i < ITEMS; i++) {
+      if (filter.mightContain("other" + i)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Every string added is reported present, and few others are.
+   */
+  @Test
+  public void membership() {
+    BloomFilter filter = filled(42);
+    for (int i = 0; i < ITEMS; i++) {
+      assertTrue(filter.mightContain("item" + i));
+    }
+    // The expected count is 10; allow plenty of slack.
+    assertTrue(falsePositives(filter) < 4 * RATE * ITEMS);
+    assertFalse(new BloomFilter(ITEMS, RATE, 42).mightContain("item0"));
+  }
+
+  /**
+   * A filter rebuilt from its parts answers exactly as the original does.
+   */
+  @Test
+  public void serialization() {
+    BloomFilter filter = filled(7);
+    BloomFilter copy = new BloomFilter(filter.toByteArray(), filter.getHashCount(),
+                                       filter.getSalt());
+    for (int i = 0; i < ITEMS; i++) {
+      assertEquals(filter.mightContain("item" + i), copy.mightContain("item" + i));
+      assertEquals(filter.mightContain("other" + i), copy.mightContain("other" + i));
+    }
+  }
+
+  /**
+   * Filters with different salts have different false positives.
+   */
+  @Test
+  public void saltsDiffer() {
+    BloomFilter a = filled(1);
+    BloomFilter b = filled(2);
+    int both = 0;
+    for (int i = 0; i < ITEMS; i++) {
+      if (a.mightContain("other" + i) && b.mightContain("other" + i)) {
+        both++;
+      }
+    }
+    assertTrue(both < falsePositives(a) || falsePositives(a) == 0);
+  }
+
+  /**
+   * Byte array keys are found when added and are distinct from each other.
+   */
+  @Test
+  public void byteArrayKeys() {
+    BloomFilter filter = new BloomFilter(ITEMS, RATE, 3);
+    for (int i = 0; i < ITEMS; i++) {
+      filter.add(new byte[] { (byte) i, (byte) (i >> 8), 1 });
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < ITEMS; i++) {
+      assertTrue(filter.mightContain(new byte[] { (byte) i, (byte) (i >> 8), 1 }));
+      if (filter.mightContain(new byte[] { (byte) i, (byte) (i >> 8), 2 })) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 4 * RATE * ITEMS);
+  }
+
+  /**
+   * Filters received with bad parameters are refused.
+   */
+  @Test(expected=IllegalArgumentException.class)
+  public void emptyBits() {
+    new BloomFilter(new byte[0], 3, 0);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void tooManyHashes() {
+    new BloomFilter(new byte[16], BloomFilter.MAX_HASHES + 1, 0);
+  }
+}
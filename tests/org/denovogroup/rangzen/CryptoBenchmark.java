@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the shortcuts Crypto takes in the Diffie-Hellman group with plain
+ * BigInteger.modPow. Skipped unless RANGZEN_BENCHMARKS is set.
+ */
+@RunWith(JUnit4.class)
+public class CryptoBenchmark {
+  /** Environment variable that has to be set for the benchmark to run. */
+  private static final String BENCHMARKS_VARIABLE = "RANGZEN_BENCHMARKS";
+
+  @Before
+  public void setUp() {
+    assumeTrue(System.getenv(BENCHMARKS_VARIABLE) != null);
+  }
+
+  /** Number of exponentiations to average over. */
+  private static final int NUM_EXPONENTIATIONS = 2000;
+
+  /** Number of times to repeat each measurement, the first to warm up. */
+  private static final int ROUNDS = 3;
+
+  /** The group's generator. */
+  private static final BigInteger G = Crypto.DH_GROUP_PARAMETERS.getG();
+
+  /** The group's modulus. */
+  private static final BigInteger P = Crypto.DH_GROUP_PARAMETERS.getP();
+
+  /** The order of the group's subgroup. */
+  private static final BigInteger Q = Crypto.DH_GROUP_PARAMETERS.getQ();
+
+  /** @return Random exponents the size of the subgroup's order. */
+  private static List<BigInteger> makeExponents() {
+    Random random = new Random(0);
+    List<BigInteger> exponents = new ArrayList<BigInteger>(NUM_EXPONENTIATIONS);
+    for (int i = 0; i < NUM_EXPONENTIATIONS; i++) {
+      exponents.add(new BigInteger(Crypto.DH_SUBGROUP_SIZE, random));
+    }
+    return exponents;
+  }
+
+  /**
+   * Raising the generator to hashes and private values: modPow against the
+   * generator's table, at several window sizes.
+   */
+  @Test
+  public void generatorPow() {
+    List<BigInteger> exponents = makeExponents();
+    assertEquals(G.modPow(exponents.get(0), P), Crypto.generatorPow(exponents.get(0)));
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (BigInteger e : exponents) {
+        G.modPow(e, P);
+      }
+      System.out.println(String.format("g^e, modPow: %.3fms",
+                                       (System.nanoTime() - start) / 1e6 / exponents.size()));
+
+      for (int window = 4; window <= 8; window += 2) {
+        start = System.nanoTime();
+        Crypto.FixedBaseTable table =
+            new Crypto.FixedBaseTable(G, P, Crypto.DH_SUBGROUP_SIZE, window);
+        long buildNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (BigInteger e : exponents) {
+          table.pow(e);
+        }
+        System.out.println(String.format("g^e, %d-bit windows: %.3fms, table built in %.1fms",
+                                         window,
+                                         (System.nanoTime() - start) / 1e6 / exponents.size(),
+                                         buildNanos / 1e6));
+      }
+    }
+  }
+
+  /**
+   * Blinding many items with one private value, as it was before being
+   * reduced mod q and as it is after.
+   */
+  @Test
+  public void blinding() {
+    List<BigInteger> exponents = makeExponents();
+    List<BigInteger> items = new ArrayList<BigInteger>(exponents.size());
+    for (BigInteger e : exponents) {
+      items.add(Crypto.generatorPow(e));
+    }
+    BigInteger x = G.modPow(new BigInteger(Crypto.DH_SUBGROUP_SIZE, new Random(1)), P);
+    BigInteger reduced = x.mod(Q);
+    assertEquals(items.get(0).modPow(x, P), items.get(0).modPow(reduced, P));
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (BigInteger item : items) {
+        item.modPow(x, P);
+      }
+      long fullNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (BigInteger item : items) {
+        item.modPow(reduced, P);
+      }
+      long reducedNanos = System.nanoTime() - start;
+
+      System.out.println(String.format("item^x, %d-bit x: %.3fms, %d-bit x: %.3fms",
+                                       x.bitLength(), fullNanos / 1e6 / items.size(),
+                                       reduced.bitLength(), reducedNanos / 1e6 / items.size()));
+    }
+  }
+}
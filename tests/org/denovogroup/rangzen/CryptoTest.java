@@ -37,6 +37,8 @@ import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import javax.crypto.spec.DHParameterSpec;
 
@@ -44,6 +46,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -53,6 +56,7 @@ import org.junit.runners.JUnit4;
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
 import org.spongycastle.crypto.params.DHPublicKeyParameters;
 import org.spongycastle.crypto.params.DHPrivateKeyParameters;
+import org.spongycastle.math.ec.ECPoint;
 
 import okio.ByteString;
 
@@ -237,6 +241,199 @@ public class CryptoTest {
     assertEquals("Testing that the client gets the right cardinality", 0, cardinality);
   }
 
+  /**
+   * Tests that items mapped into the group ahead of time intersect just like
+   * the values they were mapped from, and that each set is blinded afresh.
+   */
+  @Test
+  public void precomputedSetIntersectionTest() throws NoSuchAlgorithmException {
+    byte[] oneone = new byte[] { 1, 1 };
+    byte[] onetwo = new byte[] { 1, 2 };
+    byte[] twoone = new byte[] { 2, 1 };
+    byte[] twotwo = new byte[] { 2, 2 };
+
+    List<BigInteger> clientItems = new ArrayList<>();
+    for (byte[] value : Arrays.asList(oneone, twotwo)) {
+      clientItems.add(Crypto.DH_PSI_GROUP.hashToGroup(value));
+    }
+    ArrayList<byte[]> serverValues = new ArrayList<>(Arrays.asList(oneone, onetwo, twoone, twotwo));
+
+    Crypto.PrivateSetIntersection client =
+        new Crypto.PrivateSetIntersection(Crypto.DH_PSI_GROUP, clientItems);
+    Crypto.PrivateSetIntersection otherClient =
+        new Crypto.PrivateSetIntersection(Crypto.DH_PSI_GROUP, clientItems);
+    Crypto.PrivateSetIntersection server = new Crypto.PrivateSetIntersection(serverValues);
+
+    assertNotEquals("Testing that sets from the same items are blinded differently",
+                    ByteString.of(client.encodeBlindedItems().get(0)),
+                    ByteString.of(otherClient.encodeBlindedItems().get(0)));
+
+    Crypto.PrivateSetIntersection.ServerReplyTuple serverReply =
+        server.replyToBlindedItems(client.encodeBlindedItems());
+    assertEquals("Testing that the client gets the right cardinality",
+                 2, client.getCardinality(serverReply));
+
+    // The server can reply more than once, e.g. when we're both client and server.
+    serverReply = server.replyToBlindedItems(otherClient.encodeBlindedItems());
+    assertEquals("Testing that the server's reply can be repeated",
+                 2, otherClient.getCardinality(serverReply));
+  }
+
+  /**
+   * Tests that a table of powers raises its base as modPow does, for
+   * exponents it covers and those it doesn't.
+   */
+  @Test
+  public void fixedBaseTableTest() {
+    BigInteger g = Crypto.DH_GROUP_PARAMETERS.getG();
+    BigInteger p = Crypto.DH_GROUP_PARAMETERS.getP();
+    Crypto.FixedBaseTable table = new Crypto.FixedBaseTable(g, p, 160, 5);
+    Random random = new Random(0);
+    List<BigInteger> exponents = new ArrayList<>(Arrays.asList(
+        BigInteger.ZERO, BigInteger.ONE, BigInteger.ONE.shiftLeft(160).subtract(BigInteger.ONE),
+        BigInteger.ONE.shiftLeft(160), new BigInteger(1024, random)));
+    for (int i = 0; i < 20; i++) {
+      exponents.add(new BigInteger(160, random));
+    }
+    for (BigInteger e : exponents) {
+      assertEquals("Testing g^" + e, g.modPow(e, p), table.pow(e));
+      assertEquals("Testing g^" + e, g.modPow(e, p), Crypto.generatorPow(e));
+    }
+  }
+
+  /**
+   * Tests some cases of set intersection on the elliptic curve, and that its
+   * blinded items are compressed points.
+   */
+  @Test
+  public void ecSetIntersectionTest() throws NoSuchAlgorithmException {
+    byte[] oneone = new byte[] { 1, 1 };
+    byte[] onetwo = new byte[] { 1, 2 };
+    byte[] twoone = new byte[] { 2, 1 };
+    byte[] twotwo = new byte[] { 2, 2 };
+
+    ArrayList<byte[]> clientValues = new ArrayList<>(Arrays.asList(oneone, twotwo));
+    ArrayList<byte[]> serverValues = new ArrayList<>(Arrays.asList(oneone, onetwo, twoone, twotwo));
+
+    Crypto.PrivateSetIntersection client =
+        new Crypto.PrivateSetIntersection(Crypto.EC_PSI_GROUP, clientValues);
+    Crypto.PrivateSetIntersection server =
+        new Crypto.PrivateSetIntersection(Crypto.EC_PSI_GROUP, serverValues);
+
+    ArrayList<byte[]> clientBlindedItems = client.encodeBlindedItems();
+    assertEquals(2, clientBlindedItems.size());
+    for (byte[] item : clientBlindedItems) {
+      assertEquals("Testing that blinded items are compressed P-256 points", 33, item.length);
+    }
+
+    Crypto.PrivateSetIntersection.ServerReplyTuple serverReply =
+        server.replyToBlindedItems(clientBlindedItems);
+    assertEquals(2, serverReply.doubleBlindedItems.size());
+    assertEquals(4, serverReply.hashedBlindedItems.size());
+    assertEquals("Testing that the client gets the right cardinality",
+                 2, client.getCardinality(serverReply));
+
+    // Test empty intersection.
+    client = new Crypto.PrivateSetIntersection(Crypto.EC_PSI_GROUP, new ArrayList<byte[]>());
+    serverReply = server.replyToBlindedItems(client.encodeBlindedItems());
+    assertEquals(0, client.getCardinality(serverReply));
+  }
+
+  /**
+   * Tests that a reply carrying a Bloom filter over the server's hashed
+   * blinded items gives the exact cardinality for small sets, in both groups,
+   * and that the filter is smaller than the hashes.
+   */
+  @Test
+  public void filteredSetIntersectionTest() throws NoSuchAlgorithmException {
+    ArrayList<byte[]> clientValues = new ArrayList<>();
+    ArrayList<byte[]> serverValues = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      clientValues.add(("client " + i).getBytes());
+      serverValues.add(("server " + i).getBytes());
+    }
+    for (int i = 0; i < 7; i++) {
+      clientValues.add(("common " + i).getBytes());
+      serverValues.add(("common " + i).getBytes());
+    }
+
+    for (Crypto.PSIGroup<?> group : Arrays.asList(Crypto.DH_PSI_GROUP, Crypto.EC_PSI_GROUP)) {
+      Crypto.PrivateSetIntersection client = new Crypto.PrivateSetIntersection(group, clientValues);
+      Crypto.PrivateSetIntersection server = new Crypto.PrivateSetIntersection(group, serverValues);
+
+      Crypto.PrivateSetIntersection.ServerReplyTuple serverReply =
+          server.replyToBlindedItems(client.encodeBlindedItems(), 0.0001);
+      assertNull(serverReply.hashedBlindedItems);
+      assertTrue("Testing that the filter is smaller than the hashes",
+                 serverReply.hashedBlindedFilter.toByteArray().length * 5 < 37 * 20);
+      assertEquals("Testing that the client gets the right cardinality",
+                   7, client.getCardinality(serverReply));
+    }
+  }
+
+  /**
+   * Tests that PSI on the elliptic curve finds the same cardinalities as in
+   * the Diffie-Hellman group, over sets of several sizes and overlaps.
+   */
+  @Test
+  public void ecEquivalenceTest() throws NoSuchAlgorithmException {
+    Random random = new Random(0);
+    for (int trial = 0; trial < 10; trial++) {
+      int common = random.nextInt(20);
+      ArrayList<byte[]> clientValues = new ArrayList<>();
+      ArrayList<byte[]> serverValues = new ArrayList<>();
+      for (int i = 0; i < common; i++) {
+        byte[] value = ("common " + trial + " " + i).getBytes();
+        clientValues.add(value);
+        serverValues.add(value);
+      }
+      for (int i = random.nextInt(20); i > 0; i--) {
+        clientValues.add(("client " + trial + " " + i).getBytes());
+      }
+      for (int i = random.nextInt(20); i > 0; i--) {
+        serverValues.add(("server " + trial + " " + i).getBytes());
+      }
+
+      for (Crypto.PSIGroup<?> group : Arrays.asList(Crypto.DH_PSI_GROUP, Crypto.EC_PSI_GROUP)) {
+        Crypto.PrivateSetIntersection client =
+            new Crypto.PrivateSetIntersection(group, clientValues);
+        Crypto.PrivateSetIntersection server =
+            new Crypto.PrivateSetIntersection(group, serverValues);
+        assertEquals("Testing cardinality in " + group.getClass().getSimpleName(),
+                     common,
+                     client.getCardinality(server.replyToBlindedItems(client.encodeBlindedItems())));
+      }
+    }
+  }
+
+  /**
+   * Tests that values hash to the same point every time, and different
+   * values to different points.
+   */
+  @Test
+  public void ecHashToGroupTest() throws NoSuchAlgorithmException {
+    ECPoint a = Crypto.EC_PSI_GROUP.hashToGroup(new byte[] { 1, 2 });
+    ECPoint b = Crypto.EC_PSI_GROUP.hashToGroup(new byte[] { 1, 2 });
+    ECPoint c = Crypto.EC_PSI_GROUP.hashToGroup(new byte[] { 2, 1 });
+    assertTrue("Testing that hashed points are on the curve", a.isValid());
+    assertEquals(a, b);
+    assertNotEquals(a, c);
+  }
+
+  /**
+   * Tests that blinded items that aren't points on the curve are refused.
+   */
+  @Test(expected=IllegalArgumentException.class)
+  public void ecInvalidPointTest() throws NoSuchAlgorithmException {
+    Crypto.PrivateSetIntersection server = new Crypto.PrivateSetIntersection(
+        Crypto.EC_PSI_GROUP, new ArrayList<>(Arrays.asList(new byte[] { 1, 1 })));
+    byte[] notAPoint = new byte[33];
+    notAPoint[0] = 0x02;
+    notAPoint[32] = 0x01;
+    // x = 1 isn't the x coordinate of any point on P-256.
+    server.replyToBlindedItems(new ArrayList<>(Arrays.asList(notAPoint)));
+  }
+
   /**
    * Tests that the behavior of byteStringsToArray and byteArraysToStrings is
    * correct when the list passed is empty.
@@ -57,6 +57,8 @@ import org.robolectric.shadows.ShadowIntent;
 
 import android.content.Context;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -65,10 +67,14 @@ import java.io.PipedOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import com.squareup.wire.Wire;
+
 import okio.ByteString;
 
 
@@ -120,6 +126,12 @@ public class CryptographicExchangeTest {
   private static final double TEST_PRIORITY_2 = 0.5f;
   private static final double TEST_PRIORITY_3 = 1.0f;
 
+  /**
+   * A friend filter false positive rate low enough that tests which count
+   * common friends exactly never see a false positive.
+   */
+  private static final double EXACT_FALSE_POSITIVE_RATE = 1e-6;
+
   /** Runs before each test. */
   @Before
   public void setUp() throws IOException {
@@ -275,7 +287,7 @@ public class CryptographicExchangeTest {
     assertEquals(3, friendStoreA.getAllFriends().size());
     assertEquals(3, friendStoreB.getAllFriends().size());
 
-    performExchange();
+    performExactExchange();
 
     assertEquals(0, exchangeA.getCommonFriends());
     assertEquals(0, exchangeB.getCommonFriends());
@@ -295,7 +307,7 @@ public class CryptographicExchangeTest {
     assertEquals(3, friendStoreA.getAllFriends().size());
     assertEquals(1, friendStoreB.getAllFriends().size());
 
-    performExchange();
+    performExactExchange();
 
     assertEquals(1, exchangeA.getCommonFriends());
     assertEquals(1, exchangeB.getCommonFriends());
@@ -318,24 +330,697 @@ public class CryptographicExchangeTest {
     assertEquals(3, friendStoreA.getAllFriends().size());
     assertEquals(4, friendStoreB.getAllFriends().size());
 
-    performExchange();
+    performExactExchange();
 
     // 1 and 3 are in common.
     assertEquals(2, exchangeA.getCommonFriends());
     assertEquals(2, exchangeB.getCommonFriends());
   }
 
+  /**
+   * Both sides sending client messages much larger than the pipe buffers at
+   * the same time must not deadlock, since each side reads while it writes.
+   */
+  @Test(timeout=10000)
+  public void largeMessagesTest() throws IOException, InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      messageStoreA.addMessage("A's message number " + i + " about the meeting", TEST_PRIORITY_1);
+      messageStoreB.addMessage("B's message number " + i + " about the meeting", TEST_PRIORITY_2);
+    }
+
+    // Without hellos, all messages go in the client messages, and none are
+    // lost to summary false positives.
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setPeerLegacy(true);
+    b.setPeerLegacy(true);
+    exchangeA = a;
+    exchangeB = b;
+    runExchanges(a, b);
+
+    assertEquals(Exchange.Status.SUCCESS, exchangeA.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, exchangeB.getExchangeStatus());
+    assertEquals(100, exchangeA.getReceivedMessages().size());
+    assertEquals(100, exchangeB.getReceivedMessages().size());
+  }
+
+  /**
+   * When both sides know the other reconciles, each receives only the messages
+   * it lacks.
+   */
+  @Test(timeout=5000)
+  public void reconciliationTest() throws IOException, InterruptedException {
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreA.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreA.addMessage(TEST_MESSAGE_3, TEST_PRIORITY_3);
+    messageStoreB.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+
+    performExchange(true, true);
+
+    assertEquals(0, exchangeA.getReceivedMessages().size());
+    assertEquals(2, exchangeB.getReceivedMessages().size());
+    Set<String> received = new HashSet<String>();
+    for (RangzenMessage m : exchangeB.getReceivedMessages()) {
+      received.add(m.text);
+    }
+    assertTrue(received.contains(TEST_MESSAGE_1));
+    assertTrue(received.contains(TEST_MESSAGE_3));
+    assertTrue(((CryptographicExchange) exchangeA).remoteReconciles());
+    assertTrue(((CryptographicExchange) exchangeB).remoteReconciles());
+  }
+
+  /**
+   * Without hellos, when only one side knows the other reconciles, the other
+   * side still sends everything up front, and both sides receive what they
+   * lack.
+   */
+  @Test(timeout=5000)
+  public void oneSidedReconciliationTest() throws IOException, InterruptedException {
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreA.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreB.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreB.addMessage(TEST_MESSAGE_3, TEST_PRIORITY_3);
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setPeerLegacy(true);
+    b.setPeerLegacy(true);
+    a.setPeerReconciles(true);
+    exchangeA = a;
+    exchangeB = b;
+    runExchanges(a, b);
+
+    // B sent both of its messages; A sent only the one B lacks.
+    assertEquals(2, exchangeA.getReceivedMessages().size());
+    assertEquals(1, exchangeB.getReceivedMessages().size());
+    assertEquals(TEST_MESSAGE_1, exchangeB.getReceivedMessages().get(0).text);
+  }
+
+  /**
+   * Peers that exchange hellos reconcile without having to learn from an
+   * earlier exchange that the other side does.
+   */
+  @Test(timeout=5000)
+  public void helloTest() throws IOException, InterruptedException {
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreA.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreB.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreB.addMessage(TEST_MESSAGE_3, TEST_PRIORITY_3);
+
+    performExchange();
+
+    assertEquals(1, exchangeA.getReceivedMessages().size());
+    assertEquals(TEST_MESSAGE_3, exchangeA.getReceivedMessages().get(0).text);
+    assertEquals(1, exchangeB.getReceivedMessages().size());
+    assertEquals(TEST_MESSAGE_1, exchangeB.getReceivedMessages().get(0).text);
+    assertFalse(((CryptographicExchange) exchangeA).remoteIsLegacy());
+    assertFalse(((CryptographicExchange) exchangeB).remoteIsLegacy());
+  }
+
+  /**
+   * A peer that keeps the messages our hello carries gets them only once; one
+   * that doesn't gets them again after the hello.
+   */
+  @Test(timeout=5000)
+  public void helloMessagesTest() throws IOException, InterruptedException {
+    for (int i = 0; i < 20; i++) {
+      messageStoreA.addMessage("A's message number " + i, TEST_PRIORITY_1);
+    }
+
+    performExchange();
+    assertEquals(20, exchangeB.getReceivedMessages().size());
+    assertEquals(20, exchangeA.getStats().getMessagesSent());
+
+    PipedInputStream resentInputA = new PipedInputStream();
+    PipedInputStream resentInputB = new PipedInputStream();
+    PipedOutputStream resentOutputA = new PipedOutputStream(resentInputB);
+    PipedOutputStream resentOutputB = new PipedOutputStream(resentInputA);
+    CryptographicExchange a = createExchange(true, resentInputA, resentOutputA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, resentInputB, resentOutputB,
+                                             friendStoreB, messageStoreB);
+    b.setCapabilities(CryptographicExchange.CAPABILITIES &
+                      ~CryptographicExchange.CAPABILITY_HELLO_MESSAGES);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(20, b.getReceivedMessages().size());
+    // The messages sent again deflate well, but still cost over 100 bytes.
+    assertTrue(exchangeA.getStats().getBytesOut() + 100 < a.getStats().getBytesOut());
+  }
+
+  /**
+   * When one side sends no hello, the other takes it for a version 1 peer:
+   * the hello doubled as a version 1 ClientMessage, so both get each other's
+   * messages and learn how many friends are in common.
+   */
+  @Test(timeout=5000)
+  public void noHelloTest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_2);
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreB.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setPeerLegacy(true);
+    exchangeA = a;
+    exchangeB = b;
+    runExchanges(a, b);
+
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, b.getExchangeStatus());
+    assertEquals(2, a.getCommonFriends());
+    assertEquals(2, b.getCommonFriends());
+    assertEquals(TEST_MESSAGE_2, a.getReceivedMessages().get(0).text);
+    assertEquals(TEST_MESSAGE_1, b.getReceivedMessages().get(0).text);
+    // A gave a protocol version, so B will send it a hello next time.
+    assertFalse(a.remoteIsLegacy());
+    assertFalse(b.remoteIsLegacy());
+  }
+
+  /**
+   * A peer that speaks only the baseline protocol, reading and writing just
+   * the version 1 fields of undeflated frames, gets our messages from our
+   * hello and finds the friends in common, as we do.
+   */
+  @Test(timeout=5000)
+  public void baselinePeerTest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreA.addFriendBytes(TEST_FRIEND_3);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_4);
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreA.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    BaselinePeer b = new BaselinePeer(inputStreamB, outputStreamB,
+                                      friendStoreB.getAllFriendsBytes(),
+                                      TEST_MESSAGE_3, TEST_PRIORITY_3);
+    Thread threadA = new Thread(a);
+    Thread threadB = new Thread(b);
+    threadA.start();
+    threadB.start();
+    threadA.join();
+    threadB.join();
+
+    assertNull(b.exception);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(2, a.getCommonFriends());
+    assertEquals(2, b.commonFriends);
+    assertEquals(1, a.getReceivedMessages().size());
+    assertEquals(TEST_MESSAGE_3, a.getReceivedMessages().get(0).text);
+    assertEquals(2, b.receivedMessages.size());
+    assertEquals(TEST_MESSAGE_1, b.receivedMessages.get(0).text);
+    assertEquals(TEST_MESSAGE_2, b.receivedMessages.get(1).text);
+    assertTrue(a.remoteIsLegacy());
+  }
+
+  /**
+   * Frames are deflated when both peers advertise it, and stay as they are
+   * when either doesn't, whatever dictionary the ClientMessages offer.
+   */
+  @Test(timeout=5000)
+  public void noDeflateTest() throws IOException, InterruptedException {
+    // Messages long enough that their frames are worth deflating.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      text.append("Repetitive message text. ");
+    }
+    String messageA = "A: " + text;
+    String messageB = "B: " + text;
+    messageStoreA.addMessage(messageA, TEST_PRIORITY_1);
+    messageStoreB.addMessage(messageB, TEST_PRIORITY_2);
+
+    // Hellos aren't deflated, so keep the messages out of them.
+    CryptographicExchange deflatingA = createExchange(true, inputStreamA, outputStreamA,
+                                                      friendStoreA, messageStoreA);
+    CryptographicExchange deflatingB = createExchange(true, inputStreamB, outputStreamB,
+                                                      friendStoreB, messageStoreB);
+    deflatingA.setPeerAnswersHello(true);
+    deflatingB.setPeerAnswersHello(true);
+    runExchanges(deflatingA, deflatingB);
+    assertTrue(deflatingA.channel.getDeflateInputBytes() > 0);
+    assertTrue(deflatingB.channel.getDeflateInputBytes() > 0);
+
+    PipedInputStream plainInputA = new PipedInputStream();
+    PipedInputStream plainInputB = new PipedInputStream();
+    PipedOutputStream plainOutputA = new PipedOutputStream(plainInputB);
+    PipedOutputStream plainOutputB = new PipedOutputStream(plainInputA);
+    CryptographicExchange a = createExchange(true, plainInputA, plainOutputA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, plainInputB, plainOutputB,
+                                             friendStoreB, messageStoreB);
+    a.setCapabilities(CryptographicExchange.CAPABILITIES &
+                      ~CryptographicExchange.CAPABILITY_DEFLATE);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, b.getExchangeStatus());
+    assertEquals(messageB, a.getReceivedMessages().get(0).text);
+    assertEquals(messageA, b.getReceivedMessages().get(0).text);
+    assertEquals(0, a.channel.getDeflateInputBytes());
+    assertEquals(0, b.channel.getDeflateInputBytes());
+    assertEquals(0, a.channel.getInflateInputBytes());
+    assertEquals(0, b.channel.getInflateInputBytes());
+  }
+
+  /**
+   * Peers that both advertise EC PSI do PSI on the curve, in far fewer bytes;
+   * if either doesn't, they fall back to the Diffie-Hellman group, and both
+   * still find the friends they have in common.
+   */
+  @Test(timeout=10000)
+  public void ecPSITest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_2);
+    for (int i = 0; i < 10; i++) {
+      friendStoreA.addFriendBytes(("A's friend " + i).getBytes());
+      friendStoreB.addFriendBytes(("B's friend " + i).getBytes());
+    }
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setFriendFilterFalsePositiveRate(EXACT_FALSE_POSITIVE_RATE);
+    b.setFriendFilterFalsePositiveRate(EXACT_FALSE_POSITIVE_RATE);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, b.getExchangeStatus());
+    assertEquals(2, a.getCommonFriends());
+    assertEquals(2, b.getCommonFriends());
+
+    PipedInputStream dhInputA = new PipedInputStream();
+    PipedInputStream dhInputB = new PipedInputStream();
+    PipedOutputStream dhOutputA = new PipedOutputStream(dhInputB);
+    PipedOutputStream dhOutputB = new PipedOutputStream(dhInputA);
+    CryptographicExchange dhA = createExchange(true, dhInputA, dhOutputA,
+                                               friendStoreA, messageStoreA);
+    CryptographicExchange dhB = createExchange(true, dhInputB, dhOutputB,
+                                               friendStoreB, messageStoreB);
+    dhA.setCapabilities(CryptographicExchange.CAPABILITIES &
+                        ~CryptographicExchange.CAPABILITY_EC_PSI);
+    runExchanges(dhA, dhB);
+    assertEquals(Exchange.Status.SUCCESS, dhA.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, dhB.getExchangeStatus());
+    assertEquals(2, dhA.getCommonFriends());
+    assertEquals(2, dhB.getCommonFriends());
+
+    // Each side sends 12 blinded friends and 12 double blinded ones: 33 bytes
+    // each on the curve, 128 or so in the group.
+    assertTrue(a.getStats().getBytesOut() + 12 * 2 * 90 < dhA.getStats().getBytesOut());
+    assertTrue(b.getStats().getBytesOut() + 12 * 2 * 90 < dhB.getStats().getBytesOut());
+  }
+
+  /**
+   * Peers that both support it send their hashed blinded friends as a Bloom
+   * filter, which finds the same common friends in fewer bytes, and peers
+   * that don't fall back to the hashes.
+   */
+  @Test(timeout=5000)
+  public void friendFilterTest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_2);
+    for (int i = 0; i < 10; i++) {
+      friendStoreA.addFriendBytes(("A's friend " + i).getBytes());
+      friendStoreB.addFriendBytes(("B's friend " + i).getBytes());
+    }
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setFriendFilterFalsePositiveRate(EXACT_FALSE_POSITIVE_RATE);
+    b.setFriendFilterFalsePositiveRate(EXACT_FALSE_POSITIVE_RATE);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, b.getExchangeStatus());
+    assertEquals(2, a.getCommonFriends());
+    assertEquals(2, b.getCommonFriends());
+
+    PipedInputStream hashInputA = new PipedInputStream();
+    PipedInputStream hashInputB = new PipedInputStream();
+    PipedOutputStream hashOutputA = new PipedOutputStream(hashInputB);
+    PipedOutputStream hashOutputB = new PipedOutputStream(hashInputA);
+    CryptographicExchange hashA = createExchange(true, hashInputA, hashOutputA,
+                                                 friendStoreA, messageStoreA);
+    CryptographicExchange hashB = createExchange(true, hashInputB, hashOutputB,
+                                                 friendStoreB, messageStoreB);
+    hashA.setCapabilities(CryptographicExchange.CAPABILITIES &
+                          ~CryptographicExchange.CAPABILITY_FRIEND_FILTER);
+    runExchanges(hashA, hashB);
+    assertEquals(Exchange.Status.SUCCESS, hashA.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, hashB.getExchangeStatus());
+    assertEquals(2, hashA.getCommonFriends());
+    assertEquals(2, hashB.getCommonFriends());
+
+    // Each side sends 12 hashes of 20 bytes, or a filter of under 4 bytes per friend.
+    assertTrue(a.getStats().getBytesOut() + 12 * 15 < hashA.getStats().getBytesOut());
+    assertTrue(b.getStats().getBytesOut() + 12 * 15 < hashB.getStats().getBytesOut());
+  }
+
+  /**
+   * By default the friend filter's false positive rate falls as the client's
+   * friends grow, so the expected number of friends wrongly counted as common
+   * stays at FRIEND_FILTER_FALSE_POSITIVES, and the filter is still far
+   * smaller than the hashes.
+   */
+  @Test(timeout=20000)
+  public void friendFilterDefaultRateTest() throws IOException, InterruptedException {
+    for (int friends : new int[] { 0, 1, 10, 1000, 100000 }) {
+      double rate = CryptographicExchange.getFriendFilterFalsePositiveRate(friends);
+      assertTrue(rate > 0 && rate < 1);
+      assertTrue(friends * rate <= CryptographicExchange.FRIEND_FILTER_FALSE_POSITIVES * 1.000001);
+    }
+
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_2);
+    for (int i = 0; i < 200; i++) {
+      friendStoreA.addFriendBytes(("A's friend " + i).getBytes());
+      friendStoreB.addFriendBytes(("B's friend " + i).getBytes());
+    }
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, b.getExchangeStatus());
+    // A false positive is possible, if unlikely; two are vanishingly so.
+    assertTrue(a.getCommonFriends() >= 2 && a.getCommonFriends() <= 3);
+    assertTrue(b.getCommonFriends() >= 2 && b.getCommonFriends() <= 3);
+
+    PipedInputStream hashInputA = new PipedInputStream();
+    PipedInputStream hashInputB = new PipedInputStream();
+    PipedOutputStream hashOutputA = new PipedOutputStream(hashInputB);
+    PipedOutputStream hashOutputB = new PipedOutputStream(hashInputA);
+    CryptographicExchange hashA = createExchange(true, hashInputA, hashOutputA,
+                                                 friendStoreA, messageStoreA);
+    CryptographicExchange hashB = createExchange(true, hashInputB, hashOutputB,
+                                                 friendStoreB, messageStoreB);
+    hashA.setCapabilities(CryptographicExchange.CAPABILITIES &
+                          ~CryptographicExchange.CAPABILITY_FRIEND_FILTER);
+    runExchanges(hashA, hashB);
+
+    // 202 hashes of 20 bytes, or a filter of about 3 bytes per friend.
+    assertTrue(a.getStats().getBytesOut() + 202 * 15 < hashA.getStats().getBytesOut());
+    assertTrue(b.getStats().getBytesOut() + 202 * 15 < hashB.getStats().getBytesOut());
+  }
+
+  /**
+   * Each exchange's stats count what went each way and time the phases the
+   * exchange ran itself.
+   */
+  @Test(timeout=5000)
+  public void statsTest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreA.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreB.addMessage(TEST_MESSAGE_3, TEST_PRIORITY_3);
+
+    performExchange();
+
+    ExchangeStats statsA = exchangeA.getStats();
+    ExchangeStats statsB = exchangeB.getStats();
+    assertNull(statsA.getFailureReason());
+    assertEquals(exchangeA.getReceivedMessages().size(), statsA.getMessagesReceived());
+    assertEquals(statsB.getMessagesSent(), statsA.getMessagesReceived());
+    assertEquals(statsA.getMessagesSent(), statsB.getMessagesReceived());
+    assertEquals(exchangeA.channel.getBytesWritten(), statsA.getBytesOut());
+    assertEquals(statsB.getBytesOut(), statsA.getBytesIn());
+    for (ExchangeStats.Phase phase : ExchangeStats.Phase.values()) {
+      // Connecting and applying results are up to the exchange's owner.
+      boolean timed = phase != ExchangeStats.Phase.CONNECT &&
+                      phase != ExchangeStats.Phase.STORE_APPLY;
+      assertEquals(timed, statsA.getPhaseNanos(phase) != ExchangeStats.NOT_TIMED);
+    }
+  }
+
+  /**
+   * A traced exchange can be replayed from its trace, with stores set up like
+   * the traced side's, receiving the same frames and messages.
+   */
+  @Test(timeout=10000)
+  public void traceReplayTest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    messageStoreA.addMessage(TEST_MESSAGE_1, TEST_PRIORITY_1);
+    messageStoreB.addMessage(TEST_MESSAGE_2, TEST_PRIORITY_2);
+    messageStoreB.addMessage(TEST_MESSAGE_3, TEST_PRIORITY_3);
+
+    ByteArrayOutputStream traceBytes = new ByteArrayOutputStream();
+    ExchangeTrace trace = new ExchangeTrace(traceBytes);
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setTrace(trace);
+    runExchanges(a, b);
+    trace.close();
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+
+    ExchangeTrace read = ExchangeTrace.read(new ByteArrayInputStream(traceBytes.toByteArray()));
+    assertEquals(2, (int) read.getHeader().friendCount);
+    assertEquals(a.channel.getFramesRead() + a.channel.getFramesWritten(),
+                 read.getFrames().size());
+
+    SlidingPageIndicator context = Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    MockMessageStore messageStoreC = new MockMessageStore(context, StorageBase.ENCRYPTION_DEFAULT);
+    FriendStore friendStoreC = new MockFriendStore(context, StorageBase.ENCRYPTION_DEFAULT);
+    ExchangeReplay.populate(read, friendStoreC, messageStoreC);
+    assertEquals(2, friendStoreC.getAllFriends().size());
+    assertEquals(1, messageStoreC.getMessageCount());
+
+    CryptographicExchange replayed = ExchangeReplay.replay(read, friendStoreC, messageStoreC,
+                                                           callback, false);
+    assertEquals(Exchange.Status.SUCCESS, replayed.getExchangeStatus());
+    assertEquals(a.getStats().getBytesIn(), replayed.getStats().getBytesIn());
+    assertEquals(a.getReceivedMessages().size(), replayed.getReceivedMessages().size());
+    for (int i = 0; i < a.getReceivedMessages().size(); i++) {
+      assertEquals(a.getReceivedMessages().get(i).text,
+                   replayed.getReceivedMessages().get(i).text);
+    }
+  }
+
+  /**
+   * A byte budget cuts the messages sent down to the highest priority ones
+   * that fit, and the round trip is measured.
+   */
+  @Test(timeout=5000)
+  public void byteBudgetTest() throws IOException, InterruptedException {
+    // The mock store iterates in the order messages are added.
+    for (int i = 0; i < 20; i++) {
+      messageStoreA.addMessage("A's message number " + i, TEST_PRIORITY_1);
+    }
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    // Each message is about 30 bytes.
+    a.setByteBudget(150);
+    exchangeA = a;
+    exchangeB = b;
+    runExchanges(a, b);
+
+    List<RangzenMessage> received = exchangeB.getReceivedMessages();
+    assertTrue(received.size() > 0);
+    assertTrue(received.size() < 10);
+    for (int i = 0; i < received.size(); i++) {
+      // The highest priority messages were sent.
+      assertEquals("A's message number " + i, received.get(i).text);
+    }
+    // Messages were left out, so the watermark doesn't advance.
+    assertEquals(Exchange.NO_WATERMARK, exchangeA.getSentVersion());
+    assertTrue(exchangeA.getRoundTripNanos() > 0);
+  }
+
+  /**
+   * A message the remote summary hides, as a false positive would, isn't
+   * passed by the watermark, and is sent once the summary no longer hides it
+   * even when a watermark says the peer has it.
+   */
+  @Test(timeout=10000)
+  public void summaryFalsePositiveTest() throws IOException, InterruptedException {
+    // The mock store iterates in the order messages are added, so message 15
+    // is below the top NUM_TOP_MESSAGES_TO_RESEND.
+    for (int i = 0; i < 20; i++) {
+      messageStoreA.addMessage("A's message number " + i, TEST_PRIORITY_1);
+    }
+    messageStoreB.addMessage("A's message number 15", TEST_PRIORITY_1);
+
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    // Keep the messages out of the hellos, so that only the summary filters.
+    a.setPeerAnswersHello(true);
+    b.setPeerAnswersHello(true);
+    a.setPeerReconciles(true);
+    b.setPeerReconciles(true);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.SUCCESS, a.getExchangeStatus());
+    assertEquals(19, b.getReceivedMessages().size());
+    // A can't tell B's copy from a false positive, so the watermark stays.
+    assertEquals(Exchange.NO_WATERMARK, a.getSentVersion());
+
+    // A peer without message 15 whose summary doesn't hide it gets it, even
+    // though a watermark says it has every message A has.
+    SlidingPageIndicator context = Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    MockMessageStore messageStoreC = new MockMessageStore(context, StorageBase.ENCRYPTION_DEFAULT);
+    PipedInputStream inputA = new PipedInputStream();
+    PipedInputStream inputC = new PipedInputStream();
+    PipedOutputStream outputA = new PipedOutputStream(inputC);
+    PipedOutputStream outputC = new PipedOutputStream(inputA);
+    CryptographicExchange watermarkedA = createExchange(true, inputA, outputA,
+                                                        friendStoreA, messageStoreA);
+    CryptographicExchange c = createExchange(true, inputC, outputC,
+                                             friendStoreB, messageStoreC);
+    watermarkedA.setWatermark(messageStoreA.getVersion());
+    watermarkedA.setPeerAnswersHello(true);
+    c.setPeerAnswersHello(true);
+    watermarkedA.setPeerReconciles(true);
+    c.setPeerReconciles(true);
+    runExchanges(watermarkedA, c);
+    assertEquals(Exchange.Status.SUCCESS, watermarkedA.getExchangeStatus());
+    assertEquals(20, c.getReceivedMessages().size());
+    assertEquals("A's message number 15", c.getReceivedMessages().get(15).text);
+  }
+
+  /**
+   * An exchange cut off after PSI resumes on a new connection, skipping PSI
+   * and sending only the chunks the other side lacks.
+   */
+  @Test(timeout=10000)
+  public void resumeTest() throws IOException, InterruptedException {
+    friendStoreA.addFriendBytes(TEST_FRIEND_1);
+    friendStoreA.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_1);
+    friendStoreB.addFriendBytes(TEST_FRIEND_2);
+    friendStoreB.addFriendBytes(TEST_FRIEND_3);
+    // B has no messages, so its summary has no false positives.
+    for (int i = 0; i < 25; i++) {
+      messageStoreA.addMessage("A's message number " + i, TEST_PRIORITY_1);
+    }
+
+    // A's connection drops as it writes its second chunk, after its hello,
+    // client message, server message and first chunk.
+    CryptographicExchange a = createExchange(true, inputStreamA,
+                                             new DroppingOutputStream(outputStreamA, 4),
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    // Peers that leave sessions to resume have answered hellos before.
+    a.setPeerAnswersHello(true);
+    b.setPeerAnswersHello(true);
+    a.setPeerReconciles(true);
+    b.setPeerReconciles(true);
+    runExchanges(a, b);
+    assertEquals(Exchange.Status.ERROR, a.getExchangeStatus());
+    assertEquals(Exchange.Status.ERROR, b.getExchangeStatus());
+    assertNotNull(a.getStats().getFailureReason());
+    // A's reader outlives its failed exchange; let it take B's only chunk.
+    while (!a.getSession().isRemoteDone()) {
+      Thread.sleep(10);
+    }
+    assertTrue(a.getSession().isResumable());
+    assertTrue(b.getSession().isResumable());
+    assertEquals(1, b.getSession().getChunksReceived());
+
+    PipedInputStream resumedInputA = new PipedInputStream();
+    PipedInputStream resumedInputB = new PipedInputStream();
+    PipedOutputStream resumedOutputA = new PipedOutputStream(resumedInputB);
+    PipedOutputStream resumedOutputB = new PipedOutputStream(resumedInputA);
+    CryptographicExchange resumedA = createExchange(true, resumedInputA, resumedOutputA,
+                                                    friendStoreA, messageStoreA);
+    CryptographicExchange resumedB = createExchange(true, resumedInputB, resumedOutputB,
+                                                    friendStoreB, messageStoreB);
+    resumedA.setResumableSession(a.getSession());
+    resumedB.setResumableSession(b.getSession());
+    runExchanges(resumedA, resumedB);
+
+    assertEquals(Exchange.Status.SUCCESS, resumedA.getExchangeStatus());
+    assertEquals(Exchange.Status.SUCCESS, resumedB.getExchangeStatus());
+    assertEquals(2, resumedA.getCommonFriends());
+    assertEquals(2, resumedB.getCommonFriends());
+    assertEquals(0, resumedA.getReceivedMessages().size());
+    assertEquals(25, resumedB.getReceivedMessages().size());
+    // A resends only its last two chunks after its hello and resume message,
+    // and B has nothing left to send.
+    assertEquals(4, resumedA.channel.getFramesWritten());
+    assertEquals(2, resumedB.channel.getFramesWritten());
+  }
+
   /**
    * Utility method that creates two exchanges, starts them in threads, joins the
    * threads and returns when all that is done.
    */
   private void performExchange() throws InterruptedException {
-    exchangeA = createExchange(true, inputStreamA, outputStreamA, friendStoreA, messageStoreA);
-    exchangeB = createExchange(true, inputStreamB, outputStreamB, friendStoreB, messageStoreB);
+    performExchange(false, false);
+  }
+
+  /**
+   * Perform an exchange that counts common friends exactly, with no false
+   * positives from the friend filter.
+   */
+  private void performExactExchange() throws InterruptedException {
+    performExchange(false, false, EXACT_FALSE_POSITIVE_RATE);
+  }
 
+  /**
+   * Perform an exchange, telling each side whether the other reconciles.
+   */
+  private void performExchange(boolean aReconciles, boolean bReconciles)
+      throws InterruptedException {
+    performExchange(aReconciles, bReconciles, 0);
+  }
+
+  /**
+   * Perform an exchange, telling each side whether the other reconciles and
+   * what false positive rate its friend filter has, or 0 for the default.
+   */
+  private void performExchange(boolean aReconciles, boolean bReconciles,
+                               double falsePositiveRate) throws InterruptedException {
+    CryptographicExchange a = createExchange(true, inputStreamA, outputStreamA,
+                                             friendStoreA, messageStoreA);
+    CryptographicExchange b = createExchange(true, inputStreamB, outputStreamB,
+                                             friendStoreB, messageStoreB);
+    a.setPeerReconciles(aReconciles);
+    b.setPeerReconciles(bReconciles);
+    if (falsePositiveRate != 0) {
+      a.setFriendFilterFalsePositiveRate(falsePositiveRate);
+      b.setFriendFilterFalsePositiveRate(falsePositiveRate);
+    }
+    exchangeA = a;
+    exchangeB = b;
+    runExchanges(a, b);
+  }
+
+  /**
+   * Run two exchanges in threads, returning when both are done.
+   */
+  private void runExchanges(Exchange a, Exchange b) throws InterruptedException {
     // Start the exchange.
-    Thread threadA = new Thread(exchangeA);
-    Thread threadB = new Thread(exchangeB);
+    Thread threadA = new Thread(a);
+    Thread threadB = new Thread(b);
 
     threadA.start();
     threadB.start(); 
@@ -344,6 +1029,105 @@ public class CryptographicExchangeTest {
     threadB.join();
   }
 
+  /**
+   * Passes a number of writes to another stream, then closes it and fails, as
+   * a connection that drops does.
+   */
+  private static class DroppingOutputStream extends OutputStream {
+    /** The stream written to. */
+    private OutputStream mOut;
+    /** The number of writes left before the drop. */
+    private int mWritesLeft;
+
+    public DroppingOutputStream(OutputStream out, int writes) {
+      this.mOut = out;
+      this.mWritesLeft = writes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (mWritesLeft-- <= 0) {
+        mOut.close();
+        throw new IOException("Connection dropped.");
+      }
+      mOut.write(b, off, len);
+    }
+  }
+
+  /**
+   * A peer speaking only the baseline protocol: it sends a ClientMessage of
+   * messages and blinded friends, reads one, answers it with a ServerMessage
+   * of the two lists of friends, and reads one, all in undeflated frames and
+   * ignoring fields added since.
+   */
+  private static class BaselinePeer implements Runnable {
+    private InputStream mIn;
+    private OutputStream mOut;
+    private ArrayList<byte[]> mFriends;
+    private RangzenMessage mMessage;
+
+    /** The messages in the ClientMessage received. */
+    public List<RangzenMessage> receivedMessages;
+    /** Number of friends found in common. */
+    public int commonFriends = -1;
+    /** The exception that stopped the exchange, if any. */
+    public Exception exception;
+
+    public BaselinePeer(InputStream in, OutputStream out, ArrayList<byte[]> friends,
+                        String message, double priority) {
+      this.mIn = in;
+      this.mOut = out;
+      this.mFriends = friends;
+      this.mMessage = new RangzenMessage.Builder().text(message).priority(priority).build();
+    }
+
+    @Override
+    public void run() {
+      try {
+        PrivateSetIntersection clientPSI = new PrivateSetIntersection(mFriends);
+        PrivateSetIntersection serverPSI = new PrivateSetIntersection(mFriends);
+        ClientMessage clientMessage = new ClientMessage.Builder()
+            .messages(Arrays.asList(mMessage))
+            .blindedFriends(Crypto.byteArraysToStrings(clientPSI.encodeBlindedItems()))
+            .build();
+        Exchange.lengthValueWrite(mOut, clientMessage);
+
+        ClientMessage remoteClientMessage = readFrame(ClientMessage.class);
+        receivedMessages = remoteClientMessage.messages;
+        PrivateSetIntersection.ServerReplyTuple reply = serverPSI.replyToBlindedItems(
+            Crypto.byteStringsToArrays(remoteClientMessage.blindedFriends));
+        ServerMessage serverMessage = new ServerMessage.Builder()
+            .doubleBlindedFriends(Crypto.byteArraysToStrings(reply.doubleBlindedItems))
+            .hashedBlindedFriends(Crypto.byteArraysToStrings(reply.hashedBlindedItems))
+            .build();
+        Exchange.lengthValueWrite(mOut, serverMessage);
+
+        ServerMessage remoteServerMessage = readFrame(ServerMessage.class);
+        commonFriends = clientPSI.getCardinality(clientPSI.new ServerReplyTuple(
+            Crypto.byteStringsToArrays(remoteServerMessage.doubleBlindedFriends),
+            Crypto.byteStringsToArrays(remoteServerMessage.hashedBlindedFriends)));
+      } catch (Exception e) {
+        exception = e;
+      }
+    }
+
+    /** Read a frame as the baseline did, with no deflated frames. */
+    private <T extends com.squareup.wire.Message> T readFrame(Class<T> messageClass) throws IOException {
+      int length = FrameChannel.readLength(mIn);
+      if (length < 0 || length > 1 << 20) {
+        throw new IOException("Baseline peer can't read a frame of length " + length);
+      }
+      byte[] buffer = new byte[length];
+      FrameChannel.readFully(mIn, buffer, 0, length);
+      return new Wire().parseFrom(buffer, messageClass);
+    }
+  }
+
   /**
    * Testing utility method that starts a new exchange.
    *
@@ -430,6 +1214,11 @@ public class CryptographicExchangeTest {
         return null;
       }
     }
+
+    @Override
+    public Iterator<Message> iterateByPriority(int limit) {
+      return mockMessages.subList(0, Math.min(limit, mockMessages.size())).iterator();
+    }
   }
 
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the histograms of exchange measurements.
+ */
+@RunWith(JUnit4.class)
+public class ExchangeHistogramsTest {
+  /** Number of nanoseconds in a millisecond. */
+  private static final long MILLISECOND = 1000 * 1000;
+
+  /**
+   * Values fall in buckets whose bounds double, and percentiles are given as
+   * the upper bound of their bucket.
+   */
+  @Test
+  public void buckets() {
+    assertEquals(0, Histogram.getBucket(-5));
+    assertEquals(0, Histogram.getBucket(0));
+    assertEquals(1, Histogram.getBucket(1));
+    assertEquals(2, Histogram.getBucket(3));
+    assertEquals(3, Histogram.getBucket(4));
+    assertEquals(Histogram.BUCKETS - 1, Histogram.getBucket(Long.MAX_VALUE));
+    assertEquals(7, Histogram.getUpperBound(3));
+
+    Histogram histogram = new Histogram();
+    assertEquals(-1, histogram.getPercentile(0.5));
+    for (int i = 0; i < 9; i++) {
+      histogram.add(5);
+    }
+    histogram.add(1000);
+    assertEquals(10, histogram.getTotal());
+    assertEquals(7, histogram.getPercentile(0.5));
+    assertEquals(7, histogram.getPercentile(0.9));
+    assertEquals(1023, histogram.getPercentile(1.0));
+
+    histogram.remove(1000);
+    assertEquals(7, histogram.getPercentile(1.0));
+  }
+
+  /**
+   * Phases an exchange doesn't enter aren't counted, and phases it enters
+   * more than once add up.
+   */
+  @Test
+  public void phases() {
+    ExchangeStats stats = new ExchangeStats();
+    assertEquals(ExchangeStats.NOT_TIMED, stats.getPhaseNanos(ExchangeStats.Phase.CONNECT));
+    stats.addPhaseNanos(ExchangeStats.Phase.PSI_INIT, 2 * MILLISECOND);
+    stats.addPhaseNanos(ExchangeStats.Phase.PSI_INIT, 3 * MILLISECOND);
+    assertEquals(5 * MILLISECOND, stats.getPhaseNanos(ExchangeStats.Phase.PSI_INIT));
+
+    ExchangeHistograms histograms = new ExchangeHistograms();
+    histograms.add(stats);
+    assertEquals(0, histograms.getPhaseCount(ExchangeStats.Phase.CONNECT));
+    assertEquals(1, histograms.getPhaseCount(ExchangeStats.Phase.PSI_INIT));
+    assertEquals(8191, histograms.getPhasePercentileMicros(ExchangeStats.Phase.PSI_INIT, 0.5));
+
+    // Measurements taken after the exchange is added aren't counted.
+    stats.addPhaseNanos(ExchangeStats.Phase.CONNECT, MILLISECOND);
+    assertEquals(0, histograms.getPhaseCount(ExchangeStats.Phase.CONNECT));
+  }
+
+  /**
+   * Only the last WINDOW exchanges are covered, and failures are counted by
+   * reason.
+   */
+  @Test
+  public void window() {
+    ExchangeHistograms histograms = new ExchangeHistograms();
+    ExchangeStats failed = new ExchangeStats();
+    failed.setFailureReason("Remote server message was not received.");
+    failed.setFailureReason("Second reason");
+    assertEquals("Remote server message was not received.", failed.getFailureReason());
+    histograms.add(failed);
+    histograms.add(failed);
+    assertEquals(2, histograms.getFailures());
+    assertEquals(2, (int) histograms.getFailureReasons().get(failed.getFailureReason()));
+
+    ExchangeStats large = new ExchangeStats();
+    large.addBytesIn(100 * 1000);
+    for (int i = 0; i < ExchangeHistograms.WINDOW - 2; i++) {
+      histograms.add(large);
+    }
+    assertEquals(ExchangeHistograms.WINDOW, histograms.getCount());
+    assertEquals(2, histograms.getFailures());
+    assertEquals(0, histograms.getBytesInPercentile(0.01));
+
+    histograms.add(large);
+    histograms.add(large);
+    assertEquals(ExchangeHistograms.WINDOW, histograms.getCount());
+    assertEquals(0, histograms.getFailures());
+    assertNull(histograms.getFailureReasons().get(failed.getFailureReason()));
+    assertEquals(131071, histograms.getBytesInPercentile(0.01));
+  }
+}
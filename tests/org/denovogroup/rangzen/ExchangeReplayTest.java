@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Replays exchange traces recorded on phones, to reproduce and profile slow
+ * exchanges seen in the field. Point RANGZEN_TRACES at a directory of traces
+ * pulled from the app's files (see RangzenService.TRACE_DIRECTORY) and run
+ * this test; each trace is replayed, paced as it was recorded, and its stats
+ * printed. Without RANGZEN_TRACES there's nothing to replay.
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18,
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class ExchangeReplayTest {
+  /** Environment variable naming the directory of traces to replay. */
+  private static final String TRACES_VARIABLE = "RANGZEN_TRACES";
+
+  /** Whether to replay frames no faster than they arrived. */
+  private static final boolean PACED = true;
+
+  /** Store of friends for the replayed exchanges. */
+  private FriendStore friendStore;
+
+  /** Store of messages for the replayed exchanges. */
+  private MessageStore messageStore;
+
+  /** Called back by the replayed exchanges. */
+  private ExchangeCallback callback = new ExchangeCallback() {
+    @Override
+    public void success(Exchange exchange) {
+    }
+
+    @Override
+    public void failure(Exchange exchange, String reason) {
+    }
+  };
+
+  @Before
+  public void setUp() {
+    SlidingPageIndicator context = Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    friendStore = new FriendStore(context, StorageBase.ENCRYPTION_DEFAULT);
+    messageStore = new MessageStore(context, StorageBase.ENCRYPTION_DEFAULT);
+  }
+
+  /**
+   * Replay every trace in the directory named by RANGZEN_TRACES.
+   */
+  @Test
+  public void replayTraces() throws IOException {
+    String directory = System.getenv(TRACES_VARIABLE);
+    assumeTrue(directory != null);
+    File[] files = new File(directory).listFiles();
+    assumeTrue(files != null);
+    Arrays.sort(files);
+
+    ExchangeHistograms histograms = new ExchangeHistograms();
+    for (File file : files) {
+      if (!file.getName().endsWith(RangzenService.TRACE_SUFFIX)) {
+        continue;
+      }
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      ExchangeTrace trace;
+      try {
+        trace = ExchangeTrace.read(in);
+      } finally {
+        in.close();
+      }
+      ExchangeReplay.populate(trace, friendStore, messageStore);
+      Exchange exchange = ExchangeReplay.replay(trace, friendStore, messageStore,
+                                                callback, PACED);
+      ExchangeReplay.unpopulate(trace, friendStore, messageStore);
+
+      histograms.add(exchange.getStats());
+      System.out.println(String.format("%s: %d friends, %d messages, %d frames: %s",
+                                       file.getName(),
+                                       trace.getHeader().friendCount,
+                                       trace.getHeader().messages.size(),
+                                       trace.getFrames().size(),
+                                       exchange.getStats()));
+    }
+    for (ExchangeStats.Phase phase : ExchangeStats.Phase.values()) {
+      if (histograms.getPhaseCount(phase) > 0) {
+        System.out.println(String.format("%s: median < %dus, 90%% < %dus",
+            phase.name().toLowerCase(),
+            histograms.getPhasePercentileMicros(phase, 0.5) + 1,
+            histograms.getPhasePercentileMicros(phase, 0.9) + 1));
+      }
+    }
+  }
+}
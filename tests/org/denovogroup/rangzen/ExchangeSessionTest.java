@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the state kept to resume cut off exchanges.
+ */
+@RunWith(JUnit4.class)
+public class ExchangeSessionTest {
+  /** Build the given number of messages. */
+  private List<RangzenMessage> messages(int count) {
+    List<RangzenMessage> messages = new ArrayList<RangzenMessage>();
+    for (int i = 0; i < count; i++) {
+      messages.add(new RangzenMessage.Builder().text("message" + i).priority(0.5).build());
+    }
+    return messages;
+  }
+
+  /**
+   * Outgoing messages are split into full chunks with the last marked, and an
+   * empty list still has a last chunk.
+   */
+  @Test
+  public void chunks() {
+    ExchangeSession session = new ExchangeSession(1);
+    session.setOutgoing(messages(25), 7);
+    assertEquals(3, session.getChunkCount());
+    assertEquals(ExchangeSession.MESSAGES_PER_CHUNK, session.getChunk(0).messages.size());
+    assertFalse(session.getChunk(1).last);
+    assertEquals(5, session.getChunk(2).messages.size());
+    assertEquals("message20", session.getChunk(2).messages.get(0).text);
+    assertTrue(session.getChunk(2).last);
+    assertEquals(7, session.getSentVersion());
+
+    session.setOutgoing(messages(0), 7);
+    assertEquals(1, session.getChunkCount());
+    assertEquals(0, session.getChunk(0).messages.size());
+    assertTrue(session.getChunk(0).last);
+  }
+
+  /**
+   * Received chunks are checkpointed in order, and out of order or repeated
+   * chunks are refused.
+   */
+  @Test
+  public void checkpoints() {
+    ExchangeSession sender = new ExchangeSession(1);
+    sender.setOutgoing(messages(15), 7);
+    ExchangeSession receiver = new ExchangeSession(2);
+    receiver.addReceived(messages(1));
+
+    assertFalse(receiver.addChunk(sender.getChunk(1)));
+    assertTrue(receiver.addChunk(sender.getChunk(0)));
+    assertFalse(receiver.addChunk(sender.getChunk(0)));
+    assertEquals(1, receiver.getChunksReceived());
+    assertFalse(receiver.isRemoteDone());
+    assertTrue(receiver.addChunk(sender.getChunk(1)));
+    assertTrue(receiver.isRemoteDone());
+    assertEquals(16, receiver.getReceived().size());
+  }
+
+  /**
+   * A session is resumable only once the remote peer announced an ID and both
+   * server messages crossed, and only within the resume window.
+   */
+  @Test
+  public void resumable() {
+    ExchangeSession session = new ExchangeSession(1);
+    session.setOutgoing(messages(1), 7);
+    session.setCommonFriends(0);
+    assertFalse(session.isResumable());
+    session.setRemote(2L, true);
+    assertTrue(session.isResumable());
+    assertTrue(session.remoteReconciles());
+
+    long now = System.currentTimeMillis();
+    assertTrue(session.isFresh(now));
+    assertFalse(session.isFresh(now + ExchangeSession.RESUME_WINDOW_MILLIS + 1));
+
+    ExchangeSession noServerMessage = new ExchangeSession(1);
+    noServerMessage.setRemote(2L, false);
+    noServerMessage.setCommonFriends(0);
+    assertFalse(noServerMessage.isResumable());
+  }
+}
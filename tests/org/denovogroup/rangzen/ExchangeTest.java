@@ -282,6 +282,47 @@ public class ExchangeTest {
     assertEquals(testValue, Exchange.popLength(inputStream));
   }
 
+  /**
+   * Test that an exchange given a watermark leaves out the messages the peer
+   * already got, other than the top few.
+   */
+  @Test
+  public void watermarkTest() {
+    for (int i = 0; i < 105; i++) {
+      messageStore.addMessage("message " + i, 0.5 + i / 1000.0);
+    }
+    Exchange first = new Exchange(inputStream, outputStream, true, friendStore,
+                                  messageStore, callback);
+    assertEquals(Exchange.NO_WATERMARK, first.getSentVersion());
+    assertEquals(100, first.getMessages().size());
+    long watermark = first.getSentVersion();
+    assertNotEquals(Exchange.NO_WATERMARK, watermark);
+
+    // Nothing changed: only the top 10 are resent.
+    Exchange second = new Exchange(inputStream, outputStream, true, friendStore,
+                                   messageStore, callback);
+    second.setWatermark(watermark);
+    assertEquals(10, second.getMessages().size());
+
+    // The message promoted into the top 100 by deleting one is sent.
+    messageStore.deleteMessage("message 104");
+    second.setWatermark(watermark);
+    List<RangzenMessage> sent = second.getMessages();
+    assertEquals(11, sent.size());
+    assertEquals("message 4", sent.get(10).text);
+
+    // A new message is sent.
+    second.setWatermark(second.getSentVersion());
+    messageStore.addMessage("new message", 0.5555);
+    sent = second.getMessages();
+    assertEquals(11, sent.size());
+    assertEquals("new message", sent.get(10).text);
+
+    // A watermark older than the change log gets everything.
+    second.setWatermark(0);
+    assertEquals(100, second.getMessages().size());
+  }
+
   /**
    * Test that the method Exchange.newPriority computes priorities
    * as we expect it should.
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.view.View;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Measures how long FeedListAdapter takes to bind rows while scrolling
+ * through a 5k message feed, against the per-row store reads it used to do
+ * to find each message's flags. Runs only with RANGZEN_BENCHMARKS set.
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18, 
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class FeedScrollBenchmark {
+  /** Environment variable that has to be set for the benchmark to run. */
+  private static final String BENCHMARKS_VARIABLE = "RANGZEN_BENCHMARKS";
+
+  /** Number of messages in the feed. */
+  private static final int NUM_MESSAGES = 5000;
+
+  /** Number of rows on screen, and so of views being recycled. */
+  private static final int VISIBLE_ROWS = 10;
+
+  /** Keys the UI used to keep flags under, before they moved into the store. */
+  private static final String[] OLD_FLAG_KEYS = { "SAVE", "RETWEET", "" };
+
+  /** The app instance we're using to pass to MessageStore. */
+  private SlidingPageIndicator activity;
+
+  /** The store holding the feed. */
+  private MessageStore store;
+
+  @Before
+  public void setUp() {
+    assumeTrue(System.getenv(BENCHMARKS_VARIABLE) != null);
+    activity = Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    store = new MessageStore(activity, StorageBase.ENCRYPTION_NONE);
+
+    Random random = new Random(0);
+    List<RangzenMessage> batch = new ArrayList<RangzenMessage>();
+    for (int i = 0; i < NUM_MESSAGES; i++) {
+      batch.add(new RangzenMessage.Builder()
+                                  .text("message " + i + " about #tag" + (i % 100))
+                                  .priority(random.nextDouble())
+                                  .build());
+    }
+    store.applyExchangeResults(batch, 1, 1);
+    for (int i = 0; i < NUM_MESSAGES; i += 10) {
+      store.setFlags("message " + i + " about #tag" + (i % 100),
+                     MessageStore.FLAG_RETWEETED, true);
+    }
+  }
+
+  /** Binds every row from top to bottom and back, recycling views. */
+  private long scroll(FeedListAdapter adapter, ListView parent) {
+    View[] recycled = new View[VISIBLE_ROWS];
+    long start = System.nanoTime();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < adapter.getCount(); i++) {
+        int row = (pass == 0) ? i : adapter.getCount() - 1 - i;
+        int slot = row % VISIBLE_ROWS;
+        recycled[slot] = adapter.getView(row, recycled[slot], parent);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  @Test
+  public void scroll5k() {
+    List<MessageStore.Message> messages =
+        store.getAllMessages(MessageStore.NOT_SAVED_MESSAGES, null);
+    assertEquals(NUM_MESSAGES, messages.size());
+    int retweeted = 0;
+    for (MessageStore.Message m : messages) {
+      if (m.hasFlag(MessageStore.FLAG_RETWEETED)) {
+        retweeted++;
+      }
+    }
+    assertEquals(NUM_MESSAGES / 10, retweeted);
+
+    FeedListAdapter adapter = new FeedListAdapter(activity, R.layout.feed_row, messages);
+    ListView parent = new ListView(activity);
+    // Warm up inflation and the view pool.
+    scroll(adapter, parent);
+    long bindNanos = scroll(adapter, parent);
+
+    // What each bind used to add on top: a StorageBase and three lookups.
+    long start = System.nanoTime();
+    int found = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      for (MessageStore.Message m : messages) {
+        StorageBase s = new StorageBase(activity, StorageBase.ENCRYPTION_DEFAULT);
+        for (String key : OLD_FLAG_KEYS) {
+          found += s.getInt(key + m.getId(), 0);
+        }
+      }
+    }
+    long storeNanos = System.nanoTime() - start;
+    assertTrue(found >= 0);
+
+    int binds = 2 * NUM_MESSAGES;
+    System.out.println(String.format(
+        "%d rows: bind %.1fus per row; per-row store reads it no longer does %.1fus",
+        NUM_MESSAGES, bindNanos / 1e3 / binds, storeNanos / 1e3 / binds));
+  }
+}
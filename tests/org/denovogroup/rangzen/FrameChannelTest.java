@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the length/value framing used by exchanges.
+ */
+@RunWith(JUnit4.class)
+public class FrameChannelTest {
+  /** A message to send through the channel. */
+  private CleartextFriends friends;
+
+  /**
+   * An input stream that returns at most one byte per read, like a slow socket.
+   */
+  private static class TrickleInputStream extends FilterInputStream {
+    TrickleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      return super.read(buffer, offset, Math.min(count, 1));
+    }
+  }
+
+  @Before
+  public void setUp() {
+    List<String> ids = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      ids.add("friend" + i);
+    }
+    friends = new CleartextFriends.Builder().friends(ids).build();
+  }
+
+  /** Write the given messages through a channel and return the bytes sent. */
+  private byte[] frames(CleartextFriends... messages) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameChannel channel = new FrameChannel(null, out);
+    for (CleartextFriends m : messages) {
+      channel.writeFrame(m);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Frames read back as the messages written, and the wire format is a 4 byte
+   * big-endian length followed by the message.
+   */
+  @Test
+  public void roundTrip() throws IOException {
+    byte[] bytes = frames(friends, friends);
+    int length = friends.getSerializedSize();
+    assertEquals(2 * (FrameChannel.HEADER_SIZE + length), bytes.length);
+    assertEquals(length, FrameChannel.readLength(new ByteArrayInputStream(bytes)));
+    assertTrue(Arrays.equals(friends.toByteArray(),
+                             Arrays.copyOfRange(bytes, 4, 4 + length)));
+
+    FrameChannel channel = new FrameChannel(new ByteArrayInputStream(bytes), null);
+    assertEquals(friends, channel.readFrame(CleartextFriends.class));
+    assertEquals(friends, channel.readFrame(CleartextFriends.class));
+  }
+
+  /**
+   * Frames arriving a byte at a time, header included, are read completely.
+   */
+  @Test
+  public void shortReads() throws IOException {
+    InputStream in = new TrickleInputStream(new ByteArrayInputStream(frames(friends, friends)));
+    FrameChannel channel = new FrameChannel(in, null);
+    assertEquals(friends, channel.readFrame(CleartextFriends.class));
+    assertEquals(friends, channel.readFrame(CleartextFriends.class));
+  }
+
+  /**
+   * A stream that ends partway through a frame is an error, not a short message.
+   */
+  @Test
+  public void truncatedFrame() throws IOException {
+    byte[] bytes = frames(friends);
+    for (int cut : new int[] { 0, 2, FrameChannel.HEADER_SIZE, bytes.length - 1 }) {
+      InputStream in = new ByteArrayInputStream(Arrays.copyOf(bytes, cut));
+      try {
+        new FrameChannel(in, null).readFrame(CleartextFriends.class);
+        fail("Read a frame truncated to " + cut + " bytes.");
+      } catch (EOFException e) {
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Lengths over the maximum frame size are refused before anything is
+   * allocated.
+   */
+  @Test
+  public void oversizeFrame() {
+    byte[] header = { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+    FrameChannel channel = new FrameChannel(new ByteArrayInputStream(header), null);
+    try {
+      channel.readFrame(CleartextFriends.class);
+      fail("Read a frame with an oversize length.");
+    } catch (EOFException e) {
+      fail("Tried to read the body of an oversize frame.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Frame, byte and time counters track each direction.
+   */
+  @Test
+  public void counters() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameChannel writer = new FrameChannel(null, out);
+    writer.writeFrame(friends);
+    writer.writeFrame(friends);
+    int frameBytes = FrameChannel.HEADER_SIZE + friends.getSerializedSize();
+    assertEquals(2, writer.getFramesWritten());
+    assertEquals(2 * frameBytes, writer.getBytesWritten());
+    assertEquals(frameBytes, writer.getLastWriteBytes());
+    assertTrue(writer.getWriteNanos() >= writer.getLastWriteNanos());
+    assertEquals(0, writer.getFramesRead());
+
+    FrameChannel reader = new FrameChannel(new ByteArrayInputStream(out.toByteArray()), null);
+    reader.readFrame(CleartextFriends.class);
+    assertEquals(1, reader.getFramesRead());
+    assertEquals(frameBytes, reader.getBytesRead());
+    assertEquals(frameBytes, reader.getLastReadBytes());
+    assertEquals(0, reader.getFramesWritten());
+  }
+
+  /** Build a message list like one sent in an exchange. */
+  private CleartextMessages messages() {
+    List<RangzenMessage> list = new ArrayList<RangzenMessage>();
+    for (int i = 0; i < 100; i++) {
+      list.add(new RangzenMessage.Builder()
+                                 .text("Protest at the main square tomorrow " + i +
+                                       " o'clock, please spread the news #protest")
+                                 .priority(i / 100.0)
+                                 .build());
+    }
+    return new CleartextMessages.Builder().messages(list).build();
+  }
+
+  /**
+   * Deflated frames are smaller, read back as the messages written, and are
+   * counted.
+   */
+  @Test
+  public void deflate() throws IOException {
+    CleartextMessages messages = messages();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameChannel writer = new FrameChannel(null, out);
+    writer.setDeflate(true);
+    writer.writeFrame(messages);
+    writer.writeFrame(friends);
+    int size = messages.getSerializedSize();
+    assertTrue(writer.getLastWriteBytes() < size / 4);
+    assertEquals(size + friends.getSerializedSize(), writer.getDeflateInputBytes());
+    assertEquals(out.size() - 2 * FrameChannel.HEADER_SIZE, writer.getDeflateOutputBytes());
+
+    InputStream in = new TrickleInputStream(new ByteArrayInputStream(out.toByteArray()));
+    FrameChannel reader = new FrameChannel(in, null);
+    assertEquals(messages, reader.readFrame(CleartextMessages.class));
+    assertEquals(friends, reader.readFrame(CleartextFriends.class));
+    assertEquals(size + friends.getSerializedSize(), reader.getInflateOutputBytes());
+  }
+
+  /**
+   * Frames that don't get smaller when deflated are sent as they are.
+   */
+  @Test
+  public void incompressible() throws IOException {
+    // Blinded friends look random, as do the bytes here.
+    List<ByteString> blinded = new ArrayList<ByteString>();
+    Random random = new Random(0);
+    for (int i = 0; i < 20; i++) {
+      byte[] bytes = new byte[32];
+      random.nextBytes(bytes);
+      blinded.add(ByteString.of(bytes));
+    }
+    ClientMessage noise = new ClientMessage.Builder().blindedFriends(blinded).build();
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    new FrameChannel(null, plain).writeFrame(noise);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameChannel writer = new FrameChannel(null, out);
+    writer.setDeflate(true);
+    writer.writeFrame(noise);
+    assertTrue(Arrays.equals(plain.toByteArray(), out.toByteArray()));
+    assertEquals(writer.getDeflateInputBytes(), writer.getDeflateOutputBytes());
+  }
+
+  /**
+   * Deflated frames that claim a huge size or don't inflate to the size they
+   * claim are refused.
+   */
+  @Test
+  public void badDeflatedFrames() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameChannel writer = new FrameChannel(null, out);
+    writer.setDeflate(true);
+    writer.writeFrame(messages());
+    byte[] good = out.toByteArray();
+
+    byte[] huge = good.clone();
+    huge[4] = 0x7f;
+    byte[] wrongSize = good.clone();
+    wrongSize[7]++;
+    byte[] corrupt = good.clone();
+    corrupt[good.length / 2] ^= 0x55;
+    for (byte[] bad : new byte[][] { huge, wrongSize, corrupt }) {
+      FrameChannel reader = new FrameChannel(new ByteArrayInputStream(bad), null);
+      try {
+        reader.readFrame(CleartextMessages.class);
+        fail("Read a bad deflated frame.");
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Released buffers are handed out again, and are always large enough.
+   */
+  @Test
+  public void bufferPool() {
+    byte[] buffer = FrameChannel.acquire(5000);
+    assertTrue(buffer.length >= 5000);
+    FrameChannel.release(buffer);
+    assertSame(buffer, FrameChannel.acquire(6000));
+
+    byte[] large = FrameChannel.acquire(FrameChannel.MAX_FRAME_SIZE);
+    assertEquals(FrameChannel.MAX_FRAME_SIZE, large.length);
+    FrameChannel.release(large);
+  }
+}
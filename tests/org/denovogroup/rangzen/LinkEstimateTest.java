@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the link estimates used to size exchanges.
+ */
+@RunWith(JUnit4.class)
+public class LinkEstimateTest {
+  /** Number of nanoseconds in a second. */
+  private static final long SECOND = 1000 * 1000 * 1000;
+
+  /**
+   * An estimate gives no budget until it has measured throughput, and ignores
+   * measurements too small to trust.
+   */
+  @Test
+  public void unmeasured() {
+    LinkEstimate estimate = new LinkEstimate();
+    assertFalse(estimate.hasThroughput());
+    assertEquals(Exchange.NO_BUDGET, estimate.getByteBudget(10 * 1000));
+
+    estimate.addTransfer(LinkEstimate.MIN_MEASURED_BYTES - 1, SECOND);
+    estimate.addTransfer(100 * 1000, 0);
+    assertFalse(estimate.hasThroughput());
+  }
+
+  /**
+   * The first measurement is taken as is, and later ones are averaged in.
+   */
+  @Test
+  public void averages() {
+    LinkEstimate estimate = new LinkEstimate();
+    estimate.addTransfer(100 * 1000, SECOND);
+    assertEquals(100 * 1000, estimate.getBytesPerSecond(), 1);
+    estimate.addTransfer(20 * 1000, SECOND);
+    assertEquals(80 * 1000, estimate.getBytesPerSecond(), 1);
+
+    estimate.addRoundTrip(SECOND);
+    assertEquals(1000, estimate.getRoundTripMillis(), 0.1);
+    estimate.addRoundTrip(-1);
+    assertEquals(1000, estimate.getRoundTripMillis(), 0.1);
+  }
+
+  /**
+   * The budget is what can be sent in the target time less a round trip, and
+   * never below the minimum.
+   */
+  @Test
+  public void budget() {
+    LinkEstimate estimate = new LinkEstimate();
+    estimate.addTransfer(100 * 1000, SECOND);
+    estimate.addRoundTrip(2 * SECOND);
+    assertEquals(800 * 1000, estimate.getByteBudget(10 * 1000), 1);
+    assertEquals(LinkEstimate.MIN_BYTE_BUDGET, estimate.getByteBudget(1000));
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Unit tests for Rangzen's LogStructuredPreferences class.
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18, 
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class LogStructuredPreferencesTest {
+  /** The log file backing the store under test. */
+  private File file;
+
+  /** The store under test. */
+  private LogStructuredPreferences prefs;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("LogStructuredPreferencesTest", ".log");
+    file.delete();
+    prefs = new LogStructuredPreferences(file);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    prefs.close();
+    file.delete();
+  }
+
+  /** Close the store and open it again from the same file. */
+  private void reopen() throws IOException {
+    prefs.close();
+    prefs = new LogStructuredPreferences(file);
+  }
+
+  /**
+   * Tests that every value type survives closing and reopening the log.
+   */
+  @Test
+  public void valuesPersistAcrossReopen() throws IOException {
+    Set<String> set = new HashSet<String>();
+    set.add("a");
+    set.add("b");
+    prefs.edit()
+         .putString("string", "value")
+         .putStringSet("set", set)
+         .putInt("int", 7)
+         .putLong("long", 1L << 40)
+         .putFloat("float", 1.5f)
+         .putBoolean("boolean", true)
+         .apply();
+
+    reopen();
+
+    assertEquals("value", prefs.getString("string", null));
+    assertEquals(set, prefs.getStringSet("set", null));
+    assertEquals(7, prefs.getInt("int", -1));
+    assertEquals(1L << 40, prefs.getLong("long", -1));
+    assertEquals(1.5f, prefs.getFloat("float", -1), 0.0001);
+    assertTrue(prefs.getBoolean("boolean", false));
+  }
+
+  /**
+   * Tests that overwrites, removals and clears are replayed in order.
+   */
+  @Test
+  public void removeAndClearPersist() throws IOException {
+    SharedPreferences.Editor editor = prefs.edit();
+    editor.putInt("a", 1).putInt("b", 2).commit();
+    editor.putInt("a", 3).commit();
+    editor.remove("b").commit();
+
+    reopen();
+    assertEquals(3, prefs.getInt("a", -1));
+    assertFalse(prefs.contains("b"));
+
+    prefs.edit().clear().putInt("c", 4).commit();
+    reopen();
+    assertFalse(prefs.contains("a"));
+    assertEquals(4, prefs.getInt("c", -1));
+  }
+
+  /**
+   * Tests that a record torn by a crash is dropped and the rest of the log
+   * still loads.
+   */
+  @Test
+  public void tornRecordDiscarded() throws IOException {
+    prefs.edit().putString("k", "v").commit();
+    long goodLength = file.length();
+    prefs.close();
+
+    // Half a record: a length promising more bytes than follow.
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+    out.close();
+
+    prefs = new LogStructuredPreferences(file);
+    assertEquals("v", prefs.getString("k", null));
+    assertEquals(goodLength, file.length());
+
+    // And we can keep appending after the truncation point.
+    prefs.edit().putString("k2", "v2").commit();
+    reopen();
+    assertEquals("v2", prefs.getString("k2", null));
+  }
+
+  /**
+   * Tests that records with a good checksum but an operation or value type
+   * this build doesn't know, as a newer build might write, are skipped
+   * without losing the records after them.
+   */
+  @Test
+  public void unknownRecordSkipped() throws IOException {
+    prefs.edit().putString("k", "v").commit();
+    prefs.close();
+
+    // An operation 42, then a put of "k2" with value type 99.
+    ByteArrayOutputStream unknownOp = new ByteArrayOutputStream();
+    unknownOp.write(42);
+    ByteArrayOutputStream unknownTypeBytes = new ByteArrayOutputStream();
+    DataOutputStream unknownType = new DataOutputStream(unknownTypeBytes);
+    unknownType.writeByte(1);
+    unknownType.writeInt(2);
+    unknownType.write("k2".getBytes("UTF-8"));
+    unknownType.writeByte(99);
+    unknownType.writeInt(7);
+    unknownType.flush();
+    appendRecord(unknownOp.toByteArray());
+    appendRecord(unknownTypeBytes.toByteArray());
+
+    // Then a record this build can read, copied from another log.
+    File other = new File(file.getPath() + ".other");
+    LogStructuredPreferences otherPrefs = new LogStructuredPreferences(other);
+    otherPrefs.edit().putString("k3", "v3").commit();
+    otherPrefs.close();
+    byte[] record = new byte[(int) other.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(other));
+    in.readFully(record);
+    in.close();
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(record);
+    out.close();
+    other.delete();
+    long length = file.length();
+
+    prefs = new LogStructuredPreferences(file);
+    assertEquals("v", prefs.getString("k", null));
+    assertFalse(prefs.contains("k2"));
+    assertEquals("v3", prefs.getString("k3", null));
+    assertEquals(length, file.length());
+  }
+
+  /** Append a record with the given payload and a good checksum to the log. */
+  private void appendRecord(byte[] body) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+    out.writeInt(body.length);
+    out.writeInt((int) crc.getValue());
+    out.write(body);
+    out.close();
+  }
+
+  /**
+   * Tests that repeatedly overwriting a few keys triggers compaction, which
+   * shrinks the log without losing data.
+   */
+  @Test
+  public void compactionShrinksLog() throws IOException {
+    SharedPreferences.Editor editor = prefs.edit();
+    for (int i = 0; i < 50000; i++) {
+      editor.putLong("key" + (i % 100), i).apply();
+    }
+    prefs.flush();
+
+    // Each record is at least 20 bytes, so without compaction the log would be
+    // at least 1MB.
+    assertTrue(prefs.getCompactionCount() > 0);
+    assertTrue(file.length() < 500000);
+
+    reopen();
+    for (int k = 0; k < 100; k++) {
+      assertEquals(49900 + k, prefs.getLong("key" + k, -1));
+    }
+  }
+
+  /**
+   * Tests that applies made in quick succession share a flush.
+   */
+  @Test
+  public void appliesAreBatched() throws IOException {
+    for (int i = 0; i < 1000; i++) {
+      prefs.edit().putInt("key" + i, i).apply();
+    }
+    prefs.flush();
+    assertTrue(prefs.getFlushCount() < 1000);
+  }
+
+  /**
+   * Tests that a set returned by getStringSet can be modified and put back,
+   * the pattern MessageStore uses for its bins.
+   */
+  @Test
+  public void modifiedSetIsWritten() throws IOException {
+    Set<String> set = new HashSet<String>();
+    set.add("a");
+    prefs.edit().putStringSet("set", set).commit();
+
+    Set<String> bin = prefs.getStringSet("set", null);
+    bin.add("b");
+    assertEquals(1, prefs.getStringSet("set", null).size());
+    prefs.edit().putStringSet("set", bin).commit();
+
+    reopen();
+    assertEquals(2, prefs.getStringSet("set", null).size());
+  }
+
+  /**
+   * Tests that migration copies every entry out of a SharedPreferences file
+   * and clears it.
+   */
+  @Test
+  public void migrateFromSharedPreferences() {
+    SlidingPageIndicator activity =
+        Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    SharedPreferences legacy = activity.getSharedPreferences("LegacyTest", 0);
+    Set<String> set = new HashSet<String>();
+    set.add("a");
+    legacy.edit().putString("s", "v").putStringSet("set", set).putLong("l", 5L).commit();
+
+    assertEquals(3, prefs.migrateFrom(legacy));
+    assertEquals("v", prefs.getString("s", null));
+    assertEquals(set, prefs.getStringSet("set", null));
+    assertEquals(5L, prefs.getLong("l", -1));
+    assertTrue(legacy.getAll().isEmpty());
+    assertNull(legacy.getString("s", null));
+  }
+}
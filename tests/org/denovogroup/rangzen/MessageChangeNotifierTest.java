@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Unit tests for Rangzen's MessageChangeNotifier class.
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18, 
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class MessageChangeNotifierTest {
+  /** The app instance we're using to pass to MessageStore. */
+  private SlidingPageIndicator activity;
+
+  /** The notifier under test. */
+  private MessageChangeNotifier notifier;
+
+  /** Broadcasts received so far. */
+  private List<Intent> received = new ArrayList<Intent>();
+
+  /** Records NEW_MESSAGE broadcasts. */
+  private BroadcastReceiver receiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      received.add(intent);
+    }
+  };
+
+  @Before
+  public void setUp() {
+    activity = Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    notifier = MessageChangeNotifier.getInstance(activity);
+    notifier.setWindowMillis(MessageChangeNotifier.DEFAULT_WINDOW_MILLIS);
+    LocalBroadcastManager.getInstance(activity)
+        .registerReceiver(receiver, new IntentFilter(MessageStore.NEW_MESSAGE));
+    Robolectric.pauseMainLooper();
+  }
+
+  @After
+  public void tearDown() {
+    Robolectric.unPauseMainLooper();
+    LocalBroadcastManager.getInstance(activity).unregisterReceiver(receiver);
+  }
+
+  /**
+   * Tests that changes reported within one window produce one broadcast
+   * carrying every changed ID.
+   */
+  @Test
+  public void burstIsCoalesced() {
+    notifier.messagesChanged(MessageStore.NEW_MESSAGE, Arrays.asList("a", "b"));
+    notifier.messagesChanged(MessageStore.NEW_MESSAGE, Arrays.asList("b", "c"));
+    assertEquals(0, received.size());
+
+    Robolectric.runUiThreadTasksIncludingDelayedTasks();
+    assertEquals(1, received.size());
+    String[] ids = received.get(0).getStringArrayExtra(MessageStore.EXTRA_MESSAGE_IDS);
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")),
+                 new HashSet<String>(Arrays.asList(ids)));
+
+    // A later change starts a new window.
+    notifier.messagesChanged(MessageStore.NEW_MESSAGE, Arrays.asList("d"));
+    Robolectric.runUiThreadTasksIncludingDelayedTasks();
+    assertEquals(2, received.size());
+  }
+
+  /**
+   * Tests that adding messages to the store one at a time, as PostActivity
+   * does, results in a single broadcast per window.
+   */
+  @Test
+  public void messageStoreAddsAreCoalesced() {
+    MessageStore store = new MessageStore(activity, StorageBase.ENCRYPTION_NONE);
+    for (int i = 0; i < 100; i++) {
+      store.addMessage("message " + i, 0.5);
+    }
+    Robolectric.runUiThreadTasksIncludingDelayedTasks();
+    assertEquals(1, received.size());
+    assertEquals(100, received.get(0)
+                              .getStringArrayExtra(MessageStore.EXTRA_MESSAGE_IDS).length);
+  }
+
+  /**
+   * Tests that flush() sends pending changes without waiting for the window.
+   */
+  @Test
+  public void flushSendsImmediately() {
+    notifier.messagesChanged(MessageStore.NEW_MESSAGE, Arrays.asList("a"));
+    notifier.flush();
+    assertEquals(1, received.size());
+  }
+}
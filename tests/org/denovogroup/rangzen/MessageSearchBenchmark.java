@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Compares hashtag search through MessageStore's term index with the linear
+ * scan it replaced, over 50k messages. Set RANGZEN_BENCHMARKS to run it.
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18, 
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class MessageSearchBenchmark {
+  /** Environment variable that has to be set for the benchmark to run. */
+  private static final String BENCHMARKS_VARIABLE = "RANGZEN_BENCHMARKS";
+
+  /** Number of messages in the store. */
+  private static final int NUM_MESSAGES = 50000;
+
+  /** Number of distinct hashtags the messages are spread across. */
+  private static final int NUM_HASHTAGS = 500;
+
+  /** Number of searches to average over. */
+  private static final int NUM_SEARCHES = 100;
+
+  /** The store under test. */
+  private MessageStore store;
+
+  @Before
+  public void setUp() {
+    assumeTrue(System.getenv(BENCHMARKS_VARIABLE) != null);
+    SlidingPageIndicator activity =
+        Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+    store = new MessageStore(activity, StorageBase.ENCRYPTION_NONE);
+    store.setCapacity(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    Random random = new Random(0);
+    List<RangzenMessage> batch = new ArrayList<RangzenMessage>();
+    for (int i = 0; i < NUM_MESSAGES; i++) {
+      batch.add(new RangzenMessage.Builder()
+                                  .text("message " + i + " about #tag" + (i % NUM_HASHTAGS))
+                                  .priority(random.nextDouble())
+                                  .build());
+      if (batch.size() == 1000) {
+        store.applyExchangeResults(batch, 1, 1);
+        batch.clear();
+      }
+    }
+  }
+
+  /** The search as getAllMessages used to do it: scan, filter and sort. */
+  private List<MessageStore.Message> linearSearch(String query) {
+    List<MessageStore.Message> results = new ArrayList<MessageStore.Message>();
+    for (MessageStore.Message m
+         : store.getAllMessages(MessageStore.NOT_SAVED_MESSAGES, null)) {
+      if (m.getMessage().contains(query)) {
+        results.add(m);
+      }
+    }
+    Collections.sort(results, MessageIndex.PRIORITY_ORDER);
+    return results;
+  }
+
+  @Test
+  public void hashtagSearch50k() {
+    // Load the index before timing anything.
+    store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "#tag0");
+
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_SEARCHES; i++) {
+      linearSearch("#tag" + i);
+    }
+    long scanNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < NUM_SEARCHES; i++) {
+      store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "#tag" + i);
+    }
+    long indexNanos = System.nanoTime() - start;
+
+    // Both match #tag7 and #tag70 to #tag79.
+    assertEquals(linearSearch("#tag7"),
+                 store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "#tag7"));
+
+    System.out.println(String.format("%d messages: scan %.2fms, index %.2fms per search",
+                                     NUM_MESSAGES,
+                                     scanNanos / 1e6 / NUM_SEARCHES,
+                                     indexNanos / 1e6 / NUM_SEARCHES));
+  }
+}
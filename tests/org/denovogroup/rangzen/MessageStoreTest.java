@@ -30,8 +30,19 @@
  */
 package org.denovogroup.rangzen;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -39,6 +50,7 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.robolectric.Robolectric.clickOn;
@@ -291,6 +303,199 @@ public class MessageStoreTest {
     // the message is no longer contained.
   }
 
+  /**
+   * Tests that iterateByPriority returns messages highest priority first, ties
+   * broken alphabetically, and stops at the limit.
+   */
+  @Test
+  public void iterateByPriorityTest() {
+    store.addMessage(TEST_MSG_2, TEST_PRIORITY_2);
+    store.addMessage(TEST_MSG_3, TEST_PRIORITY_3);
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_1);
+    store.addMessage("message 0", TEST_PRIORITY_3);
+
+    Iterator<MessageStore.Message> it = store.iterateByPriority(10);
+    assertEquals(TEST_MSG_1, it.next().getMessage());
+    assertEquals("message 0", it.next().getMessage());
+    assertEquals(TEST_MSG_3, it.next().getMessage());
+    assertEquals(TEST_MSG_2, it.next().getMessage());
+    assertFalse(it.hasNext());
+
+    it = store.iterateByPriority(2);
+    assertTrue(it.hasNext());
+    it.next();
+    it.next();
+    assertFalse(it.hasNext());
+
+    assertFalse(store.iterateByPriority(0).hasNext());
+  }
+
+  /**
+   * Tests that the priority index follows updates and deletes, including ones
+   * made through a different MessageStore instance.
+   */
+  @Test
+  public void iterateByPriorityTracksChangesTest() {
+    MessageStore other = new MessageStore(activity, StorageBase.ENCRYPTION_NONE);
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_1);
+    store.addMessage(TEST_MSG_2, TEST_PRIORITY_2);
+    assertEquals(TEST_MSG_1, other.getKthMessage(0, MessageStore.NOT_SAVED_MESSAGES, null).getMessage());
+
+    other.updatePriority(TEST_MSG_2, 1.5);
+    Iterator<MessageStore.Message> it = store.iterateByPriority(10);
+    MessageStore.Message first = it.next();
+    assertEquals(TEST_MSG_2, first.getMessage());
+    assertEquals(1.5, first.getPriority(), 0.0001);
+
+    other.addMessage(TEST_MSG_3, TEST_PRIORITY_3);
+    store.deleteMessage(TEST_MSG_2);
+    it = other.iterateByPriority(10);
+    assertEquals(TEST_MSG_1, it.next().getMessage());
+    assertEquals(TEST_MSG_3, it.next().getMessage());
+    assertFalse(it.hasNext());
+    assertNull(store.getKthMessage(2, MessageStore.NOT_SAVED_MESSAGES, null));
+  }
+
+  /**
+   * Tests that applyExchangeResults adds new messages, raises the priority of
+   * known ones and skips out-of-range priorities.
+   */
+  @Test
+  public void applyExchangeResultsTest() {
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_2);
+
+    List<RangzenMessage> received = new ArrayList<RangzenMessage>();
+    received.add(new RangzenMessage.Builder().text(TEST_MSG_1).priority(1.0).build());
+    received.add(new RangzenMessage.Builder().text(TEST_MSG_2).priority(0.5).build());
+    received.add(new RangzenMessage.Builder().text(TEST_MSG_3).priority(0.8).build());
+    received.add(new RangzenMessage.Builder().text("too high").priority(5000.0).build());
+
+    // All friends in common, so priorities are taken as given.
+    assertEquals(3, store.applyExchangeResults(received, 2, 2));
+
+    assertEquals(1.0, store.getPriority(TEST_MSG_1), 0.0001);
+    assertEquals(0.5, store.getPriority(TEST_MSG_2), 0.0001);
+    assertEquals(0.8, store.getPriority(TEST_MSG_3), 0.0001);
+    assertFalse(store.contains("too high"));
+
+    Iterator<MessageStore.Message> it = store.iterateByPriority(10);
+    assertEquals(TEST_MSG_1, it.next().getMessage());
+    assertEquals(TEST_MSG_3, it.next().getMessage());
+    assertEquals(TEST_MSG_2, it.next().getMessage());
+    assertFalse(it.hasNext());
+
+    // Lower remote priorities never lower a stored priority.
+    assertEquals(0, store.applyExchangeResults(received.subList(0, 3), 1, 2));
+  }
+
+  /**
+   * Tests that applyExchangeResults compares a remote priority with the
+   * decayed priority of an aged message, and that a remote priority that wins
+   * starts decaying afresh.
+   */
+  @Test
+  public void applyExchangeResultsDecayTest() {
+    long halfLife = 24 * 60 * 60 * 1000L;
+    store.setHalfLife(halfLife);
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_4);
+    // Make the message two half-lives old, so it has decayed to about 0.2.
+    StorageBase base = new StorageBase(activity, StorageBase.ENCRYPTION_NONE);
+    base.putLong("RangzenArrival-" + MessageStore.getMessageId(TEST_MSG_1),
+                 System.currentTimeMillis() - 2 * halfLife);
+
+    List<RangzenMessage> received = new ArrayList<RangzenMessage>();
+    received.add(new RangzenMessage.Builder().text(TEST_MSG_1).priority(0.1).build());
+    assertEquals(0, store.applyExchangeResults(received, 1, 1));
+    assertEquals(TEST_PRIORITY_4, store.getPriority(TEST_MSG_1), 0.0);
+
+    long before = System.currentTimeMillis();
+    received.set(0, new RangzenMessage.Builder().text(TEST_MSG_1).priority(0.5).build());
+    assertEquals(1, store.applyExchangeResults(received, 1, 1));
+    assertEquals(0.5, store.getPriority(TEST_MSG_1), 0.0001);
+    MessageStore.Message m = store.iterateByPriority(1).next();
+    assertTrue(m.getArrivalTime() >= before);
+    // Arrival times are rounded down to the hour, so allow for an extra hour.
+    assertEquals(0.5, store.getEffectivePriority(m), 0.02);
+    store.setHalfLife(MessageStore.NO_DECAY);
+  }
+
+  /**
+   * Tests that searches match hashtags and word prefixes, ignore case, and
+   * return results in priority order.
+   */
+  @Test
+  public void searchTest() {
+    store.addMessage("Meet at the #square at noon", TEST_PRIORITY_3);
+    store.addMessage("the square is closed", TEST_PRIORITY_1);
+    store.addMessage("#Square, #noon!", TEST_PRIORITY_2);
+    store.addMessage("nothing to see", TEST_PRIORITY_4);
+
+    List<MessageStore.Message> results =
+        store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "#square");
+    assertEquals(2, results.size());
+    assertEquals("Meet at the #square at noon", results.get(0).getMessage());
+    assertEquals("#Square, #noon!", results.get(1).getMessage());
+
+    results = store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "squ");
+    assertEquals(3, results.size());
+    assertEquals("the square is closed", results.get(0).getMessage());
+
+    results = store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "SQUARE noon");
+    assertEquals(2, results.size());
+
+    store.deleteMessage("#Square, #noon!");
+    results = store.getAllMessages(MessageStore.SEARCHED_MESSAGES, "#noon");
+    assertEquals(0, results.size());
+  }
+
+  /**
+   * Tests that message IDs are fixed-size, stable and distinct, and are
+   * carried by the messages the store returns.
+   */
+  @Test
+  public void messageIdTest() {
+    String id = MessageStore.getMessageId(TEST_MSG_1);
+    assertEquals(22, id.length());
+    assertEquals(id, MessageStore.getMessageId(TEST_MSG_1));
+    assertFalse(id.equals(MessageStore.getMessageId(TEST_MSG_2)));
+    assertEquals(22, MessageStore.getMessageId("").length());
+
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_1);
+    assertEquals(id, store.iterateByPriority(1).next().getId());
+  }
+
+  /**
+   * Tests that a store in the old layout, keyed by message text, is migrated
+   * to the ID-keyed layout when opened.
+   */
+  @Test
+  public void migrateFromTextKeysTest() {
+    StorageBase base = new StorageBase(activity, StorageBase.ENCRYPTION_NONE);
+    Set<String> bin = new HashSet<String>();
+    bin.add(TEST_MSG_1);
+    bin.add(TEST_MSG_2);
+    base.putSet("RangzenMessages-4", bin);
+    base.putDouble("RangzenMessagePriority-" + TEST_MSG_1, TEST_PRIORITY_3);
+    base.putDouble("RangzenSavedMessage-" + TEST_MSG_2, TEST_PRIORITY_4);
+    base.putInt("SAVE" + TEST_MSG_2, 1);
+    base.putInt("RangzenMessageStoreVersion", 1);
+
+    MessageStore migrated = new MessageStore(activity, StorageBase.ENCRYPTION_NONE);
+    assertTrue(migrated.contains(TEST_MSG_1));
+    assertEquals(TEST_PRIORITY_3, migrated.getPriority(TEST_MSG_1), 0.0001);
+    assertFalse(migrated.contains(TEST_MSG_2));
+    List<MessageStore.Message> saved =
+        migrated.getAllMessages(MessageStore.SAVED_MESSAGES, null);
+    assertEquals(1, saved.size());
+    assertEquals(TEST_MSG_2, saved.get(0).getMessage());
+    assertEquals(MessageStore.FLAG_SAVED, saved.get(0).getFlags());
+    assertEquals(0, base.getInt("SAVE" + MessageStore.getMessageId(TEST_MSG_2), 0));
+
+    assertNull(base.getSet("RangzenMessages-4"));
+    assertEquals(-1, base.getDouble("RangzenMessagePriority-" + TEST_MSG_1, -1), 0);
+    assertEquals(0, base.getInt("SAVE" + TEST_MSG_2, 0));
+  }
+
   /**
    * Utility method for testing check priority.
    */
@@ -303,6 +508,235 @@ public class MessageStoreTest {
     }
   }
 
+  /**
+   * Test that the store evicts its lowest priority unsaved messages once it is
+   * over capacity, by count and by size.
+   */
+  @Test
+  public void evictionTest() {
+    store.setCapacity(3, Long.MAX_VALUE);
+    store.addMessage("high", 0.9);
+    store.addMessage("low", 0.1);
+    store.addMessage("lowest but saved", 0.05);
+    store.saveMessage("lowest but saved", 0.05);
+    assertEquals(0, store.getEvictionCount());
+
+    store.addMessage("middle", 0.5);
+    assertEquals(3, store.getMessageCount());
+    assertFalse(store.contains("low"));
+    assertTrue(store.contains("high"));
+    assertTrue(store.contains("middle"));
+    assertTrue(store.contains("lowest but saved"));
+    assertEquals(1, store.getEvictionCount());
+    assertEquals("low".length(), store.getEvictedBytes());
+    assertEquals(1, store.getAllMessages(MessageStore.SAVED_MESSAGES, null).size());
+
+    // Shrinking the capacity evicts right away; "middle" and "high" are 6 and
+    // 4 bytes, so only "high" fits alongside the saved message.
+    store.setCapacity(3, "lowest but saved".length() + 4);
+    assertEquals(2, store.getEvictionCount());
+    assertTrue(store.contains("lowest but saved"));
+    assertTrue(store.contains("high"));
+    assertFalse(store.contains("middle"));
+
+    // Once only saved messages are left, the store stays over capacity.
+    store.setCapacity(0, 0);
+    assertEquals(3, store.getEvictionCount());
+    assertFalse(store.contains("high"));
+    assertTrue(store.contains("lowest but saved"));
+    assertEquals(1, store.getMessageCount());
+
+    store.setCapacity(MessageStore.DEFAULT_MAX_MESSAGES, MessageStore.DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Test that a message evicted as soon as it arrives, because the store is
+   * full of messages that outrank it, isn't reported as added.
+   */
+  @Test
+  public void evictOnArrivalTest() {
+    final List<String> broadcastIds = new ArrayList<String>();
+    BroadcastReceiver receiver = new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        broadcastIds.addAll(Arrays.asList(
+            intent.getStringArrayExtra(MessageStore.EXTRA_MESSAGE_IDS)));
+      }
+    };
+    LocalBroadcastManager.getInstance(activity)
+        .registerReceiver(receiver, new IntentFilter(MessageStore.NEW_MESSAGE));
+    MessageChangeNotifier notifier = MessageChangeNotifier.getInstance(activity);
+
+    store.setCapacity(2, Long.MAX_VALUE);
+    assertTrue(store.addMessage("high", 0.9));
+    assertTrue(store.addMessage("middle", 0.5));
+    notifier.flush();
+    broadcastIds.clear();
+
+    assertFalse(store.addMessage("low", 0.1));
+    assertFalse(store.contains("low"));
+    assertEquals(2, store.getMessageCount());
+    notifier.flush();
+    assertFalse(broadcastIds.contains(MessageStore.getMessageId("low")));
+
+    // Of two received messages, only the one that outranks "middle" is kept
+    // and reported.
+    List<RangzenMessage> received = new ArrayList<RangzenMessage>();
+    received.add(new RangzenMessage.Builder().text("received high").priority(1.0).build());
+    received.add(new RangzenMessage.Builder().text("received low").priority(0.0).build());
+    assertEquals(1, store.applyExchangeResults(received, 1, 1));
+    assertTrue(store.contains("received high"));
+    assertFalse(store.contains("received low"));
+    notifier.flush();
+    assertEquals(Arrays.asList(MessageStore.getMessageId("received high")), broadcastIds);
+
+    LocalBroadcastManager.getInstance(activity).unregisterReceiver(receiver);
+    store.setCapacity(MessageStore.DEFAULT_MAX_MESSAGES, MessageStore.DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Test that with decay, messages are ordered by their decayed priorities,
+   * which halve every half-life.
+   */
+  @Test
+  public void decayTest() {
+    long halfLife = 24 * 60 * 60 * 1000L;
+    long now = System.currentTimeMillis();
+    MessageIndex index = MessageIndex.forStore(new Object());
+    index.setHalfLife(halfLife);
+    List<MessageStore.Message> messages = new ArrayList<MessageStore.Message>();
+    messages.add(new MessageStore.Message("old", 0.8, "old", now - 2 * halfLife));
+    messages.add(new MessageStore.Message("older", 0.9, "older", now - halfLife));
+    messages.add(new MessageStore.Message("new", 0.5, "new", now));
+    index.load(messages);
+
+    Iterator<MessageStore.Message> it = index.iterator(10);
+    assertEquals("new", it.next().getMessage());
+    assertEquals("older", it.next().getMessage());
+    MessageStore.Message old = it.next();
+    assertEquals("old", old.getMessage());
+    // Arrival times are rounded down to the hour, so allow for an extra hour.
+    assertEquals(0.2, index.effectivePriority(old, now), 0.01);
+    assertEquals(0.8, old.getPriority(), 0.0);
+
+    index.setHalfLife(MessageStore.NO_DECAY);
+    it = index.iterator(10);
+    assertEquals("older", it.next().getMessage());
+    assertEquals("old", it.next().getMessage());
+    assertEquals("new", it.next().getMessage());
+    assertEquals(0.8, index.effectivePriority(old, now), 0.0);
+  }
+
+  /**
+   * Test that the store records when messages arrive, and keeps the arrival
+   * time when a message's priority changes.
+   */
+  @Test
+  public void arrivalTimeTest() {
+    long before = System.currentTimeMillis();
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_2);
+    long after = System.currentTimeMillis();
+    store.updatePriority(TEST_MSG_1, TEST_PRIORITY_3);
+
+    MessageStore.Message m = store.iterateByPriority(1).next();
+    assertEquals(TEST_PRIORITY_3, m.getPriority(), 0.0);
+    assertTrue(m.getArrivalTime() >= before && m.getArrivalTime() <= after);
+    assertEquals(TEST_PRIORITY_3, store.getEffectivePriority(m), 0.01);
+
+    store.setTimeToLive(24 * 60 * 60 * 1000L);
+    assertTrue(store.contains(TEST_MSG_1));
+    assertEquals(0, store.getExpiredCount());
+    store.setTimeToLive(MessageStore.NO_EXPIRY);
+  }
+
+  /**
+   * Test that flags are stored per message and carried by the messages the
+   * store returns.
+   */
+  @Test
+  public void flagsTest() {
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_1);
+    store.addMessage(TEST_MSG_2, TEST_PRIORITY_2);
+    assertEquals(0, store.getFlags(TEST_MSG_1));
+    assertFalse(store.setFlags(TEST_MSG_INVALID, MessageStore.FLAG_RETWEETED, true));
+
+    assertTrue(store.setFlags(TEST_MSG_1, MessageStore.FLAG_RETWEETED, true));
+    store.saveMessage(TEST_MSG_2, TEST_PRIORITY_2);
+    assertEquals(MessageStore.FLAG_RETWEETED, store.getFlags(TEST_MSG_1));
+    assertEquals(MessageStore.FLAG_SAVED, store.getFlags(TEST_MSG_2));
+
+    List<MessageStore.Message> feed =
+        store.getAllMessages(MessageStore.NOT_SAVED_MESSAGES, null);
+    assertEquals(TEST_MSG_1, feed.get(0).getMessage());
+    assertTrue(feed.get(0).hasFlag(MessageStore.FLAG_RETWEETED));
+    assertFalse(feed.get(0).hasFlag(MessageStore.FLAG_SAVED));
+    assertTrue(feed.get(1).hasFlag(MessageStore.FLAG_SAVED));
+    List<MessageStore.Message> saved =
+        store.getAllMessages(MessageStore.SAVED_MESSAGES, null);
+    assertTrue(saved.get(0).hasFlag(MessageStore.FLAG_SAVED));
+
+    // Flags survive priority changes, and are cleared individually.
+    store.updatePriority(TEST_MSG_1, TEST_PRIORITY_3);
+    store.setFlags(TEST_MSG_1, MessageStore.FLAG_DELETED, true);
+    store.setFlags(TEST_MSG_1, MessageStore.FLAG_RETWEETED, false);
+    MessageStore.Message m = store.iterateByPriority(1).next();
+    assertEquals(TEST_PRIORITY_3, m.getPriority(), 0.0);
+    assertEquals(MessageStore.FLAG_DELETED, m.getFlags());
+
+    store.deleteMessage(TEST_MSG_1);
+    assertEquals(0, store.getFlags(TEST_MSG_1));
+  }
+
+  /**
+   * Test that the change log reports additions, priority changes and removals
+   * since a version, and gives up once it has dropped changes.
+   */
+  @Test
+  public void changeLogTest() {
+    store.addMessage(TEST_MSG_1, TEST_PRIORITY_1);
+    store.addMessage(TEST_MSG_2, TEST_PRIORITY_2);
+    long version = store.getVersion();
+    List<MessageStore.Message> feed =
+        store.getAllMessages(MessageStore.NOT_SAVED_MESSAGES, null);
+
+    MessageStore.Changes changes = store.getChangesSince(version);
+    assertTrue(changes.isEmpty());
+    assertEquals(version, changes.getVersion());
+
+    store.addMessage(TEST_MSG_3, TEST_PRIORITY_5);
+    store.updatePriority(TEST_MSG_2, TEST_PRIORITY_3);
+    store.deleteMessage(TEST_MSG_1);
+    changes = store.getChangesSince(version);
+    assertEquals(2, changes.getChanged().size());
+    assertEquals(TEST_MSG_3, changes.getChanged().get(0).getMessage());
+    assertEquals(TEST_MSG_2, changes.getChanged().get(1).getMessage());
+    assertEquals(TEST_PRIORITY_3, changes.getChanged().get(1).getPriority(), 0.0);
+    assertTrue(changes.getRemoved().contains(MessageStore.getMessageId(TEST_MSG_1)));
+
+    // Applying the changes to the old copy of the feed gives the new feed.
+    for (MessageStore.Message m : new ArrayList<MessageStore.Message>(feed)) {
+      if (changes.getRemoved().contains(m.getId())) {
+        feed.remove(m);
+      }
+      for (MessageStore.Message changed : changes.getChanged()) {
+        if (changed.getId().equals(m.getId())) {
+          feed.remove(m);
+        }
+      }
+    }
+    for (MessageStore.Message m : changes.getChanged()) {
+      int position = Collections.binarySearch(feed, m, MessageStore.FEED_ORDER);
+      feed.add(-position - 1, m);
+    }
+    assertEquals(store.getAllMessages(MessageStore.NOT_SAVED_MESSAGES, null), feed);
+    assertTrue(store.getChangesSince(changes.getVersion()).isEmpty());
+
+    for (int i = 0; i <= MessageIndex.MAX_CHANGES; i++) {
+      store.addMessage("change " + i, TEST_PRIORITY_2);
+    }
+    assertNull(store.getChangesSince(version));
+  }
+
   /**
    * Test that checkPriority bounds the right numbers.
    */
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * Times each phase of PSI in the Diffie-Hellman group and on the elliptic
+ * curve, on one thread and spread across cores, at several numbers of
+ * friends. Skipped unless RANGZEN_BENCHMARKS is set.
+ */
+@RunWith(JUnit4.class)
+public class PSIBenchmark {
+  /** Environment variable that has to be set for the benchmark to run. */
+  private static final String BENCHMARKS_VARIABLE = "RANGZEN_BENCHMARKS";
+
+  @Before
+  public void setUp() {
+    assumeTrue(System.getenv(BENCHMARKS_VARIABLE) != null);
+  }
+
+  @After
+  public void tearDown() {
+    ParallelExponentiation.setParallel(true);
+  }
+
+  /** Make up some friends, the first of them shared with other sets. */
+  private static ArrayList<byte[]> makeFriends(String prefix, int count, int shared) {
+    ArrayList<byte[]> friends = new ArrayList<byte[]>(count);
+    for (int i = 0; i < count; i++) {
+      friends.add(((i < shared ? "shared" : prefix) + " friend " + i).getBytes());
+    }
+    return friends;
+  }
+
+  /**
+   * Run both sides of a PSI between two sets of friends, half in common,
+   * and print how long each phase took and how much the client sent.
+   */
+  private void benchmark(Crypto.PSIGroup<?> group, int friends, boolean parallel)
+      throws NoSuchAlgorithmException {
+    ParallelExponentiation.setParallel(parallel);
+    ArrayList<byte[]> clientFriends = makeFriends("client", friends, friends / 2);
+    ArrayList<byte[]> serverFriends = makeFriends("server", friends, friends / 2);
+
+    long start = System.nanoTime();
+    Crypto.PrivateSetIntersection client =
+        new Crypto.PrivateSetIntersection(group, clientFriends);
+    Crypto.PrivateSetIntersection server =
+        new Crypto.PrivateSetIntersection(group, serverFriends);
+    long initNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    ArrayList<byte[]> blindedItems = client.encodeBlindedItems();
+    Crypto.PrivateSetIntersection.ServerReplyTuple reply =
+        server.replyToBlindedItems(blindedItems);
+    long replyNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    int cardinality = client.getCardinality(reply);
+    long cardinalityNanos = System.nanoTime() - start;
+
+    int blindedBytes = 0;
+    for (byte[] item : blindedItems) {
+      blindedBytes += item.length;
+    }
+
+    assertEquals(friends / 2, cardinality);
+    System.out.println(String.format(
+        "%s, %d friends, %d threads: init %.1fms, reply %.1fms, cardinality %.1fms, " +
+        "%d bytes blinded",
+        group == Crypto.EC_PSI_GROUP ? "EC" : "DH", friends, ParallelExponentiation.getThreads(),
+        initNanos / 1e6, replyNanos / 1e6, cardinalityNanos / 1e6, blindedBytes));
+  }
+
+  /**
+   * Compare the groups, and one thread with all cores, at the given number
+   * of friends.
+   */
+  private void compare(int friends) throws NoSuchAlgorithmException {
+    for (Crypto.PSIGroup<?> group : new Crypto.PSIGroup<?>[] { Crypto.DH_PSI_GROUP,
+                                                             Crypto.EC_PSI_GROUP }) {
+      benchmark(group, friends, false);
+      benchmark(group, friends, true);
+    }
+  }
+
+  @Test
+  public void psi10() throws NoSuchAlgorithmException {
+    compare(10);
+  }
+
+  @Test
+  public void psi100() throws NoSuchAlgorithmException {
+    compare(100);
+  }
+
+  @Test
+  public void psi1000() throws NoSuchAlgorithmException {
+    compare(1000);
+  }
+
+  @Test
+  public void psi5000() throws NoSuchAlgorithmException {
+    compare(5000);
+  }
+}
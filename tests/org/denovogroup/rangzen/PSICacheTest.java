@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.denovogroup.rangzen.Crypto.PrivateSetIntersection;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit tests for Rangzen's PSICache class.
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18, 
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class PSICacheTest {
+  /** How long to wait for the pool to fill in the background. */
+  private static final long FILL_TIMEOUT_MILLIS = 30000;
+
+  /** The cache under test. */
+  private PSICache<?> cache;
+
+  /** Some friends, as they're stored. */
+  private Set<String> friends;
+
+  /** The same friends, as raw bytes. */
+  private ArrayList<byte[]> friendBytes;
+
+  @Before
+  public void setUp() {
+    cache = new PSICache<BigInteger>(Crypto.DH_PSI_GROUP);
+    friendBytes = new ArrayList<byte[]>(Arrays.asList(new byte[] { 1, 1 },
+                                                      new byte[] { 1, 2 },
+                                                      new byte[] { 2, 1 }));
+    friends = new HashSet<String>();
+    for (byte[] friend : friendBytes) {
+      friends.add(FriendStore.bytesToBase64(friend));
+    }
+  }
+
+  /**
+   * Count the friends a PrivateSetIntersection from the cache has in common
+   * with one built from scratch over the given friends.
+   */
+  private int intersect(PrivateSetIntersection client, ArrayList<byte[]> serverFriends)
+      throws NoSuchAlgorithmException {
+    PrivateSetIntersection server = new PrivateSetIntersection(serverFriends);
+    return client.getCardinality(server.replyToBlindedItems(client.encodeBlindedItems()));
+  }
+
+  /** Wait until the cache has a full pool, failing if it takes too long. */
+  private void awaitFullPool() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + FILL_TIMEOUT_MILLIS;
+    while (cache.getPoolSize() < PSICache.POOL_SIZE) {
+      assertTrue("Pool never filled", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Tests that what the cache hands out intersects correctly, whether it was
+   * precomputed or not, and is never handed out twice.
+   */
+  @Test
+  public void takeTest() throws NoSuchAlgorithmException, InterruptedException {
+    PrivateSetIntersection first = cache.take(friends);
+    assertEquals(3, intersect(first, friendBytes));
+
+    awaitFullPool();
+    PrivateSetIntersection second = cache.take(friends);
+    assertNotSame(first, second);
+    assertEquals(3, intersect(second, friendBytes));
+    assertEquals(2, intersect(cache.take(friends),
+                              new ArrayList<byte[]>(friendBytes.subList(0, 2))));
+  }
+
+  /**
+   * Tests that the pool is thrown away when the friends change.
+   */
+  @Test
+  public void changedFriendsTest() throws NoSuchAlgorithmException, InterruptedException {
+    cache.prepare(friends);
+    awaitFullPool();
+
+    cache.invalidate();
+    assertEquals(0, cache.getPoolSize());
+
+    cache.prepare(friends);
+    awaitFullPool();
+
+    // Drop a friend; the precomputed sets still include them.
+    friends.remove(FriendStore.bytesToBase64(friendBytes.get(0)));
+    PrivateSetIntersection psi = cache.take(friends);
+    assertEquals(2, intersect(psi, friendBytes));
+    assertEquals(2, psi.encodeBlindedItems().size());
+  }
+}
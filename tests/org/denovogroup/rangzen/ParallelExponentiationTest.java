@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that ParallelExponentiation does what a loop over the items would.
+ */
+@RunWith(JUnit4.class)
+public class ParallelExponentiationTest {
+  /** Squares each item. */
+  private static final ParallelExponentiation.Operation<Integer, Integer> SQUARE =
+      new ParallelExponentiation.Operation<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer item) {
+          return item * item;
+        }
+      };
+
+  /** @return The integers from 0 up to count. */
+  private static List<Integer> range(int count) {
+    List<Integer> items = new ArrayList<Integer>(count);
+    for (int i = 0; i < count; i++) {
+      items.add(i);
+    }
+    return items;
+  }
+
+  /**
+   * Tests that results come back in the order of the items, for inputs too
+   * small to split as well as large ones.
+   */
+  @Test
+  public void orderTest() throws NoSuchAlgorithmException {
+    for (int count : new int[] { 0, 1, ParallelExponentiation.MIN_CHUNK_SIZE * 2 - 1, 1001 }) {
+      List<Integer> results = ParallelExponentiation.map(range(count), SQUARE);
+      assertEquals(count, results.size());
+      for (int i = 0; i < count; i++) {
+        assertEquals(i * i, (int) results.get(i));
+      }
+    }
+  }
+
+  /**
+   * Tests that an exception thrown on any thread reaches the caller as it was.
+   */
+  @Test
+  public void exceptionTest() {
+    ParallelExponentiation.Operation<Integer, Integer> failing =
+        new ParallelExponentiation.Operation<Integer, Integer>() {
+          @Override
+          public Integer apply(Integer item) throws NoSuchAlgorithmException {
+            if (item == 999) {
+              throw new NoSuchAlgorithmException("item " + item);
+            }
+            return item;
+          }
+        };
+    try {
+      ParallelExponentiation.map(range(1000), failing);
+      fail("Expected a NoSuchAlgorithmException");
+    } catch (NoSuchAlgorithmException e) {
+      assertEquals("item 999", e.getMessage());
+    }
+  }
+}
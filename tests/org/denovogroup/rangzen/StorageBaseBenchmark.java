@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Measures StorageBase put and get latency with each backing store, at 10k and
+ * 100k keys, printing the results; the assertions only check that the data
+ * came back. Skipped unless RANGZEN_BENCHMARKS is set.
+ *
+ * Note that under Robolectric the SharedPreferences backend is an in-memory
+ * shadow which never writes XML, so its numbers are a lower bound. Run on a
+ * device to see the cost of rewriting the file on each apply().
+ */
+@Config(manifest="./apps/experimentalApp/AndroidManifest.xml", 
+        emulateSdk=18, 
+        resourceDir="../../ui/Rangzen/res")
+@RunWith(RobolectricTestRunner.class)
+public class StorageBaseBenchmark {
+  /** Environment variable that has to be set for the benchmark to run. */
+  private static final String BENCHMARKS_VARIABLE = "RANGZEN_BENCHMARKS";
+
+  /** The app instance we're using to pass to StorageBase. */
+  private SlidingPageIndicator activity;
+
+  @Before
+  public void setUp() {
+    assumeTrue(System.getenv(BENCHMARKS_VARIABLE) != null);
+    activity = Robolectric.buildActivity(SlidingPageIndicator.class).create().get();
+  }
+
+  /**
+   * Write then read back the given number of keys, printing the mean latency
+   * of each.
+   */
+  private void benchmark(int backend, String name, int keys) {
+    StorageBase store = new StorageBase(activity, StorageBase.ENCRYPTION_NONE, backend);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < keys; i++) {
+      store.putDouble("RangzenMessagePriority-benchmark " + name + i, i % 2);
+    }
+    long putNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < keys; i++) {
+      assertEquals(i % 2, store.getDouble("RangzenMessagePriority-benchmark " + name + i, -1), 0);
+    }
+    long getNanos = System.nanoTime() - start;
+
+    System.out.println(String.format("%s, %d keys: put %.2fus, get %.2fus", name, keys,
+                                     putNanos / 1000.0 / keys, getNanos / 1000.0 / keys));
+  }
+
+  @Test
+  public void sharedPreferences10k() {
+    benchmark(StorageBase.BACKEND_SHARED_PREFERENCES, "SharedPreferences", 10000);
+  }
+
+  @Test
+  public void sharedPreferences100k() {
+    benchmark(StorageBase.BACKEND_SHARED_PREFERENCES, "SharedPreferences", 100000);
+  }
+
+  @Test
+  public void logStructured10k() {
+    benchmark(StorageBase.BACKEND_LOG_STRUCTURED, "LogStructured", 10000);
+  }
+
+  @Test
+  public void logStructured100k() {
+    benchmark(StorageBase.BACKEND_LOG_STRUCTURED, "LogStructured", 100000);
+  }
+}
@@ -185,4 +185,28 @@ public class StorageBaseTest {
     store.putObject(TEST_KEY_OBJECT, s);
     assertEquals((SimpleObject) store.getObject(TEST_KEY_OBJECT), s);
   }
+
+  /**
+   * Tests that writes inside a transaction are held back until the outermost
+   * commit, and discarded on abort.
+   */
+  @Test
+  public void transactions() {
+    store.beginTransaction();
+    store.putInt(TEST_INT_KEY, TEST_INT_VALUE);
+    store.beginTransaction();
+    store.put(TEST_KEY, TEST_VALUE);
+    assertTrue(store.commitTransaction());
+    assertEquals(-100, store.getInt(TEST_INT_KEY, -100));
+    assertTrue(store.commitTransaction());
+    assertEquals(TEST_INT_VALUE, store.getInt(TEST_INT_KEY, -100));
+    assertEquals(TEST_VALUE, store.get(TEST_KEY));
+
+    store.beginTransaction();
+    store.put(TEST_KEY, TEST_VALUE_2);
+    store.abortTransaction();
+    store.putInt(TEST_INT_KEY, 0);
+    assertEquals(TEST_VALUE, store.get(TEST_KEY));
+    assertEquals(0, store.getInt(TEST_INT_KEY, -100));
+  }
 }
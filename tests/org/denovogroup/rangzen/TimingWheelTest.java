@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014, De Novo Group
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.denovogroup.rangzen;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the timing wheel used to expire messages.
+ */
+@RunWith(JUnit4.class)
+public class TimingWheelTest {
+  /** Length of a tick in the wheel under test. */
+  private static final long TICK = 1000;
+
+  /** Number of slots in the wheel under test. */
+  private static final int SLOTS = 10;
+
+  /** The time the wheel was created. */
+  private static final long START = 1000000;
+
+  /** The wheel under test. */
+  private TimingWheel wheel;
+
+  @Before
+  public void setUp() {
+    wheel = new TimingWheel(TICK, SLOTS, START);
+  }
+
+  /**
+   * Tests that keys expire once their tick has passed, and not before.
+   */
+  @Test
+  public void expiresAfterTick() {
+    wheel.schedule("a", START + 2500);
+    wheel.schedule("b", START + 5000);
+    assertEquals(2, wheel.size());
+
+    assertTrue(wheel.advance(START + 2999).isEmpty());
+    assertEquals(Arrays.asList("a"), wheel.advance(START + 3000));
+    assertTrue(wheel.advance(START + 5999).isEmpty());
+    assertEquals(Arrays.asList("b"), wheel.advance(START + 6000));
+    assertEquals(0, wheel.size());
+  }
+
+  /**
+   * Tests that keys due more than a turn of the wheel away aren't expired when
+   * their slot comes around early.
+   */
+  @Test
+  public void longDeadlines() {
+    wheel.schedule("later", START + 3 * SLOTS * TICK);
+    for (long t = START; t < START + 3 * SLOTS * TICK; t += TICK) {
+      assertTrue(wheel.advance(t).isEmpty());
+    }
+    assertEquals(Arrays.asList("later"), wheel.advance(START + (3 * SLOTS + 1) * TICK));
+  }
+
+  /**
+   * Tests that advancing across several turns at once expires everything due.
+   */
+  @Test
+  public void bigJump() {
+    for (int i = 0; i < 50; i++) {
+      wheel.schedule("key" + i, START + i * TICK);
+    }
+    wheel.schedule("never", START + 1000 * TICK);
+    List<String> expired = wheel.advance(START + 100 * TICK);
+    assertEquals(50, expired.size());
+    assertEquals(50, new HashSet<String>(expired).size());
+    assertEquals(1, wheel.size());
+  }
+
+  /**
+   * Tests that cancelled and rescheduled keys don't expire at their old time.
+   */
+  @Test
+  public void cancelAndReschedule() {
+    wheel.schedule("a", START + TICK);
+    wheel.schedule("b", START + TICK);
+    assertTrue(wheel.cancel("a"));
+    assertFalse(wheel.cancel("a"));
+    wheel.schedule("b", START + 5 * TICK);
+    assertTrue(wheel.advance(START + 3 * TICK).isEmpty());
+    assertEquals(Arrays.asList("b"), wheel.advance(START + 6 * TICK));
+  }
+
+  /**
+   * Tests that keys scheduled in the past expire on the next tick.
+   */
+  @Test
+  public void pastDeadline() {
+    wheel.advance(START + 5 * TICK);
+    wheel.schedule("late", START);
+    assertTrue(wheel.advance(START + 5 * TICK).isEmpty());
+    assertEquals(Arrays.asList("late"), wheel.advance(START + 6 * TICK));
+  }
+}
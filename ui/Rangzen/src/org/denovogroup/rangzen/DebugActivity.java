@@ -12,6 +12,7 @@ import android.widget.Toast;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 public class DebugActivity extends Activity {
 
@@ -20,6 +21,7 @@ public class DebugActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.debug);
         updateDeviceAreaBox();
+        updateExchangeStatsBox();
         setUpActionBar();
     }
 
@@ -77,6 +79,72 @@ public class DebugActivity extends Activity {
       }
     }
 
+    /**
+     * Update the display of recent exchange measurements: the median and 90th
+     * percentile of each phase's time and of the traffic, and why exchanges
+     * failed.
+     */
+    private void updateExchangeStatsBox() {
+      ExchangeHistograms histograms = PeerManager.getInstance(this).getExchangeHistograms();
+      if (histograms.getCount() == 0) {
+        return;
+      }
+
+      String statsString = String.format("Last %d exchanges, %d failed\n",
+                                         histograms.getCount(),
+                                         histograms.getFailures());
+      statsString += "phase: n, p50, p90 (ms)\n";
+      for (ExchangeStats.Phase phase : ExchangeStats.Phase.values()) {
+        if (histograms.getPhaseCount(phase) == 0) {
+          continue;
+        }
+        statsString += String.format("%s: %d, <%s, <%s\n",
+            phase.name().toLowerCase(),
+            histograms.getPhaseCount(phase),
+            formatMillis(histograms.getPhasePercentileMicros(phase, 0.5)),
+            formatMillis(histograms.getPhasePercentileMicros(phase, 0.9)));
+      }
+      statsString += String.format("bytes in: <%s, <%s\n",
+          formatCount(histograms.getBytesInPercentile(0.5)),
+          formatCount(histograms.getBytesInPercentile(0.9)));
+      statsString += String.format("bytes out: <%s, <%s\n",
+          formatCount(histograms.getBytesOutPercentile(0.5)),
+          formatCount(histograms.getBytesOutPercentile(0.9)));
+      statsString += String.format("messages in: <%s, <%s\n",
+          formatCount(histograms.getMessagesReceivedPercentile(0.5)),
+          formatCount(histograms.getMessagesReceivedPercentile(0.9)));
+      statsString += String.format("duplicates in: <%s, <%s\n",
+          formatCount(histograms.getDuplicatesReceivedPercentile(0.5)),
+          formatCount(histograms.getDuplicatesReceivedPercentile(0.9)));
+      for (Map.Entry<String, Integer> failure : histograms.getFailureReasons().entrySet()) {
+        statsString += String.format("failed %dx: %s\n", failure.getValue(), failure.getKey());
+      }
+
+      TextView statsTextView = (TextView) findViewById(R.id.exchange_stats);
+      if (statsTextView != null) {
+        statsTextView.setText(statsString);
+      }
+    }
+
+    /**
+     * Format a histogram bound in microseconds as an exclusive bound in
+     * milliseconds.
+     */
+    private static String formatMillis(long micros) {
+      if (micros == Long.MAX_VALUE) {
+        return "inf";
+      }
+      return String.format("%.1f", (micros + 1) / 1000.0);
+    }
+
+    /** Format a histogram bound as an exclusive bound. */
+    private static String formatCount(long bound) {
+      if (bound == Long.MAX_VALUE) {
+        return "inf";
+      }
+      return Long.toString(bound + 1);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Respond to the action bar's Up/Home button
@@ -87,6 +155,12 @@ public class DebugActivity extends Activity {
         }
         if (item.getItemId() == R.id.refresh) {
           updateDeviceAreaBox();
+          updateExchangeStatsBox();
+        }
+        if (item.getItemId() == R.id.trace_exchanges) {
+          boolean trace = !item.isChecked();
+          RangzenService.setTraceExchanges(this, trace);
+          item.setChecked(trace);
         }
 
         return super.onOptionsItemSelected(item);
@@ -95,6 +169,7 @@ public class DebugActivity extends Activity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.debug_menu, menu);
+        menu.findItem(R.id.trace_exchanges).setChecked(RangzenService.getTraceExchanges(this));
         return true;
     }
 
@@ -33,6 +33,7 @@ package org.denovogroup.rangzen;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -66,6 +67,21 @@ public class FeedListAdapter extends ArrayAdapter<Message> {
 
     protected final static String TAG = "FeedListAdapter";
 
+    /** Version meaning that the adapter's messages didn't come from refresh(). */
+    protected static final long NO_VERSION = -1;
+
+    /**
+     * The adapter's messages, in MessageStore.FEED_ORDER. This is the list
+     * backing the ArrayAdapter, so refresh() can edit it in place.
+     */
+    private final ArrayList<Message> mMessages;
+
+    /** The adapter's messages by ID. */
+    private final HashMap<String, Message> mMessagesById = new HashMap<String, Message>();
+
+    /** The version of the feed the adapter's messages are from. */
+    private long mVersion = NO_VERSION;
+
     protected int[] a = { R.drawable.ic_action_important_yellow,
             R.drawable.ic_action_repeat_green, R.drawable.ic_action_discard_red };
 
@@ -88,11 +104,23 @@ public class FeedListAdapter extends ArrayAdapter<Message> {
      *            The context of the activity that spawned this class.
      */
     public FeedListAdapter(Context context, int resource, List<Message> items) {
-        super(context, resource, items);
+        this(context, resource, new ArrayList<Message>(items));
     }
 
+    /**
+     * Creates an empty adapter; call refresh() to fill it with the feed.
+     */
     public FeedListAdapter(Context context, int resource) {
-        super(context, resource);
+        this(context, resource, new ArrayList<Message>());
+    }
+
+    private FeedListAdapter(Context context, int resource,
+            ArrayList<Message> messages) {
+        super(context, resource, messages);
+        mMessages = messages;
+        for (Message m : messages) {
+            mMessagesById.put(m.getId(), m);
+        }
     }
 
     /**
@@ -111,8 +139,6 @@ public class FeedListAdapter extends ArrayAdapter<Message> {
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
 
-        StorageBase s = new StorageBase(getContext(),
-                StorageBase.ENCRYPTION_DEFAULT);
         View v = convertView;
 
         if (v == null) {
@@ -133,12 +159,14 @@ public class FeedListAdapter extends ArrayAdapter<Message> {
             mVH = (ViewHolder) v.getTag();
         }
 
+        // The flags come with the message, so binding doesn't touch the store.
         Message m = getItem(position);
         ImageButton[] ib = { mVH.mFavorite, mVH.mRetweet, mVH.mTrash };
-        String[] saveRetweet = { Opener.SAVE, Opener.RETWEET, "" };
+        int[] flags = { MessageStore.FLAG_SAVED, MessageStore.FLAG_RETWEETED,
+                MessageStore.FLAG_DELETED };
 
         for (int i = 0; i < ib.length; i++) {
-            if (s.getInt(saveRetweet[i] + m.getMessage(), 0) == 0) {
+            if (!m.hasFlag(flags[i])) {
                 ib[i].setImageResource(b[i]);
             } else {
                 ib[i].setImageResource(a[i]);
@@ -222,16 +250,115 @@ public class FeedListAdapter extends ArrayAdapter<Message> {
         return spannable;
     }
     
+    /**
+     * Replaces the message at the given position with a copy whose flags have
+     * been changed the same way they were just changed in the store, so that
+     * the row shows them if it is bound again before the next refresh.
+     * 
+     * @param position
+     *            The row index of the message.
+     * @param flags
+     *            The flags that were changed, such as
+     *            MessageStore.FLAG_RETWEETED.
+     * @param set
+     *            True if they were set, false if they were cleared.
+     */
+    public void updateFlags(int position, int flags, boolean set) {
+        if (position < 0 || position >= getCount()) {
+            return;
+        }
+        Message m = getItem(position);
+        int updated = set ? (m.getFlags() | flags) : (m.getFlags() & ~flags);
+        if (updated == m.getFlags()) {
+            return;
+        }
+        Message copy = m.withFlags(updated);
+        mMessages.set(position, copy);
+        mMessagesById.put(copy.getId(), copy);
+    }
+
+    /**
+     * Brings the adapter up to date with the store. After the first call, only
+     * the messages that changed since the last one are read, and each is moved
+     * to its place by binary search, instead of the whole feed being read and
+     * sorted again. The caller should call notifyDataSetChanged() afterwards.
+     */
     public void refresh() {
-        MessageStore m = new MessageStore(getContext(),
+        MessageStore store = new MessageStore(getContext(),
                 StorageBase.ENCRYPTION_DEFAULT);
-        List<Message> messages = m.getAllMessages(
-                MessageStore.NOT_SAVED_MESSAGES, null);
-        Log.d(TAG, "get count = " + Integer.toString(getCount()));
-        clear();
-        if (messages.size() > 0) {
-            Log.d(TAG, "messages size = " + Integer.toString(messages.size()));
-            addAll(messages);
+        MessageStore.Changes changes = null;
+        if (mVersion != NO_VERSION) {
+            changes = store.getChangesSince(mVersion);
+        }
+        if (changes == null) {
+            reload(store);
+            return;
+        }
+        for (String id : changes.getRemoved()) {
+            removeMessage(id);
+        }
+        for (Message m : changes.getChanged()) {
+            removeMessage(m.getId());
+            int position = Collections.binarySearch(mMessages, m,
+                    MessageStore.FEED_ORDER);
+            mMessages.add(position < 0 ? -position - 1 : position, m);
+            mMessagesById.put(m.getId(), m);
+        }
+        mVersion = changes.getVersion();
+        Log.d(TAG, "applied " + changes.getChanged().size() + " changes, "
+                + changes.getRemoved().size() + " removals");
+    }
+
+    /**
+     * Replaces the adapter's messages with the whole feed.
+     * 
+     * @param store
+     *            The store to read the feed from.
+     */
+    private void reload(MessageStore store) {
+        // Read the version first, so changes made while reading aren't missed.
+        long version = store.getVersion();
+        setMessages(store.getAllMessages(MessageStore.NOT_SAVED_MESSAGES, null),
+                version);
+    }
+
+    /**
+     * Replaces the adapter's messages.
+     * 
+     * @param messages
+     *            The new messages, in MessageStore.FEED_ORDER.
+     * @param version
+     *            The version of the feed they are from, or NO_VERSION if they
+     *            aren't the feed, in which case the next refresh() reads the
+     *            whole feed.
+     */
+    protected void setMessages(List<Message> messages, long version) {
+        Log.d(TAG, "messages size = " + Integer.toString(messages.size()));
+        mMessages.clear();
+        mMessages.addAll(messages);
+        mMessagesById.clear();
+        for (Message m : messages) {
+            mMessagesById.put(m.getId(), m);
+        }
+        mVersion = version;
+    }
+
+    /**
+     * Removes a message from the adapter's messages, if present, finding it by
+     * binary search.
+     * 
+     * @param id
+     *            The ID of the message.
+     */
+    private void removeMessage(String id) {
+        Message old = mMessagesById.remove(id);
+        if (old == null) {
+            return;
+        }
+        int position = Collections.binarySearch(mMessages, old,
+                MessageStore.FEED_ORDER);
+        if (position >= 0) {
+            mMessages.remove(position);
         }
     }
 
@@ -83,10 +83,11 @@ public class ListFragmentOrganizer extends ListFragment {
                 StorageBase.ENCRYPTION_DEFAULT);
 
         if (whichScreen == FragmentType.FEED) {
-            List<Message> messages = m.getAllMessages(
-                    MessageStore.NOT_SAVED_MESSAGES, null);
+            // Loading through refresh() lets later refreshes apply only what
+            // changed.
             FeedListAdapter mFeedListAdaper = new FeedListAdapter(
-                    getActivity(), R.layout.feed_row, messages);
+                    getActivity(), R.layout.feed_row);
+            mFeedListAdaper.refresh();
             listView.setAdapter(mFeedListAdaper);
         }
         if (whichScreen == FragmentType.SAVED) {
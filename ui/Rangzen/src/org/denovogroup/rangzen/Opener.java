@@ -58,6 +58,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTabHost;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.ActionBarActivity;
 import android.support.v7.widget.SearchView;
@@ -96,16 +97,14 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
     private static TextView mCurrentTextView;
     private static boolean mFirstTime = true;
     private static final String TAG = "Opener";
-    
-    public static final String SAVE = "SAVE";
-    public static final String RETWEET = "RETWEET";
 
     private FragmentTabHost mTabHost;
 
     // Create reciever object
     private BroadcastReceiver receiver = new NewMessageReceiver();
 
-    // Set When broadcast event will fire.
+    // Set When broadcast event will fire. These are local broadcasts sent by
+    // MessageChangeNotifier, one per burst of changes.
     private IntentFilter filter = new IntentFilter(MessageStore.NEW_MESSAGE);
     public final static int POSTED_MESSAGE = 999;
 
@@ -406,7 +405,7 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(receiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(receiver);
         Log.i(TAG, "Unregistered receiver");
     }
 
@@ -417,8 +416,7 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
     @Override
     protected void onResume() {
         super.onResume();
-        notifyDataSetChanged();
-        registerReceiver(receiver, filter);
+        LocalBroadcastManager.getInstance(this).registerReceiver(receiver, filter);
         notifyDataSetChanged();
         Log.i(TAG, "Registered receiver");
     }
@@ -443,24 +441,20 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
          * ListFragmentOrganizer and when the user returns to the feed then the
          * feed will check its own data set and not crash.
          * 
-<<<<<<< HEAD
-<<<<<<< HEAD
          * 2) The previous/current fragment is the feed, it needs to be notified
          * immediately that there was a change in the underlying dataset.
-=======
-         * If the message is a NEW_MESSAGE and not SAVE_MESSAGE then create a
-         * notification.
->>>>>>> Added remove, but it creates an error, fixed the saved count and regular count, fixed rows keeping their button clicks.
-=======
+         * 
          * If the message is a NEW_MESSAGE and not SAVE_MESSAGE then create a
-         * notification.
->>>>>>> refs/remotes/origin/garcia43_favorite
+         * notification. One broadcast covers every message that arrived in a
+         * burst, so the feed is reloaded once per burst.
          */
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (intent.getAction() == MessageStore.NEW_MESSAGE) {
+            if (MessageStore.NEW_MESSAGE.equals(intent.getAction())) {
+                String[] ids = intent
+                        .getStringArrayExtra(MessageStore.EXTRA_MESSAGE_IDS);
                 notifyDataSetChanged();
-                createNotification();
+                createNotification(ids == null ? 1 : ids.length);
             } else {
                 notifyDataSetChanged();
             }
@@ -484,11 +478,11 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
         }
     }
 
-    private void createNotification() {
+    private void createNotification(int count) {
         NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(
                 this).setSmallIcon(R.drawable.ic_launcher)
                 .setContentTitle("New Message")
-                .setContentText("You've received new messages.").setNumber(1);
+                .setContentText("You've received new messages.").setNumber(count);
 
         NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
 
@@ -536,9 +530,28 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
         double p = messageStore.getPriority((text));
 
         messageStore.saveMessage(text, p);
+        updateRowFlags(vg2, MessageStore.FLAG_SAVED);
+    }
 
-        StorageBase m = new StorageBase(this, StorageBase.ENCRYPTION_DEFAULT);
-        m.putInt(SAVE + hashtagView.getText().toString(), 1);
+    /**
+     * Updates the feed's copy of the message in the given row after its flags
+     * were set in the store, since the feed binds rows from the flags it was
+     * given rather than reading the store.
+     * 
+     * @param row
+     *            The root view of the row, whose ID is its position.
+     * @param flags
+     *            The flags that were set.
+     */
+    private void updateRowFlags(View row, int flags) {
+        Fragment feed = getSupportFragmentManager().findFragmentById(
+                R.id.tabcontent);
+        if (feed instanceof ListFragmentOrganizer) {
+            ListFragmentOrganizer org = (ListFragmentOrganizer) feed;
+            FeedListAdapter adapt = (FeedListAdapter) org.getListView()
+                    .getAdapter();
+            adapt.updateFlags(row.getId(), flags, true);
+        }
     }
 
     /**
@@ -556,6 +569,9 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
 
         ImageView iv = (ImageView) view;
         iv.setImageResource(R.drawable.ic_action_discard_red);
+        new MessageStore(this, StorageBase.ENCRYPTION_DEFAULT).setFlags(item,
+                MessageStore.FLAG_DELETED, true);
+        updateRowFlags(vg2, MessageStore.FLAG_DELETED);
 
         Fragment feed = getSupportFragmentManager().findFragmentById(
                 R.id.tabcontent);
@@ -606,8 +622,11 @@ public class Opener extends ActionBarActivity implements OnItemClickListener {
         ImageButton iv = (ImageButton) view;
         iv.setAdjustViewBounds(true);
         iv.setImageResource(R.drawable.ic_action_repeat_green);
-        StorageBase m = new StorageBase(this, StorageBase.ENCRYPTION_DEFAULT);
-        m.putInt(RETWEET + hashtagView.getText().toString(), 1);
+        MessageStore messageStore = new MessageStore(this,
+                StorageBase.ENCRYPTION_DEFAULT);
+        messageStore.setFlags(hashtagView.getText().toString(),
+                MessageStore.FLAG_RETWEETED, true);
+        updateRowFlags(vg2, MessageStore.FLAG_RETWEETED);
     }
 
 }
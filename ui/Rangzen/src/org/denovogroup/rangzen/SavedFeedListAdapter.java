@@ -66,6 +66,18 @@ public class SavedFeedListAdapter extends FeedListAdapter {
     
     protected final static String TAGG = "SavedFeedListAdapter";
 
+    /**
+     * Reloads the saved messages. They aren't covered by the store's change
+     * log, so this always reads them all.
+     */
+    @Override
+    public void refresh() {
+        MessageStore store = new MessageStore(getContext(),
+                StorageBase.ENCRYPTION_DEFAULT);
+        setMessages(store.getAllMessages(MessageStore.SAVED_MESSAGES, null),
+                NO_VERSION);
+    }
+
     /**
      * Navigates the treemap and finds the correct message from memory to
      * display at this position in the feed, then returns the row's view object,
@@ -82,8 +94,6 @@ public class SavedFeedListAdapter extends FeedListAdapter {
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         
-        StorageBase s = new StorageBase(getContext(),
-                StorageBase.ENCRYPTION_DEFAULT);
         View v = convertView;
 
         if (v == null) {
@@ -106,9 +116,9 @@ public class SavedFeedListAdapter extends FeedListAdapter {
 
         Message m = getItem(position);
         ImageButton[] ib = {mVH.mRetweet,mVH.mTrash };
-        String[] saveRetweet = { Opener.RETWEET, "" };
+        int[] flags = { MessageStore.FLAG_RETWEETED, MessageStore.FLAG_DELETED };
         for (int i = 0; i < ib.length; i++) {
-            if (s.getInt(saveRetweet[i] + m.getMessage(), 0) == 0) {
+            if (!m.hasFlag(flags[i])) {
                 ib[i].setImageResource(b[i + 1]);
             } else {
                 ib[i].setImageResource(a[i + 1]);